@@ -0,0 +1,131 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded and lock-free cache of the limits that a property exceeded in the current bucket,
+ * used by {@link Spillway} to refuse calls without calling the storage.
+ * <p>
+ * Each entry keeps the count of the limit when it was exceeded. A call whose cost added to that
+ * count exceeds the capacity is refused. An entry is ignored once its bucket ends, or once its
+ * lifetime is over if it has one. Without a lifetime, a count that decreases within its bucket,
+ * for instance when a storage gives back leased tokens, is only seen in the next bucket.
+ * <p>
+ * The cache is direct mapped: a new entry replaces whatever entry had the same slot, which keeps
+ * it bounded without any eviction work. Lookups do not allocate.
+ */
+/*package*/ class DenyCache {
+  /*package*/ static final int NOT_DENIED = -1;
+
+  private final AtomicReferenceArray<Entry> entries;
+  private final int mask;
+  private final long entryLifetimeMillis;
+
+  /**
+   * @param capacity The number of entries
+   * @param entryLifetime How long an entry is used after it is put, null to use it until the end
+   *                      of its bucket
+   */
+  /*package*/ DenyCache(int capacity, Duration entryLifetime) {
+    this.entryLifetimeMillis = entryLifetime == null ? Long.MAX_VALUE : entryLifetime.toMillis();
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    this.entries = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * @param limitIndex The index of the limit in its {@link Spillway}
+   * @param property The property of the limit
+   * @param timestamp The epoch millisecond of the call
+   * @return The count of the limit when it was exceeded in the bucket of the timestamp,
+   *         {@link #NOT_DENIED} if it was not or if the entry is over
+   */
+  /*package*/ int getCount(int limitIndex, String property, long timestamp) {
+    Entry entry = entries.get(index(limitIndex, property));
+    if (entry == null
+        || entry.limitIndex != limitIndex
+        || timestamp < entry.bucketStart
+        || timestamp >= entry.end
+        || !Objects.equals(entry.property, property)) {
+      return NOT_DENIED;
+    }
+    return entry.count;
+  }
+
+  /**
+   * @param limitIndex The index of the limit in its {@link Spillway}
+   * @param property The property of the limit
+   * @param bucketStart The epoch millisecond at which the bucket of the limit starts
+   * @param bucketEnd The epoch millisecond at which the bucket of the limit ends
+   * @param count The count of the limit without the cost of the refused call
+   * @param timestamp The epoch millisecond of the refused call
+   */
+  /*package*/ void put(
+      int limitIndex,
+      String property,
+      long bucketStart,
+      long bucketEnd,
+      int count,
+      long timestamp) {
+    int index = index(limitIndex, property);
+    long end =
+        entryLifetimeMillis == Long.MAX_VALUE
+            ? bucketEnd
+            : Math.min(bucketEnd, timestamp + entryLifetimeMillis);
+    Entry entry = entries.get(index);
+    if (entry != null
+        && entry.limitIndex == limitIndex
+        && entry.bucketStart == bucketStart
+        && entry.count == count
+        && entry.end >= end
+        && Objects.equals(entry.property, property)) {
+      return;
+    }
+    entries.lazySet(index, new Entry(limitIndex, property, bucketStart, end, count));
+  }
+
+  private int index(int limitIndex, String property) {
+    int hash = Objects.hashCode(property) * 31 + limitIndex;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  private static final class Entry {
+    private final int limitIndex;
+    private final String property;
+    private final long bucketStart;
+    private final long end;
+    private final int count;
+
+    private Entry(int limitIndex, String property, long bucketStart, long end, int count) {
+      this.limitIndex = limitIndex;
+      this.property = property;
+      this.bucketStart = bucketStart;
+      this.end = end;
+      this.count = count;
+    }
+  }
+}
@@ -30,19 +30,28 @@ import com.coveo.spillway.limit.Limit;
 import com.coveo.spillway.limit.LimitBuilder;
 import com.coveo.spillway.limit.LimitDefinition;
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.ResolvedLimit;
+import com.coveo.spillway.limit.utils.LimitUtils;
 import com.coveo.spillway.storage.LimitUsageStorage;
+import com.coveo.spillway.storage.NonBlockingLimitUsageStorage;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.trigger.LimitTrigger;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.ToIntFunction;
 
 /**
  * Contains methods to easily interact with the defined limits in the storage
@@ -58,21 +67,114 @@ import java.util.stream.Collectors;
  * @since 1.0.0
  */
 public class Spillway<T> {
+  /**
+   * The number of exceeded limits that a {@link Spillway} remembers by default, none since the
+   * cache is opt-in, see {@link #Spillway(Clock, LimitUsageStorage, Executor, int, String, Limit...)}.
+   */
+  public static final int DEFAULT_DENY_CACHE_CAPACITY = 0;
 
   private static final Logger logger = LoggerFactory.getLogger(Spillway.class);
 
   private final Clock clock;
 
   private final LimitUsageStorage storage;
+  private final NonBlockingLimitUsageStorage nonBlockingStorage;
   private final String resource;
-  private final List<Limit<T>> limits;
+  private final Limit<T>[] limits;
+  private final Map<String, Integer> limitIndexes;
+  private final ThreadLocal<Decision> decisions;
+  private final DenyCache denyCache;
 
   @SafeVarargs
   public Spillway(Clock clock, LimitUsageStorage storage, String resourceName, Limit<T>... limits) {
+    this(clock, storage, NonBlockingLimitUsageStorage.defaultExecutor(), resourceName, limits);
+  }
+
+  /**
+   * @param executor Used by the asynchronous methods to call storages that are not a
+   *                 {@link NonBlockingLimitUsageStorage}
+   */
+  @SafeVarargs
+  public Spillway(
+      Clock clock,
+      LimitUsageStorage storage,
+      Executor executor,
+      String resourceName,
+      Limit<T>... limits) {
+    this(clock, storage, executor, DEFAULT_DENY_CACHE_CAPACITY, resourceName, limits);
+  }
+
+  /**
+   * Remembers the exceeded limits in a cache until the end of their bucket.
+   *
+   * @param executor Used by the asynchronous methods to call storages that are not a
+   *                 {@link NonBlockingLimitUsageStorage}
+   * @param denyCacheCapacity The number of exceeded limits to remember, zero to disable the cache.
+   *                          The other constructors disable it.
+   * @see #Spillway(Clock, LimitUsageStorage, Executor, int, Duration, String, Limit...)
+   */
+  @SafeVarargs
+  public Spillway(
+      Clock clock,
+      LimitUsageStorage storage,
+      Executor executor,
+      int denyCacheCapacity,
+      String resourceName,
+      Limit<T>... limits) {
+    this(clock, storage, executor, denyCacheCapacity, null, resourceName, limits);
+  }
+
+  /**
+   * Once a fixed window limit is exceeded for a property, every later call with that property is
+   * usually refused by the storage until the bucket ends. Such limits can be remembered in a
+   * bounded cache so that these calls are refused without calling the storage. Sliding windows
+   * and token buckets, whose counts decrease over time, are always sent to the storage.
+   * <p>
+   * By default an exceeded limit is remembered until the end of its bucket. The count of a bucket
+   * can still decrease with a distributed storage, for instance when leased tokens are given back
+   * or when a cache is reconciled with a lower count. The calls that such a decrease would let
+   * through are refused until the bucket ends, unless the entries are given a shorter lifetime,
+   * which trades a few more calls to the storage for a fresher count.
+   * <p>
+   * The cache is only used by {@link #call(Object, int)} and {@link #tryCall(Object, int)}.
+   * A call refused by the cache only calls the triggers of the limits that it exceeded.
+   *
+   * @param executor Used by the asynchronous methods to call storages that are not a
+   *                 {@link NonBlockingLimitUsageStorage}
+   * @param denyCacheCapacity The number of exceeded limits to remember, zero to disable the cache
+   * @param denyCacheEntryLifetime How long an exceeded limit is remembered, at most until the end
+   *                               of its bucket, null to remember it until then
+   */
+  @SafeVarargs
+  public Spillway(
+      Clock clock,
+      LimitUsageStorage storage,
+      Executor executor,
+      int denyCacheCapacity,
+      Duration denyCacheEntryLifetime,
+      String resourceName,
+      Limit<T>... limits) {
+    if (denyCacheCapacity < 0) {
+      throw new IllegalArgumentException("'denyCacheCapacity' must not be negative");
+    }
+    if (denyCacheEntryLifetime != null
+        && (denyCacheEntryLifetime.isNegative() || denyCacheEntryLifetime.isZero())) {
+      throw new IllegalArgumentException("'denyCacheEntryLifetime' must be positive");
+    }
     this.clock = clock;
     this.storage = storage;
+    this.nonBlockingStorage = NonBlockingLimitUsageStorage.of(storage, executor);
     this.resource = resourceName;
-    this.limits = Collections.unmodifiableList(Arrays.asList(limits));
+    this.limits = limits.clone();
+
+    Map<String, Integer> indexes = new HashMap<>();
+    for (int i = 0; i < limits.length; i++) {
+      indexes.put(limits[i].getName(), i);
+    }
+    this.limitIndexes = Collections.unmodifiableMap(indexes);
+    this.decisions = ThreadLocal.withInitial(() -> new Decision(this.limits.length));
+    this.denyCache =
+        denyCacheCapacity > 0 ? new DenyCache(denyCacheCapacity, denyCacheEntryLifetime) : null;
   }
 
   /**
@@ -108,9 +210,13 @@ public class Spillway<T> {
    * @throws SpillwayLimitExceededException If one the enforced limits is exceeded
    */
   public void call(T context, int cost) throws SpillwayLimitExceededException {
-    List<LimitDefinition> exceededLimits = getExceededLimits(context, cost, true);
-    if (!exceededLimits.isEmpty()) {
-      throw new SpillwayLimitExceededException(exceededLimits, context, cost);
+    Decision decision = acquireDecision();
+    try {
+      if (consumeAndCountExceededLimits(context, cost, decision) > 0) {
+        throw new SpillwayLimitExceededException(getExceededLimits(decision), context, cost);
+      }
+    } finally {
+      releaseDecision(decision);
     }
   }
 
@@ -151,7 +257,65 @@ public class Spillway<T> {
    * @return False if one the enforced limits is exceeded, true otherwise
    */
   public boolean tryCall(T context, int cost) {
-    return getExceededLimits(context, cost, true).isEmpty();
+    Decision decision = acquireDecision();
+    try {
+      return consumeAndCountExceededLimits(context, cost, decision) == 0;
+    } finally {
+      releaseDecision(decision);
+    }
+  }
+
+  /**
+   * Behaves like {@link #tryCallAll(Collection, int)} with {@code cost} of one.
+   *
+   * @see #tryCallAll(Collection, int)
+   *
+   * @param contexts The contexts to verify, see {@link #tryCall(Object)}
+   * @return The decision of each context in iteration order, false if one the enforced limits is exceeded
+   */
+  public boolean[] tryCallAll(Collection<T> contexts) {
+    return tryCallAll(contexts, 1);
+  }
+
+  /**
+   * Behaves like a {@link #tryCall(Object, int)} for each context, in iteration order, but sends
+   * all the requests to the storage in a single batch.
+   *
+   * @param contexts The contexts to verify, see {@link #tryCall(Object, int)}
+   * @param cost The cost of each context, greater than zero
+   * @return The decision of each context in iteration order, false if one the enforced limits is exceeded
+   */
+  public boolean[] tryCallAll(Collection<T> contexts, int cost) {
+    if (cost < 1) {
+      throw new IllegalArgumentException("'cost' must be greater than zero");
+    }
+
+    Instant now = Instant.now(clock);
+    List<ResolvedLimit[]> resolvedLimitGroups = new ArrayList<>(contexts.size());
+    List<List<AddAndGetRequest>> requestGroups = new ArrayList<>(contexts.size());
+    for (T context : contexts) {
+      String[] properties = new String[limits.length];
+      ResolvedLimit[] resolvedLimits = resolveLimits(context, properties);
+      resolvedLimitGroups.add(resolvedLimits);
+      requestGroups.add(
+          buildRequestsFromLimits(
+              properties, resolvedLimits, cost, now, ResolvedLimit::getCapacity));
+    }
+
+    List<Map<LimitKey, Integer>> results = storage.tryAddAndGetAll(requestGroups);
+
+    boolean[] decisions = new boolean[contexts.size()];
+    int position = 0;
+    for (T context : contexts) {
+      Map<LimitKey, Integer> contextResults =
+          position < results.size() ? results.get(position) : Collections.emptyMap();
+      decisions[position] =
+          collectExceededLimits(
+                  context, resolvedLimitGroups.get(position), cost, now, contextResults, 0, true)
+              .isEmpty();
+      position++;
+    }
+    return decisions;
   }
 
   /**
@@ -201,118 +365,424 @@ public class Spillway<T> {
    * @return False if one the enforced limits would be exceeded, true otherwise
    */
   public boolean checkLimit(T context, int cost) {
-    return getExceededLimits(context, cost, false).isEmpty();
+    return getExceededLimits(context, cost).isEmpty();
+  }
+
+  /**
+   * Behaves like {@link #callAsync(Object, int)} with {@code cost} of one.
+   *
+   * @see #callAsync(Object, int)
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @return A future completed exceptionally with a {@link SpillwayLimitExceededException} if one the enforced limits is exceeded
+   */
+  public CompletableFuture<Void> callAsync(T context) {
+    return callAsync(context, 1);
+  }
+
+  /**
+   * Asynchronous version of {@link #call(Object, int)} that does not block on the storage.
+   * The triggers are called by the thread completing the storage call.
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @param cost The cost of the query, must be greater than zero
+   * @return A future completed exceptionally with a {@link SpillwayLimitExceededException} if one the enforced limits is exceeded
+   */
+  public CompletableFuture<Void> callAsync(T context, int cost) {
+    return consumeAndGetExceededLimitsAsync(context, cost)
+        .thenCompose(
+            exceededLimits
+                -> exceededLimits.isEmpty()
+                    ? CompletableFuture.completedFuture(null)
+                    : CompletableFuture.failedFuture(
+                        new SpillwayLimitExceededException(exceededLimits, context, cost)));
+  }
+
+  /**
+   * Behaves like {@link #tryCallAsync(Object, int)} with {@code cost} of one.
+   *
+   * @see #tryCallAsync(Object, int)
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @return A future of false if one the enforced limits is exceeded, true otherwise
+   */
+  public CompletableFuture<Boolean> tryCallAsync(T context) {
+    return tryCallAsync(context, 1);
+  }
+
+  /**
+   * Asynchronous version of {@link #tryCall(Object, int)} that does not block on the storage.
+   * The triggers are called by the thread completing the storage call.
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @param cost The cost of the query, greater than zero
+   * @return A future of false if one the enforced limits is exceeded, true otherwise
+   */
+  public CompletableFuture<Boolean> tryCallAsync(T context, int cost) {
+    return consumeAndGetExceededLimitsAsync(context, cost).thenApply(List::isEmpty);
+  }
+
+  /**
+   * Behaves like {@link #checkLimitAsync(Object, int)} with {@code cost} of one.
+   *
+   * @see #checkLimitAsync(Object, int)
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @return A future of false if one the enforced limits would be exceeded, true otherwise
+   */
+  public CompletableFuture<Boolean> checkLimitAsync(T context) {
+    return checkLimitAsync(context, 1);
+  }
+
+  /**
+   * Asynchronous version of {@link #checkLimit(Object, int)} that does not block on the storage.
+   *
+   * @param context Either the name of the limit OR the object on which the propertyExtractor ({@link LimitBuilder#of(String, java.util.function.Function)})
+   *                will be applied if it was specified
+   * @param cost The cost of the query, must be greater than zero
+   * @return A future of false if one the enforced limits would be exceeded, true otherwise
+   */
+  public CompletableFuture<Boolean> checkLimitAsync(T context, int cost) {
+    if (cost < 1) {
+      throw new IllegalArgumentException("'cost' must be greater than zero");
+    }
+
+    Instant now = Instant.now(clock);
+    String[] properties = new String[limits.length];
+    ResolvedLimit[] resolvedLimits = resolveLimits(context, properties);
+    List<AddAndGetRequest> requests =
+        buildRequestsFromLimits(properties, resolvedLimits, 0, now, ResolvedLimit::getCapacity);
+
+    return nonBlockingStorage
+        .addAndGetAsync(requests)
+        .thenApply(
+            results
+                -> collectExceededLimits(context, resolvedLimits, cost, now, results, cost, false)
+                    .isEmpty());
+  }
+
+  private CompletableFuture<List<LimitDefinition>> consumeAndGetExceededLimitsAsync(
+      T context, int cost) {
+    if (cost < 1) {
+      throw new IllegalArgumentException("'cost' must be greater than zero");
+    }
+
+    Instant now = Instant.now(clock);
+    String[] properties = new String[limits.length];
+    ResolvedLimit[] resolvedLimits = resolveLimits(context, properties);
+    List<AddAndGetRequest> requests =
+        buildRequestsFromLimits(properties, resolvedLimits, cost, now, ResolvedLimit::getCapacity);
+
+    return nonBlockingStorage
+        .tryAddAndGetAsync(requests)
+        .thenApply(
+            results -> collectExceededLimits(context, resolvedLimits, cost, now, results, 0, true));
   }
 
-  private List<LimitDefinition> getExceededLimits(T context, int cost, boolean shouldUpdateLimit) {
+  private List<LimitDefinition> getExceededLimits(T context, int cost) {
     if (cost < 1) {
       throw new IllegalArgumentException("'cost' must be greater than zero");
     }
 
     Instant now = Instant.now(clock);
-    List<AddAndGetRequest> requests = buildRequestsFromLimits(context, 0, now);
+    String[] properties = new String[limits.length];
+    ResolvedLimit[] resolvedLimits = resolveLimits(context, properties);
+    List<AddAndGetRequest> requests =
+        buildRequestsFromLimits(properties, resolvedLimits, 0, now, ResolvedLimit::getCapacity);
 
     Map<LimitKey, Integer> results = storage.addAndGet(requests);
 
-    List<LimitDefinition> exceededLimits = new ArrayList<>();
-    if (results.size() == limits.size()) {
-      for (Entry<LimitKey, Integer> result : results.entrySet()) {
-        Limit<T> limit =
-            limits
-                .stream()
-                .filter(entry -> entry.getName().equals(result.getKey().getLimitName()))
-                .findFirst()
-                .get();
-
-        if (shouldUpdateLimit) {
-          handleTriggers(context, cost, now, result.getValue() + cost, limit);
+    return collectExceededLimits(context, resolvedLimits, cost, now, results, cost, false);
+  }
+
+  /**
+   * Hot path of every decision. It reuses the batch of the calling thread and works on primitive
+   * values so that a decision does not allocate with a storage that overrides
+   * {@link LimitUsageStorage#tryAddAndGet(AddAndGetBatch)}.
+   *
+   * @return The number of exceeded limits, the batch of the decision holds the count of each limit
+   */
+  private int consumeAndCountExceededLimits(T context, int cost, Decision decision) {
+    if (cost < 1) {
+      throw new IllegalArgumentException("'cost' must be greater than zero");
+    }
+
+    Instant now = Instant.now(clock);
+    long timestamp = now.toEpochMilli();
+    AddAndGetBatch batch = decision.batch;
+    ResolvedLimit[] resolvedLimits = decision.resolvedLimits;
+    batch.clear();
+    for (int i = 0; i < limits.length; i++) {
+      String property = limits[i].getProperty(context);
+      resolvedLimits[i] = limits[i].resolve(property);
+      batch.add(
+          resource,
+          limits[i].getName(),
+          property,
+          limits[i].isDistributed(),
+          limits[i].isSlidingWindow(),
+          resolvedLimits[i].getBurst(),
+          resolvedLimits[i].getExpiration(),
+          timestamp,
+          cost,
+          resolvedLimits[i].getCapacity());
+    }
+
+    if (denyCache != null) {
+      int deniedLimitCount = countDeniedLimits(context, cost, now, decision);
+      if (deniedLimitCount > 0) {
+        return deniedLimitCount;
+      }
+    }
+
+    storage.tryAddAndGet(batch);
+
+    if (batch.getResultCount() != limits.length) {
+      logger.error(
+          "Something went very wrong. We sent {} limits to the backend but received {} responses. Assuming that no limits were exceeded. Limits: {}.",
+          limits.length,
+          batch.getResultCount(),
+          Arrays.asList(limits));
+      return 0;
+    }
+
+    int exceededLimitCount = 0;
+    for (int i = 0; i < limits.length; i++) {
+      handleTriggers(context, cost, now, batch.getResult(i), limits[i], resolvedLimits[i]);
+      if (batch.getResult(i) > batch.getLimit(i)) {
+        exceededLimitCount++;
+        if (denyCache != null && isDenyCacheable(batch, i)) {
+          denyCache.put(
+              i,
+              batch.getLimitKey(i).getProperty(),
+              batch.getLimitKey(i).getBucket().toEpochMilli(),
+              batch.getBucketEnd(i),
+              batch.getResult(i) - cost,
+              now.toEpochMilli());
         }
+      }
+    }
+    return exceededLimitCount;
+  }
 
-        if (result.getValue() + cost > limit.getCapacity(context)) {
-          exceededLimits.add(limit.getDefinition());
+  /**
+   * Refuses the decision without calling the storage if the cost would exceed the count
+   * remembered for one of its limits. The other limits get a count of zero since the storage
+   * was not called.
+   *
+   * @return The number of limits exceeded according to the {@link DenyCache}
+   */
+  private int countDeniedLimits(T context, int cost, Instant now, Decision decision) {
+    AddAndGetBatch batch = decision.batch;
+    int[] deniedCounts = decision.deniedCounts;
+    long timestamp = now.toEpochMilli();
+    int deniedLimitCount = 0;
+    for (int i = 0; i < limits.length; i++) {
+      deniedCounts[i] = DenyCache.NOT_DENIED;
+      if (isDenyCacheable(batch, i)) {
+        int count = denyCache.getCount(i, batch.getLimitKey(i).getProperty(), timestamp);
+        if (count != DenyCache.NOT_DENIED && count + cost > batch.getLimit(i)) {
+          deniedCounts[i] = count;
+          deniedLimitCount++;
         }
       }
-    } else {
-      logger.error(
-          "Something went very wrong. We sent {} limits to the backend but received {} responses. Assuming that no limits were exceeded. Limits: {}. Results: {}.",
-          limits.size(),
-          results.size(),
-          limits,
-          results);
+    }
+    if (deniedLimitCount == 0) {
+      return 0;
     }
 
-    if (shouldUpdateLimit && exceededLimits.isEmpty()) {
-      requests = buildRequestsFromLimits(context, cost, now);
-      storage.addAndGet(requests);
+    for (int i = 0; i < limits.length; i++) {
+      if (deniedCounts[i] == DenyCache.NOT_DENIED) {
+        batch.setResult(i, 0);
+      } else {
+        int currentValue = deniedCounts[i] + cost;
+        batch.setResult(i, currentValue);
+        handleTriggers(context, cost, now, currentValue, limits[i], decision.resolvedLimits[i]);
+      }
     }
+    return deniedLimitCount;
+  }
+
+  private boolean isDenyCacheable(AddAndGetBatch batch, int index) {
+    return !batch.isSlidingWindow(index) && batch.getBurst(index) == 0;
+  }
 
+  private List<LimitDefinition> getExceededLimits(Decision decision) {
+    AddAndGetBatch batch = decision.batch;
+    List<LimitDefinition> exceededLimits = new ArrayList<>();
+    for (int i = 0; i < limits.length; i++) {
+      if (batch.getResult(i) > batch.getLimit(i)) {
+        exceededLimits.add(limits[i].getDefinition());
+      }
+    }
     return exceededLimits;
   }
 
+  /**
+   * A trigger callback may call this {@link Spillway} again from the same thread while the
+   * decision is in use. Such calls get a decision of their own.
+   */
+  private Decision acquireDecision() {
+    Decision decision = decisions.get();
+    if (decision == null) {
+      return new Decision(limits.length);
+    }
+    decisions.set(null);
+    return decision;
+  }
+
+  private void releaseDecision(Decision decision) {
+    decisions.set(decision);
+  }
+
   private List<LimitDefinition> updateAndVerifyExceededLimits(T context, int cost) {
     if (cost < 1) {
       throw new IllegalArgumentException("'cost' must be greater than zero");
     }
 
     Instant now = Instant.now(clock);
-    List<AddAndGetRequest> requests = buildRequestsFromLimits(context, cost, now);
+    String[] properties = new String[limits.length];
+    ResolvedLimit[] resolvedLimits = resolveLimits(context, properties);
+    // The existing API respect the minimum limit of all the limits
+    // Here, we select the minimum limit
+    int minLimit = getMinimumCapacity(resolvedLimits);
+    // A token bucket is bounded by its burst, its limit is the rate at which it is refilled.
+    List<AddAndGetRequest> requests =
+        buildRequestsFromLimits(
+            properties,
+            resolvedLimits,
+            cost,
+            now,
+            limit -> limit.getBurst() > 0 ? limit.getCapacity() : minLimit);
 
     Map<LimitKey, Integer> results = storage.addAndGetWithLimit(requests);
 
+    return collectExceededLimits(context, resolvedLimits, cost, now, results, 0, true);
+  }
+
+  private List<LimitDefinition> collectExceededLimits(
+      T context,
+      ResolvedLimit[] resolvedLimits,
+      int cost,
+      Instant now,
+      Map<LimitKey, Integer> results,
+      int uncountedCost,
+      boolean shouldHandleTriggers) {
     List<LimitDefinition> exceededLimits = new ArrayList<>();
-    if (results.size() == limits.size()) {
+    if (results.size() == limits.length) {
+      int position = 0;
       for (Entry<LimitKey, Integer> result : results.entrySet()) {
-        Limit<T> limit =
-            limits
-                .stream()
-                .filter(entry -> entry.getName().equals(result.getKey().getLimitName()))
-                .findFirst()
-                .get();
-
-        handleTriggers(context, cost, now, result.getValue(), limit);
-        if (result.getValue() > limit.getCapacity(context)) {
+        int index = getLimitIndex(position++, result.getKey().getLimitName());
+        Limit<T> limit = limits[index];
+
+        int currentValue =
+            addUncountedCost(result.getValue(), uncountedCost, resolvedLimits[index]);
+        if (shouldHandleTriggers) {
+          handleTriggers(context, cost, now, currentValue, limit, resolvedLimits[index]);
+        }
+
+        if (currentValue > resolvedLimits[index].getCapacity()) {
           exceededLimits.add(limit.getDefinition());
         }
       }
     } else {
       logger.error(
           "Something went very wrong. We sent {} limits to the backend but received {} responses. Assuming that no limits were exceeded. Limits: {}. Results: {}.",
-          limits.size(),
+          limits.length,
           results.size(),
-          limits,
+          Arrays.asList(limits),
           results);
     }
     return exceededLimits;
   }
 
-  private List<AddAndGetRequest> buildRequestsFromLimits(T context, int cost, Instant now) {
-    // The existing API respect the minimum limit of all the limits
-    // Here, we select the minimum limit
-    int minLimit =
-        limits.stream().map(limit -> limit.getCapacity(context)).min(Integer::compareTo).orElse(0);
-    return limits
-        .stream()
-        .map(
-            limit
-                -> new AddAndGetRequest.Builder()
-                    .withResource(resource)
-                    .withLimitName(limit.getName())
-                    .withLimit(minLimit)
-                    .withProperty(limit.getProperty(context))
-                    .withDistributed(limit.isDistributed())
-                    .withExpiration(limit.getExpiration(context))
-                    .withEventTimestamp(now)
-                    .withCost(cost)
-                    .build())
-        .collect(Collectors.toList());
+  /**
+   * The count of a token bucket is scaled from its burst to its capacity, so the cost is scaled
+   * the same way.
+   */
+  private static int addUncountedCost(int count, int uncountedCost, ResolvedLimit resolvedLimit) {
+    if (uncountedCost == 0 || resolvedLimit.getBurst() == 0) {
+      return count + uncountedCost;
+    }
+    return LimitUtils.addTokenBucketCost(
+        count, uncountedCost, resolvedLimit.getCapacity(), resolvedLimit.getBurst());
+  }
+
+  /**
+   * Storages return their results in the order of the requests, which are built in the order of
+   * the limits. The index by name is only used for storages that do not keep that order.
+   */
+  private int getLimitIndex(int position, String limitName) {
+    return limits[position].getName().equals(limitName) ? position : limitIndexes.get(limitName);
+  }
+
+  /**
+   * Extracts the property of each limit and resolves its overrides once for the whole call.
+   *
+   * @param properties Receives the property of each limit
+   * @return The {@link ResolvedLimit} of each limit
+   */
+  private ResolvedLimit[] resolveLimits(T context, String[] properties) {
+    ResolvedLimit[] resolvedLimits = new ResolvedLimit[limits.length];
+    for (int i = 0; i < limits.length; i++) {
+      properties[i] = limits[i].getProperty(context);
+      resolvedLimits[i] = limits[i].resolve(properties[i]);
+    }
+    return resolvedLimits;
+  }
+
+  private int getMinimumCapacity(ResolvedLimit[] resolvedLimits) {
+    if (resolvedLimits.length == 0) {
+      return 0;
+    }
+    int minimumCapacity = Integer.MAX_VALUE;
+    for (ResolvedLimit resolvedLimit : resolvedLimits) {
+      minimumCapacity = Math.min(minimumCapacity, resolvedLimit.getCapacity());
+    }
+    return minimumCapacity;
+  }
+
+  private List<AddAndGetRequest> buildRequestsFromLimits(
+      String[] properties,
+      ResolvedLimit[] resolvedLimits,
+      int cost,
+      Instant now,
+      ToIntFunction<ResolvedLimit> limitExtractor) {
+    List<AddAndGetRequest> requests = new ArrayList<>(limits.length);
+    for (int i = 0; i < limits.length; i++) {
+      requests.add(
+          new AddAndGetRequest.Builder()
+              .withResource(resource)
+              .withLimitName(limits[i].getName())
+              .withLimit(limitExtractor.applyAsInt(resolvedLimits[i]))
+              .withProperty(properties[i])
+              .withDistributed(limits[i].isDistributed())
+              .withSlidingWindow(limits[i].isSlidingWindow())
+              .withBurst(resolvedLimits[i].getBurst())
+              .withExpiration(resolvedLimits[i].getExpiration())
+              .withEventTimestamp(now)
+              .withCost(cost)
+              .build());
+    }
+    return requests;
   }
 
   private void handleTriggers(
-      T context, int cost, Instant timestamp, int currentValue, Limit<T> limit) {
-    for (LimitTrigger trigger : limit.getLimitTriggers(context)) {
+      T context,
+      int cost,
+      Instant timestamp,
+      int currentValue,
+      Limit<T> limit,
+      ResolvedLimit resolvedLimit) {
+    for (LimitTrigger trigger : resolvedLimit.getLimitTriggers()) {
       try {
         trigger.callbackIfRequired(
-            context, cost, timestamp, currentValue, limit.getDefinition(context));
+            context, cost, timestamp, currentValue, resolvedLimit.getDefinition());
       } catch (RuntimeException ex) {
         logger.warn(
             "Trigger callback {} for limit {} threw an exception. Ignoring.", trigger, limit, ex);
@@ -329,4 +799,19 @@ public class Spillway<T> {
   public Map<LimitKey, Integer> debugCurrentLimitCounters() {
     return storage.getCurrentLimitCounters();
   }
+
+  /**
+   * The reusable state of a decision made by the calling thread.
+   */
+  private static final class Decision {
+    private final AddAndGetBatch batch;
+    private final ResolvedLimit[] resolvedLimits;
+    private final int[] deniedCounts;
+
+    private Decision(int limitCount) {
+      batch = new AddAndGetBatch(limitCount);
+      resolvedLimits = new ResolvedLimit[limitCount];
+      deniedCounts = new int[limitCount];
+    }
+  }
 }
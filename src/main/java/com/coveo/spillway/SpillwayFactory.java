@@ -23,9 +23,11 @@
 package com.coveo.spillway;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -34,6 +36,7 @@ import com.coveo.spillway.exception.SpillwayLimitsWithSameNameException;
 import com.coveo.spillway.limit.Limit;
 import com.coveo.spillway.limit.LimitBuilder;
 import com.coveo.spillway.storage.LimitUsageStorage;
+import com.coveo.spillway.storage.NonBlockingLimitUsageStorage;
 
 /**
  * Factory to create {@link Spillway} objects using the specified storage method.
@@ -45,15 +48,66 @@ import com.coveo.spillway.storage.LimitUsageStorage;
 public class SpillwayFactory {
   private final LimitUsageStorage storage;
   private final Clock clock;
+  private final Executor executor;
+  private final int denyCacheCapacity;
+  private final Duration denyCacheEntryLifetime;
 
   public SpillwayFactory(LimitUsageStorage storage) {
-    this.storage = storage;
-    this.clock = Clock.systemDefaultZone();
+    this(storage, Clock.systemDefaultZone());
   }
 
   public SpillwayFactory(LimitUsageStorage storage, Clock clock) {
+    this(storage, clock, NonBlockingLimitUsageStorage.defaultExecutor());
+  }
+
+  /**
+   * @param storage The storage used by the created {@link Spillway}s
+   * @param clock The clock used to compute the limit buckets
+   * @param executor Used by the asynchronous methods of the created {@link Spillway}s to call a
+   *                 storage that is not a {@link NonBlockingLimitUsageStorage}. The other
+   *                 constructors use {@link NonBlockingLimitUsageStorage#defaultExecutor()}.
+   */
+  public SpillwayFactory(LimitUsageStorage storage, Clock clock, Executor executor) {
+    this(storage, clock, executor, Spillway.DEFAULT_DENY_CACHE_CAPACITY);
+  }
+
+  /**
+   * @param storage The storage used by the created {@link Spillway}s
+   * @param clock The clock used to compute the limit buckets
+   * @param executor Used by the asynchronous methods of the created {@link Spillway}s to call a
+   *                 storage that is not a {@link NonBlockingLimitUsageStorage}
+   * @param denyCacheCapacity The number of exceeded limits each created {@link Spillway} remembers
+   *                          to refuse calls without calling the storage, zero to disable it.
+   *                          The other constructors disable it.
+   */
+  public SpillwayFactory(
+      LimitUsageStorage storage, Clock clock, Executor executor, int denyCacheCapacity) {
+    this(storage, clock, executor, denyCacheCapacity, null);
+  }
+
+  /**
+   * @param storage The storage used by the created {@link Spillway}s
+   * @param clock The clock used to compute the limit buckets
+   * @param executor Used by the asynchronous methods of the created {@link Spillway}s to call a
+   *                 storage that is not a {@link NonBlockingLimitUsageStorage}
+   * @param denyCacheCapacity The number of exceeded limits each created {@link Spillway} remembers
+   *                          to refuse calls without calling the storage, zero to disable it
+   * @param denyCacheEntryLifetime How long an exceeded limit is remembered, at most until the end
+   *                               of its bucket, null to remember it until then. See
+   *                               {@link Spillway#Spillway(Clock, LimitUsageStorage, Executor, int, Duration, String, Limit...)}
+   *                               for the trade-off.
+   */
+  public SpillwayFactory(
+      LimitUsageStorage storage,
+      Clock clock,
+      Executor executor,
+      int denyCacheCapacity,
+      Duration denyCacheEntryLifetime) {
     this.storage = storage;
     this.clock = clock;
+    this.executor = executor;
+    this.denyCacheCapacity = denyCacheCapacity;
+    this.denyCacheEntryLifetime = denyCacheEntryLifetime;
   }
 
   /**
@@ -86,6 +140,7 @@ public class SpillwayFactory {
           duplicateNames.stream().collect(Collectors.joining(StringUtils.SPACE)));
     }
 
-    return new Spillway<>(clock, storage, resource, limits);
+    return new Spillway<>(
+        clock, storage, executor, denyCacheCapacity, denyCacheEntryLifetime, resource, limits);
   }
 }
@@ -23,8 +23,9 @@
 package com.coveo.spillway.limit;
 
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 
@@ -50,22 +51,56 @@ public class Limit<T> {
 
   private LimitDefinition definition;
   private boolean distributed;
+  private boolean slidingWindow;
+  private boolean tokenBucket;
+  private int burst;
   private Function<T, String> propertyExtractor;
   private Set<LimitOverride> limitOverrides;
 
   private List<LimitTrigger> limitTriggers;
 
+  private ResolvedLimit resolvedLimit;
+  private Map<String, ResolvedLimit> resolvedOverrides;
+
   /*package*/ Limit(
       LimitDefinition definition,
       boolean distributed,
       Function<T, String> propertyExtractor,
       Set<LimitOverride> limitOverrides,
       List<LimitTrigger> limitTriggers) {
+    this(
+        definition, distributed, false, false, 0, propertyExtractor, limitOverrides, limitTriggers);
+  }
+
+  /*package*/ Limit(
+      LimitDefinition definition,
+      boolean distributed,
+      boolean slidingWindow,
+      boolean tokenBucket,
+      int burst,
+      Function<T, String> propertyExtractor,
+      Set<LimitOverride> limitOverrides,
+      List<LimitTrigger> limitTriggers) {
     this.definition = definition;
     this.distributed = distributed;
+    this.slidingWindow = slidingWindow;
+    this.tokenBucket = tokenBucket;
+    this.burst = burst;
     this.propertyExtractor = propertyExtractor;
     this.limitOverrides = limitOverrides;
     this.limitTriggers = limitTriggers;
+
+    this.resolvedLimit =
+        new ResolvedLimit(definition, limitTriggers, resolveBurst(definition.getCapacity()));
+    this.resolvedOverrides = new HashMap<>();
+    for (LimitOverride override : limitOverrides) {
+      resolvedOverrides.put(
+          override.getProperty(),
+          new ResolvedLimit(
+              new LimitDefinition(getName(), override.getCapacity(), override.getExpiration()),
+              override.getLimitTriggers(),
+              resolveBurst(override.getCapacity())));
+    }
   }
 
   /**
@@ -85,9 +120,7 @@ public class Limit<T> {
    * @return The found {@link LimitDefinition}
    */
   public LimitDefinition getDefinition(T context) {
-    return findLimitOverride(context)
-        .map(p -> new LimitDefinition(getName(), p.getCapacity(), p.getExpiration()))
-        .orElse(getDefinition());
+    return resolve(getProperty(context)).getDefinition();
   }
 
   /**
@@ -101,6 +134,28 @@ public class Limit<T> {
     return distributed;
   }
 
+  /**
+   * Simple getter for the {@link Limit}'s sliding window flag.
+   * When set, the count of the previous bucket is weighted by the part of it that
+   * is still covered by a window ending at the time of the event.
+   *
+   * @return The value of the flag
+   */
+  public boolean isSlidingWindow() {
+    return slidingWindow;
+  }
+
+  /**
+   * Simple getter for the {@link Limit}'s token bucket flag.
+   * When set, the limit is a bucket of tokens refilled at the capacity per expiration
+   * instead of a counter split in buckets of time.
+   *
+   * @return The value of the flag
+   */
+  public boolean isTokenBucket() {
+    return tokenBucket;
+  }
+
   /**
    * Simple getter for the base {@link LimitTrigger}s.
    *
@@ -118,7 +173,7 @@ public class Limit<T> {
    * @return A list of the {@link LimitTrigger}s
    */
   public List<LimitTrigger> getLimitTriggers(T context) {
-    return findLimitOverride(context).map(p -> p.getLimitTriggers()).orElse(getLimitTriggers());
+    return resolve(getProperty(context)).getLimitTriggers();
   }
 
   /**
@@ -158,7 +213,7 @@ public class Limit<T> {
    * @return The found expiration {@link Duration}
    */
   public Duration getExpiration(T context) {
-    return findLimitOverride(context).map(p -> p.getExpiration()).orElse(getExpiration());
+    return resolve(getProperty(context)).getExpiration();
   }
 
   /**
@@ -178,7 +233,7 @@ public class Limit<T> {
    * @return The found capacity
    */
   public int getCapacity(T context) {
-    return findLimitOverride(context).map(p -> p.getCapacity()).orElse(getCapacity());
+    return resolve(getProperty(context)).getCapacity();
   }
 
   public Set<LimitOverride> getLimitOverrides() {
@@ -190,12 +245,25 @@ public class Limit<T> {
     return definition.toString();
   }
 
-  private Optional<LimitOverride> findLimitOverride(T context) {
-    String property = getProperty(context);
+  /**
+   * Resolves the capacity, expiration and {@link LimitTrigger}s that apply to a property
+   * with a single lookup in the overrides indexed by property.
+   * <p>
+   * Prefer it to the getters taking a context when more than one value is needed
+   * since each of them extracts the property again.
+   *
+   * @param property The property extracted from the context using {@link #getProperty(Object)}
+   * @return The {@link ResolvedLimit} of the override of the property or of the base limit
+   */
+  public ResolvedLimit resolve(String property) {
+    return resolvedOverrides.getOrDefault(property, resolvedLimit);
+  }
 
-    return limitOverrides
-        .stream()
-        .filter(override -> override.getProperty().equals(property))
-        .findAny();
+  private int resolveBurst(int capacity) {
+    // A bucket that is never refilled is a limit that is always exceeded.
+    if (!tokenBucket || capacity <= 0) {
+      return 0;
+    }
+    return burst > 0 ? burst : capacity;
   }
 }
@@ -58,6 +58,9 @@ public class LimitBuilder<T> {
   private Duration limitExpiration;
   private int limitCapacity;
   private boolean distributed = true;
+  private boolean slidingWindow;
+  private boolean tokenBucket;
+  private int burst;
 
   private Function<T, String> propertyExtractor;
   private List<LimitTrigger> triggers = new ArrayList<>();
@@ -88,6 +91,54 @@ public class LimitBuilder<T> {
     return this;
   }
 
+  /**
+   * Enforces the limit over a window of the limit's duration that ends at the time of each
+   * event instead of over fixed buckets. This avoids letting twice the capacity through
+   * around the end of a bucket.
+   * <p>
+   * The window is approximated using the counts of the current and previous buckets,
+   * the previous one being weighted by the part of it that is still in the window.
+   *
+   * @return The current {@link LimitBuilder}
+   */
+  public LimitBuilder<T> slidingWindow() {
+    this.slidingWindow = true;
+    this.tokenBucket = false;
+    return this;
+  }
+
+  /**
+   * Enforces the limit as a token bucket holding as many tokens as the capacity.
+   *
+   * @see #tokenBucket(int)
+   *
+   * @return The current {@link LimitBuilder}
+   */
+  public LimitBuilder<T> tokenBucket() {
+    return tokenBucket(0);
+  }
+
+  /**
+   * Enforces the limit as a token bucket, using the generic cell rate algorithm.
+   * The bucket is refilled at the capacity per expiration and each call takes its cost
+   * from it. Only the theoretical arrival time of the next token is stored, so a property
+   * costs a single key whatever the rate.
+   * <p>
+   * The counts reported for the limit are the tokens in use scaled from the burst to the
+   * capacity, so that they only exceed the capacity when the bucket is empty.
+   * Token buckets are not reported by {@link com.coveo.spillway.storage.LimitUsageStorage#getCurrentLimitCounters()}
+   * and are only enforced locally by storages that synchronize a cache.
+   *
+   * @param burst The number of tokens held by the bucket, the capacity if zero
+   * @return The current {@link LimitBuilder}
+   */
+  public LimitBuilder<T> tokenBucket(int burst) {
+    this.tokenBucket = true;
+    this.burst = burst;
+    this.slidingWindow = false;
+    return this;
+  }
+
   /**
    * If necessary, adds a custom {@link LimitTrigger}.
    * Some implementations already exists.
@@ -137,6 +188,9 @@ public class LimitBuilder<T> {
     return new Limit<>(
         new LimitDefinition(limitName, limitCapacity, limitExpiration),
         distributed,
+        slidingWindow,
+        tokenBucket,
+        burst,
         propertyExtractor,
         overrides,
         triggers);
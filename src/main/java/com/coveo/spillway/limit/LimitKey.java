@@ -58,6 +58,16 @@ public class LimitKey {
     this.expiration = expiration;
   }
 
+  public LimitKey(LimitKey other) {
+    this(
+        other.resource,
+        other.limitName,
+        other.property,
+        other.distributed,
+        other.bucket,
+        other.expiration);
+  }
+
   public String getResource() {
     return resource;
   }
@@ -106,6 +116,14 @@ public class LimitKey {
     this.expiration = expiration;
   }
 
+  /**
+   * @return A new {@link LimitKey} for the bucket preceding the one of this key
+   */
+  public LimitKey getPreviousBucketKey() {
+    return new LimitKey(
+        resource, limitName, property, distributed, bucket.minus(expiration), expiration);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -0,0 +1,83 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.limit;
+
+import java.time.Duration;
+import java.util.List;
+
+import com.coveo.spillway.limit.override.LimitOverride;
+import com.coveo.spillway.trigger.LimitTrigger;
+
+/**
+ * The effective capacity, expiration and {@link LimitTrigger}s of a {@link Limit}
+ * for a given property, considering its {@link LimitOverride}s.
+ * <p>
+ * Created once per override when the {@link Limit} is built so that a decision
+ * only needs a single lookup per limit.
+ *
+ * @see Limit#resolve(String)
+ */
+public class ResolvedLimit {
+  private final LimitDefinition definition;
+  private final List<LimitTrigger> limitTriggers;
+  private final int burst;
+
+  /*package*/ ResolvedLimit(LimitDefinition definition, List<LimitTrigger> limitTriggers) {
+    this(definition, limitTriggers, 0);
+  }
+
+  /*package*/ ResolvedLimit(
+      LimitDefinition definition, List<LimitTrigger> limitTriggers, int burst) {
+    this.definition = definition;
+    this.limitTriggers = limitTriggers;
+    this.burst = burst;
+  }
+
+  public LimitDefinition getDefinition() {
+    return definition;
+  }
+
+  public int getCapacity() {
+    return definition.getCapacity();
+  }
+
+  public Duration getExpiration() {
+    return definition.getExpiration();
+  }
+
+  public List<LimitTrigger> getLimitTriggers() {
+    return limitTriggers;
+  }
+
+  /**
+   * @return The number of tokens held when the limit is a token bucket, zero otherwise
+   */
+  public int getBurst() {
+    return burst;
+  }
+
+  @Override
+  public String toString() {
+    return definition.toString();
+  }
+}
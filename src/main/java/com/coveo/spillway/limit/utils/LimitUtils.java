@@ -34,8 +34,91 @@ import com.coveo.spillway.limit.Limit;
  * @since 2.0.0
  */
 public class LimitUtils {
+  /**
+   * Token buckets are not split in time, so all of their keys use this bucket.
+   */
+  public static final Instant TOKEN_BUCKET = Instant.EPOCH;
+
   public static Instant calculateBucket(Instant timestamp, Duration limitDuration) {
     return Instant.ofEpochMilli(
-        (timestamp.toEpochMilli() / limitDuration.toMillis()) * limitDuration.toMillis());
+        calculateBucket(timestamp.toEpochMilli(), limitDuration.toMillis()));
+  }
+
+  public static long calculateBucket(long timestampMillis, long limitDurationMillis) {
+    return (timestampMillis / limitDurationMillis) * limitDurationMillis;
+  }
+
+  /**
+   * Weights the count of the previous bucket by the part of it that is still covered by a
+   * window of the limit duration ending at the timestamp.
+   *
+   * @param previousCount The count of the bucket preceding the one of the timestamp
+   * @param timestampMillis The epoch millisecond at which the event was recorded
+   * @param limitDurationMillis The duration of the limit in milliseconds
+   * @return The part of the previous count that belongs to the sliding window
+   */
+  public static int calculateSlidingCount(
+      int previousCount, long timestampMillis, long limitDurationMillis) {
+    long remainingMillis =
+        limitDurationMillis
+            - (timestampMillis - calculateBucket(timestampMillis, limitDurationMillis));
+    return (int) (previousCount * remainingMillis / limitDurationMillis);
+  }
+
+  /**
+   * @param limitDurationMillis The duration of the limit in milliseconds
+   * @param capacity The number of tokens added to the bucket over the duration
+   * @return The time in microseconds needed to add one token to a token bucket
+   */
+  public static long calculateEmissionInterval(long limitDurationMillis, int capacity) {
+    return Math.max(1, limitDurationMillis * 1000 / capacity);
+  }
+
+  /**
+   * Converts the theoretical arrival time of a token bucket to a count comparable to the
+   * capacity of its limit, that is the tokens in use scaled from the burst to the capacity.
+   * The count only exceeds the capacity when more tokens than the burst are in use.
+   *
+   * @param arrivalMicros The theoretical arrival time including the cost of the event
+   * @param timestampMicros The time of the event in microseconds
+   * @param emissionInterval The result of {@link #calculateEmissionInterval(long, int)}
+   * @param capacity The number of tokens added to the bucket over the limit duration
+   * @param burst The number of tokens the bucket holds
+   * @return The count of the token bucket
+   */
+  public static int calculateTokenBucketCount(
+      long arrivalMicros, long timestampMicros, long emissionInterval, int capacity, int burst) {
+    long tokens = ceilDivide(arrivalMicros - timestampMicros, emissionInterval);
+    return (int) ceilDivide(tokens * capacity, burst);
+  }
+
+  /**
+   * Adds a cost to the count of a token bucket, as if the cost had been included when the count
+   * was computed by {@link #calculateTokenBucketCount(long, long, long, int, int)}.
+   * <p>
+   * The tokens in use are the most that give the count. They are exact when the burst does not
+   * exceed the capacity and overestimated by less than burst / capacity tokens otherwise.
+   *
+   * @param count The count of the token bucket without the cost
+   * @param cost The number of tokens to add
+   * @param capacity The number of tokens added to the bucket over the limit duration
+   * @param burst The number of tokens the bucket holds
+   * @return The count of the token bucket including the cost
+   */
+  public static int addTokenBucketCost(int count, int cost, int capacity, int burst) {
+    long tokens = (long) count * burst / capacity;
+    return (int) ceilDivide((tokens + cost) * capacity, burst);
+  }
+
+  /**
+   * @return True if the theoretical arrival time fits in a bucket holding burst tokens
+   */
+  public static boolean isUnderBurst(
+      long arrivalMicros, long timestampMicros, long emissionInterval, int burst) {
+    return arrivalMicros - timestampMicros <= burst * emissionInterval;
+  }
+
+  private static long ceilDivide(long dividend, long divisor) {
+    return -Math.floorDiv(-dividend, divisor);
   }
 }
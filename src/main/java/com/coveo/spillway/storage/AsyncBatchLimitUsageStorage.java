@@ -24,12 +24,16 @@ package com.coveo.spillway.storage;
 
 import java.time.Duration;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.storage.utils.CacheSynchronization;
+import com.coveo.spillway.storage.utils.SynchronizationScheduler;
+import com.coveo.spillway.storage.utils.SynchronizationScheduler.ScheduledSynchronization;
 
 /**
  * An asynchronous implementation of {@link LimitUsageStorage}.
@@ -48,15 +52,23 @@ import com.coveo.spillway.storage.utils.CacheSynchronization;
  * storage is considerably reduced at the cost of a less precise throttling. We
  * recommend to set a relatively small time between each synchronization to avoid
  * big differences between the throttling instances.
+ * <p>
+ * The synchronizations run on a {@link SynchronizationScheduler} shared by every storage and
+ * their intervals are spread by a jitter. Built with {@link #builder()}, the storage can also
+ * synchronize each key at its own interval, shorter as the key approaches its limit.
+ * <p>
+ * Answers from its cache, so it also implements {@link NonBlockingLimitUsageStorage}
+ * with completed futures.
  *
  * @author Emile Fugulin
  * @author Simon Toussaint
  * @since 1.0.0
  */
-public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
+public class AsyncBatchLimitUsageStorage
+    implements LimitUsageStorage, NonBlockingLimitUsageStorage {
   private final LimitUsageStorage wrappedLimitUsageStorage;
   private InMemoryStorage cache;
-  private Timer timer;
+  private ScheduledSynchronization synchronization;
 
   public AsyncBatchLimitUsageStorage(
       LimitUsageStorage wrappedLimitUsageStorage, Duration timeBetweenSynchronizations) {
@@ -102,6 +114,26 @@ public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
       Duration timeBetweenSynchronisations,
       Duration delayBeforeFirstSync,
       boolean forceCacheInit) {
+    this(
+        wrappedLimitUsageStorage,
+        cache,
+        cacheSynchronization,
+        SynchronizationScheduler.shared(),
+        timeBetweenSynchronisations,
+        delayBeforeFirstSync,
+        SynchronizationScheduler.DEFAULT_JITTER,
+        forceCacheInit);
+  }
+
+  /*package*/ AsyncBatchLimitUsageStorage(
+      LimitUsageStorage wrappedLimitUsageStorage,
+      InMemoryStorage cache,
+      CacheSynchronization cacheSynchronization,
+      SynchronizationScheduler scheduler,
+      Duration timeBetweenSynchronisations,
+      Duration delayBeforeFirstSync,
+      double jitter,
+      boolean forceCacheInit) {
     this.wrappedLimitUsageStorage = wrappedLimitUsageStorage;
     this.cache = cache;
 
@@ -109,11 +141,27 @@ public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
       cacheSynchronization.init();
     }
 
-    timer = new Timer();
-    timer.schedule(
-        cacheSynchronization,
-        delayBeforeFirstSync.toMillis(),
-        timeBetweenSynchronisations.toMillis());
+    synchronization =
+        scheduler.schedule(
+            cacheSynchronization, delayBeforeFirstSync, timeBetweenSynchronisations, jitter);
+  }
+
+  private AsyncBatchLimitUsageStorage(Builder builder, InMemoryStorage cache) {
+    this(
+        builder.storage,
+        cache,
+        new CacheSynchronization(
+            cache,
+            builder.storage,
+            CacheSynchronization.DEFAULT_CHUNK_SIZE,
+            builder.timeBetweenSynchronizations,
+            builder.maximumTimeBetweenSynchronizations,
+            builder.jitter),
+        builder.scheduler,
+        builder.timeBetweenSynchronizations,
+        builder.delayBeforeFirstSync,
+        builder.jitter,
+        builder.forceCacheInit);
   }
 
   @Override
@@ -126,6 +174,28 @@ public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
     return cache.addAndGetWithLimit(requests);
   }
 
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    return cache.tryAddAndGet(requests);
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(addAndGet(requests));
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(tryAddAndGet(requests));
+  }
+
+  @Override
+  public void tryAddAndGet(AddAndGetBatch batch) {
+    cache.tryAddAndGet(batch);
+  }
+
   public Map<LimitKey, Integer> debugCacheLimitCounters() {
     return cache.getCurrentLimitCounters();
   }
@@ -151,10 +221,149 @@ public class AsyncBatchLimitUsageStorage implements LimitUsageStorage {
     return wrappedLimitUsageStorage.getCurrentLimitCounters(resource, limitName, property);
   }
 
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters() {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters();
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(String resource) {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName) {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters(resource, limitName, property);
+  }
+
   @Override
   public void close() throws Exception {
-    timer.cancel();
+    synchronization.cancel();
     wrappedLimitUsageStorage.close();
     cache.close();
   }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    LimitUsageStorage storage;
+    Duration timeBetweenSynchronizations;
+    Duration maximumTimeBetweenSynchronizations;
+    Duration delayBeforeFirstSync = Duration.ZERO;
+    double jitter = SynchronizationScheduler.DEFAULT_JITTER;
+    boolean forceCacheInit;
+    SynchronizationScheduler scheduler;
+
+    private Builder() {}
+
+    public void setStorage(LimitUsageStorage storage) {
+      this.storage = storage;
+    }
+
+    public Builder withStorage(LimitUsageStorage storage) {
+      setStorage(storage);
+      return this;
+    }
+
+    public void setTimeBetweenSynchronizations(Duration timeBetweenSynchronizations) {
+      this.timeBetweenSynchronizations = timeBetweenSynchronizations;
+    }
+
+    /**
+     * @param timeBetweenSynchronizations The time between the synchronizations, which is also
+     *                                    the interval of the keys that reached their limit
+     * @return The current {@link Builder}
+     */
+    public Builder withTimeBetweenSynchronizations(Duration timeBetweenSynchronizations) {
+      setTimeBetweenSynchronizations(timeBetweenSynchronizations);
+      return this;
+    }
+
+    public void setMaximumTimeBetweenSynchronizations(Duration maximumTimeBetweenSynchronizations) {
+      this.maximumTimeBetweenSynchronizations = maximumTimeBetweenSynchronizations;
+    }
+
+    /**
+     * Synchronizes each key at its own interval, from this maximum for the keys far from their
+     * limit down to the time between the synchronizations for the keys that reached it.
+     *
+     * @param maximumTimeBetweenSynchronizations The interval of the keys far from their limit,
+     *                                           the time between the synchronizations by default
+     * @return The current {@link Builder}
+     */
+    public Builder withMaximumTimeBetweenSynchronizations(
+        Duration maximumTimeBetweenSynchronizations) {
+      setMaximumTimeBetweenSynchronizations(maximumTimeBetweenSynchronizations);
+      return this;
+    }
+
+    public void setDelayBeforeFirstSync(Duration delayBeforeFirstSync) {
+      this.delayBeforeFirstSync = delayBeforeFirstSync;
+    }
+
+    public Builder withDelayBeforeFirstSync(Duration delayBeforeFirstSync) {
+      setDelayBeforeFirstSync(delayBeforeFirstSync);
+      return this;
+    }
+
+    public void setJitter(double jitter) {
+      this.jitter = jitter;
+    }
+
+    /**
+     * @param jitter The fraction of the intervals by which they are randomly shortened or
+     *               lengthened, {@value SynchronizationScheduler#DEFAULT_JITTER} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withJitter(double jitter) {
+      setJitter(jitter);
+      return this;
+    }
+
+    public void setForceCacheInit(boolean forceCacheInit) {
+      this.forceCacheInit = forceCacheInit;
+    }
+
+    public Builder withForceCacheInit(boolean forceCacheInit) {
+      setForceCacheInit(forceCacheInit);
+      return this;
+    }
+
+    public void setScheduler(SynchronizationScheduler scheduler) {
+      this.scheduler = scheduler;
+    }
+
+    /**
+     * @param scheduler The scheduler running the synchronizations,
+     *                  {@link SynchronizationScheduler#shared()} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withScheduler(SynchronizationScheduler scheduler) {
+      setScheduler(scheduler);
+      return this;
+    }
+
+    public AsyncBatchLimitUsageStorage build() {
+      if (storage == null || timeBetweenSynchronizations == null) {
+        throw new IllegalStateException(
+            "The storage and the time between synchronizations must be set.");
+      }
+      if (maximumTimeBetweenSynchronizations == null) {
+        maximumTimeBetweenSynchronizations = timeBetweenSynchronizations;
+      }
+      if (scheduler == null) {
+        scheduler = SynchronizationScheduler.shared();
+      }
+      return new AsyncBatchLimitUsageStorage(this, new InMemoryStorage());
+    }
+  }
 }
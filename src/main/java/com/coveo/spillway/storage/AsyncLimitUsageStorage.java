@@ -23,20 +23,30 @@
 package com.coveo.spillway.storage;
 
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.CurrentBucketCounts;
+import com.coveo.spillway.storage.utils.MpscRingBuffer;
 import com.coveo.spillway.storage.utils.OverrideKeyRequest;
 
 /**
@@ -47,29 +57,97 @@ import com.coveo.spillway.storage.utils.OverrideKeyRequest;
  * <p>
  * This it particularly useful when using a database over the network as
  * the queries are not slowed down by any external problems.
+ * <p>
+ * The calls waiting to be sent are handed to a dedicated thread through a bounded
+ * {@link MpscRingBuffer}, which never locks on the calling thread. The requests of an
+ * {@link AddAndGetBatch} are copied into preallocated slots, so handing them off does not allocate
+ * either once each slot held a batch of their size. Only a batch that finds the queue full is
+ * converted to {@link AddAndGetRequest}s, by the {@link OverflowPolicy}. The drain
+ * thread takes every pending call at once, sums the costs of a same {@link LimitKey} and sends
+ * a single request per {@link LimitKey}, so a hot key costs one increment per drain instead of
+ * one per call. What happens when the queue is full is chosen with an {@link OverflowPolicy}.
+ * <p>
+ * Token buckets are enforced from the cache only: their arrival times are never sent to the
+ * wrapped storage, whose arrival time could not be reconciled with the local one.
+ * <p>
+ * Answers from its cache, so it also implements {@link NonBlockingLimitUsageStorage}
+ * with completed futures.
  *
  * @author Guillaume Simard
  * @author Simon Toussaint
  * @since 1.0.0
  */
-public class AsyncLimitUsageStorage implements LimitUsageStorage {
+public class AsyncLimitUsageStorage implements LimitUsageStorage, NonBlockingLimitUsageStorage {
 
   private static final Logger logger = LoggerFactory.getLogger(AsyncLimitUsageStorage.class);
 
+  public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+  public static final Duration DEFAULT_CLOSE_TIMEOUT = Duration.ofSeconds(5);
+
+  private static final long DRAIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  /**
+   * What to do with the costs of a call when the queue of pending calls is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Discards the costs of the call, they are only counted in the local cache.
+     */
+    DROP,
+    /**
+     * Sums the costs of the call into a map of pending costs per {@link LimitKey}, drained
+     * with the queue, so the memory is bounded by the number of distinct keys.
+     */
+    MERGE,
+    /**
+     * Blocks the caller until the drain thread frees a slot.
+     */
+    BLOCK
+  }
+
   private final LimitUsageStorage wrappedLimitUsageStorage;
-  private final ExecutorService executorService;
+  private final OverflowPolicy overflowPolicy;
+  private final Duration closeTimeout;
   private InMemoryStorage cache;
 
+  private final MpscRingBuffer<PendingCall> pendingCalls;
+  private final Map<LimitKey, AddAndGetRequest> overflowDeltas = new ConcurrentHashMap<>();
+  private final Map<LimitKey, AddAndGetRequest> drainedDeltas = new HashMap<>();
+  private final Thread drainThread;
+  private final LongAdder droppedCost = new LongAdder();
+  private volatile boolean drainParked;
+  private volatile boolean shutdown;
+
+  /**
+   * Creates a storage with the defaults of the {@link Builder} and starts its drain thread.
+   *
+   * @param wrappedLimitUsageStorage The storage receiving the costs in the background
+   */
+  @SuppressWarnings("this-escape")
   public AsyncLimitUsageStorage(LimitUsageStorage wrappedLimitUsageStorage) {
-    this.wrappedLimitUsageStorage = wrappedLimitUsageStorage;
-    this.executorService = Executors.newSingleThreadExecutor();
+    this(builder().withLimitUsageStorage(wrappedLimitUsageStorage));
+    // Every field of this class is set, and starting the thread publishes them to it.
+    drainThread.start();
+  }
+
+  /*package*/ AsyncLimitUsageStorage(Builder builder) {
+    if (builder.queueCapacity <= 0) {
+      throw new IllegalArgumentException("The queue capacity must be positive.");
+    }
+    this.wrappedLimitUsageStorage = builder.limitUsageStorage;
+    this.pendingCalls = new MpscRingBuffer<>(builder.queueCapacity, PendingCall::new);
+    this.overflowPolicy = builder.overflowPolicy;
+    this.closeTimeout = builder.closeTimeout;
     this.cache = new InMemoryStorage();
+    this.drainThread = new Thread(this::drain, "spillway-async-drain");
+    this.drainThread.setDaemon(true);
   }
 
   @Override
   public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
     Map<LimitKey, Integer> cachedEntries = cache.addAndGet(requests);
-    executorService.submit(() -> sendAndCacheRequests(requests));
+    enqueue(requests);
 
     return cachedEntries;
   }
@@ -77,11 +155,48 @@ public class AsyncLimitUsageStorage implements LimitUsageStorage {
   @Override
   public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
     Map<LimitKey, Integer> cachedEntries = cache.addAndGetWithLimit(requests);
-    executorService.submit(() -> sendAndCacheRequests(requests));
+    enqueue(requests);
 
     return cachedEntries;
   }
 
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> cachedEntries = cache.tryAddAndGet(requests);
+
+    // Only the consumed costs are shared, a rejected call leaves the counters untouched.
+    boolean underLimits = true;
+    for (AddAndGetRequest request : requests) {
+      underLimits &= cachedEntries.get(LimitKey.fromRequest(request)) <= request.getLimit();
+    }
+    if (underLimits) {
+      enqueue(requests);
+    }
+
+    return cachedEntries;
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(addAndGet(requests));
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(tryAddAndGet(requests));
+  }
+
+  @Override
+  public void tryAddAndGet(AddAndGetBatch batch) {
+    cache.tryAddAndGet(batch);
+
+    if (batch.isUnderLimits() && hasSharedRequest(batch)) {
+      enqueue(batch, PendingCall::copy, AddAndGetBatch::toRequests);
+    }
+  }
+
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters() {
     return wrappedLimitUsageStorage.getCurrentLimitCounters();
@@ -103,45 +218,366 @@ public class AsyncLimitUsageStorage implements LimitUsageStorage {
     return wrappedLimitUsageStorage.getCurrentLimitCounters(resource, limitName, property);
   }
 
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters() {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters();
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(String resource) {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName) {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return wrappedLimitUsageStorage.iterateCurrentLimitCounters(resource, limitName, property);
+  }
+
+  /**
+   * Stops accepting new costs. The drain thread sends what is already queued, then stops.
+   */
   public void shutdownStorage() {
-    executorService.shutdown();
+    shutdown = true;
+    LockSupport.unpark(drainThread);
   }
 
   public void awaitTermination(Duration timeOut) throws InterruptedException {
-    executorService.awaitTermination(timeOut.toMillis(), TimeUnit.MILLISECONDS);
+    drainThread.join(Math.max(1, timeOut.toMillis()));
   }
 
   public boolean isTerminated() {
-    return executorService.isTerminated();
+    return !drainThread.isAlive();
+  }
+
+  /**
+   * @return The total cost of the calls discarded by {@link OverflowPolicy#DROP}
+   */
+  public long getDroppedCost() {
+    return droppedCost.sum();
+  }
+
+  private void enqueue(Collection<AddAndGetRequest> requests) {
+    if (hasSharedRequest(requests)) {
+      enqueue(requests, PendingCall::setRequests, Function.identity());
+    }
+  }
+
+  /**
+   * @param call The requests of the call
+   * @param writer Hands the requests over to a slot of the queue
+   * @param toRequests Converts the requests when the queue is full
+   */
+  private <T> void enqueue(
+      T call,
+      BiConsumer<PendingCall, T> writer,
+      Function<T, Collection<AddAndGetRequest>> toRequests) {
+    if (shutdown) {
+      logger.debug("Async storage is shut down, ignoring the costs.");
+      return;
+    }
+
+    while (!pendingCalls.offer(call, writer)) {
+      if (overflowPolicy == OverflowPolicy.DROP) {
+        int cost = 0;
+        for (AddAndGetRequest request : toRequests.apply(call)) {
+          cost += isShared(request) ? request.getCost() : 0;
+        }
+        droppedCost.add(cost);
+        logger.debug("Async queue is full, dropping a cost of {}.", cost);
+        return;
+      }
+      if (overflowPolicy == OverflowPolicy.MERGE) {
+        mergeInto(overflowDeltas, toRequests.apply(call));
+        break;
+      }
+      if (shutdown || Thread.currentThread().isInterrupted()) {
+        logger.warn("Stopped waiting for the async queue, dropping the costs.");
+        return;
+      }
+      LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+    }
+
+    if (drainParked) {
+      LockSupport.unpark(drainThread);
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      pendingCalls.drain(call -> call.mergeInto(drainedDeltas), pendingCalls.capacity());
+      for (LimitKey limitKey : overflowDeltas.keySet()) {
+        AddAndGetRequest request = overflowDeltas.remove(limitKey);
+        if (request != null) {
+          mergeInto(drainedDeltas, List.of(request));
+        }
+      }
+
+      if (!drainedDeltas.isEmpty()) {
+        sendAndCacheRequests(drainedDeltas.values());
+        drainedDeltas.clear();
+      } else if (shutdown) {
+        if (pendingCalls.isEmpty() && overflowDeltas.isEmpty()) {
+          return;
+        }
+      } else {
+        // Producers check the flag after publishing, so either they see it or this sees them.
+        drainParked = true;
+        if (pendingCalls.isEmpty() && overflowDeltas.isEmpty() && !shutdown) {
+          LockSupport.parkNanos(this, DRAIN_PARK_NANOS);
+        }
+        drainParked = false;
+      }
+    }
+  }
+
+  private static boolean hasSharedRequest(Collection<AddAndGetRequest> requests) {
+    for (AddAndGetRequest request : requests) {
+      if (isShared(request)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasSharedRequest(AddAndGetBatch batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      if (isShared(batch, i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isShared(AddAndGetRequest request) {
+    return request.isDistributed() && !request.isTokenBucket();
+  }
+
+  private static boolean isShared(AddAndGetBatch batch, int index) {
+    return batch.getLimitKey(index).isDistributed() && batch.getBurst(index) == 0;
+  }
+
+  private static void mergeInto(
+      Map<LimitKey, AddAndGetRequest> deltas, Collection<AddAndGetRequest> requests) {
+    for (AddAndGetRequest request : requests) {
+      if (isShared(request)) {
+        mergeInto(deltas, request);
+      }
+    }
+  }
+
+  private static void mergeInto(Map<LimitKey, AddAndGetRequest> deltas, AddAndGetRequest request) {
+    deltas.merge(
+        LimitKey.fromRequest(request),
+        request,
+        (pending, added)
+            -> new AddAndGetRequest.Builder(pending)
+                .withCost(pending.getCost() + added.getCost())
+                .build());
   }
 
   public void sendAndCacheRequests(Collection<AddAndGetRequest> requests) {
     try {
       requests =
-          requests.stream().filter(AddAndGetRequest::isDistributed).collect(Collectors.toList());
-      Map<LimitKey, Integer> responses = wrappedLimitUsageStorage.addAndGet(requests);
+          requests.stream().filter(AsyncLimitUsageStorage::isShared).collect(Collectors.toList());
+      // A sliding window is reconciled with the count of its bucket, the cache adds the previous
+      // bucket itself.
+      Map<LimitKey, Integer> responses =
+          CurrentBucketCounts.addAndGet(wrappedLimitUsageStorage, requests);
 
-      // Flatten all requests into a single list of overrides.
-      Map<LimitKey, Integer> rawOverrides = new HashMap<>();
+      // The costs sent per key are removed from the local deltas, the unsent ones are kept.
+      Map<LimitKey, Integer> sentCosts = new HashMap<>();
       for (AddAndGetRequest request : requests) {
-        LimitKey limitEntry = LimitKey.fromRequest(request);
-
-        rawOverrides.merge(limitEntry, responses.get(limitEntry), Integer::sum);
+        sentCosts.merge(LimitKey.fromRequest(request), request.getCost(), Integer::sum);
       }
-      List<OverrideKeyRequest> overrides =
-          rawOverrides
-              .entrySet()
-              .stream()
-              .map(entry -> new OverrideKeyRequest(entry.getKey(), entry.getValue()))
-              .collect(Collectors.toList());
-      cache.overrideKeys(overrides);
+      List<OverrideKeyRequest> overrides = new ArrayList<>(sentCosts.size());
+      for (Map.Entry<LimitKey, Integer> sentCost : sentCosts.entrySet()) {
+        Integer total = responses.get(sentCost.getKey());
+        if (total != null) {
+          overrides.add(new OverrideKeyRequest(sentCost.getKey(), total, sentCost.getValue()));
+        }
+      }
+      cache.reconcileKeys(overrides);
     } catch (RuntimeException ex) {
       logger.warn("Failed to send and cache requests.", ex);
     }
   }
 
+  /**
+   * Shuts the storage down and waits up to the close timeout for the drain thread to send the
+   * queued costs before closing the wrapped storage.
+   */
   @Override
   public void close() throws Exception {
+    shutdownStorage();
+    try {
+      awaitTermination(closeTimeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!isTerminated()) {
+      logger.warn(
+          "The async storage did not drain its queue within {}, closing it anyway.", closeTimeout);
+    }
     wrappedLimitUsageStorage.close();
   }
+
+  /**
+   * A slot of the queue. It either holds the requests of a call or a copy of the shared requests
+   * of an {@link AddAndGetBatch}, whose arrays are reused by the next batches of the slot.
+   */
+  private static class PendingCall {
+    private Collection<AddAndGetRequest> requests;
+    private int size;
+    // Allocated by the first batch copied in the slot, and only grown by a larger one.
+    private String[] resources;
+    private String[] limitNames;
+    private String[] properties;
+    private boolean[] slidingWindows;
+    private Duration[] expirations;
+    private long[] eventTimestamps;
+    private int[] costs;
+    private int[] limits;
+
+    private void setRequests(Collection<AddAndGetRequest> requests) {
+      this.requests = requests;
+      this.size = 0;
+    }
+
+    private void copy(AddAndGetBatch batch) {
+      requests = null;
+      size = 0;
+      if (resources == null || resources.length < batch.size()) {
+        resources = new String[batch.size()];
+        limitNames = new String[batch.size()];
+        properties = new String[batch.size()];
+        slidingWindows = new boolean[batch.size()];
+        expirations = new Duration[batch.size()];
+        eventTimestamps = new long[batch.size()];
+        costs = new int[batch.size()];
+        limits = new int[batch.size()];
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        if (!isShared(batch, i)) {
+          continue;
+        }
+        LimitKey limitKey = batch.getLimitKey(i);
+        resources[size] = limitKey.getResource();
+        limitNames[size] = limitKey.getLimitName();
+        properties[size] = limitKey.getProperty();
+        slidingWindows[size] = batch.isSlidingWindow(i);
+        expirations[size] = limitKey.getExpiration();
+        eventTimestamps[size] = batch.getEventTimestamp(i);
+        costs[size] = batch.getCost(i);
+        limits[size] = batch.getLimit(i);
+        size++;
+      }
+    }
+
+    private void mergeInto(Map<LimitKey, AddAndGetRequest> deltas) {
+      if (requests != null) {
+        AsyncLimitUsageStorage.mergeInto(deltas, requests);
+        requests = null;
+        return;
+      }
+      for (int i = 0; i < size; i++) {
+        AsyncLimitUsageStorage.mergeInto(
+            deltas,
+            new AddAndGetRequest.Builder()
+                .withResource(resources[i])
+                .withLimitName(limitNames[i])
+                .withProperty(properties[i])
+                .withDistributed(true)
+                .withSlidingWindow(slidingWindows[i])
+                .withExpiration(expirations[i])
+                .withEventTimestamp(Instant.ofEpochMilli(eventTimestamps[i]))
+                .withCost(costs[i])
+                .withLimit(limits[i])
+                .build());
+      }
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    LimitUsageStorage limitUsageStorage;
+    int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    OverflowPolicy overflowPolicy = OverflowPolicy.MERGE;
+    Duration closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+    private Builder() {}
+
+    public void setLimitUsageStorage(LimitUsageStorage limitUsageStorage) {
+      this.limitUsageStorage = limitUsageStorage;
+    }
+
+    /**
+     * @param limitUsageStorage The storage receiving the costs in the background
+     * @return The current {@link Builder}
+     */
+    public Builder withLimitUsageStorage(LimitUsageStorage limitUsageStorage) {
+      setLimitUsageStorage(limitUsageStorage);
+      return this;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity The maximum number of calls waiting to be drained,
+     *     {@value AsyncLimitUsageStorage#DEFAULT_QUEUE_CAPACITY} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withQueueCapacity(int queueCapacity) {
+      setQueueCapacity(queueCapacity);
+      return this;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy What to do with a call when the queue is full,
+     *     {@link OverflowPolicy#MERGE} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+      setOverflowPolicy(overflowPolicy);
+      return this;
+    }
+
+    public void setCloseTimeout(Duration closeTimeout) {
+      this.closeTimeout = closeTimeout;
+    }
+
+    /**
+     * @param closeTimeout How long {@link AsyncLimitUsageStorage#close()} waits for the queued
+     *     costs to be sent before closing the wrapped storage, 5 seconds by default
+     * @return The current {@link Builder}
+     */
+    public Builder withCloseTimeout(Duration closeTimeout) {
+      setCloseTimeout(closeTimeout);
+      return this;
+    }
+
+    /**
+     * @return A new {@link AsyncLimitUsageStorage} with its drain thread started
+     */
+    public AsyncLimitUsageStorage build() {
+      AsyncLimitUsageStorage storage = new AsyncLimitUsageStorage(this);
+      storage.drainThread.start();
+      return storage;
+    }
+  }
 }
@@ -0,0 +1,447 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.RedisStorage.ScriptCall;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * A front end of a {@link RedisStorage} that coalesces the calls made concurrently by several
+ * threads.
+ * <p>
+ * The calls are queued and picked up by a few flushing threads. A flushing thread waits up to
+ * the flush window after the first call it picks up, or until it holds the maximum number of
+ * requests, and sends all of them in one pipeline of at most three scripts: one for the
+ * {@link #addAndGet(Collection)} calls, one for the {@link #addAndGetWithLimit(Collection)} calls
+ * and one for the {@link #tryAddAndGet(Collection)} calls, each of the latter being checked as a
+ * group. Every caller then receives the counters of its own requests.
+ * <p>
+ * Each flushing thread uses a single connection at a time, so the pool of the {@link RedisStorage}
+ * only sees as many concurrent borrowers as there are flushing threads.
+ * <p>
+ * The size and the latency of the flushes are exposed by the getters of the storage. The
+ * throughput is the difference of {@link #getFlushedRequestCount()} between two reads.
+ */
+public class CoalescingRedisStorage implements LimitUsageStorage, NonBlockingLimitUsageStorage {
+  private static final Logger logger = LoggerFactory.getLogger(CoalescingRedisStorage.class);
+
+  /*package*/ static final Duration DEFAULT_FLUSH_WINDOW = Duration.ofNanos(100_000);
+  /*package*/ static final int DEFAULT_MAX_FLUSH_SIZE = 512;
+  /*package*/ static final int DEFAULT_FLUSH_THREADS = 2;
+
+  private final RedisStorage storage;
+  private final long flushWindowNanos;
+  private final int maxFlushSize;
+  private final int flushThreadCount;
+  private final BlockingQueue<PendingCall> pendingCalls = new LinkedBlockingQueue<>();
+  private final ExecutorService flushers;
+  private volatile boolean closed;
+
+  private final LongAdder flushCount = new LongAdder();
+  private final LongAdder flushedCallCount = new LongAdder();
+  private final LongAdder flushedRequestCount = new LongAdder();
+  private final LongAdder flushNanos = new LongAdder();
+  private final LongAdder callNanos = new LongAdder();
+
+  CoalescingRedisStorage(Builder builder) {
+    this.storage = builder.storage;
+    this.flushWindowNanos = builder.flushWindow.toNanos();
+    this.maxFlushSize = builder.maxFlushSize;
+    this.flushThreadCount = builder.flushThreads;
+    this.flushers =
+        Executors.newFixedThreadPool(
+            builder.flushThreads,
+            runnable -> {
+              Thread thread = new Thread(runnable, "spillway-redis-coalescer");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  private void startFlushers() {
+    for (int i = 0; i < flushThreadCount; i++) {
+      flushers.execute(this::flushContinuously);
+    }
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    return addAndGetAsync(requests).join();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    return submit(Operation.ADD_WITH_LIMIT, requests).join();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    return tryAddAndGetAsync(requests).join();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The groups are already sent in a single script, so they are not coalesced with other calls.
+   */
+  @Override
+  public List<Map<LimitKey, Integer>> tryAddAndGetAll(
+      List<? extends Collection<AddAndGetRequest>> requestGroups) {
+    return storage.tryAddAndGetAll(requestGroups);
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return submit(Operation.ADD, requests);
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return submit(Operation.TRY_ADD, requests);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return storage.getCurrentLimitCounters();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return storage.getCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return storage.getCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return storage.getCurrentLimitCounters(resource, limitName, property);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters() {
+    return storage.iterateCurrentLimitCounters();
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(String resource) {
+    return storage.iterateCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName) {
+    return storage.iterateCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return storage.iterateCurrentLimitCounters(resource, limitName, property);
+  }
+
+  /**
+   * Stops the flushing threads and closes the {@link RedisStorage}. The calls that are still
+   * queued complete without counters.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    flushers.shutdownNow();
+    completeQueuedCalls();
+    storage.close();
+  }
+
+  /**
+   * @return The number of pipelines sent
+   */
+  public long getFlushCount() {
+    return flushCount.sum();
+  }
+
+  /**
+   * @return The number of calls completed by the pipelines
+   */
+  public long getFlushedCallCount() {
+    return flushedCallCount.sum();
+  }
+
+  /**
+   * @return The number of requests sent by the pipelines
+   */
+  public long getFlushedRequestCount() {
+    return flushedRequestCount.sum();
+  }
+
+  /**
+   * @return The average number of requests sent by a pipeline
+   */
+  public double getAverageFlushSize() {
+    long flushes = flushCount.sum();
+    return flushes == 0 ? 0 : (double) flushedRequestCount.sum() / flushes;
+  }
+
+  /**
+   * @return The average time a pipeline took to reach Redis and come back
+   */
+  public Duration getAverageFlushLatency() {
+    long flushes = flushCount.sum();
+    return Duration.ofNanos(flushes == 0 ? 0 : flushNanos.sum() / flushes);
+  }
+
+  /**
+   * @return The average time between a call and its completion, including the time it was queued
+   */
+  public Duration getAverageCallLatency() {
+    long calls = flushedCallCount.sum();
+    return Duration.ofNanos(calls == 0 ? 0 : callNanos.sum() / calls);
+  }
+
+  private CompletableFuture<Map<LimitKey, Integer>> submit(
+      Operation operation, Collection<AddAndGetRequest> requests) {
+    PendingCall call = new PendingCall(operation, requests);
+    pendingCalls.add(call);
+    // A call queued while closing could otherwise be missed by both the flushers and close().
+    if (closed) {
+      completeQueuedCalls();
+    }
+    return call.result;
+  }
+
+  private void flushContinuously() {
+    List<PendingCall> calls = new ArrayList<>();
+    try {
+      while (!closed) {
+        PendingCall call = pendingCalls.take();
+        calls.add(call);
+        int size = call.requests.size();
+        long flushDeadline = System.nanoTime() + flushWindowNanos;
+        while (size < maxFlushSize) {
+          call = pendingCalls.poll(flushDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (call == null) {
+            break;
+          }
+          calls.add(call);
+          size += call.requests.size();
+        }
+
+        try {
+          flush(calls);
+        } catch (Throwable e) {
+          logger.error("An exception occurred while coalescing calls to Redis.", e);
+        }
+        // Only the calls left without counters by a failure are still incomplete.
+        calls.forEach(PendingCall::completeWithoutCounters);
+        calls.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      calls.forEach(PendingCall::completeWithoutCounters);
+    }
+  }
+
+  private void flush(List<PendingCall> calls) {
+    List<AddAndGetRequest> added = new ArrayList<>();
+    List<AddAndGetRequest> addedWithLimit = new ArrayList<>();
+    List<Collection<AddAndGetRequest>> tried = new ArrayList<>();
+    int triedSize = 0;
+    for (PendingCall call : calls) {
+      switch (call.operation) {
+        case ADD:
+          call.position = added.size();
+          added.addAll(call.requests);
+          break;
+        case ADD_WITH_LIMIT:
+          call.position = addedWithLimit.size();
+          addedWithLimit.addAll(call.requests);
+          break;
+        case TRY_ADD:
+          call.position = triedSize;
+          tried.add(call.requests);
+          triedSize += call.requests.size();
+          break;
+      }
+    }
+
+    ScriptCall addCall = storage.newAddCall(added, false);
+    ScriptCall addWithLimitCall = storage.newAddCall(addedWithLimit, true);
+    ScriptCall tryAddCall = storage.newTryAddCall(tried);
+    List<ScriptCall> scriptCalls = new ArrayList<>(3);
+    for (ScriptCall scriptCall : new ScriptCall[] {addCall, addWithLimitCall, tryAddCall}) {
+      if (scriptCall.size() > 0) {
+        scriptCalls.add(scriptCall);
+      }
+    }
+
+    long flushStart = System.nanoTime();
+    storage.execute(scriptCalls);
+    long flushEnd = System.nanoTime();
+
+    flushCount.increment();
+    flushNanos.add(flushEnd - flushStart);
+    flushedCallCount.add(calls.size());
+    flushedRequestCount.add(added.size() + addedWithLimit.size() + triedSize);
+    for (PendingCall call : calls) {
+      ScriptCall scriptCall =
+          call.operation == Operation.ADD
+              ? addCall
+              : call.operation == Operation.ADD_WITH_LIMIT ? addWithLimitCall : tryAddCall;
+      call.result.complete(
+          scriptCall.getCounters(call.position, call.position + call.requests.size()));
+      callNanos.add(flushEnd - call.submitted);
+    }
+  }
+
+  private void completeQueuedCalls() {
+    PendingCall call;
+    while ((call = pendingCalls.poll()) != null) {
+      call.completeWithoutCounters();
+    }
+  }
+
+  private enum Operation {
+    ADD,
+    ADD_WITH_LIMIT,
+    TRY_ADD
+  }
+
+  /**
+   * A queued call and the position of its requests in the script of its operation.
+   */
+  private static class PendingCall {
+    private final Operation operation;
+    private final Collection<AddAndGetRequest> requests;
+    private final long submitted = System.nanoTime();
+    private final CompletableFuture<Map<LimitKey, Integer>> result = new CompletableFuture<>();
+    private int position;
+
+    private PendingCall(Operation operation, Collection<AddAndGetRequest> requests) {
+      this.operation = operation;
+      this.requests = requests;
+    }
+
+    private void completeWithoutCounters() {
+      result.complete(new LinkedHashMap<>());
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    RedisStorage storage;
+    Duration flushWindow = DEFAULT_FLUSH_WINDOW;
+    int maxFlushSize = DEFAULT_MAX_FLUSH_SIZE;
+    int flushThreads = DEFAULT_FLUSH_THREADS;
+
+    private Builder() {}
+
+    public void setStorage(RedisStorage storage) {
+      this.storage = storage;
+    }
+
+    public Builder withStorage(RedisStorage storage) {
+      setStorage(storage);
+      return this;
+    }
+
+    public void setFlushWindow(Duration flushWindow) {
+      this.flushWindow = flushWindow;
+    }
+
+    /**
+     * Sets how long a flushing thread waits for other calls after picking up a call. Every call
+     * waits up to this window, so it trades a little latency for larger pipelines.
+     *
+     * @param flushWindow The window, 100 microseconds by default
+     * @return The current {@link Builder}
+     */
+    public Builder withFlushWindow(Duration flushWindow) {
+      setFlushWindow(flushWindow);
+      return this;
+    }
+
+    public void setMaxFlushSize(int maxFlushSize) {
+      this.maxFlushSize = maxFlushSize;
+    }
+
+    /**
+     * @param maxFlushSize The number of requests after which a pipeline is sent without waiting
+     *                     for the end of the window, {@value CoalescingRedisStorage#DEFAULT_MAX_FLUSH_SIZE} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withMaxFlushSize(int maxFlushSize) {
+      setMaxFlushSize(maxFlushSize);
+      return this;
+    }
+
+    public void setFlushThreads(int flushThreads) {
+      this.flushThreads = flushThreads;
+    }
+
+    /**
+     * @param flushThreads The number of threads sending pipelines, each with its own connection,
+     *                     {@value CoalescingRedisStorage#DEFAULT_FLUSH_THREADS} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withFlushThreads(int flushThreads) {
+      setFlushThreads(flushThreads);
+      return this;
+    }
+
+    /**
+     * @return A new {@link CoalescingRedisStorage} with its flushing threads started
+     */
+    public CoalescingRedisStorage build() {
+      CoalescingRedisStorage coalescingStorage = new CoalescingRedisStorage(this);
+      coalescingStorage.startFlushers();
+      return coalescingStorage;
+    }
+  }
+}
@@ -0,0 +1,790 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.CounterTable;
+
+/**
+ * Implementation of {@link LimitUsageStorage} using a {@link CounterTable}, a fixed size table of
+ * primitive counters keyed by a 64 bits hash of the fields of their {@link LimitKey}.
+ * <p>
+ * A counter takes about 21 bytes instead of the few hundred bytes of a {@link LimitKey} and
+ * of the objects of the {@link InMemoryStorage}, and decisions do not allocate. In exchange, the
+ * table must be sized for the number of counters alive at once, which is every property of every
+ * limit of the current bucket, and of the previous one for sliding windows. When it is full,
+ * new counters are not created and their calls are let through.
+ * <p>
+ * The table only holds the hashes of the keys. To list the counters with
+ * {@link #getCurrentLimitCounters()} and the related methods, the storage keeps the fields of the
+ * key of each slot in a side index, which adds a reference per slot and about 60 bytes per
+ * counter. The index is only written when a slot gets a new key, so decisions still do not
+ * allocate. It only knows the keys used by this process, so the counters that other processes
+ * created in a shared table are not listed until this process uses them. The token buckets are
+ * not listed, as in the {@link InMemoryStorage}. The index can be turned off with
+ * {@link Builder#withListableCounters(boolean)}, in which case the counters cannot be listed.
+ * <p>
+ * The table is kept on the heap unless one is given to {@link Builder#withTable(CounterTable)}.
+ * With a table of {@link CounterTable#mapped(java.nio.file.Path, int)}, the processes of a host
+ * share exact counts through a file, without going through the network.
+ * <p>
+ * Never blocks, so it also implements {@link NonBlockingLimitUsageStorage}
+ * with completed futures.
+ */
+public class CounterTableStorage implements LimitUsageStorage, NonBlockingLimitUsageStorage {
+  private static final Logger logger = LoggerFactory.getLogger(CounterTableStorage.class);
+
+  /**
+   * The number of counters a table holds by default, which takes about 2 MB.
+   */
+  public static final int DEFAULT_CAPACITY = 100_000;
+
+  private static final int ADD = 0;
+  private static final int ADD_WITH_LIMIT = 1;
+  private static final int TRY_ADD = 2;
+
+  private static final long MICROS_PER_SECOND = 1_000_000;
+  private static final long FULL_TABLE_REPORT_INTERVAL_MILLIS = 60_000;
+  private static final String UNLISTABLE_COUNTERS =
+      "The counters of this storage are not indexed, they cannot be listed.";
+
+  private final CounterTable table;
+  private final Clock clock;
+  private final AtomicLong lastFullTableReport = new AtomicLong(Long.MIN_VALUE);
+  // The key of the counter of each slot, null when the counters are not listable.
+  private final AtomicReferenceArray<IndexedKey> indexedKeys;
+
+  private CounterTableStorage(CounterTable table, Clock clock, boolean listableCounters) {
+    this.table = table;
+    this.clock = clock;
+    this.indexedKeys = listableCounters ? new AtomicReferenceArray<>(table.getSlotCount()) : null;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    long now = getNow();
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      updatedEntries.put(limitKey, add(request, limitKey, now, ADD, request.getLimit()));
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    long now = getNow();
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      updatedEntries.put(limitKey, add(request, limitKey, now, ADD_WITH_LIMIT, request.getLimit()));
+    }
+    return updatedEntries;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Each counter is reserved in turn and the reservations are rolled back as soon as one limit
+   * is exceeded, as in the {@link InMemoryStorage}.
+   */
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    long now = getNow();
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
+    List<AddAndGetRequest> reservations = new ArrayList<>();
+
+    boolean underLimits = true;
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      int value;
+      if (underLimits) {
+        value = add(request, limitKey, now, TRY_ADD, request.getLimit());
+        if (value <= request.getLimit()) {
+          reservations.add(request);
+        } else {
+          underLimits = false;
+        }
+      } else {
+        value = peek(request, now);
+      }
+      updatedEntries.put(limitKey, value);
+    }
+
+    if (!underLimits) {
+      for (AddAndGetRequest request : reservations) {
+        long key = hash(request, request.getBucket().toEpochMilli());
+        if (request.isTokenBucket()) {
+          returnTokens(
+              key, request.getExpiration().toMillis(), request.getCost(), request.getLimit());
+        } else {
+          subtract(key, request.getCost());
+        }
+      }
+    }
+    return updatedEntries;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Behaves like {@link #tryAddAndGet(Collection)} without allocating.
+   */
+  @Override
+  public void tryAddAndGet(AddAndGetBatch batch) {
+    long now = getNow();
+    int reserved = batch.size();
+    for (int i = 0; i < batch.size(); i++) {
+      LimitKey limitKey = batch.getLimitKey(i);
+      long key = hash(limitKey, limitKey.getBucket().toEpochMilli());
+      long expirationMillis = limitKey.getExpiration().toMillis();
+      if (batch.getBurst(i) > 0) {
+        batch.setResult(
+            i,
+            reserved == batch.size()
+                ? takeTokens(
+                    key,
+                    limitKey,
+                    batch.getEventTimestamp(i),
+                    expirationMillis,
+                    batch.getCost(i),
+                    batch.getLimit(i),
+                    batch.getBurst(i),
+                    false,
+                    now)
+                : peekTokens(
+                    key,
+                    batch.getEventTimestamp(i),
+                    expirationMillis,
+                    batch.getCost(i),
+                    batch.getLimit(i),
+                    batch.getBurst(i)));
+      } else {
+        int slidingCount =
+            batch.isSlidingWindow(i)
+                ? getSlidingCount(
+                    limitKey,
+                    limitKey.getBucket().toEpochMilli() - expirationMillis,
+                    batch.getEventTimestamp(i),
+                    now)
+                : 0;
+        int value;
+        if (reserved == batch.size()) {
+          long expiration =
+              getExpiration(
+                  limitKey.getBucket().toEpochMilli(), expirationMillis, batch.isSlidingWindow(i));
+          value =
+              add(
+                      key,
+                      limitKey,
+                      expiration,
+                      now,
+                      batch.getCost(i),
+                      batch.getLimit(i) - slidingCount,
+                      TRY_ADD)
+                  + slidingCount;
+        } else {
+          value = get(key, now) + batch.getCost(i) + slidingCount;
+        }
+        batch.setResult(i, value);
+      }
+      if (reserved == batch.size() && batch.getResult(i) > batch.getLimit(i)) {
+        reserved = i;
+      }
+    }
+
+    for (int i = 0; i < reserved && reserved < batch.size(); i++) {
+      LimitKey limitKey = batch.getLimitKey(i);
+      long key = hash(limitKey, limitKey.getBucket().toEpochMilli());
+      if (batch.getBurst(i) > 0) {
+        returnTokens(key, limitKey.getExpiration().toMillis(), batch.getCost(i), batch.getLimit(i));
+      } else {
+        subtract(key, batch.getCost(i));
+      }
+    }
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(addAndGet(requests));
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(tryAddAndGet(requests));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Only lists the counters whose key was used by this process, without the token buckets.
+   *
+   * @throws UnsupportedOperationException If the counters are not listable, see
+   *                                       {@link Builder#withListableCounters(boolean)}
+   */
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return listCounters(null, null, null);
+  }
+
+  /**
+   * @see #getCurrentLimitCounters()
+   */
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return listCounters(resource, null, null);
+  }
+
+  /**
+   * @see #getCurrentLimitCounters()
+   */
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return listCounters(resource, limitName, null);
+  }
+
+  /**
+   * @see #getCurrentLimitCounters()
+   */
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return listCounters(resource, limitName, property);
+  }
+
+  @Override
+  public void close() throws Exception {
+    table.close();
+  }
+
+  /**
+   * @return The number of counters that are not expired
+   */
+  public int getCounterCount() {
+    long now = getNow();
+    int[] count = new int[1];
+    table.forEach(
+        (key, value) -> {
+          if (!CounterTable.isExpired(value, now)) {
+            count[0]++;
+          }
+        });
+    return count[0];
+  }
+
+  private int add(AddAndGetRequest request, LimitKey limitKey, long now, int mode, int limit) {
+    long bucket = request.getBucket().toEpochMilli();
+    long expirationMillis = request.getExpiration().toMillis();
+    long key = hash(request, bucket);
+    if (request.isTokenBucket()) {
+      return takeTokens(
+          key,
+          limitKey,
+          request.getEventTimestamp().toEpochMilli(),
+          expirationMillis,
+          request.getCost(),
+          limit,
+          request.getBurst(),
+          mode == ADD,
+          now);
+    }
+
+    int slidingCount =
+        request.isSlidingWindow()
+            ? getSlidingCount(
+                request, bucket - expirationMillis, request.getEventTimestamp().toEpochMilli(), now)
+            : 0;
+    long expiration = getExpiration(bucket, expirationMillis, request.isSlidingWindow());
+    return add(key, limitKey, expiration, now, request.getCost(), limit - slidingCount, mode)
+        + slidingCount;
+  }
+
+  private int peek(AddAndGetRequest request, long now) {
+    long bucket = request.getBucket().toEpochMilli();
+    long expirationMillis = request.getExpiration().toMillis();
+    long key = hash(request, bucket);
+    if (request.isTokenBucket()) {
+      return peekTokens(
+          key,
+          request.getEventTimestamp().toEpochMilli(),
+          expirationMillis,
+          request.getCost(),
+          request.getLimit(),
+          request.getBurst());
+    }
+    int slidingCount =
+        request.isSlidingWindow()
+            ? getSlidingCount(
+                request, bucket - expirationMillis, request.getEventTimestamp().toEpochMilli(), now)
+            : 0;
+    return get(key, now) + request.getCost() + slidingCount;
+  }
+
+  /**
+   * @param limit The limit of the counter, only used by {@link #ADD_WITH_LIMIT} and {@link #TRY_ADD}
+   * @return The count including the cost, whether it was added or not, except for
+   *         {@link #ADD_WITH_LIMIT} which does not include a cost that was not added
+   */
+  private int add(
+      long key, LimitKey limitKey, long expiration, long now, int cost, int limit, int mode) {
+    while (true) {
+      int slot = table.findOrCreate(key, expiration, now);
+      if (slot == CounterTable.NOT_FOUND) {
+        reportFullTable();
+        return cost;
+      }
+      index(slot, key, limitKey);
+      long value = table.getValue(slot, key);
+      if (value == CounterTable.LOCKED) {
+        continue;
+      }
+
+      int count = CounterTable.isExpired(value, now) ? 0 : CounterTable.getCount(value);
+      if (mode == ADD_WITH_LIMIT && count > limit) {
+        return count;
+      }
+      if (mode == TRY_ADD && count + cost > limit) {
+        return count + cost;
+      }
+      if (table.compareAndSetValue(slot, value, CounterTable.pack(expiration, count + cost))) {
+        return count + cost;
+      }
+    }
+  }
+
+  private void subtract(long key, int cost) {
+    while (true) {
+      int slot = table.find(key);
+      if (slot == CounterTable.NOT_FOUND) {
+        return;
+      }
+      long value = table.getValue(slot, key);
+      if (value == CounterTable.LOCKED) {
+        continue;
+      }
+      long updated =
+          CounterTable.pack(CounterTable.getExpiration(value), CounterTable.getCount(value) - cost);
+      if (table.compareAndSetValue(slot, value, updated)) {
+        return;
+      }
+    }
+  }
+
+  private int get(long key, long now) {
+    while (true) {
+      int slot = table.find(key);
+      if (slot == CounterTable.NOT_FOUND) {
+        return 0;
+      }
+      long value = table.getValue(slot, key);
+      if (value != CounterTable.LOCKED) {
+        return CounterTable.isExpired(value, now) ? 0 : CounterTable.getCount(value);
+      }
+    }
+  }
+
+  private int getSlidingCount(
+      AddAndGetRequest request, long previousBucket, long eventTimestamp, long now) {
+    long key = hash(request, previousBucket);
+    return LimitUtils.calculateSlidingCount(
+        get(key, now), eventTimestamp, request.getExpiration().toMillis());
+  }
+
+  private int getSlidingCount(
+      LimitKey limitKey, long previousBucket, long eventTimestamp, long now) {
+    long key = hash(limitKey, previousBucket);
+    return LimitUtils.calculateSlidingCount(
+        get(key, now), eventTimestamp, limitKey.getExpiration().toMillis());
+  }
+
+  /**
+   * Moves the theoretical arrival time of the token bucket forward by the cost, unless the
+   * bucket does not hold enough tokens and the cost is not forced. The arrival time is kept in
+   * the value word as the second at which it is reached, which is also when the slot expires,
+   * and the microseconds that remain before that second.
+   *
+   * @return The count of the token bucket including the cost, whether it was taken or not
+   */
+  private int takeTokens(
+      long key,
+      LimitKey limitKey,
+      long eventTimestamp,
+      long expirationMillis,
+      int cost,
+      int limit,
+      int burst,
+      boolean force,
+      long now) {
+    long interval = LimitUtils.calculateEmissionInterval(expirationMillis, limit);
+    long nowMicros = TimeUnit.MILLISECONDS.toMicros(eventTimestamp);
+    while (true) {
+      int slot = table.findOrCreate(key, nowMicros / MICROS_PER_SECOND, now);
+      if (slot == CounterTable.NOT_FOUND) {
+        reportFullTable();
+        return cost;
+      }
+      index(slot, key, limitKey);
+      long value = table.getValue(slot, key);
+      if (value == CounterTable.LOCKED) {
+        continue;
+      }
+
+      long next = Math.max(toArrival(value), nowMicros) + cost * interval;
+      if ((!force && !LimitUtils.isUnderBurst(next, nowMicros, interval, burst))
+          || table.compareAndSetValue(slot, value, fromArrival(next))) {
+        return LimitUtils.calculateTokenBucketCount(next, nowMicros, interval, limit, burst);
+      }
+    }
+  }
+
+  private int peekTokens(
+      long key, long eventTimestamp, long expirationMillis, int cost, int limit, int burst) {
+    long interval = LimitUtils.calculateEmissionInterval(expirationMillis, limit);
+    long nowMicros = TimeUnit.MILLISECONDS.toMicros(eventTimestamp);
+    long current = nowMicros;
+    int slot = table.find(key);
+    if (slot != CounterTable.NOT_FOUND) {
+      long value = table.getValue(slot, key);
+      if (value != CounterTable.LOCKED) {
+        current = Math.max(toArrival(value), nowMicros);
+      }
+    }
+    return LimitUtils.calculateTokenBucketCount(
+        current + cost * interval, nowMicros, interval, limit, burst);
+  }
+
+  private void returnTokens(long key, long expirationMillis, int cost, int limit) {
+    long interval = LimitUtils.calculateEmissionInterval(expirationMillis, limit);
+    while (true) {
+      int slot = table.find(key);
+      if (slot == CounterTable.NOT_FOUND) {
+        return;
+      }
+      long value = table.getValue(slot, key);
+      if (value == CounterTable.LOCKED) {
+        continue;
+      }
+      if (table.compareAndSetValue(slot, value, fromArrival(toArrival(value) - cost * interval))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Records the key of a slot unless it is already known. Only a new key allocates, and the
+   * key is copied since it may be a reused {@link LimitKey} of an {@link AddAndGetBatch}.
+   */
+  private void index(int slot, long key, LimitKey limitKey) {
+    if (indexedKeys == null) {
+      return;
+    }
+    IndexedKey indexedKey = indexedKeys.get(slot);
+    if (indexedKey == null || indexedKey.hash != key) {
+      indexedKeys.lazySet(slot, new IndexedKey(key, limitKey));
+    }
+  }
+
+  /**
+   * @param resource The resource of the counters to list, null for any
+   * @param limitName The limit of the counters to list, null for any
+   * @param property The property of the counters to list, null for any
+   */
+  private Map<LimitKey, Integer> listCounters(String resource, String limitName, String property) {
+    if (indexedKeys == null) {
+      throw new UnsupportedOperationException(UNLISTABLE_COUNTERS);
+    }
+    long now = getNow();
+    Map<LimitKey, Integer> counters = new LinkedHashMap<>();
+    for (int slot = 0; slot < indexedKeys.length(); slot++) {
+      IndexedKey indexedKey = indexedKeys.get(slot);
+      if (indexedKey == null
+          || indexedKey.bucket == LimitUtils.TOKEN_BUCKET.toEpochMilli()
+          || (resource != null && !resource.equals(indexedKey.resource))
+          || (limitName != null && !limitName.equals(indexedKey.limitName))
+          || (property != null && !Objects.equals(property, indexedKey.property))) {
+        continue;
+      }
+      long value = table.getValue(slot, indexedKey.hash);
+      // The slot was given to a key of another process, or its counter is over.
+      if (value != CounterTable.LOCKED && !CounterTable.isExpired(value, now)) {
+        counters.put(indexedKey.toLimitKey(), CounterTable.getCount(value));
+      }
+    }
+    return counters;
+  }
+
+  private static long toArrival(long value) {
+    return CounterTable.getExpiration(value) * MICROS_PER_SECOND - CounterTable.getCount(value);
+  }
+
+  private static long fromArrival(long arrival) {
+    long second = Math.floorDiv(arrival + MICROS_PER_SECOND - 1, MICROS_PER_SECOND);
+    return CounterTable.pack(second, (int) (second * MICROS_PER_SECOND - arrival));
+  }
+
+  /**
+   * The counters of sliding windows are kept for one more bucket since the next bucket
+   * reads them.
+   *
+   * @return The epoch second after which the counter of the bucket can be reused
+   */
+  private static long getExpiration(long bucket, long expirationMillis, boolean slidingWindow) {
+    long end = bucket + (slidingWindow ? 2 * expirationMillis : expirationMillis);
+    return Math.min(Math.floorDiv(end + 999, 1000), CounterTable.MAXIMUM_EXPIRATION);
+  }
+
+  private long getNow() {
+    return Math.floorDiv(clock.millis(), 1000);
+  }
+
+  private void reportFullTable() {
+    long now = clock.millis();
+    long lastReport = lastFullTableReport.get();
+    if (now - lastReport >= FULL_TABLE_REPORT_INTERVAL_MILLIS
+        && lastFullTableReport.compareAndSet(lastReport, now)) {
+      logger.error(
+          "The counter table of {} slots is full. The calls of the new counters are let through until counters expire.",
+          table.getSlotCount());
+    }
+  }
+
+  private static long hash(AddAndGetRequest request, long bucket) {
+    return hash(
+        request.getResource(),
+        request.getLimitName(),
+        request.getProperty(),
+        request.isDistributed(),
+        request.getExpiration().toMillis(),
+        bucket);
+  }
+
+  private static long hash(LimitKey limitKey, long bucket) {
+    return hash(
+        limitKey.getResource(),
+        limitKey.getLimitName(),
+        limitKey.getProperty(),
+        limitKey.isDistributed(),
+        limitKey.getExpiration().toMillis(),
+        bucket);
+  }
+
+  /**
+   * Hashes the fields of a {@link LimitKey} without allocating. The hash only depends on the
+   * fields, so that it is the same in every process.
+   */
+  /*package*/ static long hash(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      long expirationMillis,
+      long bucket) {
+    long hash = 0xcbf29ce484222325L;
+    hash = hash(hash, resource);
+    hash = hash(hash, limitName);
+    hash = hash(hash, property);
+    hash = (hash ^ (distributed ? 1 : 0)) * 0x100000001b3L;
+    hash = (hash ^ expirationMillis) * 0x100000001b3L;
+    hash = (hash ^ bucket) * 0x100000001b3L;
+    // Spreads every bit of the hash over its upper half, which selects the slot.
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long hash(long hash, String value) {
+    if (value == null) {
+      return (hash ^ 0xff) * 0x100000001b3L;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+    }
+    // The length separates the fields, so that moving characters between them changes the hash.
+    return (hash ^ (value.length() + 0x100)) * 0x100000001b3L;
+  }
+
+  /**
+   * The fields of the {@link LimitKey} of a slot, along with the hash under which it is stored.
+   */
+  private static final class IndexedKey {
+    private final long hash;
+    private final String resource;
+    private final String limitName;
+    private final String property;
+    private final boolean distributed;
+    private final long bucket;
+    private final long expirationMillis;
+
+    private IndexedKey(long hash, LimitKey limitKey) {
+      this.hash = hash;
+      this.resource = limitKey.getResource();
+      this.limitName = limitKey.getLimitName();
+      this.property = limitKey.getProperty();
+      this.distributed = limitKey.isDistributed();
+      this.bucket = limitKey.getBucket().toEpochMilli();
+      this.expirationMillis = limitKey.getExpiration().toMillis();
+    }
+
+    private LimitKey toLimitKey() {
+      return new LimitKey(
+          resource,
+          limitName,
+          property,
+          distributed,
+          Instant.ofEpochMilli(bucket),
+          Duration.ofMillis(expirationMillis));
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    int capacity = DEFAULT_CAPACITY;
+    CounterTable table;
+    Path file;
+    Clock clock = Clock.systemUTC();
+    boolean listableCounters = true;
+
+    private Builder() {}
+
+    public void setCapacity(int capacity) {
+      this.capacity = capacity;
+    }
+
+    /**
+     * @param capacity The number of counters alive at once that the table of the storage
+     *                 holds, {@value CounterTableStorage#DEFAULT_CAPACITY} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withCapacity(int capacity) {
+      setCapacity(capacity);
+      return this;
+    }
+
+    public void setTable(CounterTable table) {
+      this.table = table;
+    }
+
+    /**
+     * @param table The table in which the counters are kept, replaces the capacity and the file
+     * @return The current {@link Builder}
+     */
+    public Builder withTable(CounterTable table) {
+      setTable(table);
+      return this;
+    }
+
+    public void setFile(Path file) {
+      this.file = file;
+    }
+
+    /**
+     * Keeps the counters in a file shared with the other processes that use it, see
+     * {@link CounterTable#mapped(Path, int)}. They must all use the same capacity.
+     *
+     * @param file The file of the counters, created if it does not exist
+     * @return The current {@link Builder}
+     */
+    public Builder withFile(Path file) {
+      setFile(file);
+      return this;
+    }
+
+    public void setClock(Clock clock) {
+      this.clock = clock;
+    }
+
+    public Builder withClock(Clock clock) {
+      setClock(clock);
+      return this;
+    }
+
+    public void setListableCounters(boolean listableCounters) {
+      this.listableCounters = listableCounters;
+    }
+
+    /**
+     * @param listableCounters If the keys of the counters are indexed so that they can be listed,
+     *                         true by default. Without the index, a counter only takes the
+     *                         21 bytes of its slot, but {@link #getCurrentLimitCounters()} and
+     *                         the related methods throw an
+     *                         {@link UnsupportedOperationException}, so the storage cannot be
+     *                         wrapped by an {@link AsyncBatchLimitUsageStorage}.
+     * @return The current {@link Builder}
+     */
+    public Builder withListableCounters(boolean listableCounters) {
+      setListableCounters(listableCounters);
+      return this;
+    }
+
+    /**
+     * @return The new {@link CounterTableStorage}
+     * @throws UncheckedIOException If the file cannot be mapped or holds a table of another
+     *                              capacity
+     */
+    public CounterTableStorage build() {
+      if (table != null) {
+        return new CounterTableStorage(table, clock, listableCounters);
+      }
+      if (file == null) {
+        return new CounterTableStorage(CounterTable.onHeap(capacity), clock, listableCounters);
+      }
+      try {
+        return new CounterTableStorage(
+            CounterTable.mapped(file, capacity), clock, listableCounters);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to map the counters of " + file + ".", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Adapts a blocking {@link LimitUsageStorage} to {@link NonBlockingLimitUsageStorage}
+ * by running its calls on an {@link Executor}.
+ * <p>
+ * Like the blocking storages on error, a call rejected by the executor completes with an empty
+ * map, so that the decision fails open instead of failing the future.
+ */
+/*package*/ class ExecutorLimitUsageStorage implements NonBlockingLimitUsageStorage {
+  /*package*/ static final int DEFAULT_THREAD_COUNT = 8;
+  /*package*/ static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+  private static final Logger logger = LoggerFactory.getLogger(ExecutorLimitUsageStorage.class);
+
+  private final LimitUsageStorage storage;
+  private final Executor executor;
+
+  /*package*/ ExecutorLimitUsageStorage(LimitUsageStorage storage, Executor executor) {
+    this.storage = storage;
+    this.executor = executor;
+  }
+
+  /*package*/ static Executor defaultExecutor() {
+    return DefaultExecutorHolder.EXECUTOR;
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return supplyAsync(() -> storage.addAndGet(requests));
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return supplyAsync(() -> storage.tryAddAndGet(requests));
+  }
+
+  private CompletableFuture<Map<LimitKey, Integer>> supplyAsync(
+      Supplier<Map<LimitKey, Integer>> call) {
+    try {
+      return CompletableFuture.supplyAsync(call, executor);
+    } catch (RejectedExecutionException e) {
+      logger.warn("The storage executor rejected a call, no limit is considered exceeded.", e);
+      return CompletableFuture.completedFuture(Collections.emptyMap());
+    }
+  }
+
+  /**
+   * Creates the default executor on first use only.
+   */
+  private static class DefaultExecutorHolder {
+    private static final Executor EXECUTOR = createDefaultExecutor();
+
+    private static Executor createDefaultExecutor() {
+      AtomicInteger threadCount = new AtomicInteger();
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              DEFAULT_THREAD_COUNT,
+              DEFAULT_THREAD_COUNT,
+              1,
+              TimeUnit.MINUTES,
+              new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY),
+              runnable -> {
+                Thread thread =
+                    new Thread(runnable, "spillway-storage-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              });
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
+}
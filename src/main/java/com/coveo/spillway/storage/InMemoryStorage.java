@@ -23,21 +23,33 @@
 package com.coveo.spillway.storage;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.storage.utils.Capacity;
+import com.coveo.spillway.storage.utils.CurrentBucketCounts;
 import com.coveo.spillway.storage.utils.OverrideKeyRequest;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -47,26 +59,72 @@ import java.util.stream.Collectors;
  * <p>
  * Not recommended as a distributed storage solution since sharing memory
  * can be complicated. Perfect for local usages.
+ * <p>
+ * Never blocks, so it also implements {@link NonBlockingLimitUsageStorage}
+ * with completed futures.
  *
  * @author Guillaume Simard
  * @author Emile Fugulin
  * @author Simon Toussaint
  * @since 1.0.0
  */
-public class InMemoryStorage implements LimitUsageStorage {
+public class InMemoryStorage implements LimitUsageStorage, NonBlockingLimitUsageStorage {
 
   Map<LimitKey, Capacity> map = new ConcurrentHashMap<>();
+  // Theoretical arrival times of the token buckets in epoch microseconds.
+  Map<LimitKey, AtomicLong> arrivals = new ConcurrentHashMap<>();
   private Clock clock = Clock.systemDefaultZone();
 
+  // Keys indexed by the end of their bucket so that only the keys that are due are visited.
+  private final ConcurrentSkipListMap<Long, Queue<LimitKey>> expirations =
+      new ConcurrentSkipListMap<>();
+  private final AtomicLong nextExpiration = new AtomicLong(Long.MAX_VALUE);
+  private ScheduledExecutorService sweeper;
+
+  /**
+   * Creates an {@link InMemoryStorage} that removes its expired entries from a background
+   * thread instead of doing it during the calls.
+   *
+   * @param sweepPeriod The time between two removals of the expired entries
+   * @return The new {@link InMemoryStorage}, {@link #close()} stops its background thread
+   */
+  public static InMemoryStorage withBackgroundSweeper(Duration sweepPeriod) {
+    return withBackgroundSweeper(sweepPeriod, Clock.systemDefaultZone());
+  }
+
+  /*package*/ static InMemoryStorage withBackgroundSweeper(Duration sweepPeriod, Clock clock) {
+    InMemoryStorage storage = new InMemoryStorage();
+    storage.clock = clock;
+    storage.sweeper =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "spillway-in-memory-sweeper");
+              thread.setDaemon(true);
+              return thread;
+            });
+    storage.sweeper.scheduleAtFixedRate(
+        storage::sweepExpiredEntries,
+        sweepPeriod.toMillis(),
+        sweepPeriod.toMillis(),
+        TimeUnit.MILLISECONDS);
+    return storage;
+  }
+
   @Override
   public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
-    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
 
     for (AddAndGetRequest request : requests) {
       LimitKey limitKey = LimitKey.fromRequest(request);
+      if (request.isTokenBucket()) {
+        updatedEntries.put(limitKey, takeTokens(limitKey, request, true));
+        continue;
+      }
 
-      Capacity counter = map.computeIfAbsent(limitKey, (key) -> new Capacity());
-      updatedEntries.put(limitKey, counter.addAndGet(request.getCost()));
+      Capacity counter =
+          getOrCreateCounter(limitKey, request.isSlidingWindow(), request.getLimit());
+      int slidingCount = getSlidingCount(limitKey, request);
+      updatedEntries.put(limitKey, counter.addAndGet(request.getCost()) + slidingCount);
     }
     removeExpiredEntries();
 
@@ -75,24 +133,207 @@ public class InMemoryStorage implements LimitUsageStorage {
 
   @Override
   public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
-    Map<LimitKey, Integer> updatedEntries = new HashMap<>();
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
     requests.forEach(
         request -> {
           LimitKey limitKey = LimitKey.fromRequest(request);
-          Capacity counter = map.computeIfAbsent(limitKey, (key) -> new Capacity());
+          if (request.isTokenBucket()) {
+            updatedEntries.put(limitKey, takeTokens(limitKey, request, false));
+            return;
+          }
+          // The limit of these requests may be the smallest limit of a whole decision rather
+          // than the limit of the counter, so it is not remembered by the counter.
+          Capacity counter = getOrCreateCounter(limitKey, request.isSlidingWindow(), 0);
+          int slidingCount = getSlidingCount(limitKey, request);
           updatedEntries.put(
-              limitKey, counter.addAndGetWithLimit(request.getCost(), request.getLimit()));
+              limitKey,
+              counter.addAndGetWithLimit(request.getCost(), request.getLimit() - slidingCount)
+                  + slidingCount);
         });
     removeExpiredEntries();
     return updatedEntries;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Each counter is reserved in turn and the reservations are rolled back as soon as one limit
+   * is exceeded. A concurrent call may therefore be rejected because of a reservation that is
+   * later rolled back, but counters never go over their limit.
+   */
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
+    List<Runnable> reservations = new ArrayList<>();
+
+    boolean underLimits = true;
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      if (request.isTokenBucket()) {
+        if (underLimits) {
+          int value = takeTokens(limitKey, request, false);
+          if (value <= request.getLimit()) {
+            reservations.add(() -> returnTokens(limitKey, request.getCost(), request.getLimit()));
+          } else {
+            underLimits = false;
+          }
+          updatedEntries.put(limitKey, value);
+        } else {
+          updatedEntries.put(
+              limitKey,
+              peekTokens(
+                  limitKey,
+                  request.getEventTimestamp().toEpochMilli(),
+                  request.getCost(),
+                  request.getLimit(),
+                  request.getBurst()));
+        }
+        continue;
+      }
+      Capacity counter =
+          getOrCreateCounter(limitKey, request.isSlidingWindow(), request.getLimit());
+      int slidingCount = getSlidingCount(limitKey, request);
+
+      if (underLimits) {
+        int value =
+            counter.tryAddAndGet(request.getCost(), request.getLimit() - slidingCount)
+                + slidingCount;
+        if (value <= request.getLimit()) {
+          reservations.add(() -> counter.substractAndGet(request.getCost()));
+        } else {
+          underLimits = false;
+        }
+        updatedEntries.put(limitKey, value);
+      } else {
+        updatedEntries.put(limitKey, counter.get() + request.getCost() + slidingCount);
+      }
+    }
+
+    if (!underLimits) {
+      reservations.forEach(Runnable::run);
+    }
+    removeExpiredEntries();
+
+    return updatedEntries;
+  }
+
   @Override
-  public void close() {}
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(addAndGet(requests));
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(tryAddAndGet(requests));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Behaves like {@link #tryAddAndGet(Collection)} without allocating once the counters exist.
+   */
+  @Override
+  public void tryAddAndGet(AddAndGetBatch batch) {
+    int reserved = batch.size();
+    for (int i = 0; i < batch.size(); i++) {
+      if (batch.getBurst(i) > 0) {
+        long eventTimestamp = batch.getEventTimestamp(i);
+        if (reserved == batch.size()) {
+          int value =
+              takeTokens(
+                  batch.getLimitKey(i),
+                  eventTimestamp,
+                  batch.getCost(i),
+                  batch.getLimit(i),
+                  batch.getBurst(i),
+                  false);
+          if (value > batch.getLimit(i)) {
+            reserved = i;
+          }
+          batch.setResult(i, value);
+        } else {
+          batch.setResult(
+              i,
+              peekTokens(
+                  batch.getLimitKey(i),
+                  eventTimestamp,
+                  batch.getCost(i),
+                  batch.getLimit(i),
+                  batch.getBurst(i)));
+        }
+        continue;
+      }
+      Capacity counter =
+          getOrCreateCounter(batch.getLimitKey(i), batch.isSlidingWindow(i), batch.getLimit(i));
+      int slidingCount =
+          batch.isSlidingWindow(i)
+              ? getSlidingCount(batch.getPreviousLimitKey(i), batch.getEventTimestamp(i))
+              : 0;
+
+      if (reserved == batch.size()) {
+        int value =
+            counter.tryAddAndGet(batch.getCost(i), batch.getLimit(i) - slidingCount) + slidingCount;
+        if (value > batch.getLimit(i)) {
+          reserved = i;
+        }
+        batch.setResult(i, value);
+      } else {
+        batch.setResult(i, counter.get() + batch.getCost(i) + slidingCount);
+      }
+    }
+
+    for (int i = 0; i < reserved && reserved < batch.size(); i++) {
+      if (batch.getBurst(i) > 0) {
+        returnTokens(batch.getLimitKey(i), batch.getCost(i), batch.getLimit(i));
+        continue;
+      }
+      Capacity counter = map.get(batch.getLimitKey(i));
+      if (counter != null) {
+        counter.substractAndGet(batch.getCost(i));
+      }
+    }
+    removeExpiredEntries();
+  }
+
+  @Override
+  public void close() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+    }
+  }
 
   public void overrideKeys(List<OverrideKeyRequest> overrides) {
     for (OverrideKeyRequest override : overrides) {
-      map.put(override.getLimitKey(), new Capacity(override.getNewValue()));
+      if (map.put(override.getLimitKey(), new Capacity(override.getNewValue())) == null) {
+        // The key may belong to a sliding window, in which case the next bucket still reads it.
+        LimitKey limitKey = override.getLimitKey();
+        scheduleExpiration(limitKey, getExpiration(limitKey) + limitKey.getExpiration().toMillis());
+      }
+    }
+    removeExpiredEntries();
+  }
+
+  /**
+   * Sets the values of keys to the ones of the distributed storage while keeping the costs
+   * added locally that were not sent yet, see {@link Capacity#setTotal(int, int)}.
+   * Unlike {@link #overrideKeys(List)}, the costs added while the distributed storage was
+   * called are not lost.
+   *
+   * @param overrides The values of the distributed storage and the costs sent to obtain them. The
+   *                  value of a sliding window must not include its previous bucket, which the
+   *                  cache weights in when it reads the window, see {@link CurrentBucketCounts}.
+   */
+  public void reconcileKeys(List<OverrideKeyRequest> overrides) {
+    for (OverrideKeyRequest override : overrides) {
+      Capacity counter = map.get(override.getLimitKey());
+      if (counter != null) {
+        counter.setTotal(override.getNewValue(), override.getSentCost());
+      } else {
+        // The key may belong to a sliding window, in which case the next bucket still reads it.
+        getOrCreateCounter(override.getLimitKey(), true).setTotal(override.getNewValue());
+      }
     }
     removeExpiredEntries();
   }
@@ -143,15 +384,182 @@ public class InMemoryStorage implements LimitUsageStorage {
             .collect(Collectors.toMap(Map.Entry::getKey, kvp -> kvp.getValue().get())));
   }
 
+  /**
+   * The key is only copied when the counter is missing since it may be a reused probe.
+   * The counters of sliding windows are kept for one more bucket since the next bucket
+   * reads them.
+   */
+  private Capacity getOrCreateCounter(LimitKey limitKey, boolean slidingWindow, int limit) {
+    Capacity counter = getOrCreateCounter(limitKey, slidingWindow);
+    counter.updateLimit(limit);
+    if (slidingWindow) {
+      counter.markSlidingWindow();
+    }
+    return counter;
+  }
+
+  /**
+   * @param keptForNextBucket True to keep the counter until the end of the next bucket, which
+   *                          reads it when the counter belongs to a sliding window
+   */
+  private Capacity getOrCreateCounter(LimitKey limitKey, boolean keptForNextBucket) {
+    Capacity counter = map.get(limitKey);
+    if (counter == null) {
+      LimitKey storedKey = new LimitKey(limitKey);
+      Capacity newCounter = new Capacity();
+      counter = map.putIfAbsent(storedKey, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+        long expiration = getExpiration(storedKey);
+        scheduleExpiration(
+            storedKey,
+            keptForNextBucket ? expiration + storedKey.getExpiration().toMillis() : expiration);
+      }
+    }
+    return counter;
+  }
+
+  private int takeTokens(LimitKey limitKey, AddAndGetRequest request, boolean force) {
+    return takeTokens(
+        limitKey,
+        request.getEventTimestamp().toEpochMilli(),
+        request.getCost(),
+        request.getLimit(),
+        request.getBurst(),
+        force);
+  }
+
+  /**
+   * Moves the theoretical arrival time of the token bucket forward by the cost, unless the
+   * bucket does not hold enough tokens and the cost is not forced.
+   *
+   * @return The count of the token bucket including the cost, whether it was taken or not
+   */
+  private int takeTokens(
+      LimitKey limitKey, long eventTimestamp, int cost, int limit, int burst, boolean force) {
+    AtomicLong arrival = getOrCreateArrival(limitKey, eventTimestamp);
+    long interval =
+        LimitUtils.calculateEmissionInterval(limitKey.getExpiration().toMillis(), limit);
+    long now = TimeUnit.MILLISECONDS.toMicros(eventTimestamp);
+    while (true) {
+      long current = arrival.get();
+      long next = Math.max(current, now) + cost * interval;
+      if ((!force && !LimitUtils.isUnderBurst(next, now, interval, burst))
+          || arrival.compareAndSet(current, next)) {
+        return LimitUtils.calculateTokenBucketCount(next, now, interval, limit, burst);
+      }
+    }
+  }
+
+  private int peekTokens(LimitKey limitKey, long eventTimestamp, int cost, int limit, int burst) {
+    AtomicLong arrival = arrivals.get(limitKey);
+    long interval =
+        LimitUtils.calculateEmissionInterval(limitKey.getExpiration().toMillis(), limit);
+    long now = TimeUnit.MILLISECONDS.toMicros(eventTimestamp);
+    long current = arrival == null ? now : Math.max(arrival.get(), now);
+    return LimitUtils.calculateTokenBucketCount(
+        current + cost * interval, now, interval, limit, burst);
+  }
+
+  private void returnTokens(LimitKey limitKey, int cost, int limit) {
+    AtomicLong arrival = arrivals.get(limitKey);
+    if (arrival != null) {
+      long interval =
+          LimitUtils.calculateEmissionInterval(limitKey.getExpiration().toMillis(), limit);
+      arrival.addAndGet(-cost * interval);
+    }
+  }
+
+  /**
+   * Token buckets are first scheduled to expire one limit duration after their creation and
+   * are rescheduled on expiration until their theoretical arrival time is reached.
+   */
+  private AtomicLong getOrCreateArrival(LimitKey limitKey, long eventTimestamp) {
+    AtomicLong arrival = arrivals.get(limitKey);
+    if (arrival == null) {
+      LimitKey storedKey = new LimitKey(limitKey);
+      AtomicLong newArrival = new AtomicLong();
+      arrival = arrivals.putIfAbsent(storedKey, newArrival);
+      if (arrival == null) {
+        arrival = newArrival;
+        scheduleExpiration(storedKey, eventTimestamp + storedKey.getExpiration().toMillis());
+      }
+    }
+    return arrival;
+  }
+
+  private int getSlidingCount(LimitKey limitKey, AddAndGetRequest request) {
+    if (!request.isSlidingWindow()) {
+      return 0;
+    }
+    return getSlidingCount(
+        limitKey.getPreviousBucketKey(), request.getEventTimestamp().toEpochMilli());
+  }
+
+  private int getSlidingCount(LimitKey previousLimitKey, long eventTimestamp) {
+    Capacity previousCounter = map.get(previousLimitKey);
+    if (previousCounter == null) {
+      return 0;
+    }
+    return LimitUtils.calculateSlidingCount(
+        previousCounter.get(), eventTimestamp, previousLimitKey.getExpiration().toMillis());
+  }
+
+  private void scheduleExpiration(LimitKey limitKey, long expiration) {
+    Queue<LimitKey> limitKeys;
+    do {
+      limitKeys = expirations.computeIfAbsent(expiration, key -> new ConcurrentLinkedQueue<>());
+      limitKeys.add(limitKey);
+      // The queue may have been swept while the key was added, in which case it is added again.
+    } while (expirations.get(expiration) != limitKeys);
+    nextExpiration.accumulateAndGet(expiration, Math::min);
+  }
+
+  private static long getExpiration(LimitKey limitKey) {
+    return limitKey.getBucket().toEpochMilli() + limitKey.getExpiration().toMillis();
+  }
+
   private void removeExpiredEntries() {
-    Instant now = Instant.now(clock);
+    if (sweeper == null) {
+      sweepExpiredEntries();
+    }
+  }
 
-    Set<LimitKey> expiredLimitKeys =
-        map.keySet()
-            .stream()
-            .filter(limitKey -> limitKey.getBucket().plus(limitKey.getExpiration()).isBefore(now))
-            .collect(Collectors.toSet());
+  /**
+   * Only removes the keys whose bucket ended, so it costs nothing until the earliest
+   * expiration is reached and is proportional to the number of expired keys afterwards.
+   */
+  private void sweepExpiredEntries() {
+    long now = Instant.now(clock).toEpochMilli();
+    if (now <= nextExpiration.get()) {
+      return;
+    }
+
+    nextExpiration.set(Long.MAX_VALUE);
+    Map.Entry<Long, Queue<LimitKey>> due;
+    while ((due = expirations.firstEntry()) != null && due.getKey() < now) {
+      if (expirations.remove(due.getKey(), due.getValue())) {
+        for (LimitKey limitKey : due.getValue()) {
+          map.remove(limitKey);
+          expireArrival(limitKey, now);
+        }
+      }
+    }
+    if (due != null) {
+      nextExpiration.accumulateAndGet(due.getKey(), Math::min);
+    }
+  }
 
-    map.keySet().removeAll(expiredLimitKeys);
+  private void expireArrival(LimitKey limitKey, long now) {
+    AtomicLong arrival = arrivals.get(limitKey);
+    if (arrival == null) {
+      return;
+    }
+    long expiration = TimeUnit.MICROSECONDS.toMillis(arrival.get()) + 1;
+    if (expiration < now) {
+      arrivals.remove(limitKey, arrival);
+    } else {
+      scheduleExpiration(limitKey, expiration);
+    }
   }
 }
@@ -0,0 +1,618 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.SynchronizationScheduler;
+import com.coveo.spillway.storage.utils.SynchronizationScheduler.ScheduledSynchronization;
+
+/**
+ * A {@link LimitUsageStorage} that serves decisions from leases of capacity reserved in
+ * a distributed storage, such as the {@link RedisStorage}.
+ * <p>
+ * For each {@link LimitKey}, the storage atomically reserves a chunk of the capacity with
+ * {@link LimitUsageStorage#tryAddAndGet(Collection)} and then consumes it in memory, only calling
+ * the distributed storage again when the lease runs out. The size of the next lease follows the
+ * rate at which the previous one was consumed, so that a lease lasts about the lease duration,
+ * and never exceeds a fraction of the limit.
+ * <p>
+ * Since the leases are reserved atomically, the instances never let more than the limit through.
+ * They may instead refuse calls while other instances hold unused tokens, at most one lease per
+ * instance. The unused tokens are given back when the bucket of their lease ends, when their lease
+ * is not used for a whole sweep period and when the storage is closed. The counters of the
+ * distributed storage include the leased tokens.
+ * <p>
+ * The leases are swept on a {@link SynchronizationScheduler}, off the path of the calls, and the
+ * tokens of every lease swept at the same time are given back in a single call to the distributed
+ * storage.
+ * <p>
+ * A single thread extends a lease at a time, without holding any lock during the call to the
+ * distributed storage. The other threads needing the same lease wait for that call to complete.
+ * <p>
+ * Only the calls made of fixed window limits are leased, the others are sent as is to the
+ * distributed storage.
+ */
+public class LeasingLimitUsageStorage implements LimitUsageStorage, NonBlockingLimitUsageStorage {
+  private static final Logger logger = LoggerFactory.getLogger(LeasingLimitUsageStorage.class);
+
+  public static final Duration DEFAULT_LEASE_DURATION = Duration.ofMillis(100);
+  public static final double DEFAULT_MAX_LEASE_FRACTION = 0.1;
+
+  private static final long RETRY_DELAY_MILLIS = 100;
+  private static final Duration SWEEP_PERIOD = Duration.ofSeconds(1);
+
+  private final LimitUsageStorage storage;
+  private final long leaseDurationMillis;
+  private final double maxLeaseFraction;
+  private final Clock clock;
+
+  private final Map<LimitKey, Lease> leases = new ConcurrentHashMap<>();
+  private ScheduledSynchronization sweep;
+
+  private LeasingLimitUsageStorage(Builder builder) {
+    this.storage = builder.storage;
+    this.leaseDurationMillis = builder.leaseDuration.toMillis();
+    this.maxLeaseFraction = builder.maxLeaseFraction;
+    this.clock = builder.clock;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    if (!isLeasable(requests)) {
+      return storage.addAndGet(requests);
+    }
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      Lease lease = getLease(limitKey);
+      if (lease.take(request.getCost()) || acquireAndTake(lease, request)) {
+        updatedEntries.put(limitKey, lease.getUsed());
+      } else {
+        // The costs that cannot be leased are still counted.
+        updatedEntries.putAll(storage.addAndGet(Collections.singletonList(request)));
+      }
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    if (!isLeasable(requests)) {
+      return storage.addAndGetWithLimit(requests);
+    }
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      Lease lease = getLease(limitKey);
+      if (lease.take(request.getCost()) || acquireAndTake(lease, request)) {
+        updatedEntries.put(limitKey, lease.getUsed());
+      } else {
+        updatedEntries.putAll(storage.addAndGetWithLimit(Collections.singletonList(request)));
+      }
+    }
+    return updatedEntries;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The costs are taken from the leases in turn and given back to them as soon as one of the
+   * leases cannot be extended.
+   */
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    if (!isLeasable(requests)) {
+      return storage.tryAddAndGet(requests);
+    }
+    Map<LimitKey, Integer> updatedEntries = new LinkedHashMap<>();
+    List<Runnable> reservations = new ArrayList<>();
+
+    boolean underLimits = true;
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      Lease lease = getLease(limitKey);
+      if (!underLimits) {
+        updatedEntries.put(limitKey, lease.getUsed() + request.getCost());
+      } else if (lease.take(request.getCost()) || acquireAndTake(lease, request)) {
+        reservations.add(() -> lease.giveBack(request.getCost()));
+        updatedEntries.put(limitKey, lease.getUsed());
+      } else {
+        underLimits = false;
+        // The lease only knows that the capacity left is less than the cost.
+        updatedEntries.put(
+            limitKey, Math.max(request.getLimit() + 1, lease.getUsed() + request.getCost()));
+      }
+    }
+
+    if (!underLimits) {
+      reservations.forEach(Runnable::run);
+    }
+    return updatedEntries;
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(addAndGet(requests));
+  }
+
+  @Override
+  public CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests) {
+    return CompletableFuture.completedFuture(tryAddAndGet(requests));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return storage.getCurrentLimitCounters();
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return storage.getCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return storage.getCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return storage.getCurrentLimitCounters(resource, limitName, property);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters() {
+    return storage.iterateCurrentLimitCounters();
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(String resource) {
+    return storage.iterateCurrentLimitCounters(resource);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName) {
+    return storage.iterateCurrentLimitCounters(resource, limitName);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return storage.iterateCurrentLimitCounters(resource, limitName, property);
+  }
+
+  /**
+   * Stops sweeping the leases, gives the unused tokens of every lease back to the distributed
+   * storage and closes it.
+   */
+  @Override
+  public void close() throws Exception {
+    sweep.cancel();
+    List<AddAndGetRequest> giveBacks = new ArrayList<>();
+    for (Lease lease : leases.values()) {
+      lease.released = true;
+      addGiveBack(giveBacks, lease.limitKey, lease.remaining.getAndSet(0));
+    }
+    giveBack(giveBacks);
+    storage.close();
+  }
+
+  /**
+   * @return The number of leases currently held
+   */
+  public int getLeaseCount() {
+    return leases.size();
+  }
+
+  private static boolean isLeasable(Collection<AddAndGetRequest> requests) {
+    for (AddAndGetRequest request : requests) {
+      if (request.isSlidingWindow() || request.isTokenBucket()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void startSweeping(SynchronizationScheduler scheduler) {
+    sweep =
+        scheduler.schedule(
+            this::sweepEndedLeases,
+            SWEEP_PERIOD,
+            SWEEP_PERIOD,
+            SynchronizationScheduler.DEFAULT_JITTER);
+  }
+
+  private Lease getLease(LimitKey limitKey) {
+    Lease lease = leases.get(limitKey);
+    if (lease == null) {
+      Lease newLease = new Lease(limitKey);
+      lease = leases.putIfAbsent(limitKey, newLease);
+      if (lease == null) {
+        lease = newLease;
+      }
+    }
+    return lease;
+  }
+
+  private boolean acquireAndTake(Lease lease, AddAndGetRequest request) {
+    int cost = request.getCost();
+    while (true) {
+      CompletableFuture<Void> pendingExtension = lease.extension.get();
+      if (pendingExtension != null) {
+        // Another thread is extending or reclaiming the lease, wait for the tokens it leaves.
+        pendingExtension.join();
+        if (lease.take(cost)) {
+          return true;
+        }
+        continue;
+      }
+      long now = clock.millis();
+      if (lease.released || now < lease.retryAt) {
+        return false;
+      }
+      CompletableFuture<Void> extension = new CompletableFuture<>();
+      if (lease.extension.compareAndSet(null, extension)) {
+        try {
+          return extendAndTake(lease, request, now);
+        } finally {
+          lease.extension.set(null);
+          extension.complete(null);
+        }
+      }
+    }
+  }
+
+  /**
+   * Only called by the thread holding the extension of the lease.
+   */
+  private boolean extendAndTake(Lease lease, AddAndGetRequest request, long now) {
+    int cost = request.getCost();
+    // Another thread may have extended the lease since this one failed to take from it.
+    if (lease.take(cost)) {
+      return true;
+    }
+    int granted = reserve(lease, request, nextLeaseSize(lease, request, now));
+    if (granted < cost) {
+      lease.retryAt = now + RETRY_DELAY_MILLIS;
+      return false;
+    }
+    lease.remaining.addAndGet(granted - cost);
+    if (lease.released) {
+      // The lease was released during the reservation, the tokens just added are given back.
+      release(lease);
+    }
+    return true;
+  }
+
+  private int nextLeaseSize(Lease lease, AddAndGetRequest request, long now) {
+    int cost = Math.max(1, request.getCost());
+    int maxSize = Math.max(cost, (int) (request.getLimit() * maxLeaseFraction));
+    long size = cost;
+    if (lease.lastSize > 0) {
+      // The previous lease was used up, the next one should last about the lease duration.
+      long elapsed = Math.max(1, now - lease.acquiredAt);
+      size = lease.lastSize * leaseDurationMillis / elapsed;
+    }
+    lease.lastSize = (int) Math.max(cost, Math.min(maxSize, size));
+    lease.acquiredAt = now;
+    return lease.lastSize;
+  }
+
+  /**
+   * Reserves the tokens of a lease in the distributed storage, or whatever is left of
+   * the capacity if it is less.
+   *
+   * @return The number of tokens reserved
+   */
+  private int reserve(Lease lease, AddAndGetRequest request, int size) {
+    Integer value = tryReserve(lease, request, size);
+    if (value == null) {
+      // The distributed storage failed, lets the call through without leasing anything.
+      return request.getCost();
+    }
+    if (value <= request.getLimit()) {
+      lease.remoteTotal = value;
+      return size;
+    }
+
+    int available = request.getLimit() - (value - size);
+    lease.remoteTotal = value - size;
+    if (available >= request.getCost() && available > 0) {
+      value = tryReserve(lease, request, available);
+      if (value == null) {
+        return request.getCost();
+      }
+      if (value <= request.getLimit()) {
+        lease.remoteTotal = value;
+        return available;
+      }
+      lease.remoteTotal = value - available;
+    }
+    return 0;
+  }
+
+  private Integer tryReserve(Lease lease, AddAndGetRequest request, int size) {
+    try {
+      return storage
+          .tryAddAndGet(
+              Collections.singletonList(
+                  new AddAndGetRequest.Builder(request).withCost(size).build()))
+          .get(lease.limitKey);
+    } catch (RuntimeException e) {
+      logger.warn("Failed to reserve a lease for {}.", lease.limitKey, e);
+      return null;
+    }
+  }
+
+  /**
+   * Releases the leases whose bucket ended and reclaims the tokens of the idle ones, giving all
+   * of them back in a single call to the distributed storage.
+   */
+  /*package*/ void sweepEndedLeases() {
+    long now = clock.millis();
+    List<AddAndGetRequest> giveBacks = new ArrayList<>();
+    Map<Lease, CompletableFuture<Void>> reclaimedLeases = new LinkedHashMap<>();
+    for (Lease lease : leases.values()) {
+      // A lease whose remaining tokens did not change since the last sweep was not used
+      // during a whole sweep period, its tokens are given back to the other instances.
+      int remaining = lease.remaining.get();
+      boolean idle = remaining > 0 && remaining == lease.remainingAtLastSweep;
+      lease.remainingAtLastSweep = remaining;
+      if (lease.end <= now) {
+        leases.remove(lease.limitKey, lease);
+        lease.released = true;
+        addGiveBack(giveBacks, lease.limitKey, lease.remaining.getAndSet(0));
+      } else if (idle) {
+        // The lease is held like an extension so that its count stays consistent. It is kept
+        // and extended again by the next call.
+        CompletableFuture<Void> extension = new CompletableFuture<>();
+        if (lease.extension.compareAndSet(null, extension)) {
+          reclaimedLeases.put(lease, extension);
+          addGiveBack(giveBacks, lease.limitKey, lease.remaining.getAndSet(0));
+        }
+      }
+    }
+
+    try {
+      Map<LimitKey, Integer> totals = giveBack(giveBacks);
+      for (Lease lease : reclaimedLeases.keySet()) {
+        Integer total = totals.get(lease.limitKey);
+        if (total != null) {
+          lease.remoteTotal = total;
+        }
+      }
+    } finally {
+      reclaimedLeases.forEach(
+          (lease, extension) -> {
+            lease.extension.set(null);
+            extension.complete(null);
+          });
+    }
+  }
+
+  private void release(Lease lease) {
+    lease.released = true;
+    List<AddAndGetRequest> giveBacks = new ArrayList<>();
+    addGiveBack(giveBacks, lease.limitKey, lease.remaining.getAndSet(0));
+    giveBack(giveBacks);
+  }
+
+  private static void addGiveBack(List<AddAndGetRequest> giveBacks, LimitKey limitKey, int unused) {
+    if (unused <= 0) {
+      return;
+    }
+    giveBacks.add(
+        new AddAndGetRequest.Builder()
+            .withResource(limitKey.getResource())
+            .withLimitName(limitKey.getLimitName())
+            .withProperty(limitKey.getProperty())
+            .withDistributed(limitKey.isDistributed())
+            .withExpiration(limitKey.getExpiration())
+            .withEventTimestamp(limitKey.getBucket())
+            .withCost(-unused)
+            .build());
+  }
+
+  /**
+   * @return The counts of the distributed storage once the tokens are given back, empty if there
+   *         was nothing to give back or if the distributed storage failed
+   */
+  private Map<LimitKey, Integer> giveBack(List<AddAndGetRequest> giveBacks) {
+    if (giveBacks.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    try {
+      return storage.addAndGet(giveBacks);
+    } catch (RuntimeException e) {
+      logger.warn("Failed to give back the unused tokens of {} leases.", giveBacks.size(), e);
+      return Collections.emptyMap();
+    }
+  }
+
+  /**
+   * Tokens reserved in the distributed storage for a {@link LimitKey}.
+   */
+  private static final class Lease {
+    private final LimitKey limitKey;
+    private final long end;
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicReference<CompletableFuture<Void>> extension = new AtomicReference<>();
+
+    // Only used by the thread holding the extension.
+    private int lastSize;
+    private long acquiredAt;
+
+    // Only used by the sweeps, which never run concurrently.
+    private int remainingAtLastSweep = -1;
+
+    // Written by the thread holding the extension, read without it.
+    private volatile int remoteTotal;
+    private volatile long retryAt;
+
+    private volatile boolean released;
+
+    private Lease(LimitKey limitKey) {
+      this.limitKey = limitKey;
+      this.end = limitKey.getBucket().toEpochMilli() + limitKey.getExpiration().toMillis();
+    }
+
+    private boolean take(int cost) {
+      while (true) {
+        int current = remaining.get();
+        if (current < cost) {
+          return false;
+        }
+        if (remaining.compareAndSet(current, current - cost)) {
+          return true;
+        }
+      }
+    }
+
+    private void giveBack(int cost) {
+      remaining.addAndGet(cost);
+    }
+
+    /**
+     * @return The count of the distributed storage when the lease was last extended, minus the
+     *         tokens of the lease that are still unused
+     */
+    private int getUsed() {
+      return remoteTotal - remaining.get();
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    LimitUsageStorage storage;
+    Duration leaseDuration = DEFAULT_LEASE_DURATION;
+    double maxLeaseFraction = DEFAULT_MAX_LEASE_FRACTION;
+    Clock clock = Clock.systemUTC();
+    SynchronizationScheduler scheduler;
+
+    private Builder() {}
+
+    public void setStorage(LimitUsageStorage storage) {
+      this.storage = storage;
+    }
+
+    /**
+     * @param storage The distributed storage in which the leases are reserved, it must
+     *                implement {@link LimitUsageStorage#tryAddAndGet(Collection)} atomically
+     * @return The current {@link Builder}
+     */
+    public Builder withStorage(LimitUsageStorage storage) {
+      setStorage(storage);
+      return this;
+    }
+
+    public void setLeaseDuration(Duration leaseDuration) {
+      this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * @param leaseDuration How long a lease should last at the rate its key is consumed,
+     *                      100 milliseconds by default
+     * @return The current {@link Builder}
+     */
+    public Builder withLeaseDuration(Duration leaseDuration) {
+      setLeaseDuration(leaseDuration);
+      return this;
+    }
+
+    public void setMaxLeaseFraction(double maxLeaseFraction) {
+      this.maxLeaseFraction = maxLeaseFraction;
+    }
+
+    /**
+     * @param maxLeaseFraction The largest part of a limit that a single lease can reserve,
+     *                         {@value LeasingLimitUsageStorage#DEFAULT_MAX_LEASE_FRACTION} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withMaxLeaseFraction(double maxLeaseFraction) {
+      setMaxLeaseFraction(maxLeaseFraction);
+      return this;
+    }
+
+    public void setClock(Clock clock) {
+      this.clock = clock;
+    }
+
+    public Builder withClock(Clock clock) {
+      setClock(clock);
+      return this;
+    }
+
+    public void setScheduler(SynchronizationScheduler scheduler) {
+      this.scheduler = scheduler;
+    }
+
+    /**
+     * @param scheduler The scheduler sweeping the leases,
+     *                  {@link SynchronizationScheduler#shared()} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withScheduler(SynchronizationScheduler scheduler) {
+      setScheduler(scheduler);
+      return this;
+    }
+
+    /**
+     * Creates the storage and starts sweeping its leases.
+     *
+     * @return The new {@link LeasingLimitUsageStorage}
+     */
+    public LeasingLimitUsageStorage build() {
+      if (scheduler == null) {
+        scheduler = SynchronizationScheduler.shared();
+      }
+      LeasingLimitUsageStorage leasingStorage = new LeasingLimitUsageStorage(this);
+      leasingStorage.startSweeping(scheduler);
+      return leasingStorage;
+    }
+  }
+}
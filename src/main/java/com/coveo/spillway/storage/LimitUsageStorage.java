@@ -25,16 +25,24 @@ package com.coveo.spillway.storage;
 import org.apache.commons.lang3.tuple.Pair;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Interface that defines a distributed storage that could be used with Spillway.
+ * <p>
+ * The maps returned for a collection of requests should iterate in the order of the requests.
+ * Spillway relies on it to match each result to its limit without searching for it.
  *
  * @author Guillaume Simard
  * @author Simon Toussaint
@@ -124,6 +132,79 @@ public interface LimitUsageStorage {
    */
   Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests);
 
+  /**
+   * Processes all {@link AddAndGetRequest} as a single check-and-consume operation.
+   * The costs are added to the storage only if no limit would exceed its request limit,
+   * otherwise the storage is left untouched.
+   * <p>
+   * In both cases, the returned count of each limit includes the cost of its request. A limit is
+   * exceeded when its returned count is greater than its request limit.
+   * <p>
+   * The default implementation reads the counters and then adds the costs in a second call.
+   * Storages should override it with an atomic implementation.
+   *
+   * @param requests An collection of {@link AddAndGetRequest} that wrap all necessary information to perform the increments
+   * @return A Map of the limits and their count including the cost
+   */
+  default Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    List<AddAndGetRequest> readRequests = new ArrayList<>();
+    for (AddAndGetRequest request : requests) {
+      readRequests.add(new AddAndGetRequest.Builder(request).withCost(0).build());
+    }
+    Map<LimitKey, Integer> counters = addAndGet(readRequests);
+
+    boolean underLimits = true;
+    Map<LimitKey, Integer> countersWithCost = new LinkedHashMap<>();
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      Integer counter = counters.get(limitKey);
+      if (counter != null) {
+        countersWithCost.put(limitKey, counter + request.getCost());
+        underLimits &= counter + request.getCost() <= request.getLimit();
+      }
+    }
+
+    return underLimits ? addAndGet(requests) : countersWithCost;
+  }
+
+  /**
+   * Processes several groups of {@link AddAndGetRequest} in order, each one as a separate
+   * {@link #tryAddAndGet(Collection)}. A group sees the costs consumed by the previous ones.
+   * <p>
+   * The default implementation makes one call per group. Storages should override it to process
+   * all the groups in a single round trip.
+   *
+   * @param requestGroups The groups of {@link AddAndGetRequest} to check and consume one after the other
+   * @return A Map of the limits and their count including the cost for each group, in the order of the groups
+   */
+  default List<Map<LimitKey, Integer>> tryAddAndGetAll(
+      List<? extends Collection<AddAndGetRequest>> requestGroups) {
+    List<Map<LimitKey, Integer>> results = new ArrayList<>(requestGroups.size());
+    for (Collection<AddAndGetRequest> requests : requestGroups) {
+      results.add(tryAddAndGet(requests));
+    }
+    return results;
+  }
+
+  /**
+   * Behaves like {@link #tryAddAndGet(Collection)} but reads the requests from a reusable
+   * {@link AddAndGetBatch} and writes the count of each request back into it.
+   * <p>
+   * This is the method used by Spillway on every decision. Storages that can process it without
+   * allocating should override it, the default implementation converts the batch to requests.
+   *
+   * @param batch The requests to process, receives the count of each limit including the cost
+   */
+  default void tryAddAndGet(AddAndGetBatch batch) {
+    Map<LimitKey, Integer> results = tryAddAndGet(batch.toRequests());
+    for (int i = 0; i < batch.size(); i++) {
+      Integer result = results.get(batch.getLimitKey(i));
+      if (result != null) {
+        batch.setResult(i, result);
+      }
+    }
+  }
+
   /**
    * Returns all enforced limits with their current count
    *
@@ -156,6 +237,54 @@ public interface LimitUsageStorage {
   Map<LimitKey, Integer> getCurrentLimitCounters(
       String resource, String limitName, String property);
 
+  /**
+   * Iterates over all enforced limits with their current count. Storages holding many limits
+   * read them one page at a time instead of loading all of them in memory.
+   * <p>
+   * A limit can be returned more than once if the storage changes during the iteration.
+   * The default implementation iterates over {@link #getCurrentLimitCounters()}.
+   *
+   * @return An iterator over the enforced limits and their current count
+   */
+  default Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters() {
+    return getCurrentLimitCounters().entrySet().iterator();
+  }
+
+  /**
+   * @see #iterateCurrentLimitCounters()
+   *
+   * @param resource The resource for which you want to get the current limit counts
+   * @return An iterator over the enforced limits for a resource and their current count
+   */
+  default Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(String resource) {
+    return getCurrentLimitCounters(resource).entrySet().iterator();
+  }
+
+  /**
+   * @see #iterateCurrentLimitCounters()
+   *
+   * @param resource The resource for which you want to get the current limit counts
+   * @param limitName The limit name for which you want to get the current limit counts
+   * @return An iterator over the enforced limits for a resource and limitName, as well as their current count
+   */
+  default Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName) {
+    return getCurrentLimitCounters(resource, limitName).entrySet().iterator();
+  }
+
+  /**
+   * @see #iterateCurrentLimitCounters()
+   *
+   * @param resource The resource for which you want to get the current limit counts
+   * @param limitName The limit name for which you want to get the current limit counts
+   * @param property The property for which you want to get the current limit counts
+   * @return An iterator over a specific limit and its current count
+   */
+  default Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return getCurrentLimitCounters(resource, limitName, property).entrySet().iterator();
+  }
+
   /**
    * Call this method to close the storage when done with it.
    * This method is NOT idempotent.
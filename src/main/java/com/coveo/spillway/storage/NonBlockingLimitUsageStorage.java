@@ -0,0 +1,85 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Interface that defines a storage that can be used by Spillway without blocking the calling
+ * thread.
+ * <p>
+ * The returned futures complete with the same maps as their {@link LimitUsageStorage}
+ * counterparts. Use {@link #of(LimitUsageStorage, Executor)} to use a blocking storage.
+ */
+public interface NonBlockingLimitUsageStorage {
+
+  /**
+   * Asynchronous version of {@link LimitUsageStorage#addAndGet(Collection)}.
+   *
+   * @param requests An collection of {@link AddAndGetRequest} that wrap all necessary information to perform the increments
+   * @return A future of the Map of the limits and their current count
+   */
+  CompletableFuture<Map<LimitKey, Integer>> addAndGetAsync(Collection<AddAndGetRequest> requests);
+
+  /**
+   * Asynchronous version of {@link LimitUsageStorage#tryAddAndGet(Collection)}.
+   *
+   * @param requests An collection of {@link AddAndGetRequest} that wrap all necessary information to perform the increments
+   * @return A future of the Map of the limits and their count including the cost
+   */
+  CompletableFuture<Map<LimitKey, Integer>> tryAddAndGetAsync(
+      Collection<AddAndGetRequest> requests);
+
+  /**
+   * Returns the storage itself when it is already non-blocking, otherwise adapts it by running
+   * its calls on the executor.
+   *
+   * @param storage The storage to adapt
+   * @param executor The executor on which the calls to a blocking storage are made
+   * @return A {@link NonBlockingLimitUsageStorage} backed by the storage
+   */
+  static NonBlockingLimitUsageStorage of(LimitUsageStorage storage, Executor executor) {
+    if (storage instanceof NonBlockingLimitUsageStorage) {
+      return (NonBlockingLimitUsageStorage) storage;
+    }
+    return new ExecutorLimitUsageStorage(storage, executor);
+  }
+
+  /**
+   * The executor used when none is given. It runs on a bounded pool of daemon threads shared by
+   * all the storages adapted with it, separate from the common pool so that blocking storage calls
+   * never starve it. A call submitted while its queue is full is not made: it completes with an
+   * empty map, so that no limit is considered exceeded.
+   *
+   * @return The shared default executor
+   */
+  static Executor defaultExecutor() {
+    return ExecutorLimitUsageStorage.defaultExecutor();
+  }
+}
@@ -0,0 +1,575 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.CompactRedisKeyCodec;
+import com.coveo.spillway.storage.utils.HashTagRedisKeyCodec;
+import com.coveo.spillway.storage.utils.RedisHashTag;
+import com.coveo.spillway.storage.utils.RedisKeyCodec;
+import com.coveo.spillway.storage.utils.TextRedisKeyCodec;
+
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.jedis.providers.ClusterConnectionProvider;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Implementation of {@link LimitUsageStorage} using a Redis Cluster.
+ * <p>
+ * Every key starts with a hash tag, see {@link RedisHashTag}, so that all the buckets of a limit
+ * are in the same slot. The requests of a call are grouped by slot and each slot is handled by a
+ * single script execution as in {@link RedisStorage}. The scripts of the slots owned by the same
+ * node are sent in one pipeline and the nodes are called in parallel.
+ * <p>
+ * We suggest to wrap this storage in the {@link AsyncBatchLimitUsageStorage}
+ * to avoid slowing down queries if external troubles occurs with the cluster.
+ */
+public class RedisClusterStorage implements LimitUsageStorage {
+  private static final Logger logger = LoggerFactory.getLogger(RedisClusterStorage.class);
+
+  private final ClusterConnectionProvider connectionProvider;
+  private final RedisKeyCodec keyCodec;
+  private final int scanCount;
+  private final ExecutorService pipelineExecutor;
+  private final Map<String, byte[]> scriptShas = new ConcurrentHashMap<>();
+
+  RedisClusterStorage(Builder builder) {
+    this.connectionProvider = new ClusterConnectionProvider(builder.nodes, builder.clientConfig);
+    this.keyCodec =
+        new HashTagRedisKeyCodec(
+            builder.compactKeys
+                ? new CompactRedisKeyCodec(builder.keyPrefix)
+                : new TextRedisKeyCodec(builder.keyPrefix),
+            builder.hashTag);
+    this.scanCount = builder.scanCount;
+    this.pipelineExecutor =
+        Executors.newCachedThreadPool(
+            runnable -> {
+              Thread thread = new Thread(runnable, "spillway-redis-cluster-pipeline");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The requests of each slot are processed by a single script execution.
+   */
+  @Override
+  public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
+    return add(requests, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The requests of each slot are processed by a single script execution.
+   */
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    return add(requests, true);
+  }
+
+  private Map<LimitKey, Integer> add(Collection<AddAndGetRequest> requests, boolean withLimit) {
+    Map<Integer, SlotCall> calls = new LinkedHashMap<>();
+    List<PlacedRequest> placedRequests = new ArrayList<>(requests.size());
+    for (AddAndGetRequest request : requests) {
+      placedRequests.add(place(request, calls, slot -> new SlotCall(slot, withLimit)));
+    }
+
+    execute(calls.values());
+
+    Map<LimitKey, Integer> counters = new LinkedHashMap<>();
+    for (PlacedRequest placedRequest : placedRequests) {
+      if (placedRequest.hasCounter()) {
+        counters.put(placedRequest.limitKey, placedRequest.getCounter());
+      }
+    }
+    return counters;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    return tryAddAndGetAll(Collections.singletonList(requests)).get(0);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The part of every group that falls in a slot is processed by a single script execution for
+   * that slot. A group whose limits are in several slots is therefore only checked atomically
+   * within each slot: when a slot refuses its part of the group, the costs added by the other
+   * slots are removed again by a second round of scripts. Concurrent calls may see these costs
+   * in the meantime, which is the same trade-off as the reservations of the {@link InMemoryStorage}.
+   * This only happens with another tag than the default {@link RedisHashTag#RESOURCE}, which keeps
+   * every group in one slot.
+   */
+  @Override
+  public List<Map<LimitKey, Integer>> tryAddAndGetAll(
+      List<? extends Collection<AddAndGetRequest>> requestGroups) {
+    int groupCount = requestGroups.size();
+    Map<Integer, SlotCall> calls = new LinkedHashMap<>();
+    List<List<PlacedRequest>> placedGroups = new ArrayList<>(groupCount);
+    for (int group = 0; group < groupCount; group++) {
+      int currentGroup = group;
+      List<PlacedRequest> placedRequests = new ArrayList<>();
+      for (AddAndGetRequest request : requestGroups.get(group)) {
+        PlacedRequest placedRequest = place(request, calls, slot -> new SlotCall(slot, groupCount));
+        placedRequest.call.groupSizes[currentGroup]++;
+        placedRequests.add(placedRequest);
+      }
+      placedGroups.add(placedRequests);
+    }
+
+    execute(calls.values());
+
+    Map<Integer, SlotCall> rollbackCalls = new LinkedHashMap<>();
+    List<Map<LimitKey, Integer>> counterGroups = new ArrayList<>(groupCount);
+    for (List<PlacedRequest> placedRequests : placedGroups) {
+      Map<LimitKey, Integer> counters = new LinkedHashMap<>();
+      Map<SlotCall, Boolean> acceptedCalls = new HashMap<>();
+      for (PlacedRequest placedRequest : placedRequests) {
+        if (placedRequest.hasCounter()) {
+          counters.put(placedRequest.limitKey, placedRequest.getCounter());
+          acceptedCalls.merge(
+              placedRequest.call,
+              placedRequest.getCounter() <= placedRequest.request.getLimit(),
+              Boolean::logicalAnd);
+        }
+      }
+
+      if (acceptedCalls.containsValue(false)) {
+        for (PlacedRequest placedRequest : placedRequests) {
+          if (acceptedCalls.getOrDefault(placedRequest.call, false)) {
+            AddAndGetRequest rollback =
+                new AddAndGetRequest.Builder(placedRequest.request)
+                    .withCost(-placedRequest.request.getCost())
+                    .build();
+            place(rollback, rollbackCalls, slot -> new SlotCall(slot, false));
+          }
+        }
+      }
+      counterGroups.add(counters);
+    }
+
+    execute(rollbackCalls.values());
+
+    return counterGroups;
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters() {
+    return getLimits(keyCodec.encodePattern());
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
+    return getLimits(keyCodec.encodePattern(resource));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
+    return getLimits(keyCodec.encodePattern(resource, limitName));
+  }
+
+  @Override
+  public Map<LimitKey, Integer> getCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return getLimits(keyCodec.encodePattern(resource, limitName, property));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The keys of each master node are enumerated with SCAN one node after the other.
+   */
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters() {
+    return new ClusterCounterIterator(keyCodec.encodePattern());
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(String resource) {
+    return new ClusterCounterIterator(keyCodec.encodePattern(resource));
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName) {
+    return new ClusterCounterIterator(keyCodec.encodePattern(resource, limitName));
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return new ClusterCounterIterator(keyCodec.encodePattern(resource, limitName, property));
+  }
+
+  private Map<LimitKey, Integer> getLimits(byte[] keyPattern) {
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    new ClusterCounterIterator(keyPattern)
+        .forEachRemaining(counter -> counters.put(counter.getKey(), counter.getValue()));
+    return Collections.unmodifiableMap(counters);
+  }
+
+  @Override
+  public void close() {
+    pipelineExecutor.shutdown();
+    connectionProvider.close();
+  }
+
+  private PlacedRequest place(
+      AddAndGetRequest request, Map<Integer, SlotCall> calls, IntFunction<SlotCall> callFactory) {
+    LimitKey limitKey = LimitKey.fromRequest(request);
+    byte[] redisKey = keyCodec.encode(limitKey);
+    SlotCall call = calls.computeIfAbsent(JedisClusterCRC16.getSlot(redisKey), callFactory::apply);
+    RedisStorage.addRequest(
+        keyCodec, request, limitKey, redisKey, RedisStorage.NO_FIELD, call.keys, call.arguments);
+    return new PlacedRequest(request, limitKey, call, call.size++);
+  }
+
+  /**
+   * Sends the scripts of the slots to the nodes owning them, one pipeline per node.
+   * The calls that fail are left without responses.
+   */
+  private void execute(Collection<SlotCall> calls) {
+    Map<HostAndPort, List<SlotCall>> callsByNode = new LinkedHashMap<>();
+    for (SlotCall call : calls) {
+      HostAndPort node = connectionProvider.getNode(call.slot);
+      if (node == null) {
+        logger.error("No Redis node is known to own slot {}.", call.slot);
+        connectionProvider.renewSlotCache();
+        continue;
+      }
+      callsByNode.computeIfAbsent(node, key -> new ArrayList<>()).add(call);
+    }
+
+    if (callsByNode.size() == 1) {
+      callsByNode.forEach(this::executeOnNode);
+      return;
+    }
+    List<CompletableFuture<Void>> pipelines = new ArrayList<>(callsByNode.size());
+    callsByNode.forEach(
+        (node, nodeCalls)
+            -> pipelines.add(
+                CompletableFuture.runAsync(
+                    () -> executeOnNode(node, nodeCalls), pipelineExecutor)));
+    CompletableFuture.allOf(pipelines.toArray(new CompletableFuture<?>[0])).join();
+  }
+
+  private void executeOnNode(HostAndPort node, List<SlotCall> calls) {
+    try (Jedis jedis = new Jedis(connectionProvider.getConnection(node))) {
+      List<SlotCall> pendingCalls = calls;
+      // The second attempt only resends the scripts that the node did not know yet.
+      for (int attempt = 0; attempt < 2 && !pendingCalls.isEmpty(); attempt++) {
+        // The scripts are loaded before the pipeline since no other command can be sent meanwhile.
+        List<byte[]> shas = new ArrayList<>(pendingCalls.size());
+        for (SlotCall call : pendingCalls) {
+          shas.add(getScriptSha(jedis, call.script));
+        }
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<Object>> responses = new ArrayList<>(pendingCalls.size());
+        for (int i = 0; i < pendingCalls.size(); i++) {
+          SlotCall call = pendingCalls.get(i);
+          responses.add(pipeline.evalsha(shas.get(i), call.keys, call.getArguments()));
+        }
+        pipeline.sync();
+
+        List<SlotCall> unknownScriptCalls = new ArrayList<>();
+        for (int i = 0; i < pendingCalls.size(); i++) {
+          try {
+            pendingCalls.get(i).responses = (List<?>) responses.get(i).get();
+          } catch (JedisNoScriptException e) {
+            unknownScriptCalls.add(pendingCalls.get(i));
+          } catch (JedisRedirectionException e) {
+            logger.error("Slot {} moved away from {}.", pendingCalls.get(i).slot, node, e);
+            connectionProvider.renewSlotCache();
+          }
+        }
+        for (SlotCall call : unknownScriptCalls) {
+          logger.debug("Script is not loaded in Redis node {}, loading it again.", node);
+          scriptShas.put(call.script, jedis.scriptLoad(SafeEncoder.encode(call.script)));
+        }
+        pendingCalls = unknownScriptCalls;
+      }
+    } catch (Throwable e) {
+      logger.error("An exception occurred while publishing limits to Redis node {}.", node, e);
+    }
+  }
+
+  private byte[] getScriptSha(Jedis jedis, String script) {
+    // The digest of a script is the same on every node, so the one returned by any node is kept.
+    return scriptShas.computeIfAbsent(script, key -> jedis.scriptLoad(SafeEncoder.encode(key)));
+  }
+
+  private Set<HostAndPort> getMasterNodes() {
+    Set<HostAndPort> nodes = new LinkedHashSet<>();
+    for (int slot = 0; slot < Protocol.CLUSTER_HASHSLOTS; slot++) {
+      HostAndPort node = connectionProvider.getNode(slot);
+      if (node != null) {
+        nodes.add(node);
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * The keys, the arguments and the responses of the script executed for one slot.
+   */
+  private static class SlotCall {
+    private final int slot;
+    private final String script;
+    private final List<byte[]> keys = new ArrayList<>();
+    private final List<byte[]> arguments = new ArrayList<>();
+    private final boolean withLimit;
+    private final int[] groupSizes;
+
+    private int size;
+    private List<?> responses;
+
+    private SlotCall(int slot, boolean withLimit) {
+      this.slot = slot;
+      this.script = RedisStorage.ADD_SCRIPT;
+      this.withLimit = withLimit;
+      this.groupSizes = null;
+    }
+
+    private SlotCall(int slot, int groupCount) {
+      this.slot = slot;
+      this.script = RedisStorage.TRY_ADD_SCRIPT;
+      this.withLimit = false;
+      this.groupSizes = new int[groupCount];
+    }
+
+    private List<byte[]> getArguments() {
+      List<byte[]> scriptArguments = new ArrayList<>(arguments.size() + 1);
+      if (groupSizes == null) {
+        scriptArguments.add(Protocol.toByteArray(withLimit ? 1 : 0));
+      } else {
+        scriptArguments.add(Protocol.toByteArray(groupSizes.length));
+        for (int groupSize : groupSizes) {
+          scriptArguments.add(Protocol.toByteArray(groupSize));
+        }
+      }
+      scriptArguments.addAll(arguments);
+      return scriptArguments;
+    }
+  }
+
+  /**
+   * A request and the position of its counter in the responses of the script of its slot.
+   */
+  private static class PlacedRequest {
+    private final AddAndGetRequest request;
+    private final LimitKey limitKey;
+    private final SlotCall call;
+    private final int position;
+
+    private PlacedRequest(
+        AddAndGetRequest request, LimitKey limitKey, SlotCall call, int position) {
+      this.request = request;
+      this.limitKey = limitKey;
+      this.call = call;
+      this.position = position;
+    }
+
+    private boolean hasCounter() {
+      return call.responses != null;
+    }
+
+    private int getCounter() {
+      return ((Long) call.responses.get(position)).intValue();
+    }
+  }
+
+  /**
+   * Chains the {@link RedisCounterIterator}s of every master node. The nodes are only scanned
+   * once the counters of the previous ones have been read.
+   */
+  private class ClusterCounterIterator implements Iterator<Map.Entry<LimitKey, Integer>> {
+    private final Iterator<HostAndPort> nodes = getMasterNodes().iterator();
+    private final byte[] keyPattern;
+
+    private Iterator<Map.Entry<LimitKey, Integer>> nodeCounters = Collections.emptyIterator();
+
+    private ClusterCounterIterator(byte[] keyPattern) {
+      this.keyPattern = keyPattern;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!nodeCounters.hasNext() && nodes.hasNext()) {
+        HostAndPort node = nodes.next();
+        nodeCounters =
+            new RedisCounterIterator(
+                () -> new Jedis(connectionProvider.getConnection(node)),
+                keyCodec,
+                keyPattern,
+                scanCount,
+                false);
+      }
+      return nodeCounters.hasNext();
+    }
+
+    @Override
+    public Map.Entry<LimitKey, Integer> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return nodeCounters.next();
+    }
+  }
+
+  public static final Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    Set<HostAndPort> nodes = new LinkedHashSet<>();
+    JedisClientConfig clientConfig = DefaultJedisClientConfig.builder().build();
+    String keyPrefix = RedisStorage.DEFAULT_PREFIX;
+    boolean compactKeys;
+    RedisHashTag hashTag = RedisHashTag.RESOURCE;
+    int scanCount = RedisStorage.DEFAULT_SCAN_COUNT;
+
+    private Builder() {}
+
+    public void setNodes(Set<HostAndPort> nodes) {
+      this.nodes = nodes;
+    }
+
+    /**
+     * @param nodes Some nodes of the cluster, the others are discovered from them
+     * @return The current {@link Builder}
+     */
+    public Builder withNodes(Set<HostAndPort> nodes) {
+      setNodes(nodes);
+      return this;
+    }
+
+    public Builder withNode(HostAndPort node) {
+      nodes.add(node);
+      return this;
+    }
+
+    public void setClientConfig(JedisClientConfig clientConfig) {
+      this.clientConfig = clientConfig;
+    }
+
+    public Builder withClientConfig(JedisClientConfig clientConfig) {
+      setClientConfig(clientConfig);
+      return this;
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+      this.keyPrefix = keyPrefix;
+    }
+
+    public Builder withKeyPrefix(String keyPrefix) {
+      setKeyPrefix(keyPrefix);
+      return this;
+    }
+
+    public void setCompactKeys(boolean compactKeys) {
+      this.compactKeys = compactKeys;
+    }
+
+    /**
+     * @see RedisStorage.Builder#withCompactKeys(boolean)
+     *
+     * @param compactKeys True to use the compact keys
+     * @return The current {@link Builder}
+     */
+    public Builder withCompactKeys(boolean compactKeys) {
+      setCompactKeys(compactKeys);
+      return this;
+    }
+
+    public void setHashTag(RedisHashTag hashTag) {
+      this.hashTag = hashTag;
+    }
+
+    /**
+     * Chooses the part of the limits that decides their slot, {@link RedisHashTag#RESOURCE} by
+     * default so that the resources are spread over the cluster while every decision is handled
+     * by one script. Every instance sharing the limits must use the same tag.
+     *
+     * @param hashTag The {@link RedisHashTag} of the keys
+     * @return The current {@link Builder}
+     */
+    public Builder withHashTag(RedisHashTag hashTag) {
+      setHashTag(hashTag);
+      return this;
+    }
+
+    public void setScanCount(int scanCount) {
+      this.scanCount = scanCount;
+    }
+
+    /**
+     * @see RedisStorage.Builder#withScanCount(int)
+     *
+     * @param scanCount The COUNT of each SCAN
+     * @return The current {@link Builder}
+     */
+    public Builder withScanCount(int scanCount) {
+      setScanCount(scanCount);
+      return this;
+    }
+
+    public RedisClusterStorage build() {
+      return new RedisClusterStorage(this);
+    }
+  }
+}
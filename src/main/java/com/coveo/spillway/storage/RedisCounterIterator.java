@@ -0,0 +1,223 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.RedisKeyCodec;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Reads the counters of the keys of a Redis node matching a pattern one SCAN page at a time.
+ * <p>
+ * The values of a page are read in the same pipeline as the SCAN of the next page, so each page
+ * costs a single round trip. A connection is only borrowed while a page is read so that an
+ * iterator that is not consumed to the end does not hold one.
+ */
+/*package*/ class RedisCounterIterator implements Iterator<Map.Entry<LimitKey, Integer>> {
+  private static final Logger logger = LoggerFactory.getLogger(RedisCounterIterator.class);
+
+  private final Supplier<Jedis> connections;
+  private final RedisKeyCodec keyCodec;
+  private final ScanParams scanParams;
+  private final boolean singleSlot;
+  private final boolean hashes;
+  private final String property;
+
+  private byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+  private boolean scanComplete;
+  private List<byte[]> pendingKeys = new ArrayList<>();
+  private List<LimitKey> pendingLimitKeys = new ArrayList<>();
+  private Iterator<Map.Entry<LimitKey, Integer>> page = Collections.emptyIterator();
+
+  /**
+   * @param connections Supplies a connection to the node each time a page is read
+   * @param keyCodec The codec of the keys
+   * @param keyPattern The pattern of the keys to read
+   * @param scanCount The COUNT of each SCAN
+   * @param singleSlot True to read a page with one MGET, which is only possible when all the keys
+   *                   of the node belong to the same slot as on a standalone Redis. The values
+   *                   are otherwise read with one GET per key in the pipeline.
+   */
+  /*package*/ RedisCounterIterator(
+      Supplier<Jedis> connections,
+      RedisKeyCodec keyCodec,
+      byte[] keyPattern,
+      int scanCount,
+      boolean singleSlot) {
+    this(connections, keyCodec, keyPattern, scanCount, singleSlot, false, null);
+  }
+
+  /**
+   * Reads the counters stored as the fields of one hash per bucket, the property of each counter
+   * being its field. The keys of the hashes are decoded with the property they were encoded with.
+   *
+   * @param connections Supplies a connection to the node each time a page is read
+   * @param keyCodec The codec of the keys of the hashes
+   * @param keyPattern The pattern of the keys of the hashes to read
+   * @param scanCount The COUNT of each SCAN
+   * @param property The only field read from each hash, all of them if null
+   */
+  /*package*/ RedisCounterIterator(
+      Supplier<Jedis> connections,
+      RedisKeyCodec keyCodec,
+      byte[] keyPattern,
+      int scanCount,
+      String property) {
+    this(connections, keyCodec, keyPattern, scanCount, false, true, property);
+  }
+
+  private RedisCounterIterator(
+      Supplier<Jedis> connections,
+      RedisKeyCodec keyCodec,
+      byte[] keyPattern,
+      int scanCount,
+      boolean singleSlot,
+      boolean hashes,
+      String property) {
+    this.connections = connections;
+    this.keyCodec = keyCodec;
+    this.scanParams = new ScanParams().match(keyPattern).count(scanCount);
+    this.singleSlot = singleSlot;
+    this.hashes = hashes;
+    this.property = property;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!page.hasNext() && (!scanComplete || !pendingKeys.isEmpty())) {
+      readPage();
+    }
+    return page.hasNext();
+  }
+
+  @Override
+  public Map.Entry<LimitKey, Integer> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.next();
+  }
+
+  private void readPage() {
+    try (Jedis jedis = connections.get()) {
+      Pipeline pipeline = jedis.pipelined();
+      // The values of each key by property.
+      List<Supplier<Map<String, byte[]>>> values = new ArrayList<>(pendingKeys.size());
+      if (hashes) {
+        for (byte[] key : pendingKeys) {
+          if (property == null) {
+            Response<Map<byte[], byte[]>> fields = pipeline.hgetAll(key);
+            values.add(() -> decodeFields(fields.get()));
+          } else {
+            Response<byte[]> value = pipeline.hget(key, SafeEncoder.encode(property));
+            values.add(() -> Collections.singletonMap(property, value.get()));
+          }
+        }
+      } else if (singleSlot && !pendingKeys.isEmpty()) {
+        Response<List<byte[]>> mget = pipeline.mget(pendingKeys.toArray(new byte[0][]));
+        for (int i = 0; i < pendingKeys.size(); i++) {
+          int index = i;
+          String keyProperty = pendingLimitKeys.get(i).getProperty();
+          values.add(() -> Collections.singletonMap(keyProperty, mget.get().get(index)));
+        }
+      } else {
+        for (int i = 0; i < pendingKeys.size(); i++) {
+          Response<byte[]> value = pipeline.get(pendingKeys.get(i));
+          String keyProperty = pendingLimitKeys.get(i).getProperty();
+          values.add(() -> Collections.singletonMap(keyProperty, value.get()));
+        }
+      }
+      Response<ScanResult<byte[]>> scan = scanComplete ? null : pipeline.scan(cursor, scanParams);
+      pipeline.sync();
+
+      List<Map.Entry<LimitKey, Integer>> counters = new ArrayList<>(pendingKeys.size());
+      for (int i = 0; i < pendingKeys.size(); i++) {
+        for (Map.Entry<String, byte[]> value : values.get(i).get().entrySet()) {
+          if (value.getValue() != null && value.getValue().length > 0) {
+            LimitKey limitKey = pendingLimitKeys.get(i);
+            if (hashes) {
+              limitKey = new LimitKey(limitKey);
+              limitKey.setProperty(value.getKey());
+            }
+            counters.add(Pair.of(limitKey, Integer.parseInt(SafeEncoder.encode(value.getValue()))));
+          } else if (!hashes) {
+            // A hash only misses the fields of the properties that were not seen in its bucket.
+            logger.info(
+                "Key '{}' has no value and will not be included in counters",
+                SafeEncoder.encode(pendingKeys.get(i)));
+          }
+        }
+      }
+      page = counters.iterator();
+
+      pendingKeys = new ArrayList<>();
+      pendingLimitKeys = new ArrayList<>();
+      if (scan != null) {
+        cursor = scan.get().getCursorAsBytes();
+        scanComplete = scan.get().isCompleteIteration();
+        for (byte[] key : scan.get().getResult()) {
+          addPendingKey(key);
+        }
+      }
+    }
+  }
+
+  private static Map<String, byte[]> decodeFields(Map<byte[], byte[]> fields) {
+    Map<String, byte[]> values = new HashMap<>();
+    fields.forEach((field, value) -> values.put(SafeEncoder.encode(field), value));
+    return values;
+  }
+
+  private void addPendingKey(byte[] key) {
+    LimitKey limitKey = keyCodec.decode(key);
+    if (limitKey == null) {
+      logger.info(
+          "Key '{}' is not a limit key and will not be included in counters",
+          SafeEncoder.encode(key));
+    } else if (!limitKey.getBucket().equals(LimitUtils.TOKEN_BUCKET)) {
+      // Token buckets hold a time rather than a counter.
+      pendingKeys.add(key);
+      pendingLimitKeys.add(limitKey);
+    }
+  }
+}
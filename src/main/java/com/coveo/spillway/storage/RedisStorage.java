@@ -22,30 +22,34 @@
  */
 package com.coveo.spillway.storage;
 
-import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.coveo.spillway.limit.LimitKey;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.CompactRedisKeyCodec;
+import com.coveo.spillway.storage.utils.RedisKeyCodec;
+import com.coveo.spillway.storage.utils.TextRedisKeyCodec;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
 import redis.clients.jedis.Response;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.util.SafeEncoder;
 
 /**
  * Implementation of {@link LimitUsageStorage} using a Redis storage.
@@ -65,162 +69,342 @@ public class RedisStorage implements LimitUsageStorage {
   private static final Logger logger = LoggerFactory.getLogger(RedisStorage.class);
 
   /*package*/ static final String DEFAULT_PREFIX = "spillway";
-  /*package*/ static final String KEY_SEPARATOR = "|";
-
-  private static final String KEY_SEPARATOR_SUBSTITUTE = "_";
-  private static final String WILD_CARD_OPERATOR = "*";
-  private static final String COUNTER_SCRIPT =
-      "local counter = redis.call('INCRBY', KEYS[1], ARGV[1]); "
-          + "if counter  > tonumber(ARGV[2]) + tonumber(ARGV[1])"
-          + "then counter = redis.call('INCRBY', KEYS[1], -ARGV[1]) "
+  /*package*/ static final String KEY_SEPARATOR = TextRedisKeyCodec.KEY_SEPARATOR;
+  /*package*/ static final int DEFAULT_SCAN_COUNT = 1000;
+
+  /*package*/ static final String HASH_KEY_PREFIX_SUFFIX = ":hash";
+  /*package*/ static final String HASH_KEY_PROPERTY = "*";
+
+  /*package*/ static final byte[] NO_FIELD = new byte[0];
+
+  // Reads and increments the counters stored as strings, one key per counter.
+  private static final String STRING_COUNTERS =
+      "local function get(key, field) return redis.call('GET', key) end "
+          + "local function incrby(key, field, cost) return redis.call('INCRBY', key, cost) end ";
+  // Reads and increments the counters stored as the fields of one hash per bucket.
+  private static final String HASH_COUNTERS =
+      "local function get(key, field) return redis.call('HGET', key, field) end "
+          + "local function incrby(key, field, cost) return redis.call('HINCRBY', key, field, cost) end ";
+  // Sets the expiration of a key once per script, even when several of its fields are incremented.
+  private static final String EXPIRE =
+      "local expiring = {} "
+          + "local function expire(key, seconds) "
+          + "  if not expiring[key] then "
+          + "    expiring[key] = true "
+          + "    redis.call('EXPIRE', key, seconds) "
+          + "  end "
+          + "end ";
+
+  // Adds the cost of every key and returns their counters. ARGV[1] is '1' to keep the costs
+  // under the limits as addAndGetWithLimit does, it is followed by the arguments of each key laid
+  // out as in TRY_ADD_SCRIPT. A key with no cost is only read, so that reading a counter neither
+  // creates it nor extends its expiration.
+  private static final String ADD =
+      "local counters = {} "
+          + "local withLimit = ARGV[1] == '1' "
+          + "local key = 1 "
+          + "for i = 1, (#ARGV - 1) / 8 do "
+          + "  local arg = 1 + (i - 1) * 8 "
+          + "  local cost = tonumber(ARGV[arg + 1]) "
+          + "  local limit = tonumber(ARGV[arg + 2]) "
+          + "  local burst = tonumber(ARGV[arg + 6]) "
+          + "  local field = ARGV[arg + 8] "
+          + "  if burst > 0 then "
+          + "    local now = tonumber(ARGV[arg + 7]) "
+          + "    local interval = math.max(1, math.floor(tonumber(ARGV[arg + 5]) * 1000 / limit)) "
+          + "    local arrival = math.max(tonumber(redis.call('GET', KEYS[key]) or '0'), now) + cost * interval "
+          + "    if cost ~= 0 and (not withLimit or arrival - now <= burst * interval) then "
+          + "      redis.call('SET', KEYS[key], string.format('%d', arrival), 'PX', math.max(1, math.ceil((arrival - now) / 1000))) "
+          + "    end "
+          + "    counters[i] = math.ceil(math.ceil((arrival - now) / interval) * limit / burst) "
+          + "  else "
+          + "    local counterKey = KEYS[key] "
+          + "    local previous = 0 "
+          + "    if tonumber(ARGV[arg + 4]) > 0 then "
+          + "      key = key + 1 "
+          + "      previous = math.floor(tonumber(get(KEYS[key], field) or '0') * tonumber(ARGV[arg + 4]) / tonumber(ARGV[arg + 5])) "
+          + "    end "
+          + "    local counter = 0 "
+          + "    if cost == 0 then "
+          + "      counter = tonumber(get(counterKey, field) or '0') "
+          + "    else "
+          + "      counter = incrby(counterKey, field, cost) "
+          + "      if withLimit and counter + previous > limit + cost then "
+          + "        counter = incrby(counterKey, field, -cost) "
+          + "      end "
+          + "      expire(counterKey, ARGV[arg + 3]) "
+          + "    end "
+          + "    counters[i] = counter + previous "
+          + "  end "
+          + "  key = key + 1 "
           + "end "
-          + "return tostring(counter)";
+          + "return counters";
+  // Processes groups of keys one after the other. Every key of a group is checked before any of
+  // them is touched so that the costs of a group are either all added or none of them is.
+  // ARGV starts with the number of groups and the size of each group, followed by the cost, the
+  // limit, the expiration in seconds, the remaining milliseconds of the window, the duration
+  // of the window in milliseconds, the burst, the event time in microseconds and the hash field
+  // of each key in turn. The remaining milliseconds are only set for sliding windows, whose
+  // previous bucket is the key following theirs in KEYS. The burst is only set for token buckets,
+  // whose key is always a string holding their theoretical arrival time. The field is ignored
+  // when the counters are strings A key with no cost is never written,
+  // as in ADD.
+  private static final String TRY_ADD =
+      "local counters = {} "
+          + "local previous = {} "
+          + "local keys = {} "
+          + "local arrivals = {} "
+          + "local groupCount = tonumber(ARGV[1]) "
+          + "local first = 1 "
+          + "local key = 1 "
+          + "for group = 1, groupCount do "
+          + "  local last = first + tonumber(ARGV[group + 1]) - 1 "
+          + "  local underLimits = true "
+          + "  for i = first, last do "
+          + "    local arg = groupCount + 1 + (i - 1) * 8 "
+          + "    local limit = tonumber(ARGV[arg + 2]) "
+          + "    local burst = tonumber(ARGV[arg + 6]) "
+          + "    keys[i] = key "
+          + "    previous[i] = 0 "
+          + "    if burst > 0 then "
+          + "      local now = tonumber(ARGV[arg + 7]) "
+          + "      local interval = math.max(1, math.floor(tonumber(ARGV[arg + 5]) * 1000 / limit)) "
+          + "      arrivals[i] = math.max(tonumber(redis.call('GET', KEYS[key]) or '0'), now) + tonumber(ARGV[arg + 1]) * interval "
+          + "      counters[i] = math.ceil(math.ceil((arrivals[i] - now) / interval) * limit / burst) "
+          + "      if arrivals[i] - now > burst * interval then underLimits = false end "
+          + "    else "
+          + "      if tonumber(ARGV[arg + 4]) > 0 then "
+          + "        key = key + 1 "
+          + "        previous[i] = math.floor(tonumber(get(KEYS[key], ARGV[arg + 8]) or '0') * tonumber(ARGV[arg + 4]) / tonumber(ARGV[arg + 5])) "
+          + "      end "
+          + "      counters[i] = tonumber(get(KEYS[keys[i]], ARGV[arg + 8]) or '0') + tonumber(ARGV[arg + 1]) + previous[i] "
+          + "      if counters[i] > limit then underLimits = false end "
+          + "    end "
+          + "    key = key + 1 "
+          + "  end "
+          + "  if underLimits then "
+          + "    for i = first, last do "
+          + "      local arg = groupCount + 1 + (i - 1) * 8 "
+          + "      local written = tonumber(ARGV[arg + 1]) ~= 0 "
+          + "      if written and arrivals[i] then "
+          + "        redis.call('SET', KEYS[keys[i]], string.format('%d', arrivals[i]), 'PX', math.max(1, math.ceil((arrivals[i] - tonumber(ARGV[arg + 7])) / 1000))) "
+          + "      elseif written then "
+          + "        counters[i] = incrby(KEYS[keys[i]], ARGV[arg + 8], ARGV[arg + 1]) + previous[i] "
+          + "        expire(KEYS[keys[i]], ARGV[arg + 3]) "
+          + "      end "
+          + "    end "
+          + "  end "
+          + "  first = last + 1 "
+          + "end "
+          + "return counters";
+
+  /*package*/ static final String ADD_SCRIPT = STRING_COUNTERS + EXPIRE + ADD;
+  /*package*/ static final String TRY_ADD_SCRIPT = STRING_COUNTERS + EXPIRE + TRY_ADD;
+  /*package*/ static final String HASH_ADD_SCRIPT = HASH_COUNTERS + EXPIRE + ADD;
+  /*package*/ static final String HASH_TRY_ADD_SCRIPT = HASH_COUNTERS + EXPIRE + TRY_ADD;
 
   private final JedisPool jedisPool;
-  private final String keyPrefix;
+  private final RedisKeyCodec keyCodec;
+  private final RedisKeyCodec hashKeyCodec;
+  private final String addScript;
+  private final String tryAddScript;
+  private final int scanCount;
+  private final Map<String, byte[]> scriptShas = new ConcurrentHashMap<>();
 
   RedisStorage(Builder builder) {
     this.jedisPool = builder.jedisPool;
-    this.keyPrefix = builder.keyPrefix;
+    this.keyCodec = newKeyCodec(builder.keyPrefix, builder.compactKeys);
+    this.hashKeyCodec =
+        builder.hashBuckets
+            ? newKeyCodec(builder.keyPrefix + HASH_KEY_PREFIX_SUFFIX, builder.compactKeys)
+            : null;
+    this.addScript = builder.hashBuckets ? HASH_ADD_SCRIPT : ADD_SCRIPT;
+    this.tryAddScript = builder.hashBuckets ? HASH_TRY_ADD_SCRIPT : TRY_ADD_SCRIPT;
+    this.scanCount = builder.scanCount;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * All the requests are processed by a single script execution.
+   */
   @Override
   public Map<LimitKey, Integer> addAndGet(Collection<AddAndGetRequest> requests) {
-    Map<LimitKey, Response<Long>> responses = new LinkedHashMap<>();
+    return add(requests, false);
+  }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      try (Pipeline pipeline = jedis.pipelined()) {
-
-        for (AddAndGetRequest request : requests) {
-          Transaction transaction = jedis.multi();
-          LimitKey limitKey = LimitKey.fromRequest(request);
-          String redisKey =
-              Stream.of(
-                      keyPrefix,
-                      limitKey.getResource(),
-                      limitKey.getLimitName(),
-                      limitKey.getProperty(),
-                      limitKey.getBucket().toString(),
-                      limitKey.getExpiration().toString())
-                  .map(RedisStorage::clean)
-                  .collect(Collectors.joining(KEY_SEPARATOR));
-
-          responses.put(limitKey, transaction.incrBy(redisKey, request.getCost()));
-          // We set the expire to twice the expiration period. The expiration is there to ensure that we don't fill the Redis cluster with
-          // useless keys. The actual expiration mechanism is handled by the bucketing mechanism.
-          transaction.expire(redisKey, request.getExpiration().getSeconds() * 2);
-          transaction.exec();
-        }
+  /**
+   * {@inheritDoc}
+   * <p>
+   * All the requests are processed by a single script execution.
+   */
+  @Override
+  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
+    return add(requests, true);
+  }
 
-        pipeline.sync();
-      } catch (Throwable e) {
-        logger.error("An exception occurred while publishing limits to Redis.", e);
-      }
-    }
+  private Map<LimitKey, Integer> add(Collection<AddAndGetRequest> requests, boolean withLimit) {
+    ScriptCall call = newAddCall(requests, withLimit);
+    execute(Collections.singletonList(call));
+    return call.getCounters(0, call.size());
+  }
 
-    return responses
-        .entrySet()
-        .stream()
-        .collect(Collectors.toMap(Map.Entry::getKey, kvp -> kvp.getValue().get().intValue()));
+  @Override
+  public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+    return tryAddAndGetAll(Collections.singletonList(requests)).get(0);
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * All the groups are processed by a single script execution.
+   */
   @Override
-  public Map<LimitKey, Integer> addAndGetWithLimit(Collection<AddAndGetRequest> requests) {
-    Map<LimitKey, Response<Object>> responses = new LinkedHashMap<>();
+  public List<Map<LimitKey, Integer>> tryAddAndGetAll(
+      List<? extends Collection<AddAndGetRequest>> requestGroups) {
+    ScriptCall call = newTryAddCall(requestGroups);
+    execute(Collections.singletonList(call));
+
+    List<Map<LimitKey, Integer>> counterGroups = new ArrayList<>(requestGroups.size());
+    int position = 0;
+    for (Collection<AddAndGetRequest> requests : requestGroups) {
+      counterGroups.add(call.getCounters(position, position + requests.size()));
+      position += requests.size();
+    }
+    return counterGroups;
+  }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      try (Pipeline pipeline = jedis.pipelined()) {
-        Transaction transaction = jedis.multi();
-
-        requests.forEach(
-            request -> {
-              LimitKey limitKey = LimitKey.fromRequest(request);
-              String redisKey =
-                  Stream.of(
-                          keyPrefix,
-                          limitKey.getResource(),
-                          limitKey.getLimitName(),
-                          limitKey.getProperty(),
-                          limitKey.getBucket().toString(),
-                          limitKey.getExpiration().toString())
-                      .map(RedisStorage::clean)
-                      .collect(Collectors.joining(KEY_SEPARATOR));
-
-              responses.put(
-                  limitKey,
-                  transaction.eval(
-                      COUNTER_SCRIPT,
-                      Collections.singletonList(redisKey),
-                      Arrays.asList(
-                          String.valueOf(request.getCost()), String.valueOf(request.getLimit()))));
-              transaction.expire(redisKey, request.getExpiration().getSeconds() * 2);
-              transaction.exec();
-            });
-
-        pipeline.sync();
-      } catch (Throwable e) {
-        logger.error("An exception occured while publishing limits to Redis.", e);
+  /**
+   * Prepares the execution of {@link #ADD_SCRIPT} for requests.
+   *
+   * @param withLimit True to keep the costs under the limits as addAndGetWithLimit does
+   */
+  /*package*/ ScriptCall newAddCall(Collection<AddAndGetRequest> requests, boolean withLimit) {
+    ScriptCall call = new ScriptCall(addScript, requests.size());
+    call.arguments.add(Protocol.toByteArray(withLimit ? 1 : 0));
+    for (AddAndGetRequest request : requests) {
+      call.limitKeys.add(addRequest(request, call.keys, call.arguments));
+    }
+    return call;
+  }
+
+  /**
+   * Prepares the execution of {@link #TRY_ADD_SCRIPT} for groups of requests. The counters of the
+   * call follow the order of the groups.
+   */
+  /*package*/ ScriptCall newTryAddCall(List<? extends Collection<AddAndGetRequest>> requestGroups) {
+    ScriptCall call = new ScriptCall(tryAddScript, requestGroups.size());
+    List<byte[]> requestArguments = new ArrayList<>();
+    call.arguments.add(Protocol.toByteArray(requestGroups.size()));
+    for (Collection<AddAndGetRequest> requests : requestGroups) {
+      call.arguments.add(Protocol.toByteArray(requests.size()));
+      for (AddAndGetRequest request : requests) {
+        call.limitKeys.add(addRequest(request, call.keys, requestArguments));
       }
     }
+    call.arguments.addAll(requestArguments);
+    return call;
+  }
 
-    return responses
-        .entrySet()
-        .stream()
-        .collect(
-            Collectors.toMap(
-                Map.Entry::getKey, kvp -> Integer.parseInt(kvp.getValue().get().toString())));
+  /**
+   * Executes scripts in a single pipeline. The calls that fail are logged and left without
+   * counters.
+   */
+  /*package*/ void execute(List<ScriptCall> calls) {
+    try (Jedis jedis = jedisPool.getResource()) {
+      // The scripts are loaded before the pipeline since no other command can be sent meanwhile.
+      List<byte[]> shas = new ArrayList<>(calls.size());
+      for (ScriptCall call : calls) {
+        shas.add(getScriptSha(jedis, call.script));
+      }
+      Pipeline pipeline = jedis.pipelined();
+      List<Response<Object>> responses = new ArrayList<>(calls.size());
+      for (int i = 0; i < calls.size(); i++) {
+        ScriptCall call = calls.get(i);
+        responses.add(pipeline.evalsha(shas.get(i), call.keys, call.arguments));
+      }
+      pipeline.sync();
+
+      for (int i = 0; i < calls.size(); i++) {
+        ScriptCall call = calls.get(i);
+        try {
+          call.responses = (List<?>) responses.get(i).get();
+        } catch (JedisNoScriptException e) {
+          call.responses = (List<?>) evalScript(jedis, call.script, call.keys, call.arguments);
+        }
+      }
+    } catch (Throwable e) {
+      logger.error("An exception occurred while publishing limits to Redis.", e);
+    }
   }
 
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters() {
-    return getLimits(buildKeyPattern(keyPrefix, WILD_CARD_OPERATOR));
+    return getLimits(newCounterIterator());
   }
 
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters(String resource) {
-    return getLimits(buildKeyPattern(keyPrefix, resource, WILD_CARD_OPERATOR));
+    return getLimits(newCounterIterator(resource));
   }
 
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters(String resource, String limitName) {
-    return getLimits(buildKeyPattern(keyPrefix, resource, limitName, WILD_CARD_OPERATOR));
+    return getLimits(newCounterIterator(resource, limitName));
   }
 
   @Override
   public Map<LimitKey, Integer> getCurrentLimitCounters(
       String resource, String limitName, String property) {
-    return getLimits(buildKeyPattern(keyPrefix, resource, limitName, property, WILD_CARD_OPERATOR));
+    return getLimits(newCounterIterator(resource, limitName, property));
   }
 
-  private Map<LimitKey, Integer> getLimits(String keyPattern) {
-    Map<LimitKey, Integer> counters = new HashMap<>();
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The keys are enumerated with SCAN rather than KEYS so that Redis is never blocked by a
+   * large keyspace, see {@link Builder#withScanCount(int)}.
+   */
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters() {
+    return newCounterIterator();
+  }
 
-    try (Jedis jedis = jedisPool.getResource()) {
-      Set<String> keys = jedis.keys(keyPattern);
-      for (String key : keys) {
-        String valueAsString = jedis.get(key);
-        if (StringUtils.isNotEmpty(valueAsString)) {
-          int value = Integer.parseInt(valueAsString);
-
-          String[] keyComponents = StringUtils.split(key, KEY_SEPARATOR);
-
-          counters.put(
-              new LimitKey(
-                  keyComponents[1],
-                  keyComponents[2],
-                  keyComponents[3],
-                  true,
-                  Instant.parse(keyComponents[4]),
-                  keyComponents.length == 6
-                      ? Duration.parse(keyComponents[5])
-                      : Duration
-                          .ZERO), // Version pre alpha.3 are not storing the expiration within the key so we fallback to 0
-              value);
-        } else {
-          logger.info("Key '{}' has no value and will not be included in counters", key);
-        }
-      }
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(String resource) {
+    return newCounterIterator(resource);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName) {
+    return newCounterIterator(resource, limitName);
+  }
+
+  @Override
+  public Iterator<Map.Entry<LimitKey, Integer>> iterateCurrentLimitCounters(
+      String resource, String limitName, String property) {
+    return newCounterIterator(resource, limitName, property);
+  }
+
+  private Iterator<Map.Entry<LimitKey, Integer>> newCounterIterator(String... components) {
+    if (hashKeyCodec == null) {
+      return new RedisCounterIterator(
+          jedisPool::getResource, keyCodec, keyCodec.encodePattern(components), scanCount, true);
     }
+    // The hashes hold every property of a bucket, so a property is read as a field of each of them.
+    String property = components.length > 2 ? components[2] : null;
+    return new RedisCounterIterator(
+        jedisPool::getResource,
+        hashKeyCodec,
+        hashKeyCodec.encodePattern(Arrays.copyOf(components, Math.min(components.length, 2))),
+        scanCount,
+        property);
+  }
+
+  private Map<LimitKey, Integer> getLimits(Iterator<Map.Entry<LimitKey, Integer>> iterator) {
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    iterator.forEachRemaining(counter -> counters.put(counter.getKey(), counter.getValue()));
     return Collections.unmodifiableMap(counters);
   }
 
@@ -229,15 +413,137 @@ public class RedisStorage implements LimitUsageStorage {
     jedisPool.destroy();
   }
 
-  private String buildKeyPattern(String... keyComponents) {
-    return Arrays.asList(keyComponents)
-        .stream()
-        .map(RedisStorage::clean)
-        .collect(Collectors.joining(KEY_SEPARATOR));
+  /**
+   * Adds the keys and the arguments of a request as expected by the scripts.
+   *
+   * @return The {@link LimitKey} of the request
+   */
+  private LimitKey addRequest(
+      AddAndGetRequest request, List<byte[]> redisKeys, List<byte[]> arguments) {
+    LimitKey limitKey = LimitKey.fromRequest(request);
+    if (hashKeyCodec != null && !request.isTokenBucket()) {
+      LimitKey hashKey = new LimitKey(limitKey);
+      hashKey.setProperty(HASH_KEY_PROPERTY);
+      addRequest(
+          hashKeyCodec,
+          request,
+          hashKey,
+          hashKeyCodec.encode(hashKey),
+          SafeEncoder.encode(limitKey.getProperty()),
+          redisKeys,
+          arguments);
+    } else {
+      addRequest(
+          keyCodec, request, limitKey, keyCodec.encode(limitKey), NO_FIELD, redisKeys, arguments);
+    }
+    return limitKey;
   }
 
-  private static final String clean(String keyComponent) {
-    return keyComponent.replace(KEY_SEPARATOR, KEY_SEPARATOR_SUBSTITUTE);
+  /**
+   * Adds the keys and the arguments of a request as expected by {@link #ADD_SCRIPT} and
+   * {@link #TRY_ADD_SCRIPT}.
+   *
+   * @param redisKey The key of the limit, already encoded by the codec
+   * @param field The field of the counter in the hash of its bucket, empty for a string counter
+   */
+  /*package*/ static void addRequest(
+      RedisKeyCodec keyCodec,
+      AddAndGetRequest request,
+      LimitKey limitKey,
+      byte[] redisKey,
+      byte[] field,
+      List<byte[]> redisKeys,
+      List<byte[]> arguments) {
+    redisKeys.add(redisKey);
+    arguments.add(Protocol.toByteArray(request.getCost()));
+    arguments.add(Protocol.toByteArray(request.getLimit()));
+    // We set the expire to twice the expiration period. The expiration is there to ensure that we don't fill the Redis cluster with
+    // useless keys. The actual expiration mechanism is handled by the bucketing mechanism.
+    arguments.add(Protocol.toByteArray(request.getExpiration().getSeconds() * 2));
+    if (request.isSlidingWindow()) {
+      redisKeys.add(keyCodec.encode(limitKey.getPreviousBucketKey()));
+      arguments.add(Protocol.toByteArray(getRemainingMillis(request)));
+    } else {
+      arguments.add(Protocol.toByteArray(0));
+    }
+    arguments.add(Protocol.toByteArray(request.getExpiration().toMillis()));
+    arguments.add(Protocol.toByteArray(request.getBurst()));
+    arguments.add(
+        Protocol.toByteArray(
+            TimeUnit.MILLISECONDS.toMicros(request.getEventTimestamp().toEpochMilli())));
+    arguments.add(field);
+  }
+
+  private byte[] getScriptSha(Jedis jedis, String script) {
+    byte[] sha = scriptShas.get(script);
+    if (sha == null) {
+      sha = jedis.scriptLoad(SafeEncoder.encode(script));
+      scriptShas.put(script, sha);
+    }
+    return sha;
+  }
+
+  /**
+   * Runs a script by its SHA1 digest so that its source is only sent when Redis does not know
+   * it yet, either because it was never loaded or because the script cache was flushed.
+   */
+  private Object evalScript(Jedis jedis, String script, List<byte[]> keys, List<byte[]> arguments) {
+    byte[] sha = scriptShas.get(script);
+    if (sha != null) {
+      try {
+        return jedis.evalsha(sha, keys, arguments);
+      } catch (JedisNoScriptException e) {
+        logger.debug(
+            "Script {} is not loaded in Redis, loading it again.", SafeEncoder.encode(sha));
+      }
+    }
+    sha = jedis.scriptLoad(SafeEncoder.encode(script));
+    scriptShas.put(script, sha);
+    return jedis.evalsha(sha, keys, arguments);
+  }
+
+  private static RedisKeyCodec newKeyCodec(String keyPrefix, boolean compactKeys) {
+    return compactKeys ? new CompactRedisKeyCodec(keyPrefix) : new TextRedisKeyCodec(keyPrefix);
+  }
+
+  private static long getRemainingMillis(AddAndGetRequest request) {
+    return request.getBucket().plus(request.getExpiration()).toEpochMilli()
+        - request.getEventTimestamp().toEpochMilli();
+  }
+
+  /**
+   * The keys and the arguments of a script execution and the counters it returned.
+   */
+  /*package*/ static class ScriptCall {
+    private final String script;
+    private final List<LimitKey> limitKeys;
+    private final List<byte[]> keys = new ArrayList<>();
+    private final List<byte[]> arguments = new ArrayList<>();
+    private List<?> responses;
+
+    private ScriptCall(String script, int size) {
+      this.script = script;
+      this.limitKeys = new ArrayList<>(size);
+    }
+
+    /*package*/ int size() {
+      return limitKeys.size();
+    }
+
+    /**
+     * @param from The position of the first request, inclusive
+     * @param to The position of the last request, exclusive
+     * @return The counters of the requests in that range, empty if the execution failed
+     */
+    /*package*/ Map<LimitKey, Integer> getCounters(int from, int to) {
+      Map<LimitKey, Integer> counters = new LinkedHashMap<>();
+      if (responses != null) {
+        for (int i = from; i < to; i++) {
+          counters.put(limitKeys.get(i), ((Long) responses.get(i)).intValue());
+        }
+      }
+      return counters;
+    }
   }
 
   public static final Builder builder() {
@@ -247,6 +553,9 @@ public class RedisStorage implements LimitUsageStorage {
   public static class Builder {
     JedisPool jedisPool;
     String keyPrefix;
+    boolean compactKeys;
+    boolean hashBuckets;
+    int scanCount = DEFAULT_SCAN_COUNT;
 
     private Builder() {
       this.keyPrefix = RedisStorage.DEFAULT_PREFIX;
@@ -270,6 +579,64 @@ public class RedisStorage implements LimitUsageStorage {
       return this;
     }
 
+    public void setCompactKeys(boolean compactKeys) {
+      this.compactKeys = compactKeys;
+    }
+
+    /**
+     * Stores the limits under the short binary keys of the {@link CompactRedisKeyCodec}
+     * instead of the readable keys of the {@link TextRedisKeyCodec}.
+     * <p>
+     * Counters stored with one format are not seen by the other, so every instance sharing
+     * the limits must use the same format.
+     *
+     * @param compactKeys True to use the compact keys
+     * @return The current {@link Builder}
+     */
+    public Builder withCompactKeys(boolean compactKeys) {
+      setCompactKeys(compactKeys);
+      return this;
+    }
+
+    public void setHashBuckets(boolean hashBuckets) {
+      this.hashBuckets = hashBuckets;
+    }
+
+    /**
+     * Stores the counters of a limit as the fields of one hash per bucket, incremented with
+     * HINCRBY, instead of one key per property. A bucket then costs a single key and a single
+     * expiration whatever its number of properties, and Redis keeps small hashes in its compact
+     * encoding. Raise {@code hash-max-listpack-entries} ({@code hash-max-ziplist-entries} before
+     * Redis 7) above the number of properties of a bucket to keep that encoding.
+     * <p>
+     * The hashes are stored under the key prefix followed by {@value RedisStorage#HASH_KEY_PREFIX_SUFFIX}
+     * and are not seen by the instances using one key per property. Token buckets keep one key per
+     * property since each of them has its own expiration.
+     *
+     * @param hashBuckets True to store the counters in one hash per bucket
+     * @return The current {@link Builder}
+     */
+    public Builder withHashBuckets(boolean hashBuckets) {
+      setHashBuckets(hashBuckets);
+      return this;
+    }
+
+    public void setScanCount(int scanCount) {
+      this.scanCount = scanCount;
+    }
+
+    /**
+     * Sets the number of keys Redis is asked to visit at each SCAN while listing the counters.
+     * Larger counts need fewer round trips but keep Redis busy longer on each of them.
+     *
+     * @param scanCount The COUNT of each SCAN, {@value RedisStorage#DEFAULT_SCAN_COUNT} by default
+     * @return The current {@link Builder}
+     */
+    public Builder withScanCount(int scanCount) {
+      setScanCount(scanCount);
+      return this;
+    }
+
     public RedisStorage build() {
       return new RedisStorage(this);
     }
@@ -0,0 +1,294 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.LimitUsageStorage;
+
+/**
+ * Reusable and mutable container of the requests of a single decision and of their results.
+ * <p>
+ * It lets {@link LimitUsageStorage#tryAddAndGet(AddAndGetBatch)} process a decision without
+ * allocating {@link AddAndGetRequest}s, {@link LimitKey}s or result maps. The {@link LimitKey}s
+ * returned by {@link #getLimitKey(int)} are updated in place by the next decision, so storages
+ * must copy them before keeping them.
+ * <p>
+ * Not thread safe, a batch should only be used by one thread at a time.
+ */
+public class AddAndGetBatch {
+  private final LimitKey[] limitKeys;
+  private final LimitKey[] previousLimitKeys;
+  private final boolean[] slidingWindows;
+  private final long[] eventTimestamps;
+  private final long[] bucketEnds;
+  private final int[] costs;
+  private final int[] limits;
+  private final int[] bursts;
+  private final int[] results;
+
+  private int size;
+  private int resultCount;
+
+  public AddAndGetBatch(int capacity) {
+    limitKeys = new LimitKey[capacity];
+    previousLimitKeys = new LimitKey[capacity];
+    slidingWindows = new boolean[capacity];
+    eventTimestamps = new long[capacity];
+    bucketEnds = new long[capacity];
+    costs = new int[capacity];
+    limits = new int[capacity];
+    bursts = new int[capacity];
+    results = new int[capacity];
+
+    for (int i = 0; i < capacity; i++) {
+      limitKeys[i] = new LimitKey(null, null, null, false, Instant.EPOCH, Duration.ZERO);
+      previousLimitKeys[i] = new LimitKey(null, null, null, false, Instant.EPOCH, Duration.ZERO);
+    }
+  }
+
+  /**
+   * Removes every request and result so that the batch can be reused.
+   */
+  public void clear() {
+    size = 0;
+    resultCount = 0;
+  }
+
+  /**
+   * Adds a fixed window request to the batch.
+   *
+   * @see #add(String, String, String, boolean, boolean, int, Duration, long, int, int)
+   */
+  public void add(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      Duration expiration,
+      long eventTimestamp,
+      int cost,
+      int limit) {
+    add(
+        resource,
+        limitName,
+        property,
+        distributed,
+        false,
+        0,
+        expiration,
+        eventTimestamp,
+        cost,
+        limit);
+  }
+
+  /**
+   * Adds a request to the batch.
+   * <p>
+   * The bucket of the previous request added at the same position is reused when the timestamp
+   * still falls in it, which avoids creating a new {@link Instant} on every decision.
+   *
+   * @param resource The resource name on which the limit is enforced
+   * @param limitName The name of the limit
+   * @param property The name of the property used in the limit
+   * @param distributed If the limit is going to be shared when using a cached storage
+   * @param slidingWindow If the count of the previous bucket is weighted into the count
+   * @param burst The number of tokens of a token bucket, zero if the limit is not one
+   * @param expiration The duration of the limit before it is reset
+   * @param eventTimestamp The epoch millisecond at which the event was recorded
+   * @param cost The cost the query
+   * @param limit The maximum value the limit can reach
+   */
+  public void add(
+      String resource,
+      String limitName,
+      String property,
+      boolean distributed,
+      boolean slidingWindow,
+      int burst,
+      Duration expiration,
+      long eventTimestamp,
+      int cost,
+      int limit) {
+    if (size == limitKeys.length) {
+      throw new IllegalStateException("The batch is full.");
+    }
+
+    LimitKey limitKey = limitKeys[size];
+    limitKey.setResource(resource);
+    limitKey.setLimitName(limitName);
+    limitKey.setProperty(property);
+    limitKey.setDistributed(distributed);
+
+    long bucketStart = limitKey.getBucket().toEpochMilli();
+    if (burst > 0) {
+      limitKey.setBucket(LimitUtils.TOKEN_BUCKET);
+      limitKey.setExpiration(expiration);
+      // Forces the bucket to be computed if the position is later used by a window.
+      bucketEnds[size] = Long.MIN_VALUE;
+    } else if (!expiration.equals(limitKey.getExpiration())
+        || eventTimestamp < bucketStart
+        || eventTimestamp >= bucketEnds[size]) {
+      bucketStart = LimitUtils.calculateBucket(eventTimestamp, expiration.toMillis());
+      limitKey.setBucket(Instant.ofEpochMilli(bucketStart));
+      limitKey.setExpiration(expiration);
+      bucketEnds[size] = bucketStart + expiration.toMillis();
+      previousLimitKeys[size].setBucket(Instant.ofEpochMilli(bucketStart - expiration.toMillis()));
+      previousLimitKeys[size].setExpiration(expiration);
+    }
+
+    if (slidingWindow) {
+      LimitKey previousLimitKey = previousLimitKeys[size];
+      previousLimitKey.setResource(resource);
+      previousLimitKey.setLimitName(limitName);
+      previousLimitKey.setProperty(property);
+      previousLimitKey.setDistributed(distributed);
+    }
+
+    slidingWindows[size] = slidingWindow;
+    eventTimestamps[size] = eventTimestamp;
+    costs[size] = cost;
+    limits[size] = limit;
+    bursts[size] = burst;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public LimitKey getLimitKey(int index) {
+    return limitKeys[index];
+  }
+
+  /**
+   * Only up to date for the requests that use a sliding window.
+   *
+   * @param index The position of the request
+   * @return The key of the bucket preceding the one of the request
+   */
+  public LimitKey getPreviousLimitKey(int index) {
+    return previousLimitKeys[index];
+  }
+
+  public boolean isSlidingWindow(int index) {
+    return slidingWindows[index];
+  }
+
+  public long getEventTimestamp(int index) {
+    return eventTimestamps[index];
+  }
+
+  /**
+   * Only meaningful for the requests that are not token buckets.
+   *
+   * @param index The position of the request
+   * @return The epoch millisecond at which the bucket of the request ends
+   */
+  public long getBucketEnd(int index) {
+    return bucketEnds[index];
+  }
+
+  /**
+   * @param index The position of the request
+   * @return The number of tokens of a token bucket, zero if the limit is not one
+   */
+  public int getBurst(int index) {
+    return bursts[index];
+  }
+
+  public int getCost(int index) {
+    return costs[index];
+  }
+
+  public int getLimit(int index) {
+    return limits[index];
+  }
+
+  public int getResult(int index) {
+    return results[index];
+  }
+
+  /**
+   * Sets the count of a limit including the cost of its request.
+   *
+   * @param index The position of the request
+   * @param result The count including the cost
+   */
+  public void setResult(int index, int result) {
+    results[index] = result;
+    resultCount++;
+  }
+
+  /**
+   * @return The number of results set since the last {@link #clear()}
+   */
+  public int getResultCount() {
+    return resultCount;
+  }
+
+  /**
+   * @return True if every request received a result that respects its limit
+   */
+  public boolean isUnderLimits() {
+    if (resultCount != size) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (results[i] > limits[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Converts the batch to {@link AddAndGetRequest}s for the storages that do not use it directly.
+   *
+   * @return One {@link AddAndGetRequest} per request of the batch
+   */
+  public List<AddAndGetRequest> toRequests() {
+    List<AddAndGetRequest> requests = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      requests.add(
+          new AddAndGetRequest.Builder()
+              .withResource(limitKeys[i].getResource())
+              .withLimitName(limitKeys[i].getLimitName())
+              .withProperty(limitKeys[i].getProperty())
+              .withDistributed(limitKeys[i].isDistributed())
+              .withSlidingWindow(slidingWindows[i])
+              .withBurst(bursts[i])
+              .withExpiration(limitKeys[i].getExpiration())
+              .withEventTimestamp(Instant.ofEpochMilli(eventTimestamps[i]))
+              .withCost(costs[i])
+              .withLimit(limits[i])
+              .build());
+    }
+    return requests;
+  }
+}
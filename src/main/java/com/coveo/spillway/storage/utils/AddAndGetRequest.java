@@ -44,10 +44,12 @@ public class AddAndGetRequest {
   private String limitName;
   private String property;
   private boolean distributed;
+  private boolean slidingWindow;
   private Duration expiration;
   private Instant eventTimestamp;
   private int cost;
   private int limit;
+  private int burst;
 
   private Instant bucket;
 
@@ -67,6 +69,28 @@ public class AddAndGetRequest {
     return distributed;
   }
 
+  /**
+   * @return True if the count of the previous bucket must be weighted into the count of the
+   *         bucket of the request, see {@link LimitUtils#calculateSlidingCount(int, long, long)}
+   */
+  public boolean isSlidingWindow() {
+    return slidingWindow;
+  }
+
+  /**
+   * @return True if the limit is a token bucket refilled at limit tokens per expiration
+   */
+  public boolean isTokenBucket() {
+    return burst > 0;
+  }
+
+  /**
+   * @return The number of tokens held by the token bucket, zero if it is not a token bucket
+   */
+  public int getBurst() {
+    return burst;
+  }
+
   public Duration getExpiration() {
     return expiration;
   }
@@ -83,6 +107,10 @@ public class AddAndGetRequest {
     return bucket;
   }
 
+  /**
+   * @return The value the counter must not exceed, or the capacity refilled per expiration when
+   *         the limit is a token bucket
+   */
   public int getLimit() {
     return limit;
   }
@@ -92,11 +120,16 @@ public class AddAndGetRequest {
     limitName = builder.limitName;
     property = builder.property;
     distributed = builder.distributed;
+    slidingWindow = builder.slidingWindow;
     expiration = builder.expiration;
     eventTimestamp = builder.eventTimestamp;
     cost = builder.cost;
     limit = builder.limit;
-    bucket = LimitUtils.calculateBucket(eventTimestamp, expiration);
+    burst = builder.burst;
+    bucket =
+        isTokenBucket()
+            ? LimitUtils.TOKEN_BUCKET
+            : LimitUtils.calculateBucket(eventTimestamp, expiration);
   }
 
   /**
@@ -118,10 +151,12 @@ public class AddAndGetRequest {
     private String limitName;
     private String property;
     private boolean distributed;
+    private boolean slidingWindow;
     private Duration expiration;
     private Instant eventTimestamp;
     private int cost = 1;
     private int limit;
+    private int burst;
 
     public Builder() {}
 
@@ -130,10 +165,12 @@ public class AddAndGetRequest {
       this.limitName = other.limitName;
       this.property = other.property;
       this.distributed = other.distributed;
+      this.slidingWindow = other.slidingWindow;
       this.expiration = other.expiration;
       this.eventTimestamp = other.eventTimestamp;
       this.cost = other.cost;
       this.limit = other.limit;
+      this.burst = other.burst;
     }
 
     public Builder withResource(String val) {
@@ -156,6 +193,11 @@ public class AddAndGetRequest {
       return this;
     }
 
+    public Builder withSlidingWindow(boolean val) {
+      slidingWindow = val;
+      return this;
+    }
+
     public Builder withExpiration(Duration val) {
       expiration = val;
       return this;
@@ -176,6 +218,11 @@ public class AddAndGetRequest {
       return this;
     }
 
+    public Builder withBurst(int val) {
+      burst = val;
+      return this;
+    }
+
     public AddAndGetRequest build() {
       return new AddAndGetRequest(this);
     }
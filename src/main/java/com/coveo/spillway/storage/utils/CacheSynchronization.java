@@ -22,11 +22,16 @@
  */
 package com.coveo.spillway.storage.utils;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimerTask;
 import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +43,14 @@ import com.coveo.spillway.storage.LimitUsageStorage;
 /**
  * Synchronization {@link TimerTask} that is launched periodically
  * by the {@link AsyncBatchLimitUsageStorage}.
+ * <p>
+ * The deltas of the distributed keys are sent to the storage in chunks of
+ * requests so that a synchronization only costs a few calls to the storage.
+ * <p>
+ * When given a maximum interval longer than the minimum one, each key is synchronized at its
+ * own interval, which shrinks from the maximum to the minimum as its count approaches its limit.
+ * The task should then run every minimum interval. The intervals of the keys are spread by
+ * the jitter so that instances do not synchronize the same keys together.
  *
  * @author Emile Fugulin
  * @author Simon Toussaint
@@ -46,12 +59,56 @@ import com.coveo.spillway.storage.LimitUsageStorage;
 public class CacheSynchronization extends TimerTask {
   private static final Logger logger = LoggerFactory.getLogger(CacheSynchronization.class);
 
+  public static final int DEFAULT_CHUNK_SIZE = 1000;
+
   private InMemoryStorage cache;
   private LimitUsageStorage storage;
+  private int chunkSize;
+  private long minimumIntervalMillis;
+  private long maximumIntervalMillis;
+  private double jitter;
+  private Clock clock = Clock.systemUTC();
+
+  private final Map<LimitKey, Long> nextSynchronizations = new HashMap<>();
 
   public CacheSynchronization(InMemoryStorage cache, LimitUsageStorage storage) {
+    this(cache, storage, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param cache The cache to synchronize
+   * @param storage The storage shared with the other instances
+   * @param chunkSize The maximum number of requests sent to the storage in a single call
+   */
+  public CacheSynchronization(InMemoryStorage cache, LimitUsageStorage storage, int chunkSize) {
     this.cache = cache;
     this.storage = storage;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @param cache The cache to synchronize
+   * @param storage The storage shared with the other instances
+   * @param chunkSize The maximum number of requests sent to the storage in a single call
+   * @param minimumInterval The interval of the keys that reached their limit
+   * @param maximumInterval The interval of the keys far from their limit
+   * @param jitter The fraction of the intervals by which they are randomly shortened or lengthened
+   */
+  public CacheSynchronization(
+      InMemoryStorage cache,
+      LimitUsageStorage storage,
+      int chunkSize,
+      Duration minimumInterval,
+      Duration maximumInterval,
+      double jitter) {
+    this(cache, storage, chunkSize);
+    this.minimumIntervalMillis = minimumInterval.toMillis();
+    this.maximumIntervalMillis = Math.max(minimumInterval.toMillis(), maximumInterval.toMillis());
+    this.jitter = jitter;
+  }
+
+  /*package*/ void setClock(Clock clock) {
+    this.clock = clock;
   }
 
   public void init() {
@@ -66,36 +123,89 @@ public class CacheSynchronization extends TimerTask {
 
   @Override
   public void run() {
+    long now = clock.millis();
+    // Only this task reads the next synchronizations, forget those of the ended buckets.
+    nextSynchronizations
+        .keySet()
+        .removeIf(
+            limitKey
+                -> limitKey.getBucket().toEpochMilli() + limitKey.getExpiration().toMillis()
+                    <= now);
+
+    List<Entry<LimitKey, Capacity>> entries = new ArrayList<>();
     cache.applyOnEach(
-        instantEntry -> {
-          try {
-            if (instantEntry.getKey().isDistributed()) {
-              applyOnEachEntry(instantEntry);
-            }
-          } catch (Exception e) {
-            logger.warn("Exception during synchronization, ignoring.", e);
+        entry -> {
+          if (entry.getKey().isDistributed()
+              && entry.getValue().getDelta() != 0
+              && isDue(entry.getKey(), now)) {
+            entries.add(entry);
           }
         });
+
+    for (int start = 0; start < entries.size(); start += chunkSize) {
+      try {
+        synchronizeChunk(entries.subList(start, Math.min(start + chunkSize, entries.size())));
+      } catch (Exception e) {
+        logger.warn("Exception during synchronization, ignoring.", e);
+      }
+    }
   }
 
-  private void applyOnEachEntry(Entry<LimitKey, Capacity> entry) {
-    LimitKey limitKey = entry.getKey();
+  private void synchronizeChunk(List<Entry<LimitKey, Capacity>> entries) {
+    List<AddAndGetRequest> requests = new ArrayList<>(entries.size());
+    int[] costs = new int[entries.size()];
+    for (int i = 0; i < entries.size(); i++) {
+      LimitKey limitKey = entries.get(i).getKey();
+      costs[i] = entries.get(i).getValue().getDelta();
 
-    int cost = entry.getValue().getDelta();
+      requests.add(
+          new AddAndGetRequest.Builder()
+              .withResource(limitKey.getResource())
+              .withLimitName(limitKey.getLimitName())
+              .withProperty(limitKey.getProperty())
+              .withExpiration(limitKey.getExpiration())
+              .withEventTimestamp(limitKey.getBucket())
+              .withSlidingWindow(entries.get(i).getValue().isSlidingWindow())
+              .withCost(costs[i])
+              .build());
+    }
 
-    AddAndGetRequest request =
-        new AddAndGetRequest.Builder()
-            .withResource(limitKey.getResource())
-            .withLimitName(limitKey.getLimitName())
-            .withProperty(limitKey.getProperty())
-            .withExpiration(limitKey.getExpiration())
-            .withEventTimestamp(limitKey.getBucket())
-            .withCost(cost)
-            .build();
+    Map<LimitKey, Integer> responses = CurrentBucketCounts.addAndGet(storage, requests);
+
+    for (int i = 0; i < entries.size(); i++) {
+      Integer total = responses.get(entries.get(i).getKey());
+      // Without a total, the delta is kept to be sent again on the next synchronization.
+      if (total != null) {
+        entries.get(i).getValue().setTotal(total, costs[i]);
+        scheduleNextSynchronization(entries.get(i).getKey(), entries.get(i).getValue());
+      }
+    }
+  }
 
-    Pair<LimitKey, Integer> reponse = storage.addAndGet(request);
+  private boolean isAdaptive() {
+    return maximumIntervalMillis > minimumIntervalMillis;
+  }
+
+  private boolean isDue(LimitKey limitKey, long now) {
+    if (!isAdaptive()) {
+      return true;
+    }
+    Long next = nextSynchronizations.get(limitKey);
+    // Synchronizes on the run closest to the due time rather than on the first one after it.
+    return next == null || next - now <= minimumIntervalMillis / 2;
+  }
 
-    entry.getValue().substractAndGet(cost);
-    entry.getValue().setTotal(reponse.getValue());
+  private void scheduleNextSynchronization(LimitKey limitKey, Capacity capacity) {
+    if (!isAdaptive()) {
+      return;
+    }
+    int limit = capacity.getLimit();
+    // Without a known limit, the key is synchronized as if it was at its limit.
+    double usage = limit > 0 ? Math.min(1, Math.max(0, capacity.get() / (double) limit)) : 1;
+    long interval =
+        maximumIntervalMillis - Math.round((maximumIntervalMillis - minimumIntervalMillis) * usage);
+    nextSynchronizations.put(
+        new LimitKey(limitKey),
+        clock.millis() + SynchronizationScheduler.applyJitter(interval, jitter));
   }
 }
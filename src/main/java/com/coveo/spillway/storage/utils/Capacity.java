@@ -22,7 +22,10 @@
  */
 package com.coveo.spillway.storage.utils;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.coveo.spillway.limit.Limit;
 import com.coveo.spillway.storage.InMemoryStorage;
@@ -30,45 +33,293 @@ import com.coveo.spillway.storage.InMemoryStorage;
 /**
  * Container of {@link AtomicInteger}s used in the {@link InMemoryStorage}
  * to represent the current capacity of a {@link Limit}.
+ * <p>
+ * A capacity starts as a single delta updated in a compare and set loop. The first time two
+ * threads race on it far from its limit, it allocates one quota cell per stripe, each on its own
+ * cache line. A thread then reserves a chunk of the capacity left in the delta for the cell of its
+ * stripe, and consumes it from that cell without touching the shared delta until the chunk runs
+ * out. A chunk is at most a fraction of the capacity left divided by the number of stripes, so
+ * the chunks shrink as the limit gets close, down to the exact compare and set on the delta.
+ * <p>
+ * The delta includes the reserved quotas, so it never exceeds the limit and the capacity never
+ * lets more than its limit through. The unused quotas are given back to the delta before a call
+ * is refused, so no call is refused while the capacity is not used up. A call served from a quota
+ * returns an upper bound of the count, short of the unused quotas of the other stripes. The counts
+ * read with {@link #get()} and {@link #getDelta()} sum the cells and never miss a cost.
  *
  * @author Emile Fugulin
  * @since 1.0.0
  */
 public class Capacity {
+  /**
+   * The number of stripes of a contended capacity, the number of processors rounded up to a
+   * power of two and capped to 64. A capacity is never striped on a single processor.
+   */
+  public static final int STRIPES =
+      Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  // 16 integers fill a 64 bytes cache line, which keeps each cell away from its neighbours.
+  private static final int CELL_SPACING = 16;
+
+  private static final VarHandle QUOTAS;
+
+  static {
+    try {
+      QUOTAS =
+          MethodHandles.lookup().findVarHandle(Capacity.class, "quotas", AtomicIntegerArray.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
   private AtomicInteger delta = new AtomicInteger(0);
   private AtomicInteger total = new AtomicInteger(0);
+  private volatile int limit;
+  private volatile boolean slidingWindow;
+
+  private final int stripes;
+  // Null until the capacity is contended.
+  private volatile AtomicIntegerArray quotas;
 
   public Capacity() {
     this(0);
   }
 
   public Capacity(int total) {
+    this(total, STRIPES);
+  }
+
+  /*package*/ Capacity(int total, int stripes) {
     this.delta = new AtomicInteger(0);
     this.total = new AtomicInteger(total);
+    this.stripes = stripes;
   }
 
+  /**
+   * Adds the cost unless the delta already exceeds the limit.
+   *
+   * @param cost The cost to add
+   * @param limit The value over which the cost is not added
+   * @return The value including the cost
+   */
   public Integer addAndGetWithLimit(int cost, int limit) {
+    AtomicIntegerArray currentQuotas = quotas;
+    if (currentQuotas != null) {
+      int value = takeFromQuota(currentQuotas, cost, limit);
+      if (value != Integer.MIN_VALUE) {
+        return value;
+      }
+      reclaimQuotas(currentQuotas);
+    }
     return delta.accumulateAndGet(cost, (left, right) -> left > limit ? left : left + right)
         + total.get();
   }
 
+  /**
+   * Adds the cost only if the resulting value does not exceed the limit.
+   * <p>
+   * The cost is taken from the quota of the stripe of the thread when the capacity is contended,
+   * in which case the value returned may exceed the count by the unused quotas of the other
+   * stripes. It never exceeds the limit when the cost is added.
+   *
+   * @param cost The cost to add
+   * @param limit The maximum value the capacity can reach
+   * @return The value including the cost, whether it was added or not
+   */
+  public int tryAddAndGet(int cost, int limit) {
+    AtomicIntegerArray currentQuotas = quotas;
+    if (currentQuotas != null) {
+      int value = takeFromQuota(currentQuotas, cost, limit);
+      if (value != Integer.MIN_VALUE) {
+        return value;
+      }
+    }
+    while (true) {
+      int currentDelta = delta.get();
+      int value = currentDelta + total.get();
+      int chunk = currentQuotas != null && cost > 0 ? chunkFor(limit - value) : 0;
+      if (chunk >= cost && chunk > 0) {
+        // Reserves a chunk for the stripe, of which the cost is consumed right away.
+        if (delta.compareAndSet(currentDelta, currentDelta + chunk)) {
+          currentQuotas.addAndGet(stripeIndex(), chunk - cost);
+          return value + cost;
+        }
+        continue;
+      }
+      if (value + cost > limit) {
+        if (currentQuotas != null && reclaimQuotas(currentQuotas) > 0) {
+          continue;
+        }
+        return value + cost;
+      }
+      if (delta.compareAndSet(currentDelta, currentDelta + cost)) {
+        return value + cost;
+      }
+      if (currentQuotas == null && stripes > 1 && chunkFor(limit - value) >= cost) {
+        // Two threads raced far from the limit, the next calls reserve quotas.
+        currentQuotas = stripe();
+      }
+    }
+  }
+
   public Integer addAndGet(int cost) {
-    return delta.addAndGet(cost) + total.get();
+    int unused = sumQuotas();
+    return delta.addAndGet(cost) + total.get() - unused;
   }
 
   public Integer substractAndGet(int cost) {
-    return delta.addAndGet(-cost) + total.get();
+    return addAndGet(-cost);
   }
 
   public Integer get() {
-    return delta.get() + total.get();
+    int unused = sumQuotas();
+    return delta.get() + total.get() - unused;
   }
 
+  /**
+   * @return The costs added since the total was last set, without the unused quotas
+   */
   public Integer getDelta() {
-    return delta.get();
+    int unused = sumQuotas();
+    return delta.get() - unused;
+  }
+
+  /**
+   * @return The last limit with which the capacity was used, zero if none is known
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Remembers the limit of the requests using the capacity, see {@link #getLimit()}.
+   *
+   * @param limit The limit of a request, ignored if it is not positive
+   */
+  public void updateLimit(int limit) {
+    if (limit > 0 && limit != this.limit) {
+      this.limit = limit;
+    }
+  }
+
+  /**
+   * @return True if the capacity was used by a sliding window, in which case it is the count of
+   *         the current bucket only
+   */
+  public boolean isSlidingWindow() {
+    return slidingWindow;
+  }
+
+  public void markSlidingWindow() {
+    if (!slidingWindow) {
+      slidingWindow = true;
+    }
   }
 
   public void setTotal(int cost) {
+    reclaimQuotas();
     total.set(cost);
   }
+
+  /**
+   * Replaces the total by the one returned by a distributed storage while carrying over the
+   * part of the delta that was not sent to it yet.
+   * <p>
+   * The total is set before the sent delta is removed, so a concurrent read may briefly count
+   * the sent delta twice but never misses a cost. Costs added concurrently are kept. The unused
+   * quotas are given back first, so that they are reserved again against the new total.
+   *
+   * @param total The total of the distributed storage, which includes the sent delta
+   * @param sentDelta The part of the delta that was sent to the distributed storage
+   */
+  public void setTotal(int total, int sentDelta) {
+    reclaimQuotas();
+    this.total.set(total);
+    delta.addAndGet(-sentDelta);
+  }
+
+  /**
+   * Allocates the quota cells if another thread did not already.
+   *
+   * @return The quota cells
+   */
+  /*package*/ AtomicIntegerArray stripe() {
+    QUOTAS.compareAndSet(this, null, new AtomicIntegerArray(stripes * CELL_SPACING));
+    return quotas;
+  }
+
+  /**
+   * @return The value including the cost if it was taken from the quota of the stripe of the
+   *         thread, {@link Integer#MIN_VALUE} if the quota is too small or the delta exceeds the
+   *         limit
+   */
+  private int takeFromQuota(AtomicIntegerArray currentQuotas, int cost, int limit) {
+    if (cost <= 0) {
+      return Integer.MIN_VALUE;
+    }
+    int index = stripeIndex();
+    int quota = currentQuotas.get(index);
+    while (quota >= cost) {
+      if (currentQuotas.compareAndSet(index, quota, quota - cost)) {
+        int value = delta.get() + total.get();
+        if (value > limit) {
+          // The total was raised or a cost was added without a limit since the reservation.
+          currentQuotas.addAndGet(index, cost);
+          return Integer.MIN_VALUE;
+        }
+        return value - (quota - cost);
+      }
+      quota = currentQuotas.get(index);
+    }
+    return Integer.MIN_VALUE;
+  }
+
+  private int chunkFor(int left) {
+    return left / (2 * stripes);
+  }
+
+  private int stripeIndex() {
+    int hash = System.identityHashCode(Thread.currentThread());
+    return ((hash ^ (hash >>> 16)) & (stripes - 1)) * CELL_SPACING;
+  }
+
+  private int reclaimQuotas() {
+    AtomicIntegerArray currentQuotas = quotas;
+    return currentQuotas == null ? 0 : reclaimQuotas(currentQuotas);
+  }
+
+  /**
+   * Gives the unused quotas back to the delta. Each quota is emptied before the delta is
+   * decreased, so a concurrent read never misses a cost.
+   *
+   * @return The sum of the quotas given back
+   */
+  private int reclaimQuotas(AtomicIntegerArray currentQuotas) {
+    int reclaimed = 0;
+    for (int i = 0; i < currentQuotas.length(); i += CELL_SPACING) {
+      if (currentQuotas.get(i) != 0) {
+        reclaimed += currentQuotas.getAndSet(i, 0);
+      }
+    }
+    if (reclaimed != 0) {
+      delta.addAndGet(-reclaimed);
+    }
+    return reclaimed;
+  }
+
+  /**
+   * The quotas are read before the delta by the callers, and a quota is only increased after
+   * the delta, so a read never misses a cost.
+   */
+  private int sumQuotas() {
+    AtomicIntegerArray currentQuotas = quotas;
+    if (currentQuotas == null) {
+      return 0;
+    }
+    int sum = 0;
+    for (int i = 0; i < currentQuotas.length(); i += CELL_SPACING) {
+      sum += currentQuotas.get(i);
+    }
+    return sum;
+  }
 }
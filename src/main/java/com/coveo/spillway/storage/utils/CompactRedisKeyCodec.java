@@ -0,0 +1,199 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+
+import com.coveo.spillway.limit.LimitKey;
+
+/**
+ * A {@link RedisKeyCodec} producing short binary keys that are cheap to build.
+ * <p>
+ * A key is the prefix followed by a zero byte, then the resource, the limit name and the
+ * property each preceded by their length in bytes, then the bucket and the expiration in
+ * milliseconds. Lengths and numbers are written as unsigned varints, seven bits per byte
+ * with the high bit set on every byte but the last.
+ * <p>
+ * The keys cannot be read by the {@link TextRedisKeyCodec}, so switching an existing
+ * deployment to this codec starts every limit from zero.
+ */
+public class CompactRedisKeyCodec implements RedisKeyCodec {
+  private static final byte PREFIX_TERMINATOR = 0;
+  private static final byte WILD_CARD_OPERATOR = '*';
+  private static final byte ESCAPE = '\\';
+
+  private final byte[] keyPrefix;
+
+  public CompactRedisKeyCodec(String keyPrefix) {
+    byte[] prefix = keyPrefix.getBytes(StandardCharsets.UTF_8);
+    this.keyPrefix = new byte[prefix.length + 1];
+    System.arraycopy(prefix, 0, this.keyPrefix, 0, prefix.length);
+    this.keyPrefix[prefix.length] = PREFIX_TERMINATOR;
+  }
+
+  @Override
+  public byte[] encode(LimitKey limitKey) {
+    byte[] resource = limitKey.getResource().getBytes(StandardCharsets.UTF_8);
+    byte[] limitName = limitKey.getLimitName().getBytes(StandardCharsets.UTF_8);
+    byte[] property = limitKey.getProperty().getBytes(StandardCharsets.UTF_8);
+    long bucket = limitKey.getBucket().toEpochMilli();
+    long expiration = limitKey.getExpiration().toMillis();
+
+    byte[] key =
+        new byte
+            [keyPrefix.length
+                + sizeOf(resource)
+                + sizeOf(limitName)
+                + sizeOf(property)
+                + sizeOf(bucket)
+                + sizeOf(expiration)];
+    System.arraycopy(keyPrefix, 0, key, 0, keyPrefix.length);
+    int position = write(resource, key, keyPrefix.length);
+    position = write(limitName, key, position);
+    position = write(property, key, position);
+    position = write(bucket, key, position);
+    write(expiration, key, position);
+    return key;
+  }
+
+  @Override
+  public byte[] encodePattern(String... components) {
+    ByteArrayOutputStream pattern = new ByteArrayOutputStream();
+    escape(keyPrefix, pattern);
+    for (String component : components) {
+      byte[] bytes = component.getBytes(StandardCharsets.UTF_8);
+      byte[] field = new byte[sizeOf(bytes)];
+      write(bytes, field, 0);
+      escape(field, pattern);
+    }
+    pattern.write(WILD_CARD_OPERATOR);
+    return pattern.toByteArray();
+  }
+
+  @Override
+  public LimitKey decode(byte[] key) {
+    if (key.length < keyPrefix.length) {
+      return null;
+    }
+    for (int i = 0; i < keyPrefix.length; i++) {
+      if (key[i] != keyPrefix[i]) {
+        return null;
+      }
+    }
+
+    try {
+      KeyReader reader = new KeyReader(key, keyPrefix.length);
+      LimitKey limitKey =
+          new LimitKey(
+              reader.readString(),
+              reader.readString(),
+              reader.readString(),
+              true,
+              Instant.ofEpochMilli(reader.readLong()),
+              Duration.ofMillis(reader.readLong()));
+      return reader.isAtEnd() ? limitKey : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static int sizeOf(byte[] field) {
+    return sizeOf(field.length) + field.length;
+  }
+
+  private static int sizeOf(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static int write(byte[] field, byte[] key, int position) {
+    position = write(field.length, key, position);
+    System.arraycopy(field, 0, key, position, field.length);
+    return position + field.length;
+  }
+
+  private static int write(long value, byte[] key, int position) {
+    while ((value & ~0x7FL) != 0) {
+      key[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    key[position++] = (byte) value;
+    return position;
+  }
+
+  private static void escape(byte[] bytes, ByteArrayOutputStream pattern) {
+    for (byte value : bytes) {
+      // Lengths are binary and may collide with the special characters of the glob patterns.
+      if (value == '*' || value == '?' || value == '[' || value == ']' || value == ESCAPE) {
+        pattern.write(ESCAPE);
+      }
+      pattern.write(value);
+    }
+  }
+
+  private static class KeyReader {
+    private final byte[] key;
+    private int position;
+
+    private KeyReader(byte[] key, int position) {
+      this.key = key;
+      this.position = position;
+    }
+
+    private long readLong() {
+      long value = 0;
+      for (int shift = 0; shift < Long.SIZE; shift += 7) {
+        if (position >= key.length) {
+          throw new IllegalArgumentException("The key ends in the middle of a number.");
+        }
+        byte current = key[position++];
+        value |= (long) (current & 0x7F) << shift;
+        if ((current & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("The key contains a number that is too long.");
+    }
+
+    private String readString() {
+      long length = readLong();
+      if (length < 0 || length > key.length - position) {
+        throw new IllegalArgumentException("The key ends in the middle of a component.");
+      }
+      String value = new String(key, position, (int) length, StandardCharsets.UTF_8);
+      position += (int) length;
+      return value;
+    }
+
+    private boolean isAtEnd() {
+      return position == key.length;
+    }
+  }
+}
@@ -0,0 +1,595 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed size open addressing hash table of primitive counters, keyed by 64 bits hashes.
+ * <p>
+ * Each slot is two longs: the hash of its key and a value word packing an expiration in epoch
+ * seconds in its upper half with a count in its lower half. Values are only updated with a
+ * compare and set, so updates never take a lock and never allocate.
+ * <p>
+ * Keys are found by linear probing from a position derived from their hash. A slot is never
+ * emptied again: once its value expires, it is reused by the next key inserted in its probe
+ * sequence. Inserting a key takes a lock so that two threads cannot insert the same key in two
+ * slots. The value of a reused slot is set to {@link #LOCKED} while its key
+ * is replaced, which makes any compare and set based on its previous value fail.
+ * <p>
+ * Two keys with the same hash share a counter. With 64 bits hashes, this is unlikely enough to
+ * be ignored for the number of counters a table holds.
+ * <p>
+ * The table is laid out as longs behind {@link #getVolatile(int)} and the related methods, so
+ * that it can live in any memory, see {@link #onHeap(int)} and {@link #mapped(Path, int)}. The
+ * threads of a process insert their keys one at a time under a {@link ReentrantLock}. The
+ * processes sharing a mapped table also take a {@link FileLock} on its lock word, which the
+ * operating system releases if a process dies while it inserts a key. The lock word is set while
+ * the lock is held, so the next process taking the lock finds it set and repairs the slots that
+ * were left {@link #LOCKED}. A table on the heap is never shared, so it only takes the
+ * {@link ReentrantLock}.
+ */
+public abstract class CounterTable implements AutoCloseable {
+  /**
+   * Returned when a key is not in the table or when the table is full.
+   */
+  public static final int NOT_FOUND = -1;
+
+  /**
+   * Value of a slot whose key is being replaced, also returned by {@link #getValue(int, long)}
+   * when the slot no longer holds the key.
+   */
+  public static final long LOCKED = -1L;
+
+  /**
+   * The latest expiration a value can hold, in epoch seconds. The next one is {@link #LOCKED}.
+   */
+  public static final long MAXIMUM_EXPIRATION = 0xFFFFFFFEL;
+
+  /*package*/ static final long MAGIC = 0x5350494c4c574159L;
+  /*package*/ static final int HEADER_LONGS = 8;
+  /*package*/ static final int MAGIC_INDEX = 0;
+  /*package*/ static final int SLOT_COUNT_INDEX = 1;
+  /*package*/ static final int LOCK_INDEX = 2;
+  /*package*/ static final int LONGS_PER_SLOT = 2;
+
+  private static final long EMPTY = 0L;
+  private static final long UNLOCKED = 0L;
+  private static final long LOCK_HELD = 1L;
+  // Spins on a locked slot before waiting for the lock of the process inserting its key.
+  private static final int SPINS_BEFORE_LOCKING = 1_000;
+  private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+  private final int slotCount;
+  private final ReentrantLock insertionLock = new ReentrantLock();
+
+  protected CounterTable(int slotCount) {
+    this.slotCount = slotCount;
+  }
+
+  /**
+   * Creates a table in a {@code long[]} of the heap.
+   *
+   * @param capacity The number of counters the table should hold, it has a third more slots
+   * @return The new {@link CounterTable}
+   */
+  public static CounterTable onHeap(int capacity) {
+    return new HeapCounterTable(slotCountFor(capacity));
+  }
+
+  /**
+   * Creates a table in a file mapped in memory, or opens the table already in the file.
+   * <p>
+   * The processes that map the same file share its counters at memory speed, and the counters
+   * survive the restart of a process. They are written to the disk by the operating system, so
+   * they may be lost if the host stops.
+   *
+   * @param path The file of the table, created if it does not exist
+   * @param capacity The number of counters the table should hold, it must be the same in every
+   *                 process using the file
+   * @return The new {@link CounterTable}, {@link #close()} closes its file
+   * @throws IOException If the file cannot be mapped or holds a table of another capacity, in
+   *                     which case it is left unchanged
+   */
+  public static CounterTable mapped(Path path, int capacity) throws IOException {
+    int slotCount = slotCountFor(capacity);
+    long size = (long) getLongCount(slotCount) * Long.BYTES;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("'capacity' is too large for a mapped table");
+    }
+
+    FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      // Other processes may be opening the file at the same time.
+      FileLock lock = lockWord(channel, MAGIC_INDEX);
+      try {
+        // Mapping a file grows it to the size of the mapping.
+        long existingSize = channel.size();
+        if (existingSize != 0 && existingSize != size) {
+          throw new IOException(
+              path
+                  + " holds "
+                  + existingSize
+                  + " bytes instead of the "
+                  + size
+                  + " bytes of a counter table of "
+                  + slotCount
+                  + " slots.");
+        }
+        MappedCounterTable table =
+            new MappedCounterTable(
+                slotCount, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        table.initialize(path);
+        return table;
+      } finally {
+        lock.release();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @param capacity The number of counters a table should hold
+   * @return The number of slots that keeps the table three quarters full at that capacity
+   */
+  public static int slotCountFor(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("'capacity' must be greater than zero");
+    }
+    long slotCount = Math.max(2, (long) capacity * 4 / 3);
+    if ((slotCount + HEADER_LONGS / LONGS_PER_SLOT) * LONGS_PER_SLOT > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("'capacity' is too large for a single table");
+    }
+    return (int) slotCount;
+  }
+
+  /**
+   * @param expiration The epoch second after which the count is expired
+   * @param count The count
+   * @return The value word of a slot
+   */
+  public static long pack(long expiration, int count) {
+    return (expiration << 32) | (count & COUNT_MASK);
+  }
+
+  public static int getCount(long value) {
+    return (int) value;
+  }
+
+  public static long getExpiration(long value) {
+    return value >>> 32;
+  }
+
+  /**
+   * @param value The value word of a slot
+   * @param now The current epoch second
+   * @return True if the value is expired, a {@link #LOCKED} value never is
+   */
+  public static boolean isExpired(long value, long now) {
+    return getExpiration(value) < now;
+  }
+
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  /**
+   * Looks for a key without taking a lock.
+   *
+   * @param key The hash of the key, zero is remapped since it marks empty slots
+   * @return The slot of the key, {@link #NOT_FOUND} if the key is not in the table
+   */
+  public int find(long key) {
+    key = remap(key);
+    int slot = homeSlot(key);
+    for (int probes = 0; probes < slotCount; probes++) {
+      long slotKey = getVolatile(keyIndex(slot));
+      if (slotKey == key) {
+        return slot;
+      }
+      if (slotKey == EMPTY) {
+        return NOT_FOUND;
+      }
+      slot = nextSlot(slot);
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Looks for a key and inserts it if it is missing, in an empty slot or in the first slot
+   * whose value is expired.
+   *
+   * @param key The hash of the key, zero is remapped since it marks empty slots
+   * @param expiration The epoch second after which the count of an inserted key is expired
+   * @param now The current epoch second, used to tell which slots can be reused
+   * @return The slot of the key, {@link #NOT_FOUND} if the table is full
+   */
+  public int findOrCreate(long key, long expiration, long now) {
+    int slot = find(key);
+    if (slot != NOT_FOUND) {
+      return slot;
+    }
+
+    key = remap(key);
+    lock();
+    try {
+      while (true) {
+        int reusableSlot = scanForInsertion(key, expiration, now);
+        if (reusableSlot < 0) {
+          // Either the slot of the key, a newly filled empty slot or NOT_FOUND.
+          return -reusableSlot - 2;
+        }
+        long value = getVolatile(valueIndex(reusableSlot));
+        if (isExpired(value, now) && compareAndSet(valueIndex(reusableSlot), value, LOCKED)) {
+          setVolatile(keyIndex(reusableSlot), key);
+          setVolatile(valueIndex(reusableSlot), pack(expiration, 0));
+          return reusableSlot;
+        }
+        // The count was updated since the scan, so the slot is no longer expired.
+      }
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * @param slot A slot returned by {@link #find(long)} or {@link #findOrCreate(long, long, long)}
+   * @param key The hash of the key of the slot
+   * @return The value word of the slot, {@link #LOCKED} if the slot no longer holds the key
+   */
+  public long getValue(int slot, long key) {
+    key = remap(key);
+    int spins = 0;
+    while (true) {
+      long value = getVolatile(valueIndex(slot));
+      if (value == LOCKED) {
+        spins = waitForUnlockedSlot(spins);
+        continue;
+      }
+      // The key is read after the value: a slot is only given to another key once its value
+      // was replaced, so a compare and set from this value fails if the key changed since.
+      return getVolatile(keyIndex(slot)) == key ? value : LOCKED;
+    }
+  }
+
+  /**
+   * @param slot The slot to update
+   * @param expected The value returned by {@link #getValue(int, long)}
+   * @param value The new value word
+   * @return True if the value of the slot was still the expected one and was replaced
+   */
+  public boolean compareAndSetValue(int slot, long expected, long value) {
+    return compareAndSet(valueIndex(slot), expected, value);
+  }
+
+  /**
+   * Calls the consumer with the value word of every slot that holds a key.
+   *
+   * @param consumer Receives the hash of the key and the value word of each slot
+   */
+  public void forEach(SlotConsumer consumer) {
+    for (int slot = 0; slot < slotCount; slot++) {
+      long key = getVolatile(keyIndex(slot));
+      long value = getVolatile(valueIndex(slot));
+      if (key != EMPTY && value != LOCKED) {
+        consumer.accept(key, value);
+      }
+    }
+  }
+
+  /**
+   * Receives the slots of {@link CounterTable#forEach(SlotConsumer)}.
+   */
+  @FunctionalInterface
+  public interface SlotConsumer {
+    void accept(long key, long value);
+  }
+
+  @Override
+  public void close() throws IOException {}
+
+  /**
+   * @param index The position of a long in the table, header included
+   * @return The long at that position
+   */
+  protected abstract long getVolatile(int index);
+
+  protected abstract void setVolatile(int index, long value);
+
+  protected abstract boolean compareAndSet(int index, long expected, long value);
+
+  /**
+   * @return True if other processes may use the table, in which case they also take its lock
+   */
+  protected abstract boolean isShared();
+
+  /**
+   * Called by shared tables once the lock of the process is held, blocks until no other process
+   * holds the lock of the table.
+   */
+  protected void lockAcrossProcesses() {}
+
+  protected void unlockAcrossProcesses() {}
+
+  /**
+   * Must be called with the lock held.
+   *
+   * @return The first expired slot of the probe sequence of the key if the key is not in the
+   *         table, otherwise {@code -slot - 2} with the slot of the key, the empty slot in which
+   *         it was inserted or {@link #NOT_FOUND} if the table is full
+   */
+  private int scanForInsertion(long key, long expiration, long now) {
+    int reusableSlot = NOT_FOUND;
+    int slot = homeSlot(key);
+    for (int probes = 0; probes < slotCount; probes++) {
+      long slotKey = getVolatile(keyIndex(slot));
+      if (slotKey == key) {
+        return -slot - 2;
+      }
+      if (slotKey == EMPTY) {
+        if (reusableSlot != NOT_FOUND) {
+          return reusableSlot;
+        }
+        // The value is published before the key so that finding the key finds a value.
+        setVolatile(valueIndex(slot), pack(expiration, 0));
+        setVolatile(keyIndex(slot), key);
+        return -slot - 2;
+      }
+      if (reusableSlot == NOT_FOUND && isExpired(getVolatile(valueIndex(slot)), now)) {
+        reusableSlot = slot;
+      }
+      slot = nextSlot(slot);
+    }
+    return reusableSlot != NOT_FOUND ? reusableSlot : -NOT_FOUND - 2;
+  }
+
+  private void lock() {
+    insertionLock.lock();
+    if (isShared()) {
+      try {
+        lockAcrossProcesses();
+      } catch (RuntimeException e) {
+        insertionLock.unlock();
+        throw e;
+      }
+      if (getVolatile(LOCK_INDEX) != UNLOCKED) {
+        // The previous holder of the lock died before releasing it.
+        repairLockedSlots();
+      }
+      setVolatile(LOCK_INDEX, LOCK_HELD);
+    }
+  }
+
+  /**
+   * Must be called with the lock held. Expires the values left {@link #LOCKED} by a process
+   * that died while it inserted a key, so that their slots are reused.
+   */
+  private void repairLockedSlots() {
+    for (int slot = 0; slot < slotCount; slot++) {
+      compareAndSet(valueIndex(slot), LOCKED, pack(0, 0));
+    }
+  }
+
+  /**
+   * A slot stays {@link #LOCKED} if the process inserting its key died, in which case taking
+   * the lock repairs it. Otherwise, the lock is only given once the key is inserted.
+   *
+   * @return The number of times the slot was seen locked
+   */
+  private int waitForUnlockedSlot(int spins) {
+    if (isShared() && spins >= SPINS_BEFORE_LOCKING) {
+      lock();
+      unlock();
+      return 0;
+    }
+    Thread.onSpinWait();
+    return spins + 1;
+  }
+
+  private void unlock() {
+    if (!isShared()) {
+      insertionLock.unlock();
+      return;
+    }
+    setVolatile(LOCK_INDEX, UNLOCKED);
+    try {
+      unlockAcrossProcesses();
+    } finally {
+      insertionLock.unlock();
+    }
+  }
+
+  private int homeSlot(long key) {
+    // Maps the upper bits of the hash to a slot without requiring a power of two.
+    return (int) (((key >>> 32) * slotCount) >>> 32);
+  }
+
+  private int nextSlot(int slot) {
+    return slot + 1 == slotCount ? 0 : slot + 1;
+  }
+
+  private static int keyIndex(int slot) {
+    return HEADER_LONGS + slot * LONGS_PER_SLOT;
+  }
+
+  private static int valueIndex(int slot) {
+    return HEADER_LONGS + slot * LONGS_PER_SLOT + 1;
+  }
+
+  private static long remap(long key) {
+    return key == EMPTY ? 1 : key;
+  }
+
+  /*package*/ static int getLongCount(int slotCount) {
+    return HEADER_LONGS + slotCount * LONGS_PER_SLOT;
+  }
+
+  /**
+   * Locks a long of the file against the other processes. The lock is also refused while
+   * another channel of this process holds it, so tables mapping the same file in one process
+   * exclude each other as well.
+   */
+  private static FileLock lockWord(FileChannel channel, int index) throws IOException {
+    while (true) {
+      try {
+        FileLock lock = channel.tryLock((long) index * Long.BYTES, Long.BYTES, false);
+        if (lock != null) {
+          return lock;
+        }
+      } catch (OverlappingFileLockException e) {
+        // Held by another table of this process.
+      }
+      Thread.yield();
+    }
+  }
+
+  private static final class MappedCounterTable extends CounterTable {
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    // Only used with the lock of the process held.
+    private FileLock lock;
+
+    private MappedCounterTable(int slotCount, FileChannel channel, MappedByteBuffer buffer) {
+      super(slotCount);
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+
+    private void initialize(Path path) throws IOException {
+      long magic = getVolatile(MAGIC_INDEX);
+      if (magic == 0) {
+        setVolatile(SLOT_COUNT_INDEX, getSlotCount());
+        setVolatile(MAGIC_INDEX, MAGIC);
+      } else if (magic != MAGIC) {
+        throw new IOException(path + " does not hold a counter table.");
+      } else if (getVolatile(SLOT_COUNT_INDEX) != getSlotCount()) {
+        throw new IOException(
+            path
+                + " holds a counter table of "
+                + getVolatile(SLOT_COUNT_INDEX)
+                + " slots instead of "
+                + getSlotCount()
+                + ".");
+      }
+    }
+
+    @Override
+    protected long getVolatile(int index) {
+      return (long) LONGS.getVolatile(buffer, index * Long.BYTES);
+    }
+
+    @Override
+    protected void setVolatile(int index, long value) {
+      LONGS.setVolatile(buffer, index * Long.BYTES, value);
+    }
+
+    @Override
+    protected boolean compareAndSet(int index, long expected, long value) {
+      return LONGS.compareAndSet(buffer, index * Long.BYTES, expected, value);
+    }
+
+    @Override
+    protected boolean isShared() {
+      return true;
+    }
+
+    @Override
+    protected void lockAcrossProcesses() {
+      try {
+        lock = lockWord(channel, LOCK_INDEX);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    protected void unlockAcrossProcesses() {
+      try {
+        lock.release();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        lock = null;
+      }
+    }
+
+    /**
+     * The mapping itself is released once the table is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static final class HeapCounterTable extends CounterTable {
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] longs;
+
+    private HeapCounterTable(int slotCount) {
+      super(slotCount);
+      this.longs = new long[getLongCount(slotCount)];
+      longs[MAGIC_INDEX] = MAGIC;
+      longs[SLOT_COUNT_INDEX] = slotCount;
+    }
+
+    @Override
+    protected long getVolatile(int index) {
+      return (long) LONGS.getVolatile(longs, index);
+    }
+
+    @Override
+    protected void setVolatile(int index, long value) {
+      LONGS.setVolatile(longs, index, value);
+    }
+
+    @Override
+    protected boolean compareAndSet(int index, long expected, long value) {
+      return LONGS.compareAndSet(longs, index, expected, value);
+    }
+
+    @Override
+    protected boolean isShared() {
+      return false;
+    }
+  }
+}
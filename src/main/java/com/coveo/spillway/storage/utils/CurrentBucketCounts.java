@@ -0,0 +1,100 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.InMemoryStorage;
+import com.coveo.spillway.storage.LimitUsageStorage;
+
+/**
+ * Sends costs to a distributed storage and returns the count of the bucket of each request,
+ * as needed to reconcile the counters of an {@link InMemoryStorage} cache.
+ * <p>
+ * The count returned for a sliding window includes the weighted count of its previous bucket,
+ * which the cache adds itself when it reads the window. The previous bucket is therefore read
+ * in the same call and its weighted part is removed from the returned count. It is read with a
+ * request of no cost, which the Redis storages answer without creating its key or extending its
+ * expiration.
+ */
+public class CurrentBucketCounts {
+  private CurrentBucketCounts() {}
+
+  /**
+   * @param storage The distributed storage
+   * @param requests The costs to add
+   * @return The count of the bucket of each request, without the previous bucket of the sliding
+   *         windows
+   */
+  public static Map<LimitKey, Integer> addAndGet(
+      LimitUsageStorage storage, Collection<AddAndGetRequest> requests) {
+    Set<LimitKey> limitKeys = new HashSet<>();
+    for (AddAndGetRequest request : requests) {
+      limitKeys.add(LimitKey.fromRequest(request));
+    }
+
+    List<AddAndGetRequest> sentRequests = new ArrayList<>(requests);
+    for (AddAndGetRequest request : requests) {
+      if (request.isSlidingWindow()
+          && limitKeys.add(LimitKey.fromRequest(request).getPreviousBucketKey())) {
+        sentRequests.add(
+            new AddAndGetRequest.Builder(request)
+                .withSlidingWindow(false)
+                .withEventTimestamp(request.getBucket().minus(request.getExpiration()))
+                .withCost(0)
+                .build());
+      }
+    }
+    // A previous bucket is updated before the windows reading it, so that the count returned
+    // for it is the one weighted into their counts.
+    sentRequests.sort(Comparator.comparing(AddAndGetRequest::getBucket));
+
+    Map<LimitKey, Integer> responses = storage.addAndGet(sentRequests);
+
+    Map<LimitKey, Integer> counts = new HashMap<>(responses);
+    for (AddAndGetRequest request : requests) {
+      LimitKey limitKey = LimitKey.fromRequest(request);
+      Integer count = responses.get(limitKey);
+      Integer previousCount = responses.get(limitKey.getPreviousBucketKey());
+      if (request.isSlidingWindow() && count != null && previousCount != null) {
+        counts.put(
+            limitKey,
+            count
+                - LimitUtils.calculateSlidingCount(
+                    previousCount,
+                    request.getEventTimestamp().toEpochMilli(),
+                    request.getExpiration().toMillis()));
+      }
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.coveo.spillway.limit.LimitKey;
+
+/**
+ * A {@link RedisKeyCodec} that starts the keys of another codec with a hash tag, for instance
+ * {@code {resource|property}spillway|resource|limit|property|2020-01-01T00:00:00Z|PT1H}.
+ * <p>
+ * Braces are replaced by an underscore in the tag, so that the tag always ends at the first
+ * closing brace of the key. An empty tag is replaced by an underscore as well: Redis hashes the
+ * whole key when its tag is empty, which would spread the buckets of a limit over several slots.
+ *
+ * @see RedisHashTag
+ */
+public class HashTagRedisKeyCodec implements RedisKeyCodec {
+  private static final byte TAG_START = '{';
+  private static final byte TAG_END = '}';
+  private static final byte[] ANY_TAG = {TAG_START, '*', TAG_END};
+  private static final String EMPTY_TAG = "_";
+
+  private final RedisKeyCodec keyCodec;
+  private final RedisHashTag hashTag;
+
+  public HashTagRedisKeyCodec(RedisKeyCodec keyCodec, RedisHashTag hashTag) {
+    this.keyCodec = keyCodec;
+    this.hashTag = hashTag;
+  }
+
+  @Override
+  public byte[] encode(LimitKey limitKey) {
+    String tagValue = hashTag.of(limitKey);
+    if (tagValue.isEmpty()) {
+      tagValue = EMPTY_TAG;
+    }
+    byte[] tag = tagValue.replace('{', '_').replace('}', '_').getBytes(StandardCharsets.UTF_8);
+    byte[] key = keyCodec.encode(limitKey);
+
+    byte[] taggedKey = new byte[tag.length + key.length + 2];
+    taggedKey[0] = TAG_START;
+    System.arraycopy(tag, 0, taggedKey, 1, tag.length);
+    taggedKey[tag.length + 1] = TAG_END;
+    System.arraycopy(key, 0, taggedKey, tag.length + 2, key.length);
+    return taggedKey;
+  }
+
+  @Override
+  public byte[] encodePattern(String... components) {
+    byte[] pattern = keyCodec.encodePattern(components);
+
+    byte[] taggedPattern = Arrays.copyOf(ANY_TAG, ANY_TAG.length + pattern.length);
+    System.arraycopy(pattern, 0, taggedPattern, ANY_TAG.length, pattern.length);
+    return taggedPattern;
+  }
+
+  @Override
+  public LimitKey decode(byte[] key) {
+    if (key.length == 0 || key[0] != TAG_START) {
+      return null;
+    }
+    for (int i = 1; i < key.length; i++) {
+      if (key[i] == TAG_END) {
+        return keyCodec.decode(Arrays.copyOfRange(key, i + 1, key.length));
+      }
+    }
+    return null;
+  }
+}
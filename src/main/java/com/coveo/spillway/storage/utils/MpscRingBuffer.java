@@ -0,0 +1,228 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Bounded multi-producer single-consumer queue backed by a preallocated ring.
+ * <p>
+ * Producers claim a position by incrementing the tail and publish their element by updating
+ * the sequence of its slot, so an offer never takes a lock nor allocates. The single consumer
+ * drains every published element in one pass and frees their slots for the producers.
+ * <p>
+ * The ring is sized to the next power of two of the capacity, but the capacity itself is what
+ * bounds the number of elements waiting to be drained.
+ * <p>
+ * A buffer created with a carrier factory holds a carrier per slot, created once. Producers write
+ * their values into the carrier of the slot they claim with {@link #offer(Object, BiConsumer)},
+ * so that values that are not objects of their own can be handed over without allocating. The
+ * consumer receives the carriers and must not keep them, they are reused by the next offers.
+ *
+ * @param <E> The type of the elements
+ */
+public class MpscRingBuffer<E> {
+  private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  private final int capacity;
+  private final int mask;
+  private final long[] sequences;
+  private final Object[] elements;
+  private final boolean carriers;
+
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+
+  public MpscRingBuffer(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * @param capacity The maximum number of elements waiting to be drained
+   * @param carrierFactory Creates the carrier of each slot, null to hand over the elements
+   *                       themselves
+   */
+  public MpscRingBuffer(int capacity, Supplier<? extends E> carrierFactory) {
+    if (capacity <= 0 || capacity > MAXIMUM_CAPACITY) {
+      throw new IllegalArgumentException("The capacity must be between 1 and 2^30.");
+    }
+    // A ring of a single slot cannot tell a free slot from a published one.
+    int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+
+    this.capacity = capacity;
+    this.mask = size - 1;
+    this.sequences = new long[size];
+    this.elements = new Object[size];
+    this.carriers = carrierFactory != null;
+    for (int i = 0; i < size; i++) {
+      sequences[i] = i;
+      if (carriers) {
+        elements[i] = carrierFactory.get();
+      }
+    }
+  }
+
+  /**
+   * Adds an element if the buffer is not full. Can be called by any thread.
+   *
+   * @param element The element to add
+   * @return False if the buffer is full
+   */
+  public boolean offer(E element) {
+    Objects.requireNonNull(element);
+    if (carriers) {
+      throw new IllegalStateException("The values of a buffer of carriers are offered by writers.");
+    }
+
+    long position = claim();
+    if (position < 0) {
+      return false;
+    }
+    int index = (int) position & mask;
+    elements[index] = element;
+    SEQUENCES.setRelease(sequences, index, position + 1);
+    return true;
+  }
+
+  /**
+   * Writes a value into the carrier of a free slot if the buffer is not full. Can be called by
+   * any thread.
+   *
+   * @param value The value to hand over
+   * @param writer Copies the value into the carrier, it should not capture anything so that
+   *               passing it does not allocate
+   * @param <T> The type of the value
+   * @return False if the buffer is full
+   */
+  @SuppressWarnings("unchecked")
+  public <T> boolean offer(T value, BiConsumer<? super E, ? super T> writer) {
+    if (!carriers) {
+      throw new IllegalStateException("Only a buffer of carriers can write the offered values.");
+    }
+
+    long position = claim();
+    if (position < 0) {
+      return false;
+    }
+    int index = (int) position & mask;
+    try {
+      writer.accept((E) elements[index], value);
+    } finally {
+      // The slot must be published even if the writer failed, the consumer waits for it.
+      SEQUENCES.setRelease(sequences, index, position + 1);
+    }
+    return true;
+  }
+
+  /**
+   * @return The claimed position, -1 if the buffer is full
+   */
+  private long claim() {
+    long position = tail.get();
+    while (true) {
+      if (position - head.get() >= capacity) {
+        return -1;
+      }
+
+      int index = (int) position & mask;
+      long sequence = (long) SEQUENCES.getAcquire(sequences, index);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          return position;
+        }
+        position = tail.get();
+      } else if (sequence < position) {
+        // The slot is still held by an element that is being drained.
+        return -1;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the published elements in the order they were claimed and passes them to the
+   * consumer. Must only be called by the consumer thread.
+   *
+   * @param consumer Receives each removed element
+   * @param limit The maximum number of elements to remove
+   * @return The number of elements removed
+   */
+  @SuppressWarnings("unchecked")
+  public int drain(Consumer<? super E> consumer, int limit) {
+    long start = head.get();
+    int count = 0;
+    try {
+      while (count < limit) {
+        long position = start + count;
+        int index = (int) position & mask;
+        if ((long) SEQUENCES.getAcquire(sequences, index) != position + 1) {
+          break;
+        }
+        E element = (E) elements[index];
+        if (!carriers) {
+          elements[index] = null;
+        }
+        try {
+          consumer.accept(element);
+        } finally {
+          // A carrier is only given back to the producers once the consumer is done with it.
+          SEQUENCES.setRelease(sequences, index, position + mask + 1);
+          count++;
+        }
+      }
+    } finally {
+      // The head is only moved once per drain, producers see the freed slots in one step.
+      if (count > 0) {
+        head.lazySet(start + count);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return True if no element was claimed since the last drain, including elements claimed
+   *         but not yet published
+   */
+  public boolean isEmpty() {
+    return tail.get() == head.get();
+  }
+
+  /**
+   * @return The number of elements claimed and not yet drained
+   */
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+}
@@ -40,10 +40,21 @@ import com.coveo.spillway.storage.InMemoryStorage;
 public class OverrideKeyRequest {
   private LimitKey limitKey;
   private int newValue;
+  private int sentCost;
 
   public OverrideKeyRequest(LimitKey limitKey, int newValue) {
+    this(limitKey, newValue, 0);
+  }
+
+  /**
+   * @param limitKey The key to override
+   * @param newValue The value of the key in the distributed storage
+   * @param sentCost The cost sent to the distributed storage to obtain the value
+   */
+  public OverrideKeyRequest(LimitKey limitKey, int newValue, int sentCost) {
     this.limitKey = limitKey;
     this.newValue = newValue;
+    this.sentCost = sentCost;
   }
 
   public LimitKey getLimitKey() {
@@ -53,4 +64,8 @@ public class OverrideKeyRequest {
   public int getNewValue() {
     return newValue;
   }
+
+  public int getSentCost() {
+    return sentCost;
+  }
 }
@@ -0,0 +1,81 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import com.coveo.spillway.limit.LimitKey;
+
+/**
+ * The part of a {@link LimitKey} used as the hash tag of its Redis key, which decides the slot
+ * of the key in a Redis Cluster. Keys sharing a hash tag are in the same slot and can be
+ * handled by a single script.
+ * <p>
+ * Every bucket of a limit always shares the tag, so that a sliding window can read its
+ * previous bucket in the same script.
+ */
+public enum RedisHashTag {
+  /**
+   * Tags keys by resource, limit and property. This spreads the limits the most but each limit
+   * of a decision can be on a different node, so a decision may need several scripts.
+   */
+  LIMIT {
+    @Override
+    public String of(LimitKey limitKey) {
+      return limitKey.getResource()
+          + SEPARATOR
+          + limitKey.getLimitName()
+          + SEPARATOR
+          + limitKey.getProperty();
+    }
+  },
+
+  /**
+   * Tags keys by resource and property, so that the limits of a decision enforced on the same
+   * property are in the same slot.
+   */
+  PROPERTY {
+    @Override
+    public String of(LimitKey limitKey) {
+      return limitKey.getResource() + SEPARATOR + limitKey.getProperty();
+    }
+  },
+
+  /**
+   * Tags keys by resource, so that every limit of a decision is in the same slot and is checked
+   * atomically. The resources are spread over the cluster, but a busy resource loads a single
+   * node. This is the default of the {@link com.coveo.spillway.storage.RedisClusterStorage}.
+   */
+  RESOURCE {
+    @Override
+    public String of(LimitKey limitKey) {
+      return limitKey.getResource();
+    }
+  };
+
+  private static final String SEPARATOR = "|";
+
+  /**
+   * @param limitKey The {@link LimitKey} to tag
+   * @return The hash tag of the key, without its braces
+   */
+  public abstract String of(LimitKey limitKey);
+}
@@ -0,0 +1,55 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.RedisStorage;
+
+/**
+ * Converts {@link LimitKey}s to the binary keys stored by the {@link RedisStorage} and back.
+ *
+ * @see TextRedisKeyCodec
+ * @see CompactRedisKeyCodec
+ */
+public interface RedisKeyCodec {
+  /**
+   * @param limitKey The {@link LimitKey} to encode
+   * @return The Redis key of the limit
+   */
+  byte[] encode(LimitKey limitKey);
+
+  /**
+   * Builds a Redis glob pattern matching every key that starts with the given components.
+   *
+   * @param components The leading components of the keys in the order resource, limit name and
+   *                   property, none to match every key of the codec
+   * @return The pattern to use with the KEYS or SCAN commands
+   */
+  byte[] encodePattern(String... components);
+
+  /**
+   * @param key A Redis key matched by one of the patterns of the codec
+   * @return The decoded {@link LimitKey} or null if the key is not one of the codec
+   */
+  LimitKey decode(byte[] key);
+}
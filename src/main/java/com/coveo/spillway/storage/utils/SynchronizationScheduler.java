@@ -0,0 +1,218 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coveo.spillway.storage.AsyncBatchLimitUsageStorage;
+
+/**
+ * Runs the synchronizations of the {@link AsyncBatchLimitUsageStorage}s on a
+ * {@link ScheduledExecutorService} that can be shared by every storage, instead of
+ * a thread per storage.
+ * <p>
+ * A task is scheduled again once it completes, after its period spread randomly by the jitter,
+ * so that a slow synchronization never piles up runs and instances started together do not
+ * all hit the distributed storage at the same time.
+ * <p>
+ * The scheduled executor only keeps the time. The tasks run on a separate executor so that a
+ * storage slow to answer only holds its own run and never delays the synchronizations of the
+ * other storages.
+ */
+public class SynchronizationScheduler {
+  private static final Logger logger = LoggerFactory.getLogger(SynchronizationScheduler.class);
+
+  public static final double DEFAULT_JITTER = 0.1;
+
+  private static volatile SynchronizationScheduler shared;
+
+  private final ScheduledExecutorService executor;
+  private final Executor taskExecutor;
+
+  /**
+   * @param executor The executor keeping the time and running the tasks
+   */
+  public SynchronizationScheduler(ScheduledExecutorService executor) {
+    this(executor, Runnable::run);
+  }
+
+  /**
+   * @param executor The executor keeping the time
+   * @param taskExecutor The executor running the tasks, it must not make a task wait for
+   *                     another one to complete
+   */
+  public SynchronizationScheduler(ScheduledExecutorService executor, Executor taskExecutor) {
+    this.executor = executor;
+    this.taskExecutor = taskExecutor;
+  }
+
+  /**
+   * @return The scheduler used by the storages that are not given one. Its tasks run on threads
+   *         created on demand and released once idle, so each storage synchronizing at the same
+   *         time has its own. Its threads are daemons.
+   */
+  public static SynchronizationScheduler shared() {
+    if (shared == null) {
+      synchronized (SynchronizationScheduler.class) {
+        if (shared == null) {
+          shared =
+              new SynchronizationScheduler(
+                  Executors.newSingleThreadScheduledExecutor(
+                      newDaemonThreadFactory("spillway-synchronization-timer")),
+                  Executors.newCachedThreadPool(
+                      newDaemonThreadFactory("spillway-synchronization")));
+        }
+      }
+    }
+    return shared;
+  }
+
+  private static ThreadFactory newDaemonThreadFactory(String name) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Runs a task repeatedly until it is cancelled.
+   *
+   * @param task The task to run
+   * @param delayBeforeFirstRun The delay before the first run, also spread by the jitter
+   * @param period The delay between the end of a run and the start of the next one
+   * @param jitter The fraction of the delays by which they are randomly shortened or lengthened
+   * @return The handle used to cancel the task
+   */
+  public ScheduledSynchronization schedule(
+      Runnable task, Duration delayBeforeFirstRun, Duration period, double jitter) {
+    ScheduledSynchronization synchronization =
+        new ScheduledSynchronization(task, period.toMillis(), jitter);
+    synchronization.scheduleNext(delayBeforeFirstRun.toMillis());
+    return synchronization;
+  }
+
+  /**
+   * @param millis The delay to spread
+   * @param jitter The fraction of the delay by which it is randomly shortened or lengthened
+   * @return The delay spread by the jitter
+   */
+  public static long applyJitter(long millis, double jitter) {
+    if (jitter <= 0 || millis <= 0) {
+      return millis;
+    }
+    double spread = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return Math.max(0, Math.round(millis * (1 + spread)));
+  }
+
+  /**
+   * Handle of a task run by a {@link SynchronizationScheduler}.
+   */
+  public final class ScheduledSynchronization implements Runnable {
+    private final Runnable task;
+    private final long periodMillis;
+    private final double jitter;
+
+    private volatile boolean cancelled;
+    private volatile ScheduledFuture<?> future;
+    private int consecutiveFailures;
+
+    private ScheduledSynchronization(Runnable task, long periodMillis, double jitter) {
+      this.task = task;
+      this.periodMillis = periodMillis;
+      this.jitter = jitter;
+    }
+
+    @Override
+    public void run() {
+      if (cancelled) {
+        return;
+      }
+      try {
+        task.run();
+        if (consecutiveFailures > 0) {
+          logger.info("Synchronization succeeded after {} failures.", consecutiveFailures);
+          consecutiveFailures = 0;
+        }
+      } catch (RuntimeException e) {
+        // A storage that is down fails every run, only the first failure is a warning.
+        if (consecutiveFailures++ == 0) {
+          logger.warn("Synchronization failed, it will run again.", e);
+        } else {
+          logger.debug("Synchronization failed {} times in a row.", consecutiveFailures, e);
+        }
+      } finally {
+        scheduleNext(periodMillis);
+      }
+    }
+
+    /**
+     * Stops scheduling the task, a run in progress is not interrupted.
+     */
+    public void cancel() {
+      cancelled = true;
+      ScheduledFuture<?> current = future;
+      if (current != null) {
+        current.cancel(false);
+      }
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    private void scheduleNext(long delayMillis) {
+      if (cancelled) {
+        return;
+      }
+      try {
+        future =
+            executor.schedule(
+                this::submit, applyJitter(delayMillis, jitter), TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        logger.warn("The synchronization scheduler is shut down, the task will not run again.", e);
+      }
+    }
+
+    private void submit() {
+      try {
+        taskExecutor.execute(this);
+      } catch (RejectedExecutionException e) {
+        logger.warn("The synchronization executor is shut down, the task will not run again.", e);
+      }
+    }
+  }
+}
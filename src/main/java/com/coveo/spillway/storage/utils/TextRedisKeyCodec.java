@@ -0,0 +1,101 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.coveo.spillway.limit.LimitKey;
+
+/**
+ * The readable {@link RedisKeyCodec} used by default, which joins the prefix, the resource,
+ * the limit name, the property, the bucket and the expiration with a separator, for instance
+ * {@code spillway|resource|limit|property|2020-01-01T00:00:00Z|PT1H}.
+ * <p>
+ * Occurrences of the separator in the components are replaced by an underscore.
+ */
+public class TextRedisKeyCodec implements RedisKeyCodec {
+  public static final String KEY_SEPARATOR = "|";
+
+  private static final String KEY_SEPARATOR_SUBSTITUTE = "_";
+  private static final String WILD_CARD_OPERATOR = "*";
+
+  private final String keyPrefix;
+
+  public TextRedisKeyCodec(String keyPrefix) {
+    this.keyPrefix = keyPrefix;
+  }
+
+  @Override
+  public byte[] encode(LimitKey limitKey) {
+    return Stream.of(
+            keyPrefix,
+            limitKey.getResource(),
+            limitKey.getLimitName(),
+            limitKey.getProperty(),
+            limitKey.getBucket().toString(),
+            limitKey.getExpiration().toString())
+        .map(TextRedisKeyCodec::clean)
+        .collect(Collectors.joining(KEY_SEPARATOR))
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public byte[] encodePattern(String... components) {
+    return Stream.concat(
+            Stream.concat(Stream.of(keyPrefix), Stream.of(components))
+                .map(TextRedisKeyCodec::clean),
+            Stream.of(WILD_CARD_OPERATOR))
+        .collect(Collectors.joining(KEY_SEPARATOR))
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public LimitKey decode(byte[] key) {
+    String[] keyComponents =
+        StringUtils.split(new String(key, StandardCharsets.UTF_8), KEY_SEPARATOR);
+    if (keyComponents.length < 5) {
+      return null;
+    }
+
+    return new LimitKey(
+        keyComponents[1],
+        keyComponents[2],
+        keyComponents[3],
+        true,
+        Instant.parse(keyComponents[4]),
+        keyComponents.length == 6
+            ? Duration.parse(keyComponents[5])
+            : Duration
+                .ZERO); // Version pre alpha.3 are not storing the expiration within the key so we fallback to 0
+  }
+
+  private static String clean(String keyComponent) {
+    return keyComponent.replace(KEY_SEPARATOR, KEY_SEPARATOR_SUBSTITUTE);
+  }
+}
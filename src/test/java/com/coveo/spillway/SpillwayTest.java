@@ -8,8 +8,11 @@ import com.coveo.spillway.limit.LimitDefinition;
 import com.coveo.spillway.limit.LimitKey;
 import com.coveo.spillway.limit.override.LimitOverride;
 import com.coveo.spillway.limit.override.LimitOverrideBuilder;
+import com.coveo.spillway.limit.utils.LimitUtils;
 import com.coveo.spillway.storage.InMemoryStorage;
 import com.coveo.spillway.storage.LimitUsageStorage;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.coveo.spillway.trigger.LimitTriggerCallback;
 import com.coveo.spillway.trigger.ValueThresholdTrigger;
 import com.google.common.collect.ImmutableMap;
@@ -21,16 +24,29 @@ import org.mockito.ArgumentCaptor;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -44,6 +60,8 @@ public class SpillwayTest {
   private static final Duration A_SHORT_DURATION = Duration.ofSeconds(2);
   private static final String JOHN = "john";
   private static final String A_LIMIT_NAME = "perUser";
+  private static final int DENY_CACHE_CAPACITY = 1024;
+  private static final Duration DENY_CACHE_ENTRY_LIFETIME = Duration.ofMillis(100);
 
   private record User(String name, String ip) {}
 
@@ -80,6 +98,44 @@ public class SpillwayTest {
     assertThat(spillway.tryCall(john)).isFalse(); // Third tryCall fails
   }
 
+  @Test
+  public void tokenBucketLimitRefillsOverTime() {
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name)
+            .to(10)
+            .per(Duration.ofSeconds(10))
+            .tokenBucket(2)
+            .build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", limit);
+    Instant now = clock.instant();
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse(); // The burst of 2 is used
+
+    when(clock.instant()).thenReturn(now.plusSeconds(1));
+    assertThat(spillway.tryCall(john)).isTrue(); // One token per second is refilled
+    assertThat(spillway.tryCall(john)).isFalse();
+  }
+
+  @Test
+  public void checkLimitScalesTheCostOfATokenBucket() {
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name)
+            .to(10)
+            .per(Duration.ofSeconds(10))
+            .tokenBucket(2)
+            .build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", limit);
+
+    assertThat(spillway.checkLimit(john, 2)).isTrue();
+    assertThat(spillway.checkLimit(john, 3)).isFalse();
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.checkLimit(john, 1)).isTrue();
+    assertThat(spillway.checkLimit(john, 2)).isFalse(); // Only one token is left
+  }
+
   @Test
   public void multipleLimitsWithOverlap() {
     Limit<User> limit1 =
@@ -325,10 +381,11 @@ public class SpillwayTest {
 
   @Test
   public void triggersAreIgnoreIfTheStorageReturnsAnIncoherentResponse() {
-    when(mockedStorage.addAndGet(anyCollection()))
+    when(mockedStorage.tryAddAndGet(anyCollection()))
         .thenReturn(
             ImmutableMap.of(
                 mock(LimitKey.class), 1, mock(LimitKey.class), 2, mock(LimitKey.class), 3));
+    doCallRealMethod().when(mockedStorage).tryAddAndGet(any(AddAndGetBatch.class));
 
     LimitTriggerCallback callback = mock(LimitTriggerCallback.class);
     ValueThresholdTrigger trigger = new ValueThresholdTrigger(5, callback);
@@ -345,6 +402,85 @@ public class SpillwayTest {
     verify(callback, never()).trigger(any(LimitDefinition.class), any());
   }
 
+  @Test
+  public void tryCallChecksAndConsumesInASingleStorageCall() {
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(2).per(Duration.ofHours(1)).build();
+    Limit<User> ipLimit = LimitBuilder.of("perIp", User::ip).to(5).per(Duration.ofHours(1)).build();
+    when(mockedStorage.tryAddAndGet(anyCollection())).thenReturn(ImmutableMap.of());
+    doCallRealMethod().when(mockedStorage).tryAddAndGet(any(AddAndGetBatch.class));
+    Spillway<User> spillway = mockedFactory.enforce("testResource", userLimit, ipLimit);
+
+    spillway.tryCall(john);
+
+    verify(mockedStorage, times(1)).tryAddAndGet(any(AddAndGetBatch.class));
+    verify(mockedStorage, times(1)).tryAddAndGet(anyCollection());
+    verify(mockedStorage, never()).addAndGet(anyCollection());
+  }
+
+  @Test
+  public void resultsAreMatchedToTheirLimitWhenTheStorageDoesNotKeepTheRequestOrder()
+      throws Exception {
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(5).per(Duration.ofHours(1)).build();
+    Limit<User> ipLimit = LimitBuilder.of("perIp", User::ip).to(1).per(Duration.ofHours(1)).build();
+    Instant bucket = LimitUtils.calculateBucket(clock.instant(), A_DURATION);
+    when(mockedStorage.tryAddAndGet(anyCollection()))
+        .thenReturn(
+            ImmutableMap.of(
+                new LimitKey("testResource", "perIp", john.ip(), true, bucket, A_DURATION),
+                2,
+                new LimitKey("testResource", "perUser", JOHN, true, bucket, A_DURATION),
+                2));
+    doCallRealMethod().when(mockedStorage).tryAddAndGet(any(AddAndGetBatch.class));
+    Spillway<User> spillway =
+        new SpillwayFactory(mockedStorage, clock).enforce("testResource", userLimit, ipLimit);
+
+    try {
+      spillway.call(john);
+      fail("Expected an exception!");
+    } catch (SpillwayLimitExceededException ex) {
+      assertThat(ex.getExceededLimits()).containsExactly(ipLimit.getDefinition());
+    }
+  }
+
+  @Test
+  public void concurrentCallsNeverExceedTheCapacity() throws Exception {
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(A_CAPACITY).per(Duration.ofHours(1)).build();
+    Limit<User> ipLimit =
+        LimitBuilder.of("perIp", User::ip).to(A_HIGHER_CAPACITY).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", userLimit, ipLimit);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Boolean>> calls = new ArrayList<>();
+    for (int i = 0; i < A_CAPACITY * 3; i++) {
+      calls.add(executor.submit(() -> spillway.tryCall(john)));
+    }
+    int acceptedCalls = 0;
+    for (Future<Boolean> call : calls) {
+      acceptedCalls += call.get() ? 1 : 0;
+    }
+    executor.shutdown();
+
+    assertThat(acceptedCalls).isEqualTo(A_CAPACITY);
+    assertThat(inMemoryStorage.getCurrentLimitCounters().values())
+        .containsExactly(A_CAPACITY, A_CAPACITY);
+  }
+
+  @Test
+  public void capacityNotIncrementedIfAnyLimitIsExceeded() {
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(5).per(Duration.ofHours(1)).build();
+    Limit<User> ipLimit = LimitBuilder.of("perIp", User::ip).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", userLimit, ipLimit);
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse();
+
+    assertThat(inMemoryStorage.getCurrentLimitCounters().values()).containsExactly(1, 1);
+  }
+
   @Test
   public void canAddCapacityLimitOverride() {
     LimitOverride override = LimitOverrideBuilder.of(JOHN).to(A_CAPACITY).per(A_DURATION).build();
@@ -372,12 +508,16 @@ public class SpillwayTest {
             .withLimitOverride(override)
             .build();
 
+    // The storage expires the buckets with the real time, the calls are made ahead of it so
+    // that the short bucket cannot expire between them.
+    Instant start = Instant.now().plusSeconds(10);
+    when(clock.instant()).thenReturn(start);
     Spillway<User> spillway = inMemoryFactory.enforce("testResource", userLimit);
     assertThat(spillway.tryCall(john, A_CAPACITY)).isTrue();
     assertThat(spillway.tryCall(john, 1)).isFalse();
 
     // Fake sleep two seconds to ensure that we bump to another bucket
-    when(clock.instant()).thenReturn(Instant.now().plusSeconds(2));
+    when(clock.instant()).thenReturn(start.plusSeconds(2));
 
     assertThat(spillway.tryCall(john, A_CAPACITY)).isTrue();
   }
@@ -510,4 +650,269 @@ public class SpillwayTest {
 
     verify(callback, never()).trigger(userLimit.getDefinition(), john);
   }
+
+  @Test
+  public void tryCallAsyncRespectsTheLimits() {
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(2).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", userLimit);
+
+    assertThat(spillway.tryCallAsync(john).join()).isTrue();
+    assertThat(spillway.tryCallAsync(john).join()).isTrue();
+    assertThat(spillway.tryCallAsync(john).join()).isFalse();
+  }
+
+  @Test
+  public void callAsyncCompletesExceptionallyWhenALimitIsExceeded() throws Exception {
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", userLimit);
+
+    spillway.callAsync(john).get();
+    try {
+      spillway.callAsync(john).get();
+      fail("Expected an exception!");
+    } catch (ExecutionException ex) {
+      assertThat(ex.getCause()).isInstanceOf(SpillwayLimitExceededException.class);
+      assertThat(((SpillwayLimitExceededException) ex.getCause()).getExceededLimits())
+          .containsExactly(userLimit.getDefinition());
+    }
+  }
+
+  @Test
+  public void checkLimitAsyncDoesNotConsumeTheLimit() {
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", userLimit);
+
+    assertThat(spillway.checkLimitAsync(john).join()).isTrue();
+    assertThat(spillway.checkLimitAsync(john).join()).isTrue();
+    assertThat(spillway.checkLimitAsync(john, 2).join()).isFalse();
+    assertThat(spillway.tryCall(john)).isTrue();
+  }
+
+  @Test
+  public void asyncCallsToABlockingStorageRunOnTheExecutor() {
+    List<Runnable> tasks = new ArrayList<>();
+    Executor executor = tasks::add;
+    when(mockedStorage.tryAddAndGet(anyCollection())).thenReturn(ImmutableMap.of());
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway =
+        new SpillwayFactory(mockedStorage, clock, executor).enforce("testResource", userLimit);
+
+    CompletableFuture<Boolean> decision = spillway.tryCallAsync(john);
+
+    assertThat(decision.isDone()).isFalse();
+    verify(mockedStorage, never()).tryAddAndGet(anyCollection());
+    tasks.forEach(Runnable::run);
+    assertThat(decision.isDone()).isTrue();
+    verify(mockedStorage, times(1)).tryAddAndGet(anyCollection());
+  }
+
+  @Test
+  public void asyncCallsRejectedByTheExecutorLetTheCallThrough() {
+    Executor executor =
+        task -> {
+          throw new RejectedExecutionException();
+        };
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway =
+        new SpillwayFactory(mockedStorage, clock, executor).enforce("testResource", userLimit);
+
+    assertThat(spillway.tryCallAsync(john).join()).isTrue();
+    verify(mockedStorage, never()).tryAddAndGet(anyCollection());
+  }
+
+  @Test
+  public void asyncCallsToABlockingStorageDoNotRunOnTheCommonPoolByDefault() {
+    List<String> threadNames = new ArrayList<>();
+    when(mockedStorage.tryAddAndGet(anyCollection()))
+        .thenAnswer(
+            invocation -> {
+              threadNames.add(Thread.currentThread().getName());
+              return ImmutableMap.of();
+            });
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = mockedFactory.enforce("testResource", userLimit);
+
+    assertThat(spillway.tryCallAsync(john).join()).isTrue();
+
+    assertThat(threadNames).hasSize(1);
+    assertThat(threadNames.get(0)).startsWith("spillway-storage-");
+  }
+
+  @Test
+  public void tryCallAllReturnsADecisionPerContextInOrder() {
+    Limit<User> ipLimit = LimitBuilder.of("perIp", User::ip).to(2).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", ipLimit);
+
+    boolean[] decisions = spillway.tryCallAll(Arrays.asList(john, gina, john));
+
+    assertThat(decisions).asList().containsExactly(true, true, false).inOrder();
+  }
+
+  @Test
+  public void tryCallAllSendsEveryContextInASingleStorageCall() {
+    doReturn(Arrays.asList(ImmutableMap.of(), ImmutableMap.of()))
+        .when(mockedStorage)
+        .tryAddAndGetAll(anyList());
+    Limit<User> userLimit =
+        LimitBuilder.of("perUser", User::name).to(2).per(Duration.ofHours(1)).build();
+    Limit<User> ipLimit = LimitBuilder.of("perIp", User::ip).to(5).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = mockedFactory.enforce("testResource", userLimit, ipLimit);
+
+    spillway.tryCallAll(Arrays.asList(john, gina));
+
+    verify(mockedStorage, times(1)).tryAddAndGetAll(anyList());
+    verify(mockedStorage, never()).tryAddAndGet(anyCollection());
+  }
+
+  @Test
+  public void exceededLimitsAreRefusedWithoutCallingTheStorage() {
+    LimitUsageStorage storage = spy(new InMemoryStorage());
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name).to(2).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway =
+        new SpillwayFactory(storage, clock, Runnable::run, DENY_CACHE_CAPACITY)
+            .enforce("testResource", limit);
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse();
+    assertThat(spillway.tryCall(john)).isFalse();
+    assertThrows(SpillwayLimitExceededException.class, () -> spillway.call(john));
+    assertThat(spillway.tryCall(gina)).isTrue();
+
+    verify(storage, times(4)).tryAddAndGet(any(AddAndGetBatch.class));
+  }
+
+  @Test
+  public void refusedLimitsAreSentToTheStorageAgainInTheNextBucket() {
+    Instant bucketStart = LimitUtils.calculateBucket(Instant.now(), Duration.ofHours(1));
+    when(clock.instant()).thenReturn(bucketStart.plus(Duration.ofHours(1)).minusMillis(50));
+    LimitUsageStorage storage = spy(new InMemoryStorage());
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway =
+        new SpillwayFactory(storage, clock, Runnable::run, DENY_CACHE_CAPACITY)
+            .enforce("testResource", limit);
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse();
+    when(clock.instant()).thenReturn(bucketStart.plus(Duration.ofHours(1)).minusMillis(1));
+    assertThat(spillway.tryCall(john)).isFalse();
+    when(clock.instant()).thenReturn(bucketStart.plus(Duration.ofHours(1)));
+    assertThat(spillway.tryCall(john)).isTrue();
+
+    verify(storage, times(3)).tryAddAndGet(any(AddAndGetBatch.class));
+  }
+
+  @Test
+  public void refusedLimitsAreSentToTheStorageAgainOnceTheirEntryIsOver() {
+    Instant start = Instant.now();
+    when(clock.instant()).thenReturn(start);
+    LimitUsageStorage storage = spy(new InMemoryStorage());
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway =
+        new SpillwayFactory(
+                storage, clock, Runnable::run, DENY_CACHE_CAPACITY, DENY_CACHE_ENTRY_LIFETIME)
+            .enforce("testResource", limit);
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse();
+    assertThat(spillway.tryCall(john)).isFalse();
+    // The count of the bucket decreases, for instance when leased tokens are given back.
+    givenJohnsCountDecreases(storage, start);
+    when(clock.instant()).thenReturn(start.plus(DENY_CACHE_ENTRY_LIFETIME).minusMillis(1));
+    assertThat(spillway.tryCall(john)).isFalse();
+    when(clock.instant()).thenReturn(start.plus(DENY_CACHE_ENTRY_LIFETIME));
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    verify(storage, times(3)).tryAddAndGet(any(AddAndGetBatch.class));
+  }
+
+  @Test
+  public void refusedLimitsAreRememberedUntilTheEndOfTheBucketByDefault() {
+    Instant start = LimitUtils.calculateBucket(Instant.now(), Duration.ofHours(1));
+    when(clock.instant()).thenReturn(start);
+    LimitUsageStorage storage = spy(new InMemoryStorage());
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway =
+        new SpillwayFactory(storage, clock, Runnable::run, DENY_CACHE_CAPACITY)
+            .enforce("testResource", limit);
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse();
+    givenJohnsCountDecreases(storage, start);
+    when(clock.instant()).thenReturn(start.plus(DENY_CACHE_ENTRY_LIFETIME));
+
+    // The decrease is only seen in the next bucket.
+    assertThat(spillway.tryCall(john)).isFalse();
+    verify(storage, times(2)).tryAddAndGet(any(AddAndGetBatch.class));
+  }
+
+  @Test
+  public void theDenyCacheEntryLifetimeMustBePositive() {
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+
+    assertThrows(
+        IllegalArgumentException.class,
+        ()
+            -> new SpillwayFactory(
+                    inMemoryStorage, clock, Runnable::run, DENY_CACHE_CAPACITY, Duration.ZERO)
+                .enforce("testResource", limit));
+  }
+
+  @Test
+  public void theDenyCacheIsDisabledByDefault() {
+    LimitUsageStorage storage = spy(new InMemoryStorage());
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name).to(1).per(Duration.ofHours(1)).build();
+    Spillway<User> spillway = new SpillwayFactory(storage, clock).enforce("testResource", limit);
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse();
+    assertThat(spillway.tryCall(john)).isFalse();
+
+    verify(storage, times(3)).tryAddAndGet(any(AddAndGetBatch.class));
+  }
+
+  @Test
+  public void aCallRefusedByTheDenyCacheFiresTheTriggersOfTheExceededLimit() {
+    LimitTriggerCallback callback = mock(LimitTriggerCallback.class);
+    Limit<User> limit =
+        LimitBuilder.of("perUser", User::name)
+            .to(1)
+            .per(Duration.ofHours(1))
+            .withLimitTrigger(new ValueThresholdTrigger(2, callback))
+            .build();
+    Spillway<User> spillway =
+        new SpillwayFactory(inMemoryStorage, clock, Runnable::run, DENY_CACHE_CAPACITY)
+            .enforce("testResource", limit);
+
+    assertThat(spillway.tryCall(john)).isTrue();
+    assertThat(spillway.tryCall(john)).isFalse();
+    verify(callback, never()).trigger(any(), any());
+
+    assertThat(spillway.tryCall(john, 2)).isFalse();
+    verify(callback).trigger(limit.getDefinition(), john);
+  }
+
+  private void givenJohnsCountDecreases(LimitUsageStorage storage, Instant timestamp) {
+    storage.addAndGet(
+        new AddAndGetRequest.Builder()
+            .withResource("testResource")
+            .withLimitName("perUser")
+            .withProperty(john.name())
+            .withExpiration(Duration.ofHours(1))
+            .withEventTimestamp(timestamp)
+            .withCost(-1)
+            .build());
+  }
 }
@@ -82,6 +82,27 @@ public class SpillwayTryUpdateAndVerifyLimitTest {
         .isFalse(); // Third tryUpdateAndVerifyLimit fails
   }
 
+  @Test
+  public void tokenBucketIsRefilledAtItsOwnCapacityNextToASmallerLimit() {
+    Limit<User> bucketLimit =
+        LimitBuilder.of("perUser", User::name)
+            .to(100)
+            .per(Duration.ofSeconds(100))
+            .tokenBucket(2)
+            .build();
+    Limit<User> ipLimit = LimitBuilder.of("perIp", User::ip).to(10).per(A_DURATION).build();
+    Spillway<User> spillway = inMemoryFactory.enforce("testResource", bucketLimit, ipLimit);
+    Instant now = clock.instant();
+
+    assertThat(spillway.tryUpdateAndVerifyLimit(john)).isTrue();
+    assertThat(spillway.tryUpdateAndVerifyLimit(john)).isTrue();
+    assertThat(spillway.tryUpdateAndVerifyLimit(john)).isFalse(); // The burst of 2 is used
+
+    when(clock.instant()).thenReturn(now.plusSeconds(1));
+    assertThat(spillway.tryUpdateAndVerifyLimit(john)).isTrue(); // One token per second is refilled
+    assertThat(spillway.tryUpdateAndVerifyLimit(john)).isFalse();
+  }
+
   @Test
   public void multipleLimitsWithOverlap() {
     Limit<User> limit1 =
@@ -0,0 +1,199 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.storage.AsyncLimitUsageStorage;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.MpscRingBuffer;
+
+/**
+ * Compares the transports that hand the calls of {@link AsyncLimitUsageStorage} to its
+ * background thread when 64 threads enqueue at the same time: the {@link MpscRingBuffer},
+ * a bounded {@link LinkedBlockingQueue} drained in batches and a single thread executor
+ * receiving one task per call.
+ * <p>
+ * A single consumer sums the costs of what it receives. Producers wait when the transport is
+ * full, so the throughput includes the consumption. Run with
+ * {@code mvn verify -Pbenchmark -Dbenchmark=AsyncHandOffBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class AsyncHandOffBenchmark {
+  private static final int CAPACITY = AsyncLimitUsageStorage.DEFAULT_QUEUE_CAPACITY;
+  private static final Collection<AddAndGetRequest> REQUESTS =
+      List.of(
+          new AddAndGetRequest.Builder()
+              .withResource("api")
+              .withLimitName("perIp")
+              .withProperty("127.0.0.1")
+              .withDistributed(true)
+              .withExpiration(Duration.ofHours(1))
+              .withEventTimestamp(Instant.now())
+              .build());
+
+  @Param({"ringBuffer", "blockingQueue", "executor"})
+  public String transport;
+
+  private MpscRingBuffer<Collection<AddAndGetRequest>> ringBuffer;
+  private BlockingQueue<Collection<AddAndGetRequest>> blockingQueue;
+  private ExecutorService executor;
+  private Thread consumer;
+  private volatile boolean running;
+  private long consumedCost;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    running = true;
+    if (transport.equals("ringBuffer")) {
+      ringBuffer = new MpscRingBuffer<>(CAPACITY);
+      consumer =
+          new Thread(
+              () -> {
+                while (running) {
+                  if (ringBuffer.drain(this::consume, CAPACITY) == 0) {
+                    LockSupport.parkNanos(1_000);
+                  }
+                }
+              });
+    } else if (transport.equals("blockingQueue")) {
+      blockingQueue = new LinkedBlockingQueue<>(CAPACITY);
+      consumer =
+          new Thread(
+              () -> {
+                while (running) {
+                  try {
+                    Collection<AddAndGetRequest> requests =
+                        blockingQueue.poll(1, TimeUnit.MILLISECONDS);
+                    if (requests != null) {
+                      consume(requests);
+                      blockingQueue.drainTo(new ConsumingCollection(), CAPACITY);
+                    }
+                  } catch (InterruptedException e) {
+                    return;
+                  }
+                }
+              });
+    } else {
+      executor =
+          new ThreadPoolExecutor(
+              1,
+              1,
+              0,
+              TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(CAPACITY),
+              (task, pool) -> {
+                try {
+                  pool.getQueue().put(task);
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              });
+    }
+    if (consumer != null) {
+      consumer.setDaemon(true);
+      consumer.start();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    running = false;
+    if (consumer != null) {
+      consumer.join();
+    } else {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  @Benchmark
+  public void enqueue() throws InterruptedException {
+    if (ringBuffer != null) {
+      while (!ringBuffer.offer(REQUESTS)) {
+        Thread.yield();
+      }
+    } else if (blockingQueue != null) {
+      blockingQueue.put(REQUESTS);
+    } else {
+      executor.submit(() -> consume(REQUESTS));
+    }
+  }
+
+  private void consume(Collection<AddAndGetRequest> requests) {
+    for (AddAndGetRequest request : requests) {
+      consumedCost += request.getCost();
+    }
+  }
+
+  private class ConsumingCollection extends AbstractCollection<Collection<AddAndGetRequest>> {
+    @Override
+    public boolean add(Collection<AddAndGetRequest> requests) {
+      consume(requests);
+      return true;
+    }
+
+    @Override
+    public Iterator<Collection<AddAndGetRequest>> iterator() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int size() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.storage.InMemoryStorage;
+import com.coveo.spillway.storage.utils.Capacity;
+
+/**
+ * Measures 64 threads deciding on a single limit of the {@link InMemoryStorage}, such as a
+ * limit on a whole resource, with the striped {@link Capacity} and with the single
+ * {@link AtomicInteger} updated in a compare and set loop that it replaced.
+ * <p>
+ * The limit is either far away, so that the calls are served from the quotas, close, so that
+ * the calls take the exact path and release their cost once accepted, or already exceeded, so
+ * that every call is refused. The striped capacity only uses several stripes on a host with several processors,
+ * see {@link Capacity#STRIPES}. Run with
+ * {@code mvn verify -Pbenchmark -Dbenchmark=CapacityContentionBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class CapacityContentionBenchmark {
+  @Param({"striped", "atomic"})
+  public String counter;
+
+  @Param({"underLimit", "nearLimit", "exceeded"})
+  public String state;
+
+  private Capacity capacity;
+  private AtomicCapacity atomicCapacity;
+  private int limit;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    capacity = new Capacity();
+    atomicCapacity = new AtomicCapacity();
+    if (state.equals("underLimit")) {
+      limit = Integer.MAX_VALUE - 1;
+      return;
+    }
+    limit = 1_000;
+    // Near the limit, half of the threads fit under it and each call is released once accepted.
+    int count = state.equals("nearLimit") ? limit - 32 : limit;
+    capacity.addAndGet(count);
+    atomicCapacity.delta.addAndGet(count);
+  }
+
+  @Benchmark
+  public int tryAddAndGet() {
+    boolean release = state.equals("nearLimit");
+    if (counter.equals("striped")) {
+      int value = capacity.tryAddAndGet(1, limit);
+      if (release && value <= limit) {
+        capacity.substractAndGet(1);
+      }
+      return value;
+    }
+    int value = atomicCapacity.tryAddAndGet(1, limit);
+    if (release && value <= limit) {
+      atomicCapacity.delta.addAndGet(-1);
+    }
+    return value;
+  }
+
+  /**
+   * The counter of {@link Capacity} before it was striped.
+   */
+  private static class AtomicCapacity {
+    private final AtomicInteger delta = new AtomicInteger();
+    private final AtomicInteger total = new AtomicInteger();
+
+    private int tryAddAndGet(int cost, int limit) {
+      while (true) {
+        int currentDelta = delta.get();
+        int value = currentDelta + cost + total.get();
+        if (value > limit || delta.compareAndSet(currentDelta, currentDelta + cost)) {
+          return value;
+        }
+      }
+    }
+  }
+}
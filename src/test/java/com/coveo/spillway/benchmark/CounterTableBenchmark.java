@@ -0,0 +1,130 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.storage.CounterTableStorage;
+import com.coveo.spillway.storage.InMemoryStorage;
+import com.coveo.spillway.storage.LimitUsageStorage;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+
+/**
+ * Compares the {@link InMemoryStorage} with the {@link CounterTableStorage} holding one or ten
+ * million counters, with and without the index that lists its counters, by measuring a decision
+ * on a random existing counter.
+ * <p>
+ * The heap retained by the counters is printed once they are created. The benchmark needs a
+ * heap of a few gigabytes for ten million counters. Run with
+ * {@code mvn verify -Pbenchmark -Dbenchmark=CounterTableBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+  value = 1,
+  jvmArgsAppend = {"-Xms4g", "-Xmx4g"}
+)
+public class CounterTableBenchmark {
+  private static final String RESOURCE = "benchmark";
+  private static final String LIMIT = "perUser";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+
+  @Param({"inMemory", "counterTable", "unlistedCounterTable"})
+  public String storageType;
+
+  @Param({"1000000", "10000000"})
+  public int keyCount;
+
+  private LimitUsageStorage storage;
+  private String[] properties;
+  private AddAndGetBatch batch;
+  private long timestamp;
+
+  @Setup
+  public void setup() {
+    timestamp = Instant.now().toEpochMilli();
+    batch = new AddAndGetBatch(1);
+    properties = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      properties[i] = "user" + i;
+    }
+
+    long heapBefore = getUsedHeap();
+    storage =
+        storageType.equals("inMemory")
+            ? new InMemoryStorage()
+            : CounterTableStorage.builder()
+                .withCapacity(keyCount)
+                .withListableCounters(storageType.equals("counterTable"))
+                .build();
+    for (String property : properties) {
+      decide(property);
+    }
+    long heapAfter = getUsedHeap();
+
+    System.out.printf(
+        "%n%s holds %d counters in %d MB, %d bytes per counter%n",
+        storageType,
+        keyCount,
+        (heapAfter - heapBefore) >> 20,
+        (heapAfter - heapBefore) / keyCount);
+  }
+
+  @Benchmark
+  public int tryAddAndGet() {
+    return decide(properties[ThreadLocalRandom.current().nextInt(keyCount)]);
+  }
+
+  private int decide(String property) {
+    batch.clear();
+    batch.add(RESOURCE, LIMIT, property, true, EXPIRATION, timestamp, 1, Integer.MAX_VALUE);
+    storage.tryAddAndGet(batch);
+    return batch.getResult(0);
+  }
+
+  private static long getUsedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
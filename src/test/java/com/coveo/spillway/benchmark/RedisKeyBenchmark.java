@@ -0,0 +1,95 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.RedisStorage;
+import com.coveo.spillway.storage.utils.CompactRedisKeyCodec;
+import com.coveo.spillway.storage.utils.RedisKeyCodec;
+import com.coveo.spillway.storage.utils.TextRedisKeyCodec;
+
+/**
+ * Measures the cost of building the key of a limit for each format of the {@link RedisStorage}.
+ * <p>
+ * The size of the keys is reported by {@code CompactRedisKeyCodecTest}.
+ * Run with {@code mvn verify -Pbenchmark -Dbenchmark=RedisKeyBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisKeyBenchmark {
+  private static final String PREFIX = "spillway";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+
+  @Param({"text", "compact"})
+  public String format;
+
+  private RedisKeyCodec codec;
+  private LimitKey limitKey;
+  private byte[] key;
+
+  @Setup
+  public void setup() {
+    codec =
+        format.equals("compact") ? new CompactRedisKeyCodec(PREFIX) : new TextRedisKeyCodec(PREFIX);
+    limitKey =
+        new LimitKey(
+            "api",
+            "perIp",
+            "10.0.0.1",
+            true,
+            LimitUtils.calculateBucket(Instant.now(), EXPIRATION),
+            EXPIRATION);
+    key = codec.encode(limitKey);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return codec.encode(limitKey);
+  }
+
+  @Benchmark
+  public LimitKey decode() {
+    return codec.decode(key);
+  }
+}
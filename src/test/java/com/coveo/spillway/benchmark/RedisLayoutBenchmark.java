@@ -0,0 +1,125 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.storage.RedisStorage;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+
+/**
+ * Compares the layouts of the counters of the {@link RedisStorage}: one string per property or
+ * one hash per bucket, see {@link RedisStorage.Builder#withHashBuckets(boolean)}.
+ * <p>
+ * Each operation increments the counter of one of {@code properties} properties of a limit. The
+ * memory used by each counter, as reported by MEMORY USAGE, is printed at the end of each trial.
+ * Run with {@code mvn verify -Pbenchmark -Dbenchmark=RedisLayoutBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisLayoutBenchmark {
+  private static final int REDIS_PORT = 7897;
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+
+  @Param({"strings", "hashes"})
+  public String layout;
+
+  @Param({"100", "10000"})
+  public int properties;
+
+  private RedisServer redisServer;
+  private JedisPool jedisPool;
+  private RedisStorage storage;
+  private String[] propertyNames;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    redisServer = new RedisServer(REDIS_PORT);
+    redisServer.start();
+    jedisPool = new JedisPool("localhost", REDIS_PORT);
+    storage =
+        RedisStorage.builder()
+            .withJedisPool(new JedisPool("localhost", REDIS_PORT))
+            .withHashBuckets(layout.equals("hashes"))
+            .build();
+    propertyNames = new String[properties];
+    for (int i = 0; i < properties; i++) {
+      propertyNames[i] = "10.0." + (i / 256) + "." + (i % 256);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    long usedMemory = 0;
+    long counters = 0;
+    try (Jedis jedis = jedisPool.getResource()) {
+      for (String key : jedis.keys("*")) {
+        usedMemory += jedis.memoryUsage(key, 0);
+        counters += jedis.type(key).equals("hash") ? jedis.hlen(key) : 1;
+      }
+    }
+    System.out.printf(
+        "%n%s layout: %d counters, %d bytes per counter%n",
+        layout,
+        counters,
+        counters == 0 ? 0 : usedMemory / counters);
+
+    storage.close();
+    jedisPool.close();
+    redisServer.stop();
+  }
+
+  @Benchmark
+  public int addAndGet() {
+    String property = propertyNames[next];
+    next = (next + 1) % properties;
+    return storage
+        .addAndGet("api", "perIp", property, true, EXPIRATION, Instant.now(), 1)
+        .getValue();
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coveo.spillway.Spillway;
+import com.coveo.spillway.SpillwayFactory;
+import com.coveo.spillway.limit.Limit;
+import com.coveo.spillway.limit.LimitBuilder;
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.InMemoryStorage;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+/**
+ * Measures the cost of a {@link Spillway#tryCall(Object)} decision for a growing number of limits.
+ * <p>
+ * The stub storage returns precomputed counters so that only the work done by {@link Spillway}
+ * itself is measured. Run with {@code mvn verify -Pbenchmark -Dbenchmark=SpillwayBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpillwayBenchmark {
+  private static final String RESOURCE = "benchmark";
+  private static final String CONTEXT = "john";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+
+  @Param({"1", "5", "20"})
+  public int limitCount;
+
+  private Spillway<String> stubSpillway;
+  private Spillway<String> inMemorySpillway;
+
+  @Setup
+  public void setup() throws Exception {
+    @SuppressWarnings("unchecked")
+    Limit<String>[] limits = new Limit[limitCount];
+    Map<LimitKey, Integer> counters = new LinkedHashMap<>();
+    for (int i = 0; i < limitCount; i++) {
+      limits[i] = LimitBuilder.of("limit" + i).to(Integer.MAX_VALUE).per(EXPIRATION).build();
+      counters.put(
+          new LimitKey(RESOURCE, "limit" + i, CONTEXT, true, Instant.EPOCH, EXPIRATION), 1);
+    }
+
+    stubSpillway = new SpillwayFactory(new StubStorage(counters)).enforce(RESOURCE, limits);
+    inMemorySpillway = new SpillwayFactory(new InMemoryStorage()).enforce(RESOURCE, limits);
+  }
+
+  @Benchmark
+  public boolean tryCallWithStubStorage() {
+    return stubSpillway.tryCall(CONTEXT);
+  }
+
+  @Benchmark
+  public boolean tryCallWithInMemoryStorage() {
+    return inMemorySpillway.tryCall(CONTEXT);
+  }
+
+  private static class StubStorage extends InMemoryStorage {
+    private final Map<LimitKey, Integer> counters;
+
+    private StubStorage(Map<LimitKey, Integer> counters) {
+      this.counters = counters;
+    }
+
+    @Override
+    public Map<LimitKey, Integer> tryAddAndGet(Collection<AddAndGetRequest> requests) {
+      return counters;
+    }
+  }
+}
@@ -24,6 +24,10 @@ package com.coveo.spillway.limit;
 
 import com.coveo.spillway.limit.Limit;
 import com.coveo.spillway.limit.LimitDefinition;
+import com.coveo.spillway.limit.override.LimitOverride;
+import com.coveo.spillway.limit.override.LimitOverrideBuilder;
+import com.coveo.spillway.trigger.LimitTrigger;
+import com.coveo.spillway.trigger.ValueThresholdTrigger;
 import org.junit.jupiter.api.Test;
 
 import java.time.Duration;
@@ -44,4 +48,33 @@ public class LimitTest {
 
     assertThat(limit.toString()).isEqualTo(limitDefinition.toString());
   }
+
+  @Test
+  public void resolveReturnsTheOverrideOfThePropertyOrTheBaseLimit() {
+    LimitTrigger overrideTrigger = new ValueThresholdTrigger(2, (definition, context) -> {});
+    LimitOverride override =
+        LimitOverrideBuilder.of("john")
+            .to(10)
+            .per(Duration.ofHours(2))
+            .withLimitTrigger(overrideTrigger)
+            .build();
+    Limit<String> limit =
+        LimitBuilder.of("perUser")
+            .to(5)
+            .per(Duration.ofHours(1))
+            .withLimitOverride(override)
+            .build();
+
+    ResolvedLimit john = limit.resolve("john");
+    assertThat(john.getCapacity()).isEqualTo(10);
+    assertThat(john.getExpiration()).isEqualTo(Duration.ofHours(2));
+    assertThat(john.getLimitTriggers()).containsExactly(overrideTrigger);
+    assertThat(john.getDefinition().getName()).isEqualTo("perUser");
+    assertThat(limit.resolve("john")).isSameInstanceAs(john);
+
+    ResolvedLimit gina = limit.resolve("gina");
+    assertThat(gina.getCapacity()).isEqualTo(5);
+    assertThat(gina.getExpiration()).isEqualTo(Duration.ofHours(1));
+    assertThat(gina.getDefinition()).isSameInstanceAs(limit.getDefinition());
+  }
 }
@@ -7,12 +7,12 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -120,12 +120,16 @@ public class AsyncBatchLimitUsageStorageTest {
   //sleep must be after the second debugCacheLimitCounters snapshot.
   @Test
   public void testSynchronizeIsNotAffectingProcess() throws Exception {
-    when(storageMock.addAndGet(any(AddAndGetRequest.class)))
+    when(storageMock.addAndGet(anyCollection()))
         .then(
             invocation -> {
               Thread.sleep(MOCKED_STORAGE_SLEEP);
-              return ImmutablePair.of(LimitKey.fromRequest(invocation.getArgument(0)), 100);
+              Collection<AddAndGetRequest> requests = invocation.getArgument(0);
+              return Collections.singletonMap(
+                  LimitKey.fromRequest(requests.iterator().next()), 100);
             });
+    // Starts with a new bucket so that the key cannot expire before the first snapshot.
+    Thread.sleep(MOCKED_STORAGE_SLEEP - System.currentTimeMillis() % MOCKED_STORAGE_SLEEP);
 
     asyncBatchLimitUsageStorage =
         new AsyncBatchLimitUsageStorage(
@@ -159,7 +163,7 @@ public class AsyncBatchLimitUsageStorageTest {
         new SimpleImmutableEntry<>(
             Instant.now(), asyncBatchLimitUsageStorage.debugCacheLimitCounters()));
 
-    verify(storageMock).addAndGet(any(AddAndGetRequest.class));
+    verify(storageMock).addAndGet(anyCollection());
 
     assertThat(history.get(0).getValue()).hasSize(1);
     assertThat(history.get(1).getValue()).isEmpty();
@@ -23,20 +23,34 @@
 package com.coveo.spillway.storage;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
 import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import com.google.common.collect.ImmutableMap;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AsyncLimitUsageStorageTest {
@@ -51,6 +65,7 @@ public class AsyncLimitUsageStorageTest {
   private static final int MOCKED_STORAGE_COUNTER = 100;
   private static final int MOCKED_STORAGE_SLEEP = 100;
 
+  private LimitUsageStorage mockedStorage;
   private AsyncLimitUsageStorage asyncStorage;
   private final AddAndGetRequest request =
       new AddAndGetRequest.Builder()
@@ -65,7 +80,7 @@ public class AsyncLimitUsageStorageTest {
 
   @BeforeEach
   public void setup() {
-    LimitUsageStorage mockedStorage = Mockito.mock(LimitUsageStorage.class);
+    mockedStorage = Mockito.mock(LimitUsageStorage.class);
     when(mockedStorage.addAndGet(anyCollection()))
         .then(
             invocation -> {
@@ -74,7 +89,7 @@ public class AsyncLimitUsageStorageTest {
               return ImmutableMap.of(LimitKey.fromRequest(request), MOCKED_STORAGE_COUNTER);
             });
 
-    asyncStorage = new AsyncLimitUsageStorage(mockedStorage);
+    asyncStorage = AsyncLimitUsageStorage.builder().withLimitUsageStorage(mockedStorage).build();
   }
 
   @Test
@@ -88,4 +103,248 @@ public class AsyncLimitUsageStorageTest {
     counter = asyncStorage.addAndGet(request).getValue();
     assertThat(counter).isEqualTo(MOCKED_STORAGE_COUNTER + 1);
   }
+
+  @Test
+  public void onlyConsumedCostsAreSentToTheWrappedStorage() throws InterruptedException {
+    AddAndGetRequest limitedRequest = new AddAndGetRequest.Builder(request).withLimit(1).build();
+
+    assertThat(asyncStorage.tryAddAndGet(Arrays.asList(limitedRequest)).values())
+        .containsExactly(1);
+    assertThat(asyncStorage.tryAddAndGet(Arrays.asList(limitedRequest)).values())
+        .containsExactly(2);
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofMillis(MOCKED_STORAGE_SLEEP * 2));
+
+    verify(mockedStorage, times(1)).addAndGet(anyCollection());
+  }
+
+  @Test
+  public void callsOnAHotKeyAreSentAsOneSummedRequest() throws InterruptedException {
+    // The first call keeps the drain thread busy while the others are queued.
+    asyncStorage.addAndGet(request);
+    Thread.sleep(MOCKED_STORAGE_SLEEP / 4);
+    for (int i = 0; i < 10; i++) {
+      asyncStorage.addAndGet(request);
+    }
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofMillis(MOCKED_STORAGE_SLEEP * 5));
+
+    assertThat(sentCosts()).containsExactly(Arrays.asList(1), Arrays.asList(10)).inOrder();
+  }
+
+  @Test
+  public void tokenBucketsAreOnlyEnforcedFromTheCache() throws InterruptedException {
+    AddAndGetRequest tokenBucketRequest =
+        new AddAndGetRequest.Builder(request).withLimit(10).withBurst(2).build();
+
+    asyncStorage.addAndGet(Arrays.asList(tokenBucketRequest, request));
+    asyncStorage.tryAddAndGet(Arrays.asList(tokenBucketRequest));
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofMillis(MOCKED_STORAGE_SLEEP * 5));
+
+    assertThat(sentCosts()).containsExactly(Arrays.asList(1));
+    assertThat(asyncStorage.tryAddAndGet(Arrays.asList(tokenBucketRequest)).values())
+        .containsExactly(15);
+  }
+
+  @Test
+  public void batchesAreCopiedToTheQueueWithoutTheirLocalRequests() throws InterruptedException {
+    AddAndGetBatch batch = new AddAndGetBatch(3);
+    // The first call keeps the drain thread busy while the others are queued.
+    asyncStorage.addAndGet(request);
+    Thread.sleep(MOCKED_STORAGE_SLEEP / 4);
+    for (int i = 0; i < 5; i++) {
+      batch.clear();
+      batch.add(RESOURCE, LIMITNAME, PROPERTY, true, EXPIRATION, INSTANT.toEpochMilli(), 2, 100);
+      batch.add(RESOURCE, "local", PROPERTY, false, EXPIRATION, INSTANT.toEpochMilli(), 1, 100);
+      batch.add(
+          RESOURCE, "bucket", PROPERTY, true, false, 5, EXPIRATION, INSTANT.toEpochMilli(), 1, 100);
+      asyncStorage.tryAddAndGet(batch);
+    }
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofMillis(MOCKED_STORAGE_SLEEP * 5));
+
+    assertThat(sentCosts()).containsExactly(Arrays.asList(1), Arrays.asList(10)).inOrder();
+  }
+
+  @Test
+  public void theConstructorStartsAStorageWithTheDefaults() throws Exception {
+    asyncStorage = new AsyncLimitUsageStorage(mockedStorage);
+
+    asyncStorage.addAndGet(request);
+    asyncStorage.close();
+
+    verify(mockedStorage, times(1)).addAndGet(anyCollection());
+    verify(mockedStorage).close();
+  }
+
+  @Test
+  public void closeSendsTheQueuedCostsBeforeClosingTheWrappedStorage() throws Exception {
+    asyncStorage.addAndGet(request);
+    Thread.sleep(MOCKED_STORAGE_SLEEP / 4);
+    asyncStorage.addAndGet(request);
+    asyncStorage.close();
+
+    InOrder inOrder = Mockito.inOrder(mockedStorage);
+    inOrder.verify(mockedStorage, times(2)).addAndGet(anyCollection());
+    inOrder.verify(mockedStorage).close();
+    assertThat(asyncStorage.isTerminated()).isTrue();
+  }
+
+  @Test
+  public void dropPolicyDiscardsTheCostsOfCallsThatOverflow() throws InterruptedException {
+    asyncStorage =
+        AsyncLimitUsageStorage.builder()
+            .withLimitUsageStorage(mockedStorage)
+            .withQueueCapacity(1)
+            .withOverflowPolicy(AsyncLimitUsageStorage.OverflowPolicy.DROP)
+            .build();
+
+    asyncStorage.addAndGet(request);
+    Thread.sleep(MOCKED_STORAGE_SLEEP / 4);
+    asyncStorage.addAndGet(request);
+    asyncStorage.addAndGet(new AddAndGetRequest.Builder(request).withCost(3).build());
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofMillis(MOCKED_STORAGE_SLEEP * 5));
+
+    assertThat(asyncStorage.getDroppedCost()).isEqualTo(3);
+    assertThat(sentCosts()).containsExactly(Arrays.asList(1), Arrays.asList(1)).inOrder();
+  }
+
+  @Test
+  public void blockPolicyWaitsForTheDrainThread() throws InterruptedException {
+    asyncStorage =
+        AsyncLimitUsageStorage.builder()
+            .withLimitUsageStorage(mockedStorage)
+            .withQueueCapacity(1)
+            .withOverflowPolicy(AsyncLimitUsageStorage.OverflowPolicy.BLOCK)
+            .build();
+
+    asyncStorage.addAndGet(request);
+    Thread.sleep(MOCKED_STORAGE_SLEEP / 4);
+    asyncStorage.addAndGet(request);
+    long start = System.nanoTime();
+    asyncStorage.addAndGet(new AddAndGetRequest.Builder(request).withCost(3).build());
+    Duration blocked = Duration.ofNanos(System.nanoTime() - start);
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofMillis(MOCKED_STORAGE_SLEEP * 5));
+
+    assertThat(blocked).isAtLeast(Duration.ofMillis(MOCKED_STORAGE_SLEEP / 2));
+    assertThat(asyncStorage.getDroppedCost()).isEqualTo(0);
+    assertThat(sentCosts())
+        .containsExactly(Arrays.asList(1), Arrays.asList(1), Arrays.asList(3))
+        .inOrder();
+  }
+
+  @Test
+  public void mergePolicyFoldsOverflowingCallsIntoTheLastSlot() throws InterruptedException {
+    asyncStorage =
+        AsyncLimitUsageStorage.builder()
+            .withLimitUsageStorage(mockedStorage)
+            .withQueueCapacity(1)
+            .withOverflowPolicy(AsyncLimitUsageStorage.OverflowPolicy.MERGE)
+            .build();
+    AddAndGetRequest otherRequest =
+        new AddAndGetRequest.Builder(request).withProperty("OtherProperty").withCost(2).build();
+
+    asyncStorage.addAndGet(request);
+    Thread.sleep(MOCKED_STORAGE_SLEEP / 4);
+    asyncStorage.addAndGet(request);
+    asyncStorage.addAndGet(otherRequest);
+    asyncStorage.addAndGet(request);
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofMillis(MOCKED_STORAGE_SLEEP * 5));
+
+    assertThat(asyncStorage.getDroppedCost()).isEqualTo(0);
+    List<List<Integer>> sentCosts = sentCosts();
+    assertThat(sentCosts).hasSize(2);
+    assertThat(sentCosts.get(0)).containsExactly(1);
+    assertThat(sentCosts.get(1)).containsExactly(2, 2);
+  }
+
+  @Test
+  public void noCountIsLostWhenReconcilingTheCache() throws InterruptedException {
+    int threadCount = 8;
+    int callsPerThread = 5_000;
+    InMemoryStorage distributedStorage = new InMemoryStorage();
+    asyncStorage =
+        AsyncLimitUsageStorage.builder().withLimitUsageStorage(distributedStorage).build();
+    AtomicInteger completedCalls = new AtomicInteger();
+    AtomicInteger underCounts = new AtomicInteger();
+
+    ExecutorService threadPool = Executors.newFixedThreadPool(threadCount);
+    for (int t = 0; t < threadCount; t++) {
+      threadPool.submit(
+          () -> {
+            for (int i = 0; i < callsPerThread; i++) {
+              int completedBefore = completedCalls.get();
+              // Every completed call is in the cache, whether it was sent or not.
+              if (asyncStorage.addAndGet(request).getValue() < completedBefore + 1) {
+                underCounts.incrementAndGet();
+              }
+              completedCalls.incrementAndGet();
+            }
+          });
+    }
+    threadPool.shutdown();
+    assertThat(threadPool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofSeconds(10));
+
+    int total = threadCount * callsPerThread;
+    assertThat(underCounts.get()).isEqualTo(0);
+    assertThat(distributedStorage.getCurrentLimitCounters().values()).containsExactly(total);
+    AddAndGetRequest read = new AddAndGetRequest.Builder(request).withCost(0).build();
+    assertThat(asyncStorage.addAndGet(read).getValue()).isEqualTo(total);
+  }
+
+  @Test
+  public void slidingWindowsAreReconciledWithTheCountOfTheCurrentBucket() throws Exception {
+    InMemoryStorage distributedStorage = new InMemoryStorage();
+    asyncStorage =
+        AsyncLimitUsageStorage.builder().withLimitUsageStorage(distributedStorage).build();
+    Instant bucket = LimitUtils.calculateBucket(Instant.now(), EXPIRATION);
+    AddAndGetRequest previousRequest =
+        new AddAndGetRequest.Builder(request)
+            .withSlidingWindow(true)
+            .withEventTimestamp(bucket.minus(EXPIRATION))
+            .withCost(10)
+            .build();
+    // Half of the previous bucket is still in the window, so it weighs 5.
+    AddAndGetRequest currentRequest =
+        new AddAndGetRequest.Builder(request)
+            .withSlidingWindow(true)
+            .withEventTimestamp(bucket.plus(EXPIRATION.dividedBy(2)))
+            .build();
+
+    asyncStorage.addAndGet(previousRequest);
+    LimitKey previousKey = LimitKey.fromRequest(previousRequest);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (distributedStorage.getCurrentLimitCounters().get(previousKey) == null
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 4; i++) {
+      asyncStorage.addAndGet(currentRequest);
+    }
+    asyncStorage.shutdownStorage();
+    asyncStorage.awaitTermination(Duration.ofSeconds(10));
+
+    AddAndGetRequest read = new AddAndGetRequest.Builder(currentRequest).withCost(0).build();
+    assertThat(distributedStorage.addAndGet(read).getValue()).isEqualTo(9);
+    assertThat(asyncStorage.addAndGet(read).getValue()).isEqualTo(9);
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<List<Integer>> sentCosts() {
+    ArgumentCaptor<Collection<AddAndGetRequest>> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(mockedStorage, Mockito.atLeastOnce()).addAndGet(captor.capture());
+    return captor
+        .getAllValues()
+        .stream()
+        .map(
+            requests
+                -> requests.stream().map(AddAndGetRequest::getCost).collect(Collectors.toList()))
+        .collect(Collectors.toList());
+  }
 }
@@ -0,0 +1,203 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+
+public class CoalescingRedisStorageTest {
+  private static final String RESOURCE = "someResource";
+  private static final String LIMIT = "someLimit";
+  private static final String PROPERTY = "someProperty";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+  private static final Instant TIMESTAMP = Instant.now();
+  private static final int REDIS_PORT = 7898;
+  private static final int CALLERS = 50;
+
+  private static RedisServer redisServer;
+
+  private CoalescingRedisStorage storage;
+  private ExecutorService callers;
+
+  @BeforeAll
+  public static void startRedis() throws IOException {
+    redisServer = new RedisServer(REDIS_PORT);
+    redisServer.start();
+  }
+
+  @AfterAll
+  public static void stopRedis() throws IOException {
+    redisServer.stop();
+  }
+
+  @BeforeEach
+  public void setup() {
+    try (Jedis jedis = new Jedis("localhost", REDIS_PORT)) {
+      jedis.flushAll();
+    }
+    storage =
+        CoalescingRedisStorage.builder()
+            .withStorage(
+                RedisStorage.builder()
+                    .withJedisPool(new JedisPool("localhost", REDIS_PORT))
+                    .build())
+            .withFlushWindow(Duration.ofMillis(50))
+            .withMaxFlushSize(CALLERS)
+            .withFlushThreads(1)
+            .build();
+    callers = Executors.newFixedThreadPool(CALLERS);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    callers.shutdownNow();
+    storage.close();
+  }
+
+  @Test
+  public void concurrentCallsAreSentInOnePipeline() throws Exception {
+    List<Integer> counters =
+        callConcurrently(() -> storage.addAndGet(givenRequest(1, 100)).getValue());
+
+    assertThat(counters).containsExactlyElementsIn(range(1, CALLERS));
+    assertThat(storage.getFlushCount()).isLessThan((long) CALLERS);
+    assertThat(storage.getFlushedCallCount()).isEqualTo(CALLERS);
+    assertThat(storage.getFlushedRequestCount()).isEqualTo(CALLERS);
+    assertThat(storage.getAverageFlushSize()).isGreaterThan(1.0);
+    assertThat(storage.getAverageFlushLatency()).isGreaterThan(Duration.ZERO);
+    assertThat(storage.getAverageCallLatency()).isAtLeast(storage.getAverageFlushLatency());
+  }
+
+  @Test
+  public void tryAddAndGetChecksEveryCallOnItsOwn() throws Exception {
+    List<Integer> counters =
+        callConcurrently(
+            ()
+                -> storage
+                    .tryAddAndGet(Arrays.asList(givenRequest(1, 10)))
+                    .values()
+                    .iterator()
+                    .next());
+
+    assertThat(counters.stream().filter(counter -> counter <= 10).count()).isEqualTo(10);
+    assertThat(storage.getCurrentLimitCounters().values()).containsExactly(10);
+  }
+
+  @Test
+  public void differentOperationsShareAPipeline() throws Exception {
+    CompletableFuture<Map<LimitKey, Integer>> added =
+        storage.addAndGetAsync(Arrays.asList(givenRequest(5, 10)));
+    CompletableFuture<Map<LimitKey, Integer>> tried =
+        storage.tryAddAndGetAsync(Arrays.asList(givenRequest(4, 10)));
+    Future<Map<LimitKey, Integer>> limited =
+        callers.submit(() -> storage.addAndGetWithLimit(Arrays.asList(givenRequest(20, 4))));
+
+    // The additions run first, then the additions with a limit and then the tries.
+    assertThat(added.get().values()).containsExactly(5);
+    assertThat(limited.get().values()).containsExactly(5);
+    assertThat(tried.get().values()).containsExactly(9);
+    assertThat(storage.getFlushCount()).isEqualTo(1);
+    assertThat(storage.getCurrentLimitCounters().values()).containsExactly(9);
+  }
+
+  @Test
+  public void queuedCallsCompleteWithoutCountersWhenClosed() {
+    CoalescingRedisStorage closedStorage =
+        CoalescingRedisStorage.builder()
+            .withStorage(
+                RedisStorage.builder()
+                    .withJedisPool(new JedisPool("localhost", REDIS_PORT))
+                    .build())
+            .build();
+    closedStorage.close();
+
+    assertThat(closedStorage.addAndGet(Arrays.asList(givenRequest(1, 10)))).isEmpty();
+  }
+
+  private List<Integer> callConcurrently(Supplier<Integer> call) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < CALLERS; i++) {
+      futures.add(
+          callers.submit(
+              () -> {
+                start.await();
+                return call.get();
+              }));
+    }
+    start.countDown();
+
+    List<Integer> counters = new ArrayList<>();
+    for (Future<Integer> future : futures) {
+      counters.add(future.get());
+    }
+    return counters;
+  }
+
+  private static List<Integer> range(int from, int to) {
+    List<Integer> range = new ArrayList<>();
+    for (int i = from; i <= to; i++) {
+      range.add(i);
+    }
+    return range;
+  }
+
+  private static AddAndGetRequest givenRequest(int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE)
+        .withLimitName(LIMIT)
+        .withProperty(PROPERTY)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(TIMESTAMP)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
+}
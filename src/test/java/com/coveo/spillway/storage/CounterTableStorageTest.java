@@ -0,0 +1,383 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.coveo.spillway.Spillway;
+import com.coveo.spillway.SpillwayFactory;
+import com.coveo.spillway.limit.Limit;
+import com.coveo.spillway.limit.LimitBuilder;
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetBatch;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.CounterTable;
+
+public class CounterTableStorageTest {
+  private static final String RESOURCE = "someResource";
+  private static final String LIMIT1 = "someLimit";
+  private static final String LIMIT2 = "someOtherLimit";
+  private static final String PROPERTY = "someProperty";
+  private static final Duration EXPIRATION = Duration.ofMinutes(1);
+  private static final Instant BUCKET = LimitUtils.calculateBucket(Instant.now(), EXPIRATION);
+  // Positions of the header of a counter table, in longs.
+  private static final int LOCK_INDEX = 2;
+  private static final int HEADER_LONGS = 8;
+
+  private Clock clock;
+  private CounterTableStorage storage;
+
+  @BeforeEach
+  public void setup() {
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(BUCKET.toEpochMilli());
+    when(clock.instant()).thenReturn(BUCKET);
+    storage = CounterTableStorage.builder().withCapacity(100).withClock(clock).build();
+  }
+
+  @Test
+  public void addsTheCostsOfAKeyToTheSameCounter() {
+    storage.addAndGet(givenRequest(LIMIT1, "a", BUCKET, 2, 10));
+    storage.addAndGet(givenRequest(LIMIT1, "b", BUCKET, 1, 10));
+
+    assertThat(storage.addAndGet(givenRequest(LIMIT1, "a", BUCKET, 3, 10)).getValue()).isEqualTo(5);
+    assertThat(storage.getCounterCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void tryAddAndGetRollsBackTheReservationsWhenALimitIsExceeded() {
+    AddAndGetRequest underLimit = givenRequest(LIMIT1, PROPERTY, BUCKET, 1, 10);
+    AddAndGetRequest overLimit = givenRequest(LIMIT2, PROPERTY, BUCKET, 1, 0);
+
+    Map<LimitKey, Integer> results = storage.tryAddAndGet(Arrays.asList(underLimit, overLimit));
+
+    assertThat(results.values()).containsExactly(1, 1).inOrder();
+    assertThat(storage.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 0, 10)).getValue())
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void expiredCountersAreReusedByTheNextBucket() {
+    storage = CounterTableStorage.builder().withCapacity(3).withClock(clock).build();
+    for (int i = 0; i < 4; i++) {
+      storage.addAndGet(givenRequest(LIMIT1, "property" + i, BUCKET, 5, 10));
+    }
+
+    Instant nextBucket = BUCKET.plus(EXPIRATION);
+    when(clock.millis()).thenReturn(nextBucket.toEpochMilli() + 1_000);
+    for (int i = 0; i < 4; i++) {
+      assertThat(tryAddAndGet(givenRequest(LIMIT1, "property" + i, nextBucket, 1, 10)))
+          .isEqualTo(1);
+    }
+    assertThat(storage.getCounterCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void callsAreLetThroughWhenTheTableIsFull() {
+    storage = CounterTableStorage.builder().withCapacity(3).withClock(clock).build();
+    for (int i = 0; i < 4; i++) {
+      storage.addAndGet(givenRequest(LIMIT1, "property" + i, BUCKET, 5, 10));
+    }
+
+    assertThat(tryAddAndGet(givenRequest(LIMIT1, "another", BUCKET, 1, 10))).isEqualTo(1);
+  }
+
+  @Test
+  public void slidingWindowsWeightThePreviousBucket() {
+    Instant nextBucket = BUCKET.plus(EXPIRATION);
+    storage.addAndGet(givenSlidingWindowRequest(BUCKET, 8, 10));
+
+    Instant quarterPast = nextBucket.plus(EXPIRATION.dividedBy(4));
+    when(clock.millis()).thenReturn(quarterPast.toEpochMilli());
+
+    assertThat(tryAddAndGet(givenSlidingWindowRequest(quarterPast, 1, 10))).isEqualTo(7);
+    assertThat(tryAddAndGet(givenSlidingWindowRequest(quarterPast, 4, 10))).isEqualTo(11);
+  }
+
+  @Test
+  public void tokenBucketsRefillOverTime() {
+    Limit<String> limit =
+        LimitBuilder.of("perUser").to(10).per(Duration.ofSeconds(10)).tokenBucket(2).build();
+    Spillway<String> spillway = new SpillwayFactory(storage, clock).enforce(RESOURCE, limit);
+
+    assertThat(spillway.tryCall("john")).isTrue();
+    assertThat(spillway.tryCall("john")).isTrue();
+    assertThat(spillway.tryCall("john")).isFalse();
+
+    when(clock.instant()).thenReturn(BUCKET.plusSeconds(1));
+    when(clock.millis()).thenReturn(BUCKET.plusSeconds(1).toEpochMilli());
+    assertThat(spillway.tryCall("john")).isTrue();
+    assertThat(spillway.tryCall("john")).isFalse();
+  }
+
+  @Test
+  public void spillwayDecisionsAreEnforced() {
+    Limit<String> perUser = LimitBuilder.of("perUser").to(2).per(EXPIRATION).build();
+    Limit<String> perResource =
+        LimitBuilder.of("perResource", (String user) -> RESOURCE).to(3).per(EXPIRATION).build();
+    Spillway<String> spillway =
+        new SpillwayFactory(storage, clock).enforce(RESOURCE, perUser, perResource);
+
+    assertThat(spillway.tryCall("john")).isTrue();
+    assertThat(spillway.tryCall("john")).isTrue();
+    assertThat(spillway.tryCall("john")).isFalse();
+    assertThat(spillway.tryCall("gina")).isTrue();
+    assertThat(spillway.tryCall("gina")).isFalse();
+  }
+
+  @Test
+  public void noCostIsLostWithConcurrentThreads() throws InterruptedException {
+    int threadCount = 8;
+    int keyCount = 50;
+    int costsPerKey = 1_000;
+    storage =
+        CounterTableStorage.builder()
+            .withCapacity(100)
+            .withClock(Clock.fixed(BUCKET, ZoneOffset.UTC))
+            .build();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (int i = 0; i < costsPerKey; i++) {
+                  for (int key = 0; key < keyCount; key++) {
+                    storage.addAndGet(givenRequest(LIMIT1, "property" + key, BUCKET, 1, 0));
+                  }
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    for (int key = 0; key < keyCount; key++) {
+      assertThat(storage.addAndGet(givenRequest(LIMIT1, "property" + key, BUCKET, 0, 0)).getValue())
+          .isEqualTo(threadCount * costsPerKey);
+    }
+    assertThat(storage.getCounterCount()).isEqualTo(keyCount);
+  }
+
+  @Test
+  public void theCountersAreListed() {
+    AddAndGetBatch batch = new AddAndGetBatch(1);
+    batch.add(RESOURCE, LIMIT2, "other", true, EXPIRATION, BUCKET.toEpochMilli(), 3, 10);
+
+    storage.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 2, 10));
+    storage.tryAddAndGet(batch);
+    storage.addAndGet(givenRequest(LIMIT1, "previous", BUCKET.minus(EXPIRATION), 1, 10));
+    when(clock.millis()).thenReturn(BUCKET.toEpochMilli() + 1_000);
+
+    assertThat(storage.getCurrentLimitCounters())
+        .containsExactly(
+            LimitKey.fromRequest(givenRequest(LIMIT1, PROPERTY, BUCKET, 2, 10)),
+            2,
+            LimitKey.fromRequest(givenRequest(LIMIT2, "other", BUCKET, 3, 10)),
+            3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE, LIMIT2).values()).containsExactly(3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE, LIMIT1, PROPERTY).values())
+        .containsExactly(2);
+    assertThat(storage.getCurrentLimitCounters("anotherResource")).isEmpty();
+  }
+
+  @Test
+  public void theCountersCannotBeListedWithoutTheIndex() {
+    storage =
+        CounterTableStorage.builder()
+            .withCapacity(100)
+            .withClock(clock)
+            .withListableCounters(false)
+            .build();
+    storage.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 1, 10));
+
+    assertThrows(UnsupportedOperationException.class, () -> storage.getCurrentLimitCounters());
+    assertThrows(
+        UnsupportedOperationException.class, () -> storage.getCurrentLimitCounters(RESOURCE));
+  }
+
+  @Test
+  public void storagesMappingTheSameFileShareTheirCounters(@TempDir Path directory)
+      throws Exception {
+    Path file = directory.resolve("counters");
+    CounterTableStorage first = givenMappedStorage(file, 100);
+    CounterTableStorage second = givenMappedStorage(file, 100);
+
+    first.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 2, 10));
+    second.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 3, 10));
+
+    assertThat(first.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 0, 10)).getValue())
+        .isEqualTo(5);
+    assertThat(second.getCounterCount()).isEqualTo(1);
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void countersSurviveReopeningTheFile(@TempDir Path directory) throws Exception {
+    Path file = directory.resolve("counters");
+    CounterTableStorage storage = givenMappedStorage(file, 100);
+    storage.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 4, 10));
+    storage.close();
+
+    CounterTableStorage reopened = givenMappedStorage(file, 100);
+    assertThat(reopened.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 1, 10)).getValue())
+        .isEqualTo(5);
+    reopened.close();
+  }
+
+  @Test
+  public void aFileOfAnotherCapacityIsRefusedAndLeftUnchanged(@TempDir Path directory)
+      throws Exception {
+    Path file = directory.resolve("counters");
+    givenMappedStorage(file, 100).close();
+    long size = Files.size(file);
+
+    assertThrows(UncheckedIOException.class, () -> givenMappedStorage(file, 200));
+    assertThat(Files.size(file)).isEqualTo(size);
+  }
+
+  @Test
+  public void theLockOfAProcessIsNeverTakenOver(@TempDir Path directory) throws Exception {
+    Path file = directory.resolve("counters");
+    CounterTableStorage storage = givenMappedStorage(file, 100);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      Future<?> insertion;
+      FileLock lock = channel.lock(LOCK_INDEX * Long.BYTES, Long.BYTES, false);
+      try {
+        insertion =
+            executor.submit(() -> storage.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 1, 10)));
+        assertThrows(TimeoutException.class, () -> insertion.get(1500, TimeUnit.MILLISECONDS));
+      } finally {
+        lock.release();
+      }
+      insertion.get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+      storage.close();
+    }
+  }
+
+  @Test
+  public void theSlotsLeftLockedByADeadProcessAreRepaired(@TempDir Path directory)
+      throws Exception {
+    Path file = directory.resolve("counters");
+    CounterTableStorage storage = givenMappedStorage(file, 100);
+    storage.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 4, 10));
+    storage.close();
+    givenAProcessDiedWhileItReplacedEveryKey(file);
+
+    CounterTableStorage reopened = givenMappedStorage(file, 100);
+    assertThat(reopened.addAndGet(givenRequest(LIMIT1, PROPERTY, BUCKET, 1, 10)).getValue())
+        .isEqualTo(1);
+    reopened.close();
+  }
+
+  private void givenAProcessDiedWhileItReplacedEveryKey(Path file) throws Exception {
+    try (FileChannel channel =
+            FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer longs = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.nativeOrder());
+      channel.read(longs, 0);
+      longs.putLong(LOCK_INDEX * Long.BYTES, 1);
+      for (int index = HEADER_LONGS; index < longs.capacity() / Long.BYTES; index += 2) {
+        if (longs.getLong(index * Long.BYTES) != 0) {
+          longs.putLong((index + 1) * Long.BYTES, CounterTable.LOCKED);
+        }
+      }
+      longs.clear();
+      channel.write(longs, 0);
+    }
+  }
+
+  private CounterTableStorage givenMappedStorage(Path file, int capacity) {
+    return CounterTableStorage.builder()
+        .withFile(file)
+        .withCapacity(capacity)
+        .withClock(clock)
+        .build();
+  }
+
+  private int tryAddAndGet(AddAndGetRequest request) {
+    return storage.tryAddAndGet(Arrays.asList(request)).values().iterator().next();
+  }
+
+  private AddAndGetRequest givenRequest(
+      String limitName, String property, Instant timestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE)
+        .withLimitName(limitName)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(timestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
+
+  private AddAndGetRequest givenSlidingWindowRequest(Instant timestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder(givenRequest(LIMIT1, PROPERTY, timestamp, cost, limit))
+        .withSlidingWindow(true)
+        .build();
+  }
+}
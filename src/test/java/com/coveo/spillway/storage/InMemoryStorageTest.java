@@ -29,11 +29,14 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 import static com.google.common.truth.Truth.assertThat;
@@ -91,6 +94,27 @@ public class InMemoryStorageTest {
     assertThat(result.containsValue(15));
   }
 
+  @Test
+  public void countersOnlyRememberTheirOwnLimit() {
+    AddAndGetRequest request =
+        new AddAndGetRequest.Builder()
+            .withResource(RESOURCE1)
+            .withLimitName(LIMIT1)
+            .withProperty(PROPERTY1)
+            .withExpiration(EXPIRATION)
+            .withEventTimestamp(TIMESTAMP)
+            .withLimit(100)
+            .build();
+    AddAndGetRequest cappedRequest = new AddAndGetRequest.Builder(request).withLimit(5).build();
+    Map<LimitKey, Integer> limits = new HashMap<>();
+
+    storage.addAndGet(Arrays.asList(request));
+    storage.addAndGetWithLimit(Arrays.asList(cappedRequest));
+    storage.applyOnEach(entry -> limits.put(entry.getKey(), entry.getValue().getLimit()));
+
+    assertThat(limits).containsExactly(LimitKey.fromRequest(request), 100);
+  }
+
   @Test
   public void canGetLimitsPerResourceAndKey() {
     storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
@@ -116,6 +140,35 @@ public class InMemoryStorageTest {
     assertThat(result.containsValue(15)).isTrue();
   }
 
+  @Test
+  public void tryAddAndGetAddsTheCostsWhenAllLimitsAreRespected() {
+    Map<LimitKey, Integer> result =
+        storage.tryAddAndGet(
+            Arrays.asList(
+                givenAddAndGetRequest(LIMIT1, PROPERTY1, 3, 5),
+                givenAddAndGetRequest(LIMIT2, PROPERTY2, 3, 3)));
+
+    assertThat(result.values()).containsExactly(3, 3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(3, 3);
+  }
+
+  @Test
+  public void tryAddAndGetAddsNothingWhenOneLimitIsExceeded() {
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP, 2);
+
+    Map<LimitKey, Integer> result =
+        storage.tryAddAndGet(
+            Arrays.asList(
+                givenAddAndGetRequest(LIMIT1, PROPERTY1, 3, 5),
+                givenAddAndGetRequest(LIMIT2, PROPERTY2, 3, 3)));
+
+    assertThat(result.values()).containsExactly(3, 5);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1).values())
+        .doesNotContain(3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2, PROPERTY2).values())
+        .containsExactly(2);
+  }
+
   @Test
   public void expiredEntriesAreRemovedFromDebugInfo() {
     storage.incrementAndGet(
@@ -128,4 +181,170 @@ public class InMemoryStorageTest {
 
     assertThat(storage.getCurrentLimitCounters()).isEmpty();
   }
+
+  @Test
+  public void entriesAreRemovedOnceTheirBucketEnds() {
+    Instant bucket = Instant.parse("2020-01-01T00:00:00Z");
+    when(clock.instant()).thenReturn(bucket);
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, Duration.ofMinutes(1), bucket, 1);
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, Duration.ofMinutes(2), bucket, 1);
+
+    when(clock.instant()).thenReturn(bucket.plus(Duration.ofMinutes(1)));
+    assertThat(storage.getCurrentLimitCounters()).hasSize(2);
+
+    when(clock.instant()).thenReturn(bucket.plus(Duration.ofMinutes(1)).plusMillis(1));
+    assertThat(storage.getCurrentLimitCounters().keySet())
+        .containsExactly(
+            new LimitKey(RESOURCE1, LIMIT2, PROPERTY1, true, bucket, Duration.ofMinutes(2)));
+
+    when(clock.instant()).thenReturn(bucket.plus(Duration.ofMinutes(3)));
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void backgroundSweeperRemovesExpiredEntriesWithoutCalls() throws Exception {
+    InMemoryStorage sweptStorage =
+        InMemoryStorage.withBackgroundSweeper(Duration.ofMillis(10), clock);
+    try {
+      sweptStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, Instant.EPOCH, 1);
+      assertThat(sweptStorage.map).hasSize(1);
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!sweptStorage.map.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(sweptStorage.map).isEmpty();
+    } finally {
+      sweptStorage.close();
+    }
+  }
+
+  @Test
+  public void slidingWindowWeightsTheCountOfThePreviousBucket() {
+    Instant bucket = Instant.parse("2020-01-01T01:00:00Z");
+    when(clock.instant()).thenReturn(bucket.minus(EXPIRATION));
+    storage.tryAddAndGet(
+        Arrays.asList(givenSlidingWindowRequest(bucket.minus(EXPIRATION), 10, 10)));
+
+    Instant quarterPast = bucket.plus(Duration.ofMinutes(15));
+    when(clock.instant()).thenReturn(quarterPast);
+    Map<LimitKey, Integer> accepted =
+        storage.tryAddAndGet(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+    Map<LimitKey, Integer> refused =
+        storage.tryAddAndGet(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+
+    // Three quarters of the previous 10 are still in the window.
+    assertThat(accepted.values()).containsExactly(8);
+    assertThat(refused.values()).containsExactly(9);
+    assertThat(storage.getCurrentLimitCounters())
+        .containsEntry(new LimitKey(RESOURCE1, LIMIT1, PROPERTY1, true, bucket, EXPIRATION), 1);
+  }
+
+  @Test
+  public void slidingWindowKeepsTheCountersForOneMoreBucket() {
+    Instant bucket = Instant.parse("2020-01-01T00:00:00Z");
+    when(clock.instant()).thenReturn(bucket);
+    storage.tryAddAndGet(Arrays.asList(givenSlidingWindowRequest(bucket, 1, 10)));
+
+    when(clock.instant()).thenReturn(bucket.plus(EXPIRATION).plusMillis(1));
+    assertThat(storage.getCurrentLimitCounters()).hasSize(1);
+
+    when(clock.instant()).thenReturn(bucket.plus(EXPIRATION.multipliedBy(2)).plusMillis(1));
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void tokenBucketKeepsASingleArrivalTimePerProperty() {
+    Instant now = Instant.parse("2020-01-01T00:00:00Z");
+    when(clock.instant()).thenReturn(now);
+
+    Map<LimitKey, Integer> first =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+    Map<LimitKey, Integer> second =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+    Map<LimitKey, Integer> refused =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+    Map<LimitKey, Integer> refilled =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now.plusSeconds(1), 1, 10, 2)));
+
+    // Counts are the tokens in use scaled from the burst of 2 to the capacity of 10.
+    assertThat(first.values()).containsExactly(5);
+    assertThat(second.values()).containsExactly(10);
+    assertThat(refused.values()).containsExactly(15);
+    assertThat(refilled.values()).containsExactly(10);
+    assertThat(storage.arrivals).hasSize(1);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void tokenBucketTokensAreReturnedWhenAnotherLimitIsExceeded() {
+    Instant now = Instant.parse("2020-01-01T00:00:00Z");
+    when(clock.instant()).thenReturn(now);
+
+    Map<LimitKey, Integer> result =
+        storage.tryAddAndGet(
+            Arrays.asList(
+                givenTokenBucketRequest(now, 1, 10, 1),
+                givenAddAndGetRequest(LIMIT2, PROPERTY2, 2, 1)));
+    Map<LimitKey, Integer> retried =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 1)));
+
+    assertThat(result.values()).containsExactly(10, 2).inOrder();
+    assertThat(retried.values()).containsExactly(10);
+  }
+
+  @Test
+  public void tokenBucketIsRemovedOnceFull() {
+    Instant now = Instant.parse("2020-01-01T00:00:00Z");
+    when(clock.instant()).thenReturn(now);
+    storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+
+    when(clock.instant()).thenReturn(now.plus(EXPIRATION).plusMillis(1));
+    storage.getCurrentLimitCounters();
+
+    assertThat(storage.arrivals).isEmpty();
+  }
+
+  private AddAndGetRequest givenTokenBucketRequest(
+      Instant timestamp, int cost, int limit, int burst) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withExpiration(Duration.ofSeconds(10))
+        .withEventTimestamp(timestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withBurst(burst)
+        .build();
+  }
+
+  private AddAndGetRequest givenSlidingWindowRequest(Instant timestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withSlidingWindow(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(timestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
+
+  private AddAndGetRequest givenAddAndGetRequest(
+      String limitName, String property, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(limitName)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(TIMESTAMP)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
 }
@@ -0,0 +1,278 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.SynchronizationScheduler;
+
+public class LeasingLimitUsageStorageTest {
+  private static final String RESOURCE = "TheResource";
+  private static final String LIMITNAME = "TheLimit";
+  private static final String PROPERTY = "TheProperty";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+
+  private InMemoryStorage distributedStorage;
+  private SynchronizationScheduler manualScheduler;
+  private Instant now;
+  private AddAndGetRequest request;
+
+  @BeforeEach
+  public void setup() {
+    distributedStorage = spy(new InMemoryStorage());
+    // The sweeps are run by the tests.
+    manualScheduler = new SynchronizationScheduler(mock(ScheduledExecutorService.class));
+    now = Instant.now();
+    request = givenRequest(1000);
+  }
+
+  @Test
+  public void decisionsAreServedFromTheLeases() {
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder().withStorage(distributedStorage).build();
+
+    for (int i = 0; i < 200; i++) {
+      assertThat(storage.tryAddAndGet(Arrays.asList(request)).get(LimitKey.fromRequest(request)))
+          .isAtMost(request.getLimit());
+    }
+
+    // The first lease holds a single token, the next ones up to a tenth of the limit.
+    verify(distributedStorage, atMost(5)).tryAddAndGet(anyCollection());
+    assertThat(distributedStorage.getCurrentLimitCounters().values()).containsExactly(201);
+  }
+
+  @Test
+  public void neverLetsMoreThanTheLimitThrough() throws Exception {
+    AddAndGetRequest limitedRequest = givenRequest(300);
+    LeasingLimitUsageStorage firstStorage =
+        LeasingLimitUsageStorage.builder().withStorage(distributedStorage).build();
+    LeasingLimitUsageStorage secondStorage =
+        LeasingLimitUsageStorage.builder().withStorage(distributedStorage).build();
+    AtomicInteger allowedCalls = new AtomicInteger();
+
+    ExecutorService threadPool = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      LeasingLimitUsageStorage storage = t % 2 == 0 ? firstStorage : secondStorage;
+      threadPool.submit(
+          () -> {
+            for (int i = 0; i < 500; i++) {
+              int count =
+                  storage
+                      .tryAddAndGet(Arrays.asList(limitedRequest))
+                      .get(LimitKey.fromRequest(limitedRequest));
+              if (count <= limitedRequest.getLimit()) {
+                allowedCalls.incrementAndGet();
+              }
+            }
+          });
+    }
+    threadPool.shutdown();
+    assertThat(threadPool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+    firstStorage.close();
+    secondStorage.close();
+
+    // At most one lease per storage can be left unused.
+    assertThat(allowedCalls.get()).isAtMost(300);
+    assertThat(allowedCalls.get()).isAtLeast(300 - 2 * 30);
+    assertThat(distributedStorage.getCurrentLimitCounters().values())
+        .containsExactly(allowedCalls.get());
+  }
+
+  @Test
+  public void unusedTokensAreGivenBackWhenTheBucketEnds() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(now.toEpochMilli());
+    LeasingLimitUsageStorage storage = givenManuallySweptStorage(clock);
+
+    storage.addAndGet(request);
+    storage.addAndGet(request);
+    storage.addAndGet(request);
+    assertThat(distributedStorage.getCurrentLimitCounters().values()).containsExactly(101);
+
+    when(clock.millis()).thenReturn(now.plus(EXPIRATION).plusSeconds(1).toEpochMilli());
+    storage.sweepEndedLeases();
+
+    assertThat(storage.getLeaseCount()).isEqualTo(0);
+    assertThat(distributedStorage.getCurrentLimitCounters().get(LimitKey.fromRequest(request)))
+        .isEqualTo(3);
+  }
+
+  @Test
+  public void unusedTokensOfAnIdleLeaseAreGivenBackDuringTheBucket() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(now.toEpochMilli());
+    LeasingLimitUsageStorage storage = givenManuallySweptStorage(clock);
+
+    storage.addAndGet(request);
+    storage.addAndGet(request);
+    storage.addAndGet(request);
+    when(clock.millis()).thenReturn(now.plusMillis(1000).toEpochMilli());
+    storage.sweepEndedLeases();
+    assertThat(distributedStorage.getCurrentLimitCounters().get(LimitKey.fromRequest(request)))
+        .isEqualTo(101);
+    when(clock.millis()).thenReturn(now.plusMillis(2000).toEpochMilli());
+    storage.sweepEndedLeases();
+
+    assertThat(distributedStorage.getCurrentLimitCounters().get(LimitKey.fromRequest(request)))
+        .isEqualTo(3);
+    assertThat(storage.addAndGet(request).getValue()).isEqualTo(4);
+  }
+
+  @Test
+  public void theTokensOfEverySweptLeaseAreGivenBackInOneCall() {
+    Clock clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(now.toEpochMilli());
+    LeasingLimitUsageStorage storage = givenManuallySweptStorage(clock);
+    AddAndGetRequest otherRequest =
+        new AddAndGetRequest.Builder(request).withProperty("OtherProperty").build();
+
+    for (int i = 0; i < 3; i++) {
+      storage.addAndGet(request);
+      storage.addAndGet(otherRequest);
+    }
+    when(clock.millis()).thenReturn(now.plus(EXPIRATION).plusSeconds(1).toEpochMilli());
+    storage.sweepEndedLeases();
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Collection<AddAndGetRequest>> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(distributedStorage).addAndGet(captor.capture());
+    assertThat(captor.getValue()).hasSize(2);
+    assertThat(distributedStorage.getCurrentLimitCounters().values()).containsExactly(3, 3);
+  }
+
+  @Test
+  public void closeStopsSweepingTheLeases() throws Exception {
+    ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    ScheduledFuture<?> sweep = mock(ScheduledFuture.class);
+    doReturn(sweep).when(executor).schedule(any(Runnable.class), anyLong(), any());
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder()
+            .withStorage(distributedStorage)
+            .withScheduler(new SynchronizationScheduler(executor))
+            .build();
+
+    storage.close();
+
+    verify(sweep).cancel(false);
+  }
+
+  @Test
+  public void leasesAreReleasedWhileTheyAreBeingExtended() throws Exception {
+    CountDownLatch reservationStarted = new CountDownLatch(1);
+    CountDownLatch reservationReleased = new CountDownLatch(1);
+    doAnswer(
+            invocation -> {
+              reservationStarted.countDown();
+              reservationReleased.await();
+              return invocation.callRealMethod();
+            })
+        .when(distributedStorage)
+        .tryAddAndGet(anyCollection());
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder().withStorage(distributedStorage).build();
+
+    ExecutorService threadPool = Executors.newSingleThreadExecutor();
+    Future<Integer> call = threadPool.submit(() -> storage.addAndGet(request).getValue());
+    reservationStarted.await();
+    CompletableFuture<Void> close =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                storage.close();
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    close.get(1, TimeUnit.SECONDS);
+    reservationReleased.countDown();
+    call.get(1, TimeUnit.SECONDS);
+    threadPool.shutdown();
+
+    assertThat(distributedStorage.getCurrentLimitCounters().values()).containsExactly(1);
+  }
+
+  @Test
+  public void slidingWindowsAreNotLeased() {
+    LeasingLimitUsageStorage storage =
+        LeasingLimitUsageStorage.builder().withStorage(distributedStorage).build();
+    AddAndGetRequest slidingRequest =
+        new AddAndGetRequest.Builder(request).withSlidingWindow(true).build();
+
+    storage.tryAddAndGet(Arrays.asList(slidingRequest));
+    storage.tryAddAndGet(Arrays.asList(slidingRequest));
+
+    assertThat(storage.getLeaseCount()).isEqualTo(0);
+    assertThat(distributedStorage.getCurrentLimitCounters().values()).containsExactly(2);
+  }
+
+  private LeasingLimitUsageStorage givenManuallySweptStorage(Clock clock) {
+    return LeasingLimitUsageStorage.builder()
+        .withStorage(distributedStorage)
+        .withClock(clock)
+        .withScheduler(manualScheduler)
+        .build();
+  }
+
+  private AddAndGetRequest givenRequest(int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE)
+        .withLimitName(LIMITNAME)
+        .withProperty(PROPERTY)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(now)
+        .withLimit(limit)
+        .build();
+  }
+}
@@ -0,0 +1,332 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
+import com.coveo.spillway.storage.utils.CompactRedisKeyCodec;
+import com.coveo.spillway.storage.utils.HashTagRedisKeyCodec;
+import com.coveo.spillway.storage.utils.RedisHashTag;
+import com.coveo.spillway.storage.utils.RedisKeyCodec;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.embedded.RedisShardedCluster;
+
+/**
+ * Functional tests running against a local cluster of three Redis nodes without replicas.
+ */
+public class RedisClusterStorageTest {
+  private static final String RESOURCE1 = "someResource";
+  private static final String RESOURCE2 = "someOtherResource";
+  private static final String LIMIT1 = "someLimit";
+  private static final String LIMIT2 = "someOtherLimit";
+  private static final String PROPERTY1 = "someProperty";
+  private static final String PROPERTY2 = "someOtherProperty";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+  private static final Instant TIMESTAMP = Instant.now();
+  private static final List<Integer> REDIS_PORTS = Arrays.asList(7894, 7895, 7896);
+
+  private static RedisShardedCluster redisCluster;
+  private static Set<HostAndPort> nodes = new HashSet<>();
+  private static RedisClusterStorage storage;
+  private static RedisClusterStorage limitTaggedStorage;
+  private static RedisClusterStorage resourceTaggedStorage;
+
+  @BeforeAll
+  public static void startRedisCluster() throws IOException, InterruptedException {
+    redisCluster =
+        RedisShardedCluster.newRedisCluster()
+            .serverPorts(REDIS_PORTS)
+            .shard("a", 0)
+            .shard("b", 0)
+            .shard("c", 0)
+            .build();
+    redisCluster.start();
+    for (int port : redisCluster.ports()) {
+      nodes.add(new HostAndPort("localhost", port));
+    }
+    waitForClusterState();
+    storage = RedisClusterStorage.builder().withNodes(nodes).build();
+    limitTaggedStorage =
+        RedisClusterStorage.builder().withNodes(nodes).withHashTag(RedisHashTag.LIMIT).build();
+    resourceTaggedStorage =
+        RedisClusterStorage.builder()
+            .withNodes(nodes)
+            .withCompactKeys(true)
+            .withHashTag(RedisHashTag.RESOURCE)
+            .build();
+  }
+
+  @AfterAll
+  public static void stopRedisCluster() throws IOException {
+    storage.close();
+    limitTaggedStorage.close();
+    resourceTaggedStorage.close();
+    redisCluster.stop();
+  }
+
+  @BeforeEach
+  public void flushDataInRedis() {
+    for (HostAndPort node : nodes) {
+      try (Jedis jedis = new Jedis(node)) {
+        jedis.flushAll();
+      }
+    }
+  }
+
+  @Test
+  public void canIncrementLimitsOfEveryNode() {
+    List<AddAndGetRequest> requests = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      requests.add(newRequest(RESOURCE1, LIMIT1, PROPERTY1 + i, 100));
+    }
+
+    limitTaggedStorage.addAndGet(requests);
+    Map<LimitKey, Integer> counters = limitTaggedStorage.addAndGet(requests);
+
+    assertThat(counters).hasSize(50);
+    assertThat(new HashSet<>(counters.values())).containsExactly(2);
+    assertThat(counters.keySet())
+        .containsExactlyElementsIn(requests.stream().map(LimitKey::fromRequest).toArray())
+        .inOrder();
+  }
+
+  @Test
+  public void addAndGetWithLimitDoesNotGoOverTheLimit() {
+    AddAndGetRequest request = newRequest(RESOURCE1, LIMIT1, PROPERTY1, 1);
+
+    storage.addAndGetWithLimit(Arrays.asList(request));
+    storage.addAndGetWithLimit(Arrays.asList(request));
+    storage.addAndGetWithLimit(Arrays.asList(request));
+
+    // As with the RedisStorage, a cost is kept when it only goes over the limit by that cost.
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(2);
+  }
+
+  @Test
+  public void tryAddAndGetRemovesTheCostsOfTheOtherSlotsWhenOneIsOverItsLimit() {
+    AddAndGetRequest request1 = newRequest(RESOURCE1, LIMIT1, PROPERTY1, 10);
+    AddAndGetRequest request2 = newRequest(RESOURCE1, LIMIT2, PROPERTY1, 1);
+    assertThat(getSlot(request1, RedisHashTag.LIMIT))
+        .isNotEqualTo(getSlot(request2, RedisHashTag.LIMIT));
+
+    Map<LimitKey, Integer> accepted =
+        limitTaggedStorage.tryAddAndGet(Arrays.asList(request1, request2));
+    Map<LimitKey, Integer> refused =
+        limitTaggedStorage.tryAddAndGet(Arrays.asList(request1, request2));
+
+    assertThat(accepted.values()).containsExactly(1, 1).inOrder();
+    assertThat(refused.values()).containsExactly(2, 2).inOrder();
+    assertThat(limitTaggedStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1).values())
+        .containsExactly(1);
+    assertThat(limitTaggedStorage.getCurrentLimitCounters(RESOURCE1, LIMIT2, PROPERTY1).values())
+        .containsExactly(1);
+  }
+
+  @Test
+  public void tryAddAndGetAllOnlyAddsTheGroupsUnderTheirLimits() {
+    AddAndGetRequest request1 = newRequest(RESOURCE1, LIMIT1, PROPERTY1, 1);
+    AddAndGetRequest request2 = newRequest(RESOURCE1, LIMIT2, PROPERTY2, 5);
+
+    List<Map<LimitKey, Integer>> results =
+        limitTaggedStorage.tryAddAndGetAll(
+            Arrays.asList(
+                Arrays.asList(request1, request2),
+                Arrays.asList(request1, request2),
+                Arrays.asList(request2)));
+
+    assertThat(results.get(0).values()).containsExactly(1, 1).inOrder();
+    assertThat(results.get(1).values()).containsExactly(2, 2).inOrder();
+    // The last group still sees the cost the second one held in the other slot until it was removed.
+    assertThat(results.get(2).values()).containsExactly(3);
+    assertThat(limitTaggedStorage.getCurrentLimitCounters(RESOURCE1, LIMIT2).values())
+        .containsExactly(2);
+  }
+
+  @Test
+  public void keysAreTaggedByResourceByDefault() {
+    AddAndGetRequest request1 = newRequest(RESOURCE1, LIMIT1, PROPERTY1, 10);
+    AddAndGetRequest request2 = newRequest(RESOURCE1, LIMIT2, PROPERTY2, 1);
+    AddAndGetRequest request3 = newRequest(RESOURCE2, LIMIT1, PROPERTY1, 10);
+
+    storage.tryAddAndGet(Arrays.asList(request1, request2));
+    storage.tryAddAndGet(Arrays.asList(request1, request2));
+    storage.addAndGet(Arrays.asList(request3));
+
+    List<String> keys = new ArrayList<>();
+    for (HostAndPort node : nodes) {
+      try (Jedis jedis = new Jedis(node)) {
+        keys.addAll(jedis.keys("*"));
+      }
+    }
+    assertThat(keys).hasSize(3);
+    assertThat(keys.stream().filter(key -> key.startsWith("{" + RESOURCE1 + "}")).count())
+        .isEqualTo(2);
+    assertThat(keys.stream().filter(key -> key.startsWith("{" + RESOURCE2 + "}")).count())
+        .isEqualTo(1);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values()).containsExactly(1);
+  }
+
+  @Test
+  public void resourceHashTagKeepsEveryLimitOfAResourceInOneSlot() {
+    AddAndGetRequest request1 = newRequest(RESOURCE1, LIMIT1, PROPERTY1, 10);
+    AddAndGetRequest request2 = newRequest(RESOURCE1, LIMIT2, PROPERTY2, 1);
+    assertThat(getSlot(request1, RedisHashTag.RESOURCE))
+        .isEqualTo(getSlot(request2, RedisHashTag.RESOURCE));
+
+    resourceTaggedStorage.tryAddAndGet(Arrays.asList(request1, request2));
+    resourceTaggedStorage.tryAddAndGet(Arrays.asList(request1, request2));
+
+    assertThat(resourceTaggedStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1).values())
+        .containsExactly(1);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  @Test
+  public void slidingWindowsReadTheirPreviousBucket() {
+    Duration expiration = Duration.ofMinutes(1);
+    Instant bucket = Instant.ofEpochMilli(TIMESTAMP.toEpochMilli() / 60000 * 60000);
+    AddAndGetRequest previousRequest =
+        new AddAndGetRequest.Builder(newRequest(RESOURCE1, LIMIT1, PROPERTY1, 100))
+            .withExpiration(expiration)
+            .withEventTimestamp(bucket.minusSeconds(30))
+            .withCost(10)
+            .build();
+    AddAndGetRequest request =
+        new AddAndGetRequest.Builder(previousRequest)
+            .withSlidingWindow(true)
+            .withEventTimestamp(bucket.plusSeconds(30))
+            .withCost(1)
+            .build();
+
+    storage.addAndGet(Arrays.asList(previousRequest));
+    int counter = storage.addAndGet(request).getValue();
+
+    assertThat(counter).isEqualTo(6);
+  }
+
+  @Test
+  public void slidingWindowsOfAnEmptyResourceReadTheirPreviousBucketInTheSameSlot() {
+    Duration expiration = Duration.ofMinutes(1);
+    Instant bucket = Instant.ofEpochMilli(TIMESTAMP.toEpochMilli() / 60000 * 60000);
+    AddAndGetRequest previousRequest =
+        new AddAndGetRequest.Builder(newRequest("", LIMIT1, PROPERTY1, 100))
+            .withExpiration(expiration)
+            .withEventTimestamp(bucket.minusSeconds(30))
+            .withCost(10)
+            .build();
+    AddAndGetRequest request =
+        new AddAndGetRequest.Builder(previousRequest)
+            .withSlidingWindow(true)
+            .withEventTimestamp(bucket.plusSeconds(30))
+            .withCost(1)
+            .build();
+    RedisKeyCodec keyCodec =
+        new HashTagRedisKeyCodec(
+            new CompactRedisKeyCodec(RedisStorage.DEFAULT_PREFIX), RedisHashTag.RESOURCE);
+    assertThat(JedisClusterCRC16.getSlot(keyCodec.encode(LimitKey.fromRequest(previousRequest))))
+        .isEqualTo(JedisClusterCRC16.getSlot(keyCodec.encode(LimitKey.fromRequest(request))));
+
+    resourceTaggedStorage.addAndGet(Arrays.asList(previousRequest));
+    int counter = resourceTaggedStorage.addAndGet(request).getValue();
+
+    assertThat(counter).isEqualTo(6);
+  }
+
+  @Test
+  public void getCurrentLimitCountersReadsEveryNode() {
+    List<AddAndGetRequest> requests = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      requests.add(newRequest(RESOURCE1, LIMIT1, PROPERTY1 + i, 100));
+      requests.add(newRequest(RESOURCE2, LIMIT1, PROPERTY1 + i, 100));
+    }
+    limitTaggedStorage.addAndGet(requests);
+
+    assertThat(limitTaggedStorage.getCurrentLimitCounters()).hasSize(100);
+    assertThat(limitTaggedStorage.getCurrentLimitCounters(RESOURCE1)).hasSize(50);
+    assertThat(limitTaggedStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1 + 1))
+        .hasSize(1);
+  }
+
+  @Test
+  public void scriptsAreLoadedAgainWhenANodeLosesThem() {
+    AddAndGetRequest request1 = newRequest(RESOURCE1, LIMIT1, PROPERTY1, 10);
+    AddAndGetRequest request2 = newRequest(RESOURCE2, LIMIT2, PROPERTY2, 10);
+    storage.addAndGet(Arrays.asList(request1, request2));
+
+    for (HostAndPort node : nodes) {
+      try (Jedis jedis = new Jedis(node)) {
+        jedis.scriptFlush();
+      }
+    }
+    Map<LimitKey, Integer> counters = storage.addAndGet(Arrays.asList(request1, request2));
+
+    assertThat(counters.values()).containsExactly(2, 2).inOrder();
+  }
+
+  private static void waitForClusterState() throws InterruptedException {
+    // The nodes only accept commands once every one of them agrees on the owners of the slots.
+    for (HostAndPort node : nodes) {
+      try (Jedis jedis = new Jedis(node)) {
+        while (!jedis.clusterInfo().contains("cluster_state:ok")) {
+          Thread.sleep(50);
+        }
+      }
+    }
+  }
+
+  private static AddAndGetRequest newRequest(
+      String resource, String limitName, String property, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(resource)
+        .withLimitName(limitName)
+        .withProperty(property)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(TIMESTAMP)
+        .withLimit(limit)
+        .build();
+  }
+
+  private static int getSlot(AddAndGetRequest request, RedisHashTag hashTag) {
+    return JedisClusterCRC16.getSlot(hashTag.of(LimitKey.fromRequest(request)));
+  }
+}
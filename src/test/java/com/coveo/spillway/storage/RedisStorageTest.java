@@ -23,18 +23,24 @@
 package com.coveo.spillway.storage;
 
 import static com.google.common.truth.Truth.*;
-import static org.mockito.Mockito.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.junit.jupiter.api.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.coveo.spillway.limit.LimitKey;
-import com.google.common.collect.Sets;
+import com.coveo.spillway.limit.utils.LimitUtils;
+import com.coveo.spillway.storage.utils.AddAndGetRequest;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -54,9 +60,7 @@ public class RedisStorageTest {
   private static final String LIMIT2 = "someOtherLimit";
   private static final String PROPERTY1 = "someProperty";
   private static final String PROPERTY2 = "someOtherProperty";
-  private static final String KEY1 = "someKey|2|3|4|2007-12-03T10:15:30.00Z";
   private static final String KEY2 = "someOtherKey";
-  private static final String KEY3 = "yetAnotherKey";
   private static final Duration EXPIRATION = Duration.ofHours(1);
   private static final Instant TIMESTAMP = Instant.now();
   private static final int REDIS_PORT = 7893;
@@ -66,6 +70,8 @@ public class RedisStorageTest {
   private static RedisServer redisServer;
   private static JedisPool jedis;
   private static RedisStorage storage;
+  private static RedisStorage compactStorage;
+  private static RedisStorage hashStorage;
 
   @BeforeAll
   public static void startRedis() throws IOException {
@@ -78,6 +84,16 @@ public class RedisStorageTest {
     redisServer.start();
     jedis = new JedisPool("localhost", REDIS_PORT);
     storage = RedisStorage.builder().withJedisPool(new JedisPool("localhost", REDIS_PORT)).build();
+    compactStorage =
+        RedisStorage.builder()
+            .withJedisPool(new JedisPool("localhost", REDIS_PORT))
+            .withCompactKeys(true)
+            .build();
+    hashStorage =
+        RedisStorage.builder()
+            .withJedisPool(new JedisPool("localhost", REDIS_PORT))
+            .withHashBuckets(true)
+            .build();
   }
 
   @AfterAll
@@ -201,6 +217,116 @@ public class RedisStorageTest {
     assertThat(result).isEqualTo(6);
   }
 
+  @Test
+  public void tryAddAndGetAddsTheCostsWhenAllLimitsAreRespected() {
+    Map<LimitKey, Integer> result =
+        storage.tryAddAndGet(
+            Arrays.asList(
+                givenAddAndGetRequest(LIMIT1, PROPERTY1, 3, 5),
+                givenAddAndGetRequest(LIMIT2, PROPERTY2, 3, 3)));
+
+    assertThat(result.values()).containsExactly(3, 3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1).values()).containsExactly(3, 3);
+  }
+
+  @Test
+  public void tryAddAndGetAddsNothingWhenOneLimitIsExceeded() {
+    storage.addAndGet(RESOURCE1, LIMIT2, PROPERTY2, true, EXPIRATION, TIMESTAMP, 2);
+
+    Map<LimitKey, Integer> result =
+        storage.tryAddAndGet(
+            Arrays.asList(
+                givenAddAndGetRequest(LIMIT1, PROPERTY1, 3, 5),
+                givenAddAndGetRequest(LIMIT2, PROPERTY2, 3, 3)));
+
+    assertThat(result.values()).containsExactly(3, 5);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1).values())
+        .doesNotContain(3);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2, PROPERTY2).values())
+        .containsExactly(2);
+  }
+
+  @Test
+  public void tryAddAndGetAllProcessesTheGroupsOneAfterTheOther() {
+    List<Map<LimitKey, Integer>> results =
+        storage.tryAddAndGetAll(
+            Arrays.asList(
+                Arrays.asList(
+                    givenAddAndGetRequest(LIMIT1, PROPERTY1, 2, 3),
+                    givenAddAndGetRequest(LIMIT2, PROPERTY2, 1, 5)),
+                Arrays.asList(
+                    givenAddAndGetRequest(LIMIT1, PROPERTY1, 2, 3),
+                    givenAddAndGetRequest(LIMIT2, PROPERTY2, 1, 5)),
+                Arrays.asList(givenAddAndGetRequest(LIMIT2, PROPERTY2, 1, 5))));
+
+    assertThat(results).hasSize(3);
+    assertThat(results.get(0).values()).containsExactly(2, 1).inOrder();
+    assertThat(results.get(1).values()).containsExactly(4, 2).inOrder();
+    assertThat(results.get(2).values()).containsExactly(2);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1).values())
+        .containsExactly(2);
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT2, PROPERTY2).values())
+        .containsExactly(2);
+  }
+
+  @Test
+  public void addAndGetReturnsEveryCounterOfTheBatch() {
+    storage.addAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 2, 3)));
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGet(
+            Arrays.asList(
+                givenAddAndGetRequest(LIMIT1, PROPERTY1, 2, 3),
+                givenAddAndGetRequest(LIMIT2, PROPERTY2, 1, 5)));
+
+    assertThat(result.values()).containsExactly(4, 1).inOrder();
+  }
+
+  @Test
+  public void scriptsAreLoadedAgainWhenRedisLosesThem() {
+    storage.addAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 1, 3)));
+    try (Jedis resource = jedis.getResource()) {
+      resource.scriptFlush();
+    }
+
+    Map<LimitKey, Integer> result =
+        storage.addAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 1, 3)));
+
+    assertThat(result.values()).containsExactly(2);
+  }
+
+  @Test
+  public void requestsWithoutCostDoNotCreateCounters() {
+    Instant now = Instant.parse("2020-01-01T00:00:00Z");
+
+    storage.addAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 0, 3)));
+    storage.tryAddAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 0, 3)));
+    storage.addAndGet(Arrays.asList(givenTokenBucketRequest(now, 0, 10, 2)));
+    hashStorage.addAndGetWithLimit(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 0, 3)));
+
+    try (Jedis resource = jedis.getResource()) {
+      assertThat(resource.keys("*")).isEmpty();
+    }
+  }
+
+  @Test
+  public void requestsWithoutCostDoNotExtendTheExpirationOfCounters() {
+    storage.addAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 2, 3)));
+    try (Jedis resource = jedis.getResource()) {
+      String key = resource.keys("*").iterator().next();
+      resource.expire(key, 10);
+
+      Map<LimitKey, Integer> added =
+          storage.addAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 0, 3)));
+      Map<LimitKey, Integer> tried =
+          storage.tryAddAndGet(Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 0, 3)));
+
+      assertThat(added.values()).containsExactly(2);
+      assertThat(tried.values()).containsExactly(2);
+      assertThat(resource.ttl(key)).isAtMost(10L);
+    }
+  }
+
   @Test
   public void testBackwardCompatibilityWithPreviousKeys() {
     // Versions pre 2.0.0-alpha.3 are not storing expiration
@@ -221,18 +347,299 @@ public class RedisStorageTest {
   }
 
   @Test
-  public void nullAndEmptyValueDoNotCauseExceptionWhenGettingLimits() {
-    Jedis jedisMock = mock(Jedis.class);
-    when(jedisMock.keys(anyString())).thenReturn(Sets.newHashSet(KEY1, KEY2, KEY3));
-    when(jedisMock.get(KEY1)).thenReturn("12");
-    when(jedisMock.get(KEY2)).thenReturn(null);
-    when(jedisMock.get(KEY3)).thenReturn("");
-    JedisPool jedisPool = mock(JedisPool.class);
-    when(jedisPool.getResource()).thenReturn(jedisMock);
-    RedisStorage redisStorage = RedisStorage.builder().withJedisPool(jedisPool).build();
+  public void emptyValuesAndOtherKeysAreNotIncludedInLimits() {
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 12);
+    try (Jedis resource = jedis.getResource()) {
+      resource.set(
+          String.join(
+              RedisStorage.KEY_SEPARATOR,
+              RedisStorage.DEFAULT_PREFIX,
+              RESOURCE1,
+              LIMIT2,
+              PROPERTY1,
+              TIMESTAMP.toString()),
+          "");
+      resource.set(String.join(RedisStorage.KEY_SEPARATOR, RedisStorage.DEFAULT_PREFIX, KEY2), "5");
+    }
 
-    Map<LimitKey, Integer> counters = redisStorage.getCurrentLimitCounters();
+    Map<LimitKey, Integer> counters = storage.getCurrentLimitCounters();
 
     assertThat(counters.values()).containsExactly(12);
   }
+
+  @Test
+  public void iterateCurrentLimitCountersReadsEveryPage() {
+    RedisStorage pagedStorage =
+        RedisStorage.builder()
+            .withJedisPool(new JedisPool("localhost", REDIS_PORT))
+            .withScanCount(2)
+            .build();
+    for (int i = 0; i < 25; i++) {
+      storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1 + i, true, EXPIRATION, TIMESTAMP, i + 1);
+    }
+    storage.addAndGet(RESOURCE2, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 100);
+
+    Map<LimitKey, Integer> counters = new HashMap<>();
+    Iterator<Map.Entry<LimitKey, Integer>> iterator =
+        pagedStorage.iterateCurrentLimitCounters(RESOURCE1, LIMIT1);
+    iterator.forEachRemaining(counter -> counters.put(counter.getKey(), counter.getValue()));
+
+    assertThat(counters).hasSize(25);
+    assertThat(counters.values()).doesNotContain(100);
+    assertThat(iterator.hasNext()).isFalse();
+    assertThrows(NoSuchElementException.class, iterator::next);
+  }
+
+  @Test
+  public void iterateCurrentLimitCountersOfAnEmptyStorageIsEmpty() {
+    assertThat(storage.iterateCurrentLimitCounters().hasNext()).isFalse();
+  }
+
+  @Test
+  public void compactKeysCanBeIncrementedAndListed() {
+    compactStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    compactStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 10);
+    compactStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY2, true, EXPIRATION, TIMESTAMP, 1);
+    compactStorage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, TIMESTAMP, 2);
+    compactStorage.addAndGet(RESOURCE2, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 3);
+
+    Map<LimitKey, Integer> result =
+        compactStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1);
+
+    assertThat(result)
+        .containsExactly(
+            new LimitKey(
+                RESOURCE1,
+                LIMIT1,
+                PROPERTY1,
+                true,
+                LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION),
+                EXPIRATION),
+            15);
+    assertThat(compactStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1)).hasSize(2);
+    assertThat(compactStorage.getCurrentLimitCounters(RESOURCE1)).hasSize(3);
+    assertThat(compactStorage.getCurrentLimitCounters()).hasSize(4);
+  }
+
+  @Test
+  public void compactKeysAreNotSeenByTextKeys() {
+    compactStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    storage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 1);
+
+    assertThat(compactStorage.getCurrentLimitCounters().values()).containsExactly(5);
+    assertThat(storage.getCurrentLimitCounters().values()).containsExactly(1);
+  }
+
+  @Test
+  public void hashBucketsCanBeIncrementedAndListed() {
+    hashStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 5);
+    int counter =
+        hashStorage
+            .addAndGet(RESOURCE1, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 10)
+            .getValue();
+    hashStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY2, true, EXPIRATION, TIMESTAMP, 1);
+    hashStorage.addAndGet(RESOURCE1, LIMIT2, PROPERTY1, true, EXPIRATION, TIMESTAMP, 2);
+    hashStorage.addAndGet(RESOURCE2, LIMIT1, PROPERTY1, true, EXPIRATION, TIMESTAMP, 3);
+
+    assertThat(counter).isEqualTo(15);
+    assertThat(hashStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1))
+        .containsExactly(
+            new LimitKey(
+                RESOURCE1,
+                LIMIT1,
+                PROPERTY1,
+                true,
+                LimitUtils.calculateBucket(TIMESTAMP, EXPIRATION),
+                EXPIRATION),
+            15);
+    assertThat(hashStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1)).hasSize(2);
+    assertThat(hashStorage.getCurrentLimitCounters(RESOURCE1)).hasSize(3);
+    assertThat(hashStorage.getCurrentLimitCounters()).hasSize(4);
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+    try (Jedis resource = jedis.getResource()) {
+      // One hash per bucket of each limit, each with its own expiration.
+      assertThat(resource.keys("*")).hasSize(3);
+      for (String key : resource.keys("*")) {
+        assertThat(resource.type(key)).isEqualTo("hash");
+        assertThat(resource.ttl(key)).isGreaterThan(EXPIRATION.getSeconds());
+      }
+    }
+  }
+
+  @Test
+  public void hashBucketsOnlyAddTheGroupsUnderTheirLimits() {
+    List<Map<LimitKey, Integer>> results =
+        hashStorage.tryAddAndGetAll(
+            Arrays.asList(
+                Arrays.asList(
+                    givenAddAndGetRequest(LIMIT1, PROPERTY1, 1, 2),
+                    givenAddAndGetRequest(LIMIT1, PROPERTY2, 1, 1)),
+                Arrays.asList(
+                    givenAddAndGetRequest(LIMIT1, PROPERTY1, 1, 2),
+                    givenAddAndGetRequest(LIMIT1, PROPERTY2, 1, 1)),
+                Arrays.asList(givenAddAndGetRequest(LIMIT1, PROPERTY1, 1, 2))));
+
+    assertThat(results.get(0).values()).containsExactly(1, 1).inOrder();
+    assertThat(results.get(1).values()).containsExactly(2, 2).inOrder();
+    assertThat(results.get(2).values()).containsExactly(2);
+    assertThat(hashStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1).values())
+        .containsExactly(2);
+    assertThat(hashStorage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY2).values())
+        .containsExactly(1);
+  }
+
+  @Test
+  public void hashBucketsWeightTheCountOfThePreviousBucket() {
+    Instant bucket = Instant.parse("2020-01-01T01:00:00Z");
+    Instant quarterPast = bucket.plus(Duration.ofMinutes(15));
+    hashStorage.tryAddAndGet(
+        Arrays.asList(givenSlidingWindowRequest(bucket.minus(EXPIRATION), 10, 10)));
+
+    Map<LimitKey, Integer> accepted =
+        hashStorage.tryAddAndGet(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+    Map<LimitKey, Integer> refused =
+        hashStorage.tryAddAndGet(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+    Map<LimitKey, Integer> limited =
+        hashStorage.addAndGetWithLimit(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+
+    assertThat(accepted.values()).containsExactly(8);
+    assertThat(refused.values()).containsExactly(9);
+    assertThat(limited.values()).containsExactly(9);
+  }
+
+  @Test
+  public void hashBucketsKeepTokenBucketsInTheirOwnKeys() {
+    Instant now = Instant.parse("2020-01-01T00:00:00Z");
+
+    Map<LimitKey, Integer> first =
+        hashStorage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+    Map<LimitKey, Integer> second =
+        hashStorage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+
+    assertThat(first.values()).containsExactly(5);
+    assertThat(second.values()).containsExactly(10);
+    try (Jedis resource = jedis.getResource()) {
+      assertThat(resource.keys("*")).hasSize(1);
+      assertThat(resource.type(resource.keys("*").iterator().next())).isEqualTo("string");
+    }
+  }
+
+  @Test
+  public void hashBucketsUseLessMemoryPerCounter() {
+    long stringMemory = getUsedMemory(storage);
+    flushDataInRedis();
+    long hashMemory = getUsedMemory(hashStorage);
+
+    assertThat(hashMemory).isLessThan(stringMemory / 2);
+  }
+
+  private long getUsedMemory(RedisStorage redisStorage) {
+    for (int i = 0; i < 100; i++) {
+      redisStorage.addAndGet(RESOURCE1, LIMIT1, PROPERTY1 + i, true, EXPIRATION, TIMESTAMP, 1);
+    }
+    long usedMemory = 0;
+    try (Jedis resource = jedis.getResource()) {
+      for (String key : resource.keys("*")) {
+        usedMemory += resource.memoryUsage(key, 0);
+      }
+    }
+    return usedMemory;
+  }
+
+  @Test
+  public void slidingWindowWeightsTheCountOfThePreviousBucket() {
+    Instant bucket = Instant.parse("2020-01-01T01:00:00Z");
+    Instant quarterPast = bucket.plus(Duration.ofMinutes(15));
+    storage.tryAddAndGet(
+        Arrays.asList(givenSlidingWindowRequest(bucket.minus(EXPIRATION), 10, 10)));
+
+    Map<LimitKey, Integer> accepted =
+        storage.tryAddAndGet(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+    Map<LimitKey, Integer> refused =
+        storage.tryAddAndGet(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+    Map<LimitKey, Integer> checked =
+        storage.addAndGet(Arrays.asList(givenSlidingWindowRequest(quarterPast, 0, 8)));
+    Map<LimitKey, Integer> limited =
+        storage.addAndGetWithLimit(Arrays.asList(givenSlidingWindowRequest(quarterPast, 1, 8)));
+
+    // Three quarters of the previous 10 are still in the window.
+    assertThat(accepted.values()).containsExactly(8);
+    assertThat(refused.values()).containsExactly(9);
+    assertThat(checked.values()).containsExactly(8);
+    assertThat(limited.values()).containsExactly(9);
+    // The cost is kept by addAndGetWithLimit since it only goes over the limit by that cost.
+    assertThat(storage.getCurrentLimitCounters(RESOURCE1, LIMIT1, PROPERTY1))
+        .containsEntry(new LimitKey(RESOURCE1, LIMIT1, PROPERTY1, true, bucket, EXPIRATION), 2);
+  }
+
+  @Test
+  public void tokenBucketKeepsASingleKeyPerProperty() {
+    Instant now = Instant.parse("2020-01-01T00:00:00Z");
+
+    Map<LimitKey, Integer> first =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+    Map<LimitKey, Integer> second =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+    Map<LimitKey, Integer> refused =
+        storage.tryAddAndGet(Arrays.asList(givenTokenBucketRequest(now, 1, 10, 2)));
+    Map<LimitKey, Integer> checked =
+        storage.addAndGet(Arrays.asList(givenTokenBucketRequest(now, 0, 10, 2)));
+    Map<LimitKey, Integer> refilled =
+        storage.addAndGetWithLimit(
+            Arrays.asList(givenTokenBucketRequest(now.plusSeconds(1), 1, 10, 2)));
+
+    // Counts are the tokens in use scaled from the burst of 2 to the capacity of 10.
+    assertThat(first.values()).containsExactly(5);
+    assertThat(second.values()).containsExactly(10);
+    assertThat(refused.values()).containsExactly(15);
+    assertThat(checked.values()).containsExactly(10);
+    assertThat(refilled.values()).containsExactly(10);
+    try (Jedis resource = jedis.getResource()) {
+      assertThat(resource.keys("*")).hasSize(1);
+    }
+    assertThat(storage.getCurrentLimitCounters()).isEmpty();
+  }
+
+  private AddAndGetRequest givenTokenBucketRequest(
+      Instant timestamp, int cost, int limit, int burst) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withExpiration(Duration.ofSeconds(10))
+        .withEventTimestamp(timestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .withBurst(burst)
+        .build();
+  }
+
+  private AddAndGetRequest givenSlidingWindowRequest(Instant timestamp, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(LIMIT1)
+        .withProperty(PROPERTY1)
+        .withDistributed(true)
+        .withSlidingWindow(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(timestamp)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
+
+  private AddAndGetRequest givenAddAndGetRequest(
+      String limitName, String property, int cost, int limit) {
+    return new AddAndGetRequest.Builder()
+        .withResource(RESOURCE1)
+        .withLimitName(limitName)
+        .withProperty(property)
+        .withDistributed(true)
+        .withExpiration(EXPIRATION)
+        .withEventTimestamp(TIMESTAMP)
+        .withCost(cost)
+        .withLimit(limit)
+        .build();
+  }
 }
@@ -3,8 +3,12 @@ package com.coveo.spillway.storage.utils;
 import static com.google.common.truth.Truth.*;
 import static org.mockito.Mockito.*;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -19,6 +23,7 @@ import org.mockito.Captor;
 import org.mockito.Mock;
 
 import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
 import com.coveo.spillway.storage.InMemoryStorage;
 import com.coveo.spillway.storage.LimitUsageStorage;
 import com.google.common.collect.ImmutableMap;
@@ -30,14 +35,14 @@ public class CacheSynchronizationTest {
   private static final String LIMIT = "TheLimit";
   private static final String PROPERTY = "TheProperty";
   private static final Duration EXPIRATION = Duration.ofDays(1);
-  private static final Instant BUCKET = Instant.now();
+  private static final Instant BUCKET = LimitUtils.calculateBucket(Instant.now(), EXPIRATION);
   private static final Integer COST = 1;
 
   @Mock private InMemoryStorage inMemoryStorageMock;
   @Mock private LimitUsageStorage limitUsageStorageMock;
 
   @Captor private ArgumentCaptor<List<OverrideKeyRequest>> listOfOverrideKeyRequestCaptor;
-  @Captor private ArgumentCaptor<AddAndGetRequest> addAndGetRequestCaptor;
+  @Captor private ArgumentCaptor<Collection<AddAndGetRequest>> addAndGetRequestsCaptor;
 
   private CacheSynchronization cacheSynchronization;
 
@@ -68,10 +73,10 @@ public class CacheSynchronizationTest {
 
     cacheSynchronization.run();
 
-    verify(limitUsageStorageMock).addAndGet(addAndGetRequestCaptor.capture());
+    verify(limitUsageStorageMock).addAndGet(addAndGetRequestsCaptor.capture());
 
-    AddAndGetRequest addAndGetRequest = addAndGetRequestCaptor.getValue();
-    assertThat(addAndGetRequest).isNotNull();
+    assertThat(addAndGetRequestsCaptor.getValue()).hasSize(1);
+    AddAndGetRequest addAndGetRequest = addAndGetRequestsCaptor.getValue().iterator().next();
     assertThat(addAndGetRequest.getResource()).isEqualTo(RESOURCE);
     assertThat(addAndGetRequest.getLimitName()).isEqualTo(LIMIT);
     assertThat(addAndGetRequest.getProperty()).isEqualTo(PROPERTY);
@@ -80,6 +85,136 @@ public class CacheSynchronizationTest {
     assertThat(addAndGetRequest.getCost()).isEqualTo(COST);
   }
 
+  @Test
+  public void runSkipsKeysWithoutDelta() {
+    givenInMemoryCacheHasValues(
+        ImmutableMap.of(new LimitKey(RESOURCE, LIMIT, PROPERTY, true, BUCKET, EXPIRATION), 0));
+
+    cacheSynchronization.run();
+
+    verify(limitUsageStorageMock, never()).addAndGet(anyCollection());
+  }
+
+  @Test
+  public void runSendsTheDeltasInChunksAndAppliesTheTotals() {
+    cacheSynchronization = new CacheSynchronization(inMemoryStorageMock, limitUsageStorageMock, 2);
+    Map<LimitKey, Integer> counters = new LinkedHashMap<>();
+    for (int i = 0; i < 3; i++) {
+      counters.put(new LimitKey(RESOURCE, LIMIT, PROPERTY + i, true, BUCKET, EXPIRATION), i + 1);
+    }
+    Map<LimitKey, Capacity> capacities = givenInMemoryCacheHasValues(counters);
+    when(limitUsageStorageMock.addAndGet(anyCollection()))
+        .thenAnswer(
+            invocation -> {
+              Collection<AddAndGetRequest> requests = invocation.getArgument(0);
+              return requests
+                  .stream()
+                  .collect(
+                      Collectors.toMap(LimitKey::fromRequest, request -> request.getCost() + 10));
+            });
+
+    cacheSynchronization.run();
+
+    verify(limitUsageStorageMock, times(2)).addAndGet(addAndGetRequestsCaptor.capture());
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(0)).hasSize(2);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(1)).hasSize(1);
+    for (Entry<LimitKey, Capacity> entry : capacities.entrySet()) {
+      assertThat(entry.getValue().getDelta()).isEqualTo(0);
+      assertThat(entry.getValue().get()).isEqualTo(counters.get(entry.getKey()) + 10);
+    }
+  }
+
+  @Test
+  public void runKeepsTheDeltasThatReceivedNoTotal() {
+    Map<LimitKey, Capacity> capacities = givenInMemoryCacheHasValues(givenCounters());
+
+    cacheSynchronization.run();
+
+    assertThat(capacities.values().iterator().next().getDelta()).isEqualTo(COST);
+  }
+
+  @Test
+  public void adaptiveRunSynchronizesTheKeysCloseToTheirLimitMoreOften() {
+    cacheSynchronization =
+        new CacheSynchronization(
+            inMemoryStorageMock,
+            limitUsageStorageMock,
+            CacheSynchronization.DEFAULT_CHUNK_SIZE,
+            Duration.ofMillis(100),
+            Duration.ofMillis(1000),
+            0);
+    Instant start = BUCKET.plusSeconds(1);
+    cacheSynchronization.setClock(Clock.fixed(start, ZoneOffset.UTC));
+    LimitKey hotKey = new LimitKey(RESOURCE, LIMIT, "hot", true, BUCKET, EXPIRATION);
+    LimitKey coldKey = new LimitKey(RESOURCE, LIMIT, "cold", true, BUCKET, EXPIRATION);
+    Map<LimitKey, Capacity> capacities =
+        givenInMemoryCacheHasValues(ImmutableMap.of(hotKey, 90, coldKey, 5));
+    capacities.values().forEach(capacity -> capacity.updateLimit(100));
+    when(limitUsageStorageMock.addAndGet(anyCollection()))
+        .thenAnswer(
+            invocation -> {
+              Collection<AddAndGetRequest> requests = invocation.getArgument(0);
+              return requests
+                  .stream()
+                  .collect(
+                      Collectors.toMap(
+                          LimitKey::fromRequest,
+                          request -> capacities.get(LimitKey.fromRequest(request)).get()));
+            });
+
+    cacheSynchronization.run();
+    capacities.values().forEach(capacity -> capacity.addAndGet(1));
+    // The hot key is due after 1000 - 900 * 0.9 = 190 ms, the cold one after 955 ms.
+    cacheSynchronization.setClock(Clock.fixed(start.plusMillis(200), ZoneOffset.UTC));
+    cacheSynchronization.run();
+    cacheSynchronization.setClock(Clock.fixed(start.plusMillis(1000), ZoneOffset.UTC));
+    cacheSynchronization.run();
+
+    verify(limitUsageStorageMock, times(3)).addAndGet(addAndGetRequestsCaptor.capture());
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(0)).hasSize(2);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(1).iterator().next().getProperty())
+        .isEqualTo("hot");
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(2)).hasSize(1);
+    assertThat(addAndGetRequestsCaptor.getAllValues().get(2).iterator().next().getProperty())
+        .isEqualTo("cold");
+    assertThat(capacities.get(coldKey).getDelta()).isEqualTo(0);
+  }
+
+  @Test
+  public void slidingWindowsAreSynchronizedWithTheCountOfTheCurrentBucket() {
+    InMemoryStorage cache = new InMemoryStorage();
+    InMemoryStorage distributedStorage = new InMemoryStorage();
+    cacheSynchronization = new CacheSynchronization(cache, distributedStorage);
+    AddAndGetRequest previousRequest =
+        new AddAndGetRequest.Builder()
+            .withResource(RESOURCE)
+            .withLimitName(LIMIT)
+            .withProperty(PROPERTY)
+            .withDistributed(true)
+            .withSlidingWindow(true)
+            .withExpiration(EXPIRATION)
+            .withEventTimestamp(BUCKET.minus(EXPIRATION))
+            .withCost(10)
+            .build();
+    // Half of the previous bucket is still in the window, so it weighs 5.
+    AddAndGetRequest currentRequest =
+        new AddAndGetRequest.Builder(previousRequest)
+            .withEventTimestamp(BUCKET.plus(EXPIRATION.dividedBy(2)))
+            .withCost(COST)
+            .build();
+
+    cache.addAndGet(previousRequest);
+    cacheSynchronization.run();
+    for (int i = 0; i < 4; i++) {
+      cache.addAndGet(currentRequest);
+      cacheSynchronization.run();
+    }
+
+    AddAndGetRequest read = new AddAndGetRequest.Builder(currentRequest).withCost(0).build();
+    assertThat(distributedStorage.addAndGet(read).getValue()).isEqualTo(9);
+    assertThat(cache.addAndGet(read).getValue()).isEqualTo(9);
+  }
+
   private Map<LimitKey, Integer> givenCounters() {
     return ImmutableMap.of(new LimitKey(RESOURCE, LIMIT, PROPERTY, true, BUCKET, EXPIRATION), COST);
   }
@@ -89,25 +224,27 @@ public class CacheSynchronizationTest {
   }
 
   @SuppressWarnings("cast")
-  private void givenInMemoryCacheHasValues(Map<LimitKey, Integer> counters) {
+  private Map<LimitKey, Capacity> givenInMemoryCacheHasValues(Map<LimitKey, Integer> counters) {
+    Map<LimitKey, Capacity> capacities =
+        counters
+            .entrySet()
+            .stream()
+            .collect(
+                Collectors.toMap(
+                    Entry::getKey,
+                    entry -> {
+                      Capacity capacity = new Capacity();
+                      capacity.addAndGet(entry.getValue());
+
+                      return capacity;
+                    },
+                    (first, second) -> second,
+                    LinkedHashMap::new));
     doAnswer(
             invocation -> {
               Consumer<Entry<LimitKey, Capacity>> consumer = invocation.getArgument(0);
 
-              for (Entry<LimitKey, Capacity> entry :
-                  counters
-                      .entrySet()
-                      .stream()
-                      .collect(
-                          Collectors.toMap(
-                              Entry::getKey,
-                              entry -> {
-                                Capacity capacity = new Capacity();
-                                capacity.addAndGet(entry.getValue());
-
-                                return capacity;
-                              }))
-                      .entrySet()) {
+              for (Entry<LimitKey, Capacity> entry : capacities.entrySet()) {
                 consumer.accept(entry);
               }
 
@@ -115,5 +252,6 @@ public class CacheSynchronizationTest {
             })
         .when(inMemoryStorageMock)
         .applyOnEach(any(Consumer.class));
+    return capacities;
   }
 }
@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class CapacityTest {
+  private static final int STRIPES = 4;
+
+  @Test
+  public void aSingleThreadGetsTheExactCountFromItsQuota() {
+    Capacity capacity = givenStripedCapacity(0);
+
+    for (int i = 1; i <= 100; i++) {
+      assertThat(capacity.tryAddAndGet(1, 100)).isEqualTo(i);
+    }
+    assertThat(capacity.tryAddAndGet(1, 100)).isEqualTo(101);
+    assertThat(capacity.get()).isEqualTo(100);
+  }
+
+  @Test
+  public void unusedQuotasAreNotCounted() {
+    Capacity capacity = givenStripedCapacity(0);
+
+    capacity.tryAddAndGet(1, 1000);
+    capacity.tryAddAndGet(2, 1000);
+
+    assertThat(capacity.get()).isEqualTo(3);
+    assertThat(capacity.getDelta()).isEqualTo(3);
+    assertThat(capacity.addAndGet(-1)).isEqualTo(2);
+  }
+
+  @Test
+  public void unusedQuotasAreReservedAgainAgainstANewTotal() {
+    Capacity capacity = givenStripedCapacity(0);
+
+    capacity.tryAddAndGet(1, 100);
+    capacity.setTotal(99, 1);
+
+    assertThat(capacity.getDelta()).isEqualTo(0);
+    assertThat(capacity.tryAddAndGet(1, 100)).isEqualTo(100);
+    assertThat(capacity.tryAddAndGet(1, 100)).isEqualTo(101);
+    assertThat(capacity.get()).isEqualTo(100);
+  }
+
+  @Test
+  public void costsAddedWithoutALimitAreNotOvertakenByTheQuotas() {
+    Capacity capacity = givenStripedCapacity(0);
+
+    capacity.tryAddAndGet(1, 100);
+    capacity.addAndGet(99);
+
+    assertThat(capacity.tryAddAndGet(1, 100)).isGreaterThan(100);
+    assertThat(capacity.get()).isEqualTo(100);
+  }
+
+  @Test
+  public void neverLetsMoreThanTheLimitThroughWithConcurrentCalls() throws InterruptedException {
+    int threadCount = 8;
+    int callsPerThread = 10_000;
+    int limit = 5_000;
+    Capacity capacity = givenStripedCapacity(0);
+    AtomicInteger acceptedCalls = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(threadCount);
+
+    for (int t = 0; t < threadCount; t++) {
+      new Thread(
+              () -> {
+                for (int i = 0; i < callsPerThread; i++) {
+                  if (capacity.tryAddAndGet(1, limit) <= limit) {
+                    acceptedCalls.incrementAndGet();
+                  }
+                }
+                done.countDown();
+              })
+          .start();
+    }
+    done.await();
+
+    assertThat(acceptedCalls.get()).isAtMost(limit);
+    assertThat(capacity.get()).isEqualTo(acceptedCalls.get());
+  }
+
+  private Capacity givenStripedCapacity(int total) {
+    Capacity capacity = new Capacity(total, STRIPES);
+    // A first race far from the limit stripes the capacity.
+    capacity.stripe();
+    return capacity;
+  }
+}
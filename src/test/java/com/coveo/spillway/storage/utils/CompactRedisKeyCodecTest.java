@@ -0,0 +1,100 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+
+import com.coveo.spillway.limit.LimitKey;
+import com.coveo.spillway.limit.utils.LimitUtils;
+
+public class CompactRedisKeyCodecTest {
+  private static final String PREFIX = "spillway";
+  private static final Duration EXPIRATION = Duration.ofHours(1);
+  private static final Instant BUCKET = Instant.parse("2020-01-01T01:00:00Z");
+  private static final LimitKey LIMIT_KEY =
+      new LimitKey("resource|with|separators", "limité", "property", true, BUCKET, EXPIRATION);
+
+  private final CompactRedisKeyCodec codec = new CompactRedisKeyCodec(PREFIX);
+
+  @Test
+  public void decodesTheKeysItEncodes() {
+    assertThat(codec.decode(codec.encode(LIMIT_KEY))).isEqualTo(LIMIT_KEY);
+  }
+
+  @Test
+  public void decodesTokenBuckets() {
+    LimitKey tokenBucket =
+        new LimitKey("resource", "limit", "property", true, LimitUtils.TOKEN_BUCKET, EXPIRATION);
+
+    assertThat(codec.decode(codec.encode(tokenBucket))).isEqualTo(tokenBucket);
+  }
+
+  @Test
+  public void keysAreShorterThanTextKeys() {
+    LimitKey limitKey = new LimitKey("api", "perIp", "10.0.0.1", true, BUCKET, EXPIRATION);
+
+    byte[] textKey = new TextRedisKeyCodec(PREFIX).encode(limitKey);
+
+    // The bucket and the expiration take 10 bytes instead of 26 with their separators.
+    assertThat(textKey.length).isEqualTo(53);
+    assertThat(codec.encode(limitKey).length).isEqualTo(38);
+  }
+
+  @Test
+  public void doesNotDecodeOtherKeys() {
+    byte[] key = codec.encode(LIMIT_KEY);
+
+    assertThat(codec.decode(new TextRedisKeyCodec(PREFIX).encode(LIMIT_KEY))).isNull();
+    assertThat(new CompactRedisKeyCodec("other").decode(key)).isNull();
+    assertThat(codec.decode(Arrays.copyOf(key, key.length - 1))).isNull();
+    assertThat(codec.decode(Arrays.copyOf(key, key.length + 1))).isNull();
+  }
+
+  @Test
+  public void patternsStartLikeTheKeys() {
+    byte[] key = codec.encode(LIMIT_KEY);
+    byte[] pattern = codec.encodePattern(LIMIT_KEY.getResource(), LIMIT_KEY.getLimitName());
+
+    assertThat(pattern[pattern.length - 1]).isEqualTo((byte) '*');
+    assertThat(Arrays.copyOf(key, pattern.length - 1))
+        .isEqualTo(Arrays.copyOf(pattern, pattern.length - 1));
+  }
+
+  @Test
+  public void patternsEscapeLengthsThatAreGlobCharacters() {
+    String property = StringUtils.repeat('p', '*');
+
+    byte[] pattern = codec.encodePattern("resource", "limit", property);
+
+    String decoded = new String(pattern, StandardCharsets.ISO_8859_1);
+    assertThat(decoded).endsWith("\\*" + property + "*");
+  }
+}
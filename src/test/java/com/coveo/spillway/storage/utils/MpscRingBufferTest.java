@@ -0,0 +1,146 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MpscRingBufferTest {
+
+  @Test
+  public void drainsInTheOrderOfTheOffers() {
+    MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(4);
+    List<Integer> drained = new ArrayList<>();
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(buffer.offer(i)).isTrue();
+      if (i % 3 == 2) {
+        buffer.drain(drained::add, Integer.MAX_VALUE);
+      }
+    }
+    buffer.drain(drained::add, Integer.MAX_VALUE);
+
+    assertThat(drained).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9).inOrder();
+    assertThat(buffer.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void refusesOffersOverTheCapacity() {
+    MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(3);
+
+    assertThat(buffer.offer(1)).isTrue();
+    assertThat(buffer.offer(2)).isTrue();
+    assertThat(buffer.offer(3)).isTrue();
+    assertThat(buffer.offer(4)).isFalse();
+    assertThat(buffer.size()).isEqualTo(3);
+
+    assertThat(buffer.drain(element -> {}, 1)).isEqualTo(1);
+    assertThat(buffer.offer(4)).isTrue();
+    assertThat(buffer.offer(5)).isFalse();
+  }
+
+  @Test
+  public void aCapacityOfOneHoldsASingleElement() {
+    MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(1);
+
+    assertThat(buffer.offer(1)).isTrue();
+    assertThat(buffer.offer(2)).isFalse();
+    assertThat(buffer.drain(element -> {}, Integer.MAX_VALUE)).isEqualTo(1);
+    assertThat(buffer.offer(2)).isTrue();
+  }
+
+  @Test
+  public void carriersAreWrittenInPlaceAndReused() {
+    MpscRingBuffer<int[]> buffer = new MpscRingBuffer<>(2, () -> new int[1]);
+    Map<int[], Boolean> carriers = new IdentityHashMap<>();
+    List<Integer> drained = new ArrayList<>();
+
+    for (int i = 0; i < 6; i++) {
+      assertThat(buffer.offer(i, (carrier, value) -> carrier[0] = value)).isTrue();
+      buffer.drain(
+          carrier -> {
+            carriers.put(carrier, true);
+            drained.add(carrier[0]);
+          },
+          Integer.MAX_VALUE);
+    }
+
+    assertThat(drained).containsExactly(0, 1, 2, 3, 4, 5).inOrder();
+    assertThat(carriers).hasSize(2);
+  }
+
+  @Test
+  public void carriersAreRefusedOverTheCapacity() {
+    MpscRingBuffer<int[]> buffer = new MpscRingBuffer<>(1, () -> new int[1]);
+
+    assertThat(buffer.offer(1, (carrier, value) -> carrier[0] = value)).isTrue();
+    assertThat(buffer.offer(2, (carrier, value) -> carrier[0] = value)).isFalse();
+    assertThat(buffer.drain(carrier -> assertThat(carrier[0]).isEqualTo(1), 1)).isEqualTo(1);
+    assertThat(buffer.offer(2, (carrier, value) -> carrier[0] = value)).isTrue();
+  }
+
+  @Test
+  public void elementsCannotBeOfferedToABufferOfCarriers() {
+    MpscRingBuffer<int[]> buffer = new MpscRingBuffer<>(1, () -> new int[1]);
+
+    Assertions.assertThrows(IllegalStateException.class, () -> buffer.offer(new int[1]));
+  }
+
+  @Test
+  public void noElementIsLostWithConcurrentProducers() throws InterruptedException {
+    int producerCount = 8;
+    int elementsPerProducer = 10_000;
+    MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(64);
+    CountDownLatch done = new CountDownLatch(producerCount);
+
+    for (int p = 0; p < producerCount; p++) {
+      new Thread(
+              () -> {
+                for (int i = 0; i < elementsPerProducer; i++) {
+                  while (!buffer.offer(1)) {
+                    Thread.yield();
+                  }
+                }
+                done.countDown();
+              })
+          .start();
+    }
+
+    long[] sum = new long[1];
+    while (done.getCount() > 0 || !buffer.isEmpty()) {
+      if (buffer.drain(element -> sum[0] += element, Integer.MAX_VALUE) == 0) {
+        Thread.yield();
+      }
+    }
+
+    assertThat(sum[0]).isEqualTo((long) producerCount * elementsPerProducer);
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * The MIT License
+ * Copyright (c) 2016 Coveo
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.coveo.spillway.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.coveo.spillway.storage.utils.SynchronizationScheduler.ScheduledSynchronization;
+import com.google.common.collect.Range;
+
+public class SynchronizationSchedulerTest {
+  private ScheduledExecutorService executor;
+  private SynchronizationScheduler scheduler;
+
+  @BeforeEach
+  public void setup() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    scheduler = new SynchronizationScheduler(executor);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void runsTheTasksUntilTheyAreCancelled() throws InterruptedException {
+    AtomicInteger firstRuns = new AtomicInteger();
+    AtomicInteger secondRuns = new AtomicInteger();
+
+    ScheduledSynchronization first =
+        scheduler.schedule(firstRuns::incrementAndGet, Duration.ZERO, Duration.ofMillis(10), 0.5);
+    ScheduledSynchronization second =
+        scheduler.schedule(secondRuns::incrementAndGet, Duration.ZERO, Duration.ofMillis(10), 0.5);
+    Thread.sleep(200);
+    first.cancel();
+    int firstRunsAtCancel = firstRuns.get();
+    Thread.sleep(100);
+    second.cancel();
+
+    assertThat(firstRunsAtCancel).isGreaterThan(2);
+    assertThat(firstRuns.get()).isAtMost(firstRunsAtCancel + 1);
+    assertThat(secondRuns.get()).isGreaterThan(firstRunsAtCancel);
+    assertThat(first.isCancelled()).isTrue();
+  }
+
+  @Test
+  public void aFailingTaskIsRunAgain() throws InterruptedException {
+    AtomicInteger runs = new AtomicInteger();
+
+    ScheduledSynchronization synchronization =
+        scheduler.schedule(
+            () -> {
+              runs.incrementAndGet();
+              throw new IllegalStateException("Storage is down.");
+            },
+            Duration.ZERO,
+            Duration.ofMillis(10),
+            0);
+    Thread.sleep(100);
+    synchronization.cancel();
+
+    assertThat(runs.get()).isGreaterThan(1);
+  }
+
+  @Test
+  public void aSlowTaskDoesNotDelayTheOthers() throws InterruptedException {
+    ExecutorService taskExecutor = Executors.newCachedThreadPool();
+    scheduler = new SynchronizationScheduler(executor, taskExecutor);
+    CountDownLatch slowTaskReleased = new CountDownLatch(1);
+    AtomicInteger runs = new AtomicInteger();
+
+    ScheduledSynchronization slow =
+        scheduler.schedule(
+            () -> {
+              try {
+                slowTaskReleased.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            },
+            Duration.ZERO,
+            Duration.ofMillis(10),
+            0);
+    ScheduledSynchronization fast =
+        scheduler.schedule(runs::incrementAndGet, Duration.ofMillis(10), Duration.ofMillis(10), 0);
+    Thread.sleep(200);
+    fast.cancel();
+    slow.cancel();
+    slowTaskReleased.countDown();
+    taskExecutor.shutdownNow();
+
+    assertThat(runs.get()).isGreaterThan(2);
+  }
+
+  @Test
+  public void jitterSpreadsTheDelaysAroundThePeriod() {
+    for (int i = 0; i < 1000; i++) {
+      assertThat(SynchronizationScheduler.applyJitter(1000, 0.2)).isIn(Range.closed(800L, 1200L));
+    }
+    assertThat(SynchronizationScheduler.applyJitter(1000, 0)).isEqualTo(1000);
+  }
+}